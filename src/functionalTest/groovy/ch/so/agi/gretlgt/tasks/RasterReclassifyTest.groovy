@@ -142,6 +142,48 @@ class RasterReclassifyTest extends Specification {
         assert noData.getAsSingleValue() == DEFAULT_NO_DATA
     }
 
+    def "RasterReclassify task output is loaded from the build cache"() {
+        given:
+        Path fixture = Path.of("src/functionalTest/data/RasterReclassify/Beispiel_Rasterfile.asc")
+        Files.copy(fixture, testProjectDir.toPath().resolve("input-cached.asc"), StandardCopyOption.REPLACE_EXISTING)
+        new File(testProjectDir, "settings.gradle") << """
+            buildCache {
+                local {
+                    directory = new File(rootDir, 'build-cache')
+                }
+            }
+        """
+
+        buildFile << """
+            import ch.so.agi.gretlgt.tasks.RasterReclassify
+
+            tasks.register("reclassifyCached", RasterReclassify) {
+                inputRaster.set(layout.projectDirectory.file("input-cached.asc"))
+                outputRaster.set(layout.buildDirectory.file("reclassified/cached.tif"))
+            }
+        """
+
+        when:
+        def first = GradleRunner.create()
+            .withProjectDir(testProjectDir)
+            .withPluginClasspath()
+            .withArguments("reclassifyCached", "--build-cache")
+            .forwardOutput()
+            .build()
+        new File(testProjectDir, "build").deleteDir()
+        def second = GradleRunner.create()
+            .withProjectDir(testProjectDir)
+            .withPluginClasspath()
+            .withArguments("reclassifyCached", "--build-cache")
+            .forwardOutput()
+            .build()
+
+        then:
+        first.task(":reclassifyCached").outcome == TaskOutcome.SUCCESS
+        second.task(":reclassifyCached").outcome == TaskOutcome.FROM_CACHE
+        new File(testProjectDir, "build/reclassified/cached.tif").exists()
+    }
+
     private GridCoverage2D readCoverage(Path rasterPath) {
         AbstractGridFormat format = GridFormatFinder.findFormat(rasterPath.toFile())
         GridCoverage2DReader reader = null
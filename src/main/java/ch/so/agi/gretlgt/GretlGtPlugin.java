@@ -2,7 +2,15 @@ package ch.so.agi.gretlgt;
 
 import org.gradle.api.Plugin;
 import org.gradle.api.Project;
+import org.gradle.api.provider.Provider;
+
+import ch.so.agi.gretlgt.services.CoverageCacheService;
+import ch.so.agi.gretlgt.services.GeoPackageWriterService;
+import ch.so.agi.gretlgt.tasks.RasterCalc;
+import ch.so.agi.gretlgt.tasks.RasterReclassify;
+import ch.so.agi.gretlgt.tasks.RasterReproject;
 import ch.so.agi.gretlgt.tasks.ReadShapefileTask;
+import ch.so.agi.gretlgt.tasks.Vectorize;
 
 public class GretlGtPlugin implements Plugin<Project> {
     public static final String EXTENSION_NAME = "gretlgt";
@@ -20,5 +28,33 @@ public class GretlGtPlugin implements Plugin<Project> {
             );
             t.getCrsCode().convention(ext.getDefaultCrsCode());
         });
+
+        Provider<GeoPackageWriterService> writerService = project.getGradle().getSharedServices()
+            .registerIfAbsent(GeoPackageWriterService.NAME, GeoPackageWriterService.class, spec -> { });
+        project.getTasks().withType(Vectorize.class).configureEach(t -> {
+            t.getWriterService().convention(writerService);
+            t.usesService(writerService);
+        });
+
+        Provider<CoverageCacheService> coverageCache = project.getGradle().getSharedServices()
+            .registerIfAbsent(CoverageCacheService.NAME, CoverageCacheService.class, spec ->
+                spec.getParameters().getMaxBytes().set(project.getProviders()
+                    .gradleProperty(CoverageCacheService.MAX_BYTES_PROPERTY).map(Long::valueOf)));
+        project.getTasks().withType(RasterReclassify.class).configureEach(t -> {
+            t.getCoverageCache().convention(coverageCache);
+            t.usesService(coverageCache);
+        });
+        project.getTasks().withType(Vectorize.class).configureEach(t -> {
+            t.getCoverageCache().convention(coverageCache);
+            t.usesService(coverageCache);
+        });
+        project.getTasks().withType(RasterCalc.class).configureEach(t -> {
+            t.getCoverageCache().convention(coverageCache);
+            t.usesService(coverageCache);
+        });
+        project.getTasks().withType(RasterReproject.class).configureEach(t -> {
+            t.getCoverageCache().convention(coverageCache);
+            t.usesService(coverageCache);
+        });
     }
 }
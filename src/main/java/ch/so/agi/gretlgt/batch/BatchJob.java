@@ -0,0 +1,241 @@
+package ch.so.agi.gretlgt.batch;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One line of a job file: the step to run and its parameters.
+ * <p>
+ * A job line is a JSON object with the members {@code id} (optional, defaults to the line
+ * number), {@code step} ({@code reclassify}, {@code vectorize}, {@code calc} or
+ * {@code reproject}) and the step parameters. Relative paths are resolved against the directory of
+ * the job file.
+ * </p>
+ */
+public final class BatchJob {
+    private final String id;
+    private final String step;
+    private final Map<String, Object> parameters;
+    private final Path baseDirectory;
+
+    BatchJob(String id, String step, Map<String, Object> parameters, Path baseDirectory) {
+        this.id = id;
+        this.step = step;
+        this.parameters = Collections.unmodifiableMap(new LinkedHashMap<>(parameters));
+        this.baseDirectory = baseDirectory;
+    }
+
+    /**
+     * Parses a job line.
+     *
+     * @param line          the JSON object
+     * @param lineNumber    1-based line number, used as default id
+     * @param baseDirectory directory that relative paths are resolved against
+     * @return the job
+     * @throws IllegalArgumentException if the line is not a JSON object with a {@code step}
+     */
+    @SuppressWarnings("unchecked")
+    public static BatchJob parse(String line, int lineNumber, Path baseDirectory) {
+        Object value = Json.parse(line);
+        if (!(value instanceof Map)) {
+            throw new IllegalArgumentException("Job on line " + lineNumber + " is not a JSON object");
+        }
+        Map<String, Object> parameters = new LinkedHashMap<>((Map<String, Object>) value);
+        Object id = parameters.remove("id");
+        Object step = parameters.remove("step");
+        if (!(step instanceof String)) {
+            throw new IllegalArgumentException("Job on line " + lineNumber + " has no step");
+        }
+        String jobId;
+        if (id == null) {
+            jobId = String.valueOf(lineNumber);
+        } else {
+            jobId = id instanceof String ? (String) id : Json.write(id);
+        }
+        return new BatchJob(jobId, (String) step, parameters, baseDirectory);
+    }
+
+    /**
+     * @return the job id
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @return the step name
+     */
+    public String getStep() {
+        return step;
+    }
+
+    /**
+     * @return the step parameters
+     */
+    public Map<String, Object> getParameters() {
+        return parameters;
+    }
+
+    boolean has(String name) {
+        return parameters.get(name) != null;
+    }
+
+    String getString(String name) {
+        Object value = require(name);
+        if (!(value instanceof String)) {
+            throw invalid(name, "a string");
+        }
+        return (String) value;
+    }
+
+    String getString(String name, String defaultValue) {
+        return has(name) ? getString(name) : defaultValue;
+    }
+
+    double getDouble(String name) {
+        Object value = require(name);
+        if (!(value instanceof Number)) {
+            throw invalid(name, "a number");
+        }
+        return ((Number) value).doubleValue();
+    }
+
+    double getDouble(String name, double defaultValue) {
+        return has(name) ? getDouble(name) : defaultValue;
+    }
+
+    int getInt(String name, int defaultValue) {
+        if (!has(name)) {
+            return defaultValue;
+        }
+        double value = getDouble(name);
+        if (value != Math.rint(value)) {
+            throw invalid(name, "an integer");
+        }
+        return (int) value;
+    }
+
+    boolean getBoolean(String name, boolean defaultValue) {
+        if (!has(name)) {
+            return defaultValue;
+        }
+        Object value = parameters.get(name);
+        if (!(value instanceof Boolean)) {
+            throw invalid(name, "a boolean");
+        }
+        return (Boolean) value;
+    }
+
+    double[] getDoubles(String name) {
+        List<?> values = list(name);
+        double[] result = new double[values.size()];
+        for (int i = 0; i < result.length; i++) {
+            if (!(values.get(i) instanceof Number)) {
+                throw invalid(name, "an array of numbers");
+            }
+            result[i] = ((Number) values.get(i)).doubleValue();
+        }
+        return result;
+    }
+
+    /**
+     * Returns a single path for a string and several paths for an array of strings.
+     */
+    List<Path> getPaths(String name) {
+        Object value = require(name);
+        List<Path> paths = new ArrayList<>();
+        if (value instanceof String) {
+            paths.add(resolve((String) value));
+            return paths;
+        }
+        for (Object element : list(name)) {
+            if (!(element instanceof String)) {
+                throw invalid(name, "a path or an array of paths");
+            }
+            paths.add(resolve((String) element));
+        }
+        return paths;
+    }
+
+    Path getPath(String name) {
+        return resolve(getString(name));
+    }
+
+    Map<String, Path> getPathMap(String name) {
+        Map<String, Path> paths = new LinkedHashMap<>();
+        getStringMap(name).forEach((key, path) -> paths.put(key, resolve(path)));
+        return paths;
+    }
+
+    Map<String, String> getStringMap(String name) {
+        Object value = require(name);
+        if (!(value instanceof Map)) {
+            throw invalid(name, "an object of strings");
+        }
+        Map<String, String> strings = new LinkedHashMap<>();
+        for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+            if (!(entry.getValue() instanceof String)) {
+                throw invalid(name, "an object of strings");
+            }
+            strings.put(String.valueOf(entry.getKey()), (String) entry.getValue());
+        }
+        return strings;
+    }
+
+    /**
+     * Returns an object with integer member names and integer values, e.g. {@code {"11": 1, "12": 1}}.
+     */
+    Map<Integer, Integer> getIntMap(String name) {
+        Object value = require(name);
+        if (!(value instanceof Map)) {
+            throw invalid(name, "an object of integers");
+        }
+        Map<Integer, Integer> ints = new LinkedHashMap<>();
+        for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+            Object element = entry.getValue();
+            double number = element instanceof Number ? ((Number) element).doubleValue() : Double.NaN;
+            if (number != Math.rint(number)) {
+                throw invalid(name, "an object of integers");
+            }
+            try {
+                ints.put(Integer.valueOf(String.valueOf(entry.getKey())), (int) number);
+            } catch (NumberFormatException e) {
+                throw invalid(name, "an object with integer keys");
+            }
+        }
+        return ints;
+    }
+
+    private List<?> list(String name) {
+        Object value = require(name);
+        if (!(value instanceof List)) {
+            throw invalid(name, "an array");
+        }
+        return (List<?>) value;
+    }
+
+    private Path resolve(String path) {
+        return baseDirectory != null ? baseDirectory.resolve(path) : Path.of(path);
+    }
+
+    private Object require(String name) {
+        Object value = parameters.get(name);
+        if (value == null) {
+            throw new IllegalArgumentException("Job " + id + ": parameter " + name + " is required");
+        }
+        return value;
+    }
+
+    private IllegalArgumentException invalid(String name, String expected) {
+        return new IllegalArgumentException("Job " + id + ": parameter " + name + " must be " + expected);
+    }
+
+    @Override
+    public String toString() {
+        return step + " job " + id;
+    }
+}
@@ -0,0 +1,537 @@
+package ch.so.agi.gretlgt.batch;
+
+import java.awt.Color;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.geotools.coverage.grid.io.GridFormatFinder;
+import org.opengis.referencing.FactoryException;
+
+import ch.so.agi.gretlgt.logging.GretlLogger;
+import ch.so.agi.gretlgt.logging.Level;
+import ch.so.agi.gretlgt.logging.LogEnvironment;
+import ch.so.agi.gretlgt.steps.BandClassification;
+import ch.so.agi.gretlgt.steps.CancellationToken;
+import ch.so.agi.gretlgt.steps.CoverageCache;
+import ch.so.agi.gretlgt.steps.CoverageSource;
+import ch.so.agi.gretlgt.steps.EmbeddedCrs;
+import ch.so.agi.gretlgt.steps.RasterCalcStep;
+import ch.so.agi.gretlgt.steps.RasterReclassify;
+import ch.so.agi.gretlgt.steps.RasterReclassifyStep;
+import ch.so.agi.gretlgt.steps.RasterReprojectStep;
+import ch.so.agi.gretlgt.steps.RegionOfInterest;
+import ch.so.agi.gretlgt.steps.Resampling;
+import ch.so.agi.gretlgt.steps.StepCancelledException;
+import ch.so.agi.gretlgt.steps.StepResultCache;
+import ch.so.agi.gretlgt.steps.VectorFormat;
+import ch.so.agi.gretlgt.steps.VectorizeStep;
+import ch.so.agi.gretlgt.steps.Vectorizer;
+
+/**
+ * Runs the steps without Gradle in one warm JVM.
+ * <p>
+ * Jobs are read from job files (JSON lines, see {@link BatchJob}) and executed on a bounded thread
+ * pool. GeoTools format registration and the EPSG database are initialised once, and decoded rasters
+ * are shared between the jobs through a {@link CoverageCache}. For every job file a result file
+ * with one JSON line per job (status, start time, duration and error message) is written.
+ * </p>
+ * <p>
+ * In watch mode the runner polls a spool directory for {@code *.jsonl} job files. Job files should
+ * be moved into the directory atomically; after processing, a job file is renamed to
+ * {@code <name>.done} and its results are written to {@code <name>.results.jsonl} next to it. A job
+ * file that cannot be processed at all, e.g. because it is not valid UTF-8, is renamed to
+ * {@code <name>.failed} and its result file holds a single failed result.
+ * </p>
+ */
+public final class BatchRunner implements AutoCloseable {
+    private static final String JOB_FILE_SUFFIX = ".jsonl";
+    private static final String RESULT_FILE_SUFFIX = ".results.jsonl";
+    private static final String DONE_SUFFIX = ".done";
+    private static final String FAILED_SUFFIX = ".failed";
+
+    private final GretlLogger log = LogEnvironment.getLogger(BatchRunner.class);
+    private final int threads;
+    private final ExecutorService executor;
+    private final AtomicBoolean warmedUp = new AtomicBoolean();
+    private CoverageCache coverageCache = new CoverageCache(Runtime.getRuntime().maxMemory() / 4);
+    private StepResultCache resultCache;
+
+    /**
+     * Creates a runner.
+     *
+     * @param threads number of jobs that run concurrently
+     */
+    public BatchRunner(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1");
+        }
+        this.threads = threads;
+        AtomicInteger counter = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "gretlgt-batch-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Sets the cache of decoded rasters shared by all jobs. Defaults to a cache of a quarter of the
+     * maximum heap.
+     *
+     * @param coverageCache the cache; {@code null} decodes every raster per job
+     */
+    public void setCoverageCache(CoverageCache coverageCache) {
+        this.coverageCache = coverageCache;
+    }
+
+    /**
+     * Enables the content-addressed result cache for all jobs.
+     *
+     * @param resultCache cache to consult and populate; {@code null} disables caching
+     */
+    public void setResultCache(StepResultCache resultCache) {
+        this.resultCache = resultCache;
+    }
+
+    /**
+     * Registers the GeoTools formats and initialises the EPSG database. Runs once; later calls
+     * return immediately. {@link #run(List)} calls it before the first job.
+     */
+    public void warmUp() {
+        if (!warmedUp.compareAndSet(false, true)) {
+            return;
+        }
+        long start = System.nanoTime();
+        GridFormatFinder.scanForPlugins();
+        try {
+            EmbeddedCrs.decode("EPSG:2056");
+        } catch (FactoryException e) {
+            log.error("Unable to initialise the EPSG database", e);
+        }
+        log.info(String.format(Locale.ROOT, "Warmed up in %d ms", (System.nanoTime() - start) / 1_000_000));
+    }
+
+    /**
+     * Runs the jobs on the thread pool and waits for all of them.
+     *
+     * @param jobs the jobs
+     * @return one result per job, in job order
+     * @throws InterruptedException if the calling thread is interrupted while waiting; running jobs
+     *                              are cancelled
+     */
+    public List<JobResult> run(List<BatchJob> jobs) throws InterruptedException {
+        warmUp();
+        List<Future<JobResult>> futures = new ArrayList<>(jobs.size());
+        for (BatchJob job : jobs) {
+            futures.add(executor.submit(() -> execute(job)));
+        }
+        List<JobResult> results = new ArrayList<>(jobs.size());
+        try {
+            for (Future<JobResult> future : futures) {
+                results.add(future.get());
+            }
+        } catch (ExecutionException e) {
+            // execute() catches everything the steps throw
+            throw new IllegalStateException(e.getCause());
+        } catch (InterruptedException e) {
+            futures.forEach(f -> f.cancel(true));
+            throw e;
+        }
+        return results;
+    }
+
+    /**
+     * Runs all jobs of a job file and writes their results. Empty lines and lines starting with
+     * {@code #} are ignored; lines that cannot be parsed are reported as failed jobs.
+     *
+     * @param jobFile    the job file
+     * @param resultFile the result file, overwritten
+     * @return the results, in job order
+     * @throws IOException          if the job file cannot be read or the result file not written
+     * @throws InterruptedException if the calling thread is interrupted while waiting
+     */
+    public List<JobResult> runFile(Path jobFile, Path resultFile) throws IOException, InterruptedException {
+        Path baseDirectory = jobFile.toAbsolutePath().getParent();
+        List<String> lines = Files.readAllLines(jobFile, StandardCharsets.UTF_8);
+        List<BatchJob> jobs = new ArrayList<>();
+        List<JobResult> results = new ArrayList<>();
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i).trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            try {
+                jobs.add(BatchJob.parse(line, i + 1, baseDirectory));
+                results.add(null);
+            } catch (IllegalArgumentException e) {
+                results.add(new JobResult(String.valueOf(i + 1), null, JobResult.Status.FAILED,
+                        System.currentTimeMillis(), 0, e.getMessage()));
+            }
+        }
+        log.info(String.format(Locale.ROOT, "Running %d job(s) of %s on %d thread(s)", jobs.size(), jobFile, threads));
+
+        Iterator<JobResult> jobResults = run(jobs).iterator();
+        results.replaceAll(r -> r != null ? r : jobResults.next());
+
+        writeResults(resultFile, results);
+        long failed = results.stream().filter(r -> r.getStatus() != JobResult.Status.SUCCEEDED).count();
+        log.info(String.format(Locale.ROOT, "%s: %d of %d job(s) succeeded, results in %s",
+                jobFile, results.size() - failed, results.size(), resultFile));
+        return results;
+    }
+
+    private static void writeResults(Path resultFile, List<JobResult> results) throws IOException {
+        Files.createDirectories(resultFile.toAbsolutePath().getParent());
+        try (BufferedWriter writer = Files.newBufferedWriter(resultFile, StandardCharsets.UTF_8)) {
+            for (JobResult result : results) {
+                writer.write(result.toJson());
+                writer.newLine();
+            }
+        }
+    }
+
+    /**
+     * Processes the job files that appear in a spool directory until the thread is interrupted. A job
+     * file that fails as a whole is renamed to {@code <name>.failed} and watching continues.
+     *
+     * @param spoolDirectory directory to watch
+     * @param pollInterval   pause between two scans of the directory
+     * @throws IOException if the directory cannot be read or a job file not renamed
+     */
+    public void watch(Path spoolDirectory, Duration pollInterval) throws IOException {
+        log.info("Watching " + spoolDirectory + " for job files");
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                for (Path jobFile : pendingJobFiles(spoolDirectory)) {
+                    String name = jobFile.getFileName().toString();
+                    String baseName = name.substring(0, name.length() - JOB_FILE_SUFFIX.length());
+                    Path resultFile = spoolDirectory.resolve(baseName + RESULT_FILE_SUFFIX);
+                    String suffix = DONE_SUFFIX;
+                    try {
+                        runFile(jobFile, resultFile);
+                    } catch (IOException | RuntimeException e) {
+                        log.error("Failed to process job file " + jobFile, e);
+                        writeFailure(resultFile, baseName, e);
+                        suffix = FAILED_SUFFIX;
+                    }
+                    Files.move(jobFile, spoolDirectory.resolve(name + suffix), StandardCopyOption.REPLACE_EXISTING);
+                }
+                Thread.sleep(pollInterval.toMillis());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        log.info("Stopped watching " + spoolDirectory);
+    }
+
+    /**
+     * Writes a single failed result for a job file that could not be processed.
+     */
+    private void writeFailure(Path resultFile, String id, Exception failure) {
+        String message = failure.getMessage() != null ? failure.getMessage() : failure.toString();
+        JobResult result = new JobResult(id, null, JobResult.Status.FAILED, System.currentTimeMillis(), 0, message);
+        try {
+            writeResults(resultFile, List.of(result));
+        } catch (IOException e) {
+            log.error("Unable to write result file " + resultFile, e);
+        }
+    }
+
+    private static List<Path> pendingJobFiles(Path spoolDirectory) throws IOException {
+        List<Path> jobFiles = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(spoolDirectory)) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(JOB_FILE_SUFFIX) && !name.endsWith(RESULT_FILE_SUFFIX) && Files.isRegularFile(file)) {
+                    jobFiles.add(file);
+                }
+            }
+        }
+        jobFiles.sort(null);
+        return jobFiles;
+    }
+
+    /**
+     * Stops the thread pool; running jobs are interrupted.
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private JobResult execute(BatchJob job) {
+        long started = System.currentTimeMillis();
+        long start = System.nanoTime();
+        JobResult.Status status = JobResult.Status.SUCCEEDED;
+        String message = null;
+        try {
+            switch (job.getStep()) {
+            case "reclassify":
+                reclassify(job);
+                break;
+            case "vectorize":
+                vectorize(job);
+                break;
+            case "calc":
+                calc(job);
+                break;
+            case "reproject":
+                reproject(job);
+                break;
+            default:
+                throw new IllegalArgumentException("Job " + job.getId() + ": unknown step " + job.getStep());
+            }
+        } catch (StepCancelledException e) {
+            status = JobResult.Status.CANCELLED;
+            message = e.getMessage();
+        } catch (Exception e) {
+            log.error("Failed " + job, e);
+            status = JobResult.Status.FAILED;
+            message = e.getMessage() != null ? e.getMessage() : e.toString();
+        }
+        JobResult result = new JobResult(job.getId(), job.getStep(), status, started,
+                (System.nanoTime() - start) / 1_000_000, message);
+        log.info(result.toString());
+        return result;
+    }
+
+    private void reclassify(BatchJob job) throws IOException, FactoryException {
+        RasterReclassifyStep step = new RasterReclassifyStep(job.toString());
+        step.setResultCache(resultCache);
+        step.setTilesInFlight(job.getInt("tilesInFlight", defaultTilesInFlight()));
+        if (job.has("timeoutSeconds")) {
+            step.setCancellationToken(timeout(job));
+        }
+        if (job.has("streaming")) {
+            step.setStreaming(job.getBoolean("streaming", false));
+        }
+        if (job.has("memoryBudget")) {
+            step.setMemoryBudget((long) job.getDouble("memoryBudget"));
+        }
+        step.setSplitBands(job.getBoolean("splitBands", false));
+        step.setRegionOfInterest(regionOfInterest(job));
+        if (job.has("palette")) {
+            Map<Integer, Color> palette = new LinkedHashMap<>();
+            for (Map.Entry<String, String> entry : job.getStringMap("palette").entrySet()) {
+                try {
+                    palette.put(Integer.valueOf(entry.getKey()), RasterReclassify.parseColor(entry.getValue()));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Job " + job.getId() + ": palette keys must be class values");
+                }
+            }
+            step.setPalette(palette);
+        }
+
+        double[] bandValues = job.has("bands") ? job.getDoubles("bands") : new double[] {0};
+        int[] bands = new int[bandValues.length];
+        for (int i = 0; i < bands.length; i++) {
+            bands[i] = (int) bandValues[i];
+        }
+        BandClassification classification = RasterReclassifyStep.DEFAULT_CLASSIFICATION;
+        if (job.has("categories")) {
+            classification = BandClassification.categorical(job.getIntMap("categories"),
+                    job.has("defaultClass") ? job.getInt("defaultClass", 0) : null);
+        } else if (job.has("breaks")) {
+            classification = BandClassification.lowerBounds(job.getDoubles("breaks"));
+        }
+        step.execute(source(job), job.getPath("output"), bands, List.of(classification),
+                job.getDouble("noData", RasterReclassifyStep.DEFAULT_NO_DATA));
+    }
+
+    private void vectorize(BatchJob job) throws IOException {
+        VectorizeStep step = new VectorizeStep(job.toString());
+        step.setResultCache(resultCache);
+        if (job.has("timeoutSeconds")) {
+            step.setCancellationToken(timeout(job));
+        }
+        if (job.has("memoryBudget")) {
+            step.setMemoryBudget((long) job.getDouble("memoryBudget"));
+        }
+        if (job.has("format")) {
+            step.setOutputFormat(VectorFormat.fromName(job.getString("format")));
+        }
+        if (job.has("vectorizer")) {
+            step.setVectorizer(Vectorizer.fromName(job.getString("vectorizer")));
+        }
+        step.setAppend(job.getBoolean("append", false));
+        step.setIncremental(job.getBoolean("incremental", false));
+        step.setLayerName(job.getString("layerName", null));
+        step.setMinArea(job.getDouble("minArea", 0));
+        step.setMinHoleArea(job.getDouble("minHoleArea", 0));
+        step.setSubdivideGridSize(job.getDouble("subdivideGridSize", 0));
+        step.setSubdivideMaxVertices(job.getInt("subdivideMaxVertices", 0));
+        step.setRegionOfInterest(regionOfInterest(job));
+
+        if (job.has("maxDistinctValues")) {
+            step.setMaxDistinctValues(job.getInt("maxDistinctValues", VectorizeStep.DEFAULT_MAX_DISTINCT_VALUES));
+        }
+        if (job.getBoolean("allCellValues", false)) {
+            step.execute(source(job), job.getPath("output"), job.getInt("band", 0));
+            return;
+        }
+        List<Double> cellValues = new ArrayList<>();
+        for (double value : job.getDoubles("cellValues")) {
+            cellValues.add(value);
+        }
+        step.execute(source(job), job.getPath("output"), job.getInt("band", 0), cellValues);
+    }
+
+    private void calc(BatchJob job) throws IOException, FactoryException {
+        RasterCalcStep step = new RasterCalcStep(job.toString());
+        step.setResultCache(resultCache);
+        step.setTilesInFlight(job.getInt("tilesInFlight", defaultTilesInFlight()));
+        if (job.has("timeoutSeconds")) {
+            step.setCancellationToken(timeout(job));
+        }
+        if (job.has("noData")) {
+            step.setNoData(job.getDouble("noData"));
+        }
+        Map<String, CoverageSource> inputs = new LinkedHashMap<>();
+        for (Map.Entry<String, Path> input : job.getPathMap("inputs").entrySet()) {
+            CoverageSource source = CoverageSource.of(input.getValue());
+            source.setCoverageCache(coverageCache);
+            inputs.put(input.getKey(), source);
+        }
+        step.execute(inputs, job.getString("expression"), job.getPath("output"));
+    }
+
+    private void reproject(BatchJob job) throws IOException, FactoryException {
+        RasterReprojectStep step = new RasterReprojectStep(job.toString());
+        step.setResultCache(resultCache);
+        step.setTilesInFlight(job.getInt("tilesInFlight", defaultTilesInFlight()));
+        if (job.has("timeoutSeconds")) {
+            step.setCancellationToken(timeout(job));
+        }
+        if (job.has("resampling")) {
+            step.setResampling(Resampling.fromName(job.getString("resampling")));
+        }
+        if (job.has("resolution")) {
+            step.setResolution(job.getDouble("resolution"));
+        }
+        if (job.has("noData")) {
+            step.setNoData(job.getDouble("noData"));
+        }
+        step.execute(source(job), job.getString("targetCrs", "EPSG:2056"), job.getPath("output"));
+    }
+
+    private CoverageSource source(BatchJob job) throws IOException {
+        List<Path> paths = job.getPaths("input");
+        CoverageSource source = paths.size() == 1 ? CoverageSource.of(paths.get(0)) : CoverageSource.of(paths);
+        source.setCoverageCache(coverageCache);
+        return source;
+    }
+
+    private static RegionOfInterest regionOfInterest(BatchJob job) {
+        if (!job.has("roiBounds")) {
+            return null;
+        }
+        double[] bounds = job.getDoubles("roiBounds");
+        if (bounds.length != 4) {
+            throw new IllegalArgumentException("Job " + job.getId() + ": roiBounds must be minX, minY, maxX, maxY");
+        }
+        return RegionOfInterest.ofBounds(bounds[0], bounds[1], bounds[2], bounds[3]);
+    }
+
+    private static CancellationToken timeout(BatchJob job) {
+        return CancellationToken.withTimeout(Duration.ofMillis((long) (job.getDouble("timeoutSeconds") * 1000)));
+    }
+
+    /**
+     * Shares the processors between the jobs that run concurrently.
+     */
+    private int defaultTilesInFlight() {
+        return Math.max(1, 2 * Runtime.getRuntime().availableProcessors() / threads);
+    }
+
+    /**
+     * Runs job files from the command line.
+     * <p>
+     * Usage: {@code BatchRunner [--threads n] [--result-cache dir] (<jobfile> [<resultfile>] | --watch dir
+     * [--poll-seconds s])}. The result file defaults to {@code <jobfile>.results.jsonl}. The exit code
+     * is 1 if a job did not succeed.
+     * </p>
+     *
+     * @param args command line arguments
+     * @throws Exception if the job file cannot be read
+     */
+    public static void main(String[] args) throws Exception {
+        LogEnvironment.initStandalone(Level.INFO);
+        int threads = Runtime.getRuntime().availableProcessors();
+        Path resultCacheDirectory = null;
+        Path spoolDirectory = null;
+        long pollSeconds = 5;
+        List<String> files = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+            case "--threads":
+                threads = Integer.parseInt(argument(args, ++i));
+                break;
+            case "--result-cache":
+                resultCacheDirectory = Path.of(argument(args, ++i));
+                break;
+            case "--watch":
+                spoolDirectory = Path.of(argument(args, ++i));
+                break;
+            case "--poll-seconds":
+                pollSeconds = Long.parseLong(argument(args, ++i));
+                break;
+            default:
+                files.add(args[i]);
+            }
+        }
+        if ((spoolDirectory == null) == files.isEmpty() || files.size() > 2) {
+            System.err.println("Usage: BatchRunner [--threads n] [--result-cache dir] "
+                    + "(<jobfile> [<resultfile>] | --watch dir [--poll-seconds s])");
+            System.exit(2);
+        }
+
+        boolean failed;
+        try (BatchRunner runner = new BatchRunner(threads)) {
+            if (resultCacheDirectory != null) {
+                runner.setResultCache(new StepResultCache(resultCacheDirectory));
+            }
+            if (spoolDirectory != null) {
+                runner.watch(spoolDirectory, Duration.ofSeconds(pollSeconds));
+                return;
+            }
+            Path jobFile = Path.of(files.get(0));
+            Path resultFile = files.size() > 1
+                    ? Path.of(files.get(1))
+                    : jobFile.resolveSibling(jobFile.getFileName() + RESULT_FILE_SUFFIX);
+            failed = runner.runFile(jobFile, resultFile).stream()
+                    .anyMatch(r -> r.getStatus() != JobResult.Status.SUCCEEDED);
+        }
+        System.exit(failed ? 1 : 0);
+    }
+
+    private static String argument(String[] args, int index) {
+        if (index >= args.length) {
+            throw new IllegalArgumentException("Missing value for " + args[index - 1]);
+        }
+        return args[index];
+    }
+}
@@ -0,0 +1,110 @@
+package ch.so.agi.gretlgt.batch;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Outcome and timing of one {@link BatchJob}.
+ */
+public final class JobResult {
+    /**
+     * Final state of a job.
+     */
+    public enum Status {
+        /**
+         * The step completed.
+         */
+        SUCCEEDED,
+
+        /**
+         * The step or the job parameters failed.
+         */
+        FAILED,
+
+        /**
+         * The step was cancelled, e.g. because its timeout expired.
+         */
+        CANCELLED
+    }
+
+    private final String id;
+    private final String step;
+    private final Status status;
+    private final long startedMillis;
+    private final long durationMillis;
+    private final String message;
+
+    JobResult(String id, String step, Status status, long startedMillis, long durationMillis, String message) {
+        this.id = id;
+        this.step = step;
+        this.status = status;
+        this.startedMillis = startedMillis;
+        this.durationMillis = durationMillis;
+        this.message = message;
+    }
+
+    /**
+     * @return the job id
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @return the step name
+     */
+    public String getStep() {
+        return step;
+    }
+
+    /**
+     * @return the final state
+     */
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * @return start time in milliseconds since the epoch
+     */
+    public long getStartedMillis() {
+        return startedMillis;
+    }
+
+    /**
+     * @return run time of the step in milliseconds
+     */
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    /**
+     * @return the error message of failed or cancelled jobs, otherwise {@code null}
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * @return the result as one JSON line
+     */
+    public String toJson() {
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("id", id);
+        json.put("step", step);
+        json.put("status", status.name().toLowerCase(Locale.ROOT));
+        json.put("started", startedMillis);
+        json.put("durationMillis", durationMillis);
+        if (message != null) {
+            json.put("message", message);
+        }
+        return Json.write(json);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "%s job %s %s in %d ms%s", step, id,
+                status.name().toLowerCase(Locale.ROOT), durationMillis, message != null ? ": " + message : "");
+    }
+}
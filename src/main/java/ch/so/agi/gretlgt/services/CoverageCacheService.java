@@ -0,0 +1,59 @@
+package ch.so.agi.gretlgt.services;
+
+import org.gradle.api.provider.Property;
+import org.gradle.api.services.BuildService;
+import org.gradle.api.services.BuildServiceParameters;
+
+import ch.so.agi.gretlgt.logging.GretlLogger;
+import ch.so.agi.gretlgt.logging.LogEnvironment;
+import ch.so.agi.gretlgt.steps.CoverageCache;
+
+/**
+ * Build service that holds the decoded-coverage cache shared by all raster tasks of a build.
+ * <p>
+ * A raster that is reclassified and then vectorized in the same build is decoded once. The cache
+ * lives as long as the build and is cleared when the build finishes; the memory budget is set with
+ * the Gradle property {@value #MAX_BYTES_PROPERTY} (default: a quarter of the maximum heap).
+ * </p>
+ */
+public abstract class CoverageCacheService implements BuildService<CoverageCacheService.Params>, AutoCloseable {
+    /**
+     * Name under which the plugin registers the service.
+     */
+    public static final String NAME = "gretlgtCoverageCache";
+
+    /**
+     * Gradle property with the memory budget of the cache in bytes; {@code 0} disables it.
+     */
+    public static final String MAX_BYTES_PROPERTY = "gretlgt.coverageCacheMaxBytes";
+
+    private final GretlLogger log = LogEnvironment.getLogger(CoverageCacheService.class);
+    private final CoverageCache cache;
+
+    /**
+     * Parameters of the service.
+     */
+    public interface Params extends BuildServiceParameters {
+        /**
+         * @return memory budget of the cache in bytes
+         */
+        Property<Long> getMaxBytes();
+    }
+
+    public CoverageCacheService() {
+        this.cache = new CoverageCache(getParameters().getMaxBytes().getOrElse(Runtime.getRuntime().maxMemory() / 4));
+    }
+
+    /**
+     * @return the cache of this build
+     */
+    public CoverageCache getCache() {
+        return cache;
+    }
+
+    @Override
+    public void close() {
+        log.info("Coverage cache: " + cache);
+        cache.clear();
+    }
+}
@@ -0,0 +1,29 @@
+package ch.so.agi.gretlgt.services;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import org.gradle.api.services.BuildService;
+import org.gradle.api.services.BuildServiceParameters;
+
+import ch.so.agi.gretlgt.steps.WriteSerializer;
+
+/**
+ * Build service that serializes writes of all tasks of a build to the same output file.
+ * <p>
+ * Plugin classes may be loaded by several class loaders within one build (e.g. one per project);
+ * the service is shared by all of them, so concurrent tasks appending layers to the same GeoPackage
+ * never write at the same time. Writes to different files still run in parallel.
+ * </p>
+ */
+public abstract class GeoPackageWriterService implements BuildService<BuildServiceParameters.None>, WriteSerializer {
+    /**
+     * Name under which the plugin registers the service.
+     */
+    public static final String NAME = "gretlgtGeoPackageWriter";
+
+    @Override
+    public void write(Path target, WriteAction action) throws IOException {
+        WriteSerializer.LOCKING.write(target, action);
+    }
+}
@@ -0,0 +1,106 @@
+package ch.so.agi.gretlgt.steps;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Break points and class values used to reclassify one raster band.
+ * <p>
+ * The intervals are {@code [b0,b1), [b1,b2), ..., [bn-1,bn]}; interval {@code i} is assigned
+ * {@code classValues[i]}. A {@link #categorical(Map, Integer) categorical} classification assigns
+ * class values to individual codes instead.
+ * </p>
+ */
+public final class BandClassification {
+    private final double[] breaks;
+    private final int[] classValues;
+    private final CategoryMapping categories;
+
+    /**
+     * Creates a classification with explicit class values.
+     *
+     * @param breaks      strictly increasing break points; at least two
+     * @param classValues class value per interval; length must be {@code breaks.length - 1}
+     */
+    public BandClassification(double[] breaks, int[] classValues) {
+        Objects.requireNonNull(classValues, "classValues");
+        int bins = RasterReclassify.validateBreaks(breaks);
+        if (classValues.length != bins) {
+            throw new IllegalArgumentException("classValues length must be breaks.length - 1");
+        }
+        this.breaks = breaks.clone();
+        this.classValues = classValues.clone();
+        this.categories = null;
+    }
+
+    private BandClassification(CategoryMapping categories) {
+        this.breaks = null;
+        this.classValues = categories.getClassValues();
+        this.categories = categories;
+    }
+
+    /**
+     * Creates a classification that assigns class values to individual codes, e.g.
+     * {@code 11, 12, 17 -> 1; 21, 23 -> 2}.
+     *
+     * @param classes      class value per code; at least one entry
+     * @param defaultClass class value for codes without an entry; {@code null} maps them to no-data
+     * @return the classification
+     */
+    public static BandClassification categorical(Map<Integer, Integer> classes, Integer defaultClass) {
+        return new BandClassification(new CategoryMapping(classes, defaultClass));
+    }
+
+    /**
+     * Creates a classification whose class values are the rounded lower bounds of the intervals.
+     *
+     * @param breaks strictly increasing break points; at least two
+     * @return the classification
+     */
+    public static BandClassification lowerBounds(double[] breaks) {
+        RasterReclassify.validateBreaks(breaks);
+        int[] classValues = new int[breaks.length - 1];
+        for (int i = 0; i < classValues.length; i++) {
+            classValues[i] = (int) Math.round(breaks[i]);
+        }
+        return new BandClassification(breaks, classValues);
+    }
+
+    /**
+     * @return whether class values are assigned to codes rather than intervals
+     */
+    public boolean isCategorical() {
+        return categories != null;
+    }
+
+    /**
+     * @return the code mapping of a categorical classification, otherwise {@code null}
+     */
+    public CategoryMapping getCategories() {
+        return categories;
+    }
+
+    /**
+     * @return a copy of the break points, or {@code null} for a categorical classification
+     */
+    public double[] getBreaks() {
+        return breaks != null ? breaks.clone() : null;
+    }
+
+    /**
+     * @return a copy of the class values; for a categorical classification the distinct class values
+     * including the default class
+     */
+    public int[] getClassValues() {
+        return classValues.clone();
+    }
+
+    @Override
+    public String toString() {
+        if (categories != null) {
+            return "BandClassification(" + categories + ")";
+        }
+        return "BandClassification(breaks: " + Arrays.toString(breaks) + " classValues: " + Arrays.toString(classValues) + ")";
+    }
+}
@@ -0,0 +1,82 @@
+package ch.so.agi.gretlgt.steps;
+
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+
+/**
+ * {@link TileKernel} that assigns class values to consecutive break intervals.
+ * <p>
+ * The intervals follow {@link RasterReclassify#reclassifyByBreaks(org.geotools.coverage.grid.GridCoverage2D, int,
+ * double[], int[], double)}: {@code [b0,b1), [b1,b2), ..., [bn-1,bn]}. Samples outside all intervals,
+ * {@code NaN} and the source no-data value are mapped to {@code noData}.
+ * </p>
+ * <p>
+ * Target band {@code i} is computed from source band {@code bands[i]} with its own breaks, so several
+ * bands are reclassified in one pass over the source tile.
+ * </p>
+ */
+final class BreaksKernel implements TileKernel {
+    private final int[] bands;
+    private final double[][] breaks;
+    private final int[][] classValues;
+    private final double noData;
+    private final double[] sourceNoData;
+
+    BreaksKernel(int band, double[] breaks, int[] classValues, double noData, double sourceNoData) {
+        this(new int[] {band}, new double[][] {breaks}, new int[][] {classValues}, noData, new double[] {sourceNoData});
+    }
+
+    BreaksKernel(int[] bands, double[][] breaks, int[][] classValues, double noData, double[] sourceNoData) {
+        this.bands = bands.clone();
+        this.breaks = new double[bands.length][];
+        this.classValues = new int[bands.length][];
+        for (int i = 0; i < bands.length; i++) {
+            this.breaks[i] = breaks[i].clone();
+            this.classValues[i] = classValues[i].clone();
+        }
+        this.noData = noData;
+        this.sourceNoData = sourceNoData.clone();
+    }
+
+    @Override
+    public void compute(Raster[] sources, WritableRaster target, Rectangle region) {
+        Raster source = sources[0];
+        double[] row = new double[region.width];
+        for (int y = region.y; y < region.y + region.height; y++) {
+            for (int b = 0; b < bands.length; b++) {
+                source.getSamples(region.x, y, region.width, 1, bands[b], row);
+                for (int i = 0; i < row.length; i++) {
+                    row[i] = classify(b, row[i]);
+                }
+                target.setSamples(region.x, y, region.width, 1, b, row);
+            }
+        }
+    }
+
+    double classify(int target, double value) {
+        double[] bounds = breaks[target];
+        if (Double.isNaN(value) || value == sourceNoData[target]) {
+            return noData;
+        }
+        int last = bounds.length - 1;
+        if (value < bounds[0] || value > bounds[last]) {
+            return noData;
+        }
+        if (value == bounds[last]) {
+            return classValues[target][last - 1];
+        }
+        // largest i with bounds[i] <= value
+        int lo = 0;
+        int hi = last - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (bounds[mid] <= value) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return classValues[target][lo];
+    }
+}
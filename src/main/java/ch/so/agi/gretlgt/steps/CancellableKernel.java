@@ -0,0 +1,28 @@
+package ch.so.agi.gretlgt.steps;
+
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+
+/**
+ * {@link TileKernel} that checks a {@link CancellationToken} before the wrapped kernel computes a
+ * tile, so that the tile workers stop as soon as the step is cancelled.
+ */
+final class CancellableKernel implements TileKernel {
+    private final TileKernel delegate;
+    private final CancellationToken cancellation;
+
+    CancellableKernel(TileKernel delegate, CancellationToken cancellation) {
+        this.delegate = delegate;
+        this.cancellation = cancellation;
+    }
+
+    @Override
+    public void compute(Raster[] sources, WritableRaster target, Rectangle region) {
+        // only the token is consulted: workers are interrupted by dispose(), which is no cancellation
+        if (cancellation.isCancelled()) {
+            throw new StepCancelledException("Step " + cancellation.getReason());
+        }
+        delegate.compute(sources, target, region);
+    }
+}
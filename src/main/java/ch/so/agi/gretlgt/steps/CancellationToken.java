@@ -0,0 +1,85 @@
+package ch.so.agi.gretlgt.steps;
+
+import java.time.Duration;
+
+/**
+ * Cooperative cancellation of a step.
+ * <p>
+ * Steps check the token between tiles, classes and write batches and abort with a
+ * {@link StepCancelledException} once it is cancelled, its timeout has expired or the thread
+ * running the step has been interrupted (which is how Gradle cancels a build). Work that cannot be
+ * interrupted, e.g. a single JTS union, runs to its end before the next check.
+ * </p>
+ */
+public final class CancellationToken {
+    private final Duration timeout;
+    private final long deadline;
+    private volatile String reason;
+
+    /**
+     * Creates a token without timeout.
+     */
+    public CancellationToken() {
+        this(null);
+    }
+
+    private CancellationToken(Duration timeout) {
+        this.timeout = timeout;
+        this.deadline = timeout != null ? System.nanoTime() + timeout.toNanos() : 0;
+    }
+
+    /**
+     * Creates a token that is cancelled once {@code timeout} has elapsed from now.
+     *
+     * @param timeout maximum run time, must be positive
+     * @return the token
+     */
+    public static CancellationToken withTimeout(Duration timeout) {
+        if (timeout == null || timeout.isNegative() || timeout.isZero()) {
+            throw new IllegalArgumentException("timeout must be positive");
+        }
+        return new CancellationToken(timeout);
+    }
+
+    /**
+     * Cancels the token. The first reason wins.
+     *
+     * @param reason shown in the exception message, e.g. {@code "build cancelled"}
+     */
+    public synchronized void cancel(String reason) {
+        if (this.reason == null) {
+            this.reason = reason;
+        }
+    }
+
+    /**
+     * @return {@code true} if the token was cancelled or its timeout has expired
+     */
+    public boolean isCancelled() {
+        if (reason == null && timeout != null && System.nanoTime() - deadline >= 0) {
+            cancel("timed out after " + timeout);
+        }
+        return reason != null;
+    }
+
+    /**
+     * @return why the token was cancelled, or {@code null} if it is not
+     */
+    public String getReason() {
+        return isCancelled() ? reason : null;
+    }
+
+    /**
+     * Aborts the current work if the token is cancelled or the current thread was interrupted.
+     *
+     * @throws StepCancelledException if the step must stop
+     */
+    public void throwIfCancelled() {
+        if (Thread.currentThread().isInterrupted()) {
+            cancel("interrupted");
+        }
+        if (isCancelled()) {
+            throw new StepCancelledException("Step " + reason);
+        }
+    }
+}
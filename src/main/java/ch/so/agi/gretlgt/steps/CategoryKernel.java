@@ -0,0 +1,45 @@
+package ch.so.agi.gretlgt.steps;
+
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+
+/**
+ * {@link TileKernel} that assigns class values to individual codes with a {@link CategoryMapping}.
+ * <p>
+ * {@code NaN} and the source no-data value are mapped to {@code noData}; unmapped codes get the default
+ * class of the mapping or {@code noData}. Target band {@code i} is computed from source band
+ * {@code bands[i]} with its own mapping.
+ * </p>
+ */
+final class CategoryKernel implements TileKernel {
+    private final int[] bands;
+    private final CategoryMapping[] mappings;
+    private final double noData;
+    private final double[] sourceNoData;
+
+    CategoryKernel(int[] bands, CategoryMapping[] mappings, double noData, double[] sourceNoData) {
+        this.bands = bands.clone();
+        this.mappings = mappings.clone();
+        this.noData = noData;
+        this.sourceNoData = sourceNoData.clone();
+    }
+
+    @Override
+    public void compute(Raster[] sources, WritableRaster target, Rectangle region) {
+        Raster source = sources[0];
+        double[] row = new double[region.width];
+        for (int y = region.y; y < region.y + region.height; y++) {
+            for (int b = 0; b < bands.length; b++) {
+                source.getSamples(region.x, y, region.width, 1, bands[b], row);
+                CategoryMapping mapping = mappings[b];
+                double missing = sourceNoData[b];
+                for (int i = 0; i < row.length; i++) {
+                    double value = row[i];
+                    row[i] = Double.isNaN(value) || value == missing ? noData : mapping.classify(value, noData);
+                }
+                target.setSamples(region.x, y, region.width, 1, b, row);
+            }
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package ch.so.agi.gretlgt.steps;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Assignment of integer cell values (codes) to class values, used for categorical reclassification.
+ * <p>
+ * If the codes span at most {@value #MAX_DENSE_SPAN} values they are looked up in a dense table
+ * indexed by {@code code - minCode}; sparse codes are looked up in an open-addressing hash map. Both
+ * lookups work on primitives, so classifying a tile does not box any values. Non-integral values and
+ * codes without an entry get the default class, or the caller's no-data value if there is none.
+ * </p>
+ */
+public final class CategoryMapping {
+    /** Largest code span that is looked up in a dense table. */
+    static final int MAX_DENSE_SPAN = 1 << 16;
+
+    private static final int UNMAPPED = Integer.MIN_VALUE;
+
+    private final TreeMap<Integer, Integer> classes;
+    private final Integer defaultClass;
+    private final int minCode;
+    private final int[] table;
+    private final LongIntHashMap hash;
+
+    /**
+     * @param classes      class value per code; at least one entry
+     * @param defaultClass class value for codes without an entry; {@code null} maps them to no-data
+     */
+    public CategoryMapping(Map<Integer, Integer> classes, Integer defaultClass) {
+        Objects.requireNonNull(classes, "classes");
+        if (classes.isEmpty()) {
+            throw new IllegalArgumentException("Provide at least one code");
+        }
+        this.classes = new TreeMap<>();
+        for (Map.Entry<Integer, Integer> entry : classes.entrySet()) {
+            Integer code = Objects.requireNonNull(entry.getKey(), "code");
+            Integer classValue = Objects.requireNonNull(entry.getValue(), "class value of code " + code);
+            if (classValue == UNMAPPED) {
+                throw new IllegalArgumentException("Class value " + classValue + " is reserved");
+            }
+            this.classes.put(code, classValue);
+        }
+        if (defaultClass != null && defaultClass == UNMAPPED) {
+            throw new IllegalArgumentException("Class value " + defaultClass + " is reserved");
+        }
+        this.defaultClass = defaultClass;
+
+        minCode = this.classes.firstKey();
+        long span = (long) this.classes.lastKey() - minCode + 1;
+        if (span <= MAX_DENSE_SPAN) {
+            table = new int[(int) span];
+            Arrays.fill(table, UNMAPPED);
+            for (Map.Entry<Integer, Integer> entry : this.classes.entrySet()) {
+                table[entry.getKey() - minCode] = entry.getValue();
+            }
+            hash = null;
+        } else {
+            table = null;
+            hash = new LongIntHashMap(this.classes.size());
+            for (Map.Entry<Integer, Integer> entry : this.classes.entrySet()) {
+                hash.put(key(entry.getKey()), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Returns the class value of a cell value.
+     *
+     * @param value    the cell value; must not be {@code NaN} or the source no-data value
+     * @param unmapped value returned for unmapped cell values if there is no default class
+     * @return the class value
+     */
+    double classify(double value, double unmapped) {
+        int code = (int) value;
+        if (code != value) {
+            return defaultClass != null ? defaultClass : unmapped;
+        }
+        int classValue;
+        if (table != null) {
+            int index = code - minCode;
+            classValue = index >= 0 && index < table.length ? table[index] : UNMAPPED;
+        } else {
+            classValue = hash.get(key(code), UNMAPPED);
+        }
+        if (classValue != UNMAPPED) {
+            return classValue;
+        }
+        return defaultClass != null ? defaultClass : unmapped;
+    }
+
+    private static long key(int code) {
+        return (long) code - Integer.MIN_VALUE;
+    }
+
+    /**
+     * @return whether codes are looked up in a dense table rather than a hash map
+     */
+    public boolean isDense() {
+        return table != null;
+    }
+
+    /**
+     * @return a copy of the class value per code, ordered by code
+     */
+    public Map<Integer, Integer> getClasses() {
+        return new TreeMap<>(classes);
+    }
+
+    /**
+     * @return the class value for unmapped codes, or {@code null} if they are mapped to no-data
+     */
+    public Integer getDefaultClass() {
+        return defaultClass;
+    }
+
+    /**
+     * @return the distinct class values including the default class, in ascending order
+     */
+    public int[] getClassValues() {
+        TreeSet<Integer> values = new TreeSet<>(classes.values());
+        if (defaultClass != null) {
+            values.add(defaultClass);
+        }
+        return values.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    @Override
+    public String toString() {
+        return "CategoryMapping(classes: " + classes + " default: " + defaultClass + ")";
+    }
+}
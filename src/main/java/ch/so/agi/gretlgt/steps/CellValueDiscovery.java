@@ -0,0 +1,95 @@
+package ch.so.agi.gretlgt.steps;
+
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.util.Locale;
+import java.util.stream.IntStream;
+
+import org.geotools.coverage.grid.GridCoverage2D;
+
+import ch.so.agi.gretlgt.utils.GretlException;
+
+/**
+ * Finds the distinct values of a raster band in one parallel pass over the tiles.
+ * <p>
+ * Every tile collects its values in a {@link DoubleHashSet}; the sets are merged pairwise at the end.
+ * {@code NaN} and the no-data value of the band are skipped. As soon as a single tile or the merged
+ * result holds more than {@code maxValues} values the pass is aborted, so continuous rasters are
+ * rejected after the first tiles instead of after a full scan.
+ * </p>
+ */
+final class CellValueDiscovery {
+    private final int maxValues;
+    private final StepProgress progress;
+    private final CancellationToken cancellation;
+
+    CellValueDiscovery(int maxValues, StepProgress progress, CancellationToken cancellation) {
+        if (maxValues < 1) {
+            throw new IllegalArgumentException("maxValues must be positive");
+        }
+        this.maxValues = maxValues;
+        this.progress = progress;
+        this.cancellation = cancellation;
+    }
+
+    /**
+     * Returns the distinct values of {@code band}.
+     *
+     * @param coverage the raster
+     * @param band     zero-based band index
+     * @return the values in ascending order, without {@code NaN} and no-data
+     * @throws GretlException if the band has more than {@code maxValues} distinct values
+     */
+    double[] discover(GridCoverage2D coverage, int band) {
+        RenderedImage image = coverage.getRenderedImage();
+        if (band < 0 || band >= image.getSampleModel().getNumBands()) {
+            throw new IllegalArgumentException("Band " + band + " does not exist, raster has "
+                    + image.getSampleModel().getNumBands() + " band(s)");
+        }
+        double noData = RasterReclassify.sourceNoData(coverage, band);
+        Rectangle bounds = new Rectangle(image.getMinX(), image.getMinY(), image.getWidth(), image.getHeight());
+        int tilesX = image.getNumXTiles();
+        int tiles = tilesX * image.getNumYTiles();
+
+        DoubleHashSet values = IntStream.range(0, tiles).parallel()
+                .mapToObj(i -> scan(image, image.getMinTileX() + i % tilesX, image.getMinTileY() + i / tilesX,
+                        bounds, band, noData))
+                .reduce(this::merge)
+                .orElseGet(() -> new DoubleHashSet(0));
+        return values.toSortedArray();
+    }
+
+    private DoubleHashSet scan(RenderedImage image, int tileX, int tileY, Rectangle bounds, int band, double noData) {
+        cancellation.throwIfCancelled();
+        Raster tile = image.getTile(tileX, tileY);
+        Rectangle region = tile.getBounds().intersection(bounds);
+        DoubleHashSet values = new DoubleHashSet(16);
+        double[] row = new double[Math.max(0, region.width)];
+        for (int y = region.y; y < region.y + region.height; y++) {
+            tile.getSamples(region.x, y, region.width, 1, band, row);
+            for (double value : row) {
+                if (!Double.isNaN(value) && value != noData && values.add(value) && values.size() > maxValues) {
+                    throw tooManyValues();
+                }
+            }
+        }
+        progress.advance((long) region.width * Math.max(0, region.height));
+        return values;
+    }
+
+    private DoubleHashSet merge(DoubleHashSet a, DoubleHashSet b) {
+        DoubleHashSet larger = a.size() >= b.size() ? a : b;
+        larger.addAll(larger == a ? b : a);
+        if (larger.size() > maxValues) {
+            throw tooManyValues();
+        }
+        return larger;
+    }
+
+    private GretlException tooManyValues() {
+        return new GretlException(String.format(Locale.ROOT,
+                "Raster band has more than %d distinct values; vectorising all values requires a classified raster "
+                        + "(reclassify it first or list the cell values)", maxValues));
+    }
+}
@@ -0,0 +1,223 @@
+package ch.so.agi.gretlgt.steps;
+
+import java.awt.image.DataBuffer;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.io.IOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.media.jai.TiledImage;
+
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridCoverageFactory;
+import org.opengis.geometry.Envelope;
+
+import ch.so.agi.gretlgt.logging.GretlLogger;
+import ch.so.agi.gretlgt.logging.LogEnvironment;
+
+/**
+ * In-memory cache of decoded raster files, shared by the steps of one build.
+ * <p>
+ * Entries are keyed by the absolute path, modification time and size of the file plus the read
+ * window, so a changed file is never served from the cache. A cached coverage holds its pixels in
+ * memory (decoded once, tile by tile) and can be read concurrently by several steps. The estimated
+ * size of all entries is kept below a memory budget by evicting the least recently used ones;
+ * entries are held by soft references, so the garbage collector may drop them earlier under memory
+ * pressure. Rasters larger than the budget are not cached.
+ * </p>
+ */
+public final class CoverageCache {
+    private final GretlLogger log = LogEnvironment.getLogger(CoverageCache.class);
+    private final long maxBytes;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final ReferenceQueue<GridCoverage2D> collected = new ReferenceQueue<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private long usedBytes;
+
+    /**
+     * Loads a coverage on a cache miss.
+     */
+    @FunctionalInterface
+    public interface Loader {
+        /**
+         * @return the decoded coverage
+         * @throws IOException if the raster cannot be read
+         */
+        GridCoverage2D load() throws IOException;
+    }
+
+    /**
+     * Creates a cache.
+     *
+     * @param maxBytes memory budget for the pixels of all cached coverages
+     */
+    public CoverageCache(long maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("maxBytes must not be negative");
+        }
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the cached coverage of {@code file} and {@code window} or loads, decodes and caches it.
+     *
+     * @param file   the raster file
+     * @param window the read window; {@code null} for the whole raster
+     * @param loader reads the coverage on a miss
+     * @return the coverage
+     * @throws IOException if the file cannot be read
+     */
+    public GridCoverage2D get(Path file, Envelope window, Loader loader) throws IOException {
+        String key = key(file, window);
+        synchronized (this) {
+            expungeCollected();
+            Entry entry = entries.get(key);
+            GridCoverage2D cached = entry != null ? entry.get() : null;
+            if (cached != null) {
+                hits.incrementAndGet();
+                log.debug("Coverage cache hit for " + file);
+                return cached;
+            }
+            misses.incrementAndGet();
+        }
+
+        // concurrent misses of the same key decode twice; the last one replaces the entry
+        GridCoverage2D coverage = loader.load();
+        long bytes = estimateBytes(coverage.getRenderedImage());
+        if (bytes > maxBytes) {
+            log.debug(String.format(Locale.ROOT, "Not caching %s: %d bytes exceed the budget of %d bytes",
+                    file, bytes, maxBytes));
+            return coverage;
+        }
+        GridCoverage2D decoded = decode(coverage);
+        synchronized (this) {
+            remove(entries.get(key));
+            Iterator<Entry> eldest = entries.values().iterator();
+            while (usedBytes + bytes > maxBytes && eldest.hasNext()) {
+                Entry evicted = eldest.next();
+                eldest.remove();
+                usedBytes -= evicted.bytes;
+                evictions.incrementAndGet();
+            }
+            entries.put(key, new Entry(key, decoded, bytes, collected));
+            usedBytes += bytes;
+        }
+        return decoded;
+    }
+
+    /**
+     * Removes all entries.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        usedBytes = 0;
+    }
+
+    /**
+     * @return number of {@link #get(Path, Envelope, Loader)} calls served from the cache
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return number of {@link #get(Path, Envelope, Loader)} calls that had to read the file
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return number of entries evicted to stay within the memory budget
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return estimated bytes held by the cached coverages
+     */
+    public synchronized long getUsedBytes() {
+        expungeCollected();
+        return usedBytes;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "%d hits, %d misses, %d evictions, %d of %d bytes used",
+                getHits(), getMisses(), getEvictions(), getUsedBytes(), maxBytes);
+    }
+
+    private static String key(Path file, Envelope window) throws IOException {
+        Path absolute = file.toAbsolutePath().normalize();
+        StringBuilder key = new StringBuilder(absolute.toString())
+                .append('|').append(Files.getLastModifiedTime(absolute).toMillis())
+                .append('|').append(Files.size(absolute));
+        if (window != null) {
+            key.append('|').append(Arrays.toString(window.getLowerCorner().getCoordinate()))
+                    .append(Arrays.toString(window.getUpperCorner().getCoordinate()));
+        }
+        return key.toString();
+    }
+
+    static long estimateBytes(RenderedImage image) {
+        SampleModel sampleModel = image.getSampleModel();
+        long bitsPerPixel = (long) sampleModel.getNumBands() * DataBuffer.getDataTypeSize(sampleModel.getDataType());
+        return (long) image.getWidth() * image.getHeight() * bitsPerPixel / 8;
+    }
+
+    /**
+     * Copies all pixels of the (usually lazily read) coverage into memory, keeping its tile layout.
+     */
+    private static GridCoverage2D decode(GridCoverage2D coverage) {
+        RenderedImage image = coverage.getRenderedImage();
+        TiledImage decoded = new TiledImage(image.getMinX(), image.getMinY(), image.getWidth(), image.getHeight(),
+                image.getTileGridXOffset(), image.getTileGridYOffset(), image.getSampleModel(), image.getColorModel());
+        decoded.set(image);
+        return new GridCoverageFactory().create(
+                coverage.getName(),
+                decoded,
+                coverage.getGridGeometry(),
+                coverage.getSampleDimensions(),
+                null,
+                coverage.getProperties());
+    }
+
+    private void expungeCollected() {
+        Reference<? extends GridCoverage2D> reference;
+        while ((reference = collected.poll()) != null) {
+            Entry entry = (Entry) reference;
+            if (entries.get(entry.key) == entry) {
+                remove(entry);
+            }
+        }
+    }
+
+    private void remove(Entry entry) {
+        if (entry != null && entries.remove(entry.key, entry)) {
+            usedBytes -= entry.bytes;
+        }
+    }
+
+    private static final class Entry extends SoftReference<GridCoverage2D> {
+        private final String key;
+        private final long bytes;
+
+        private Entry(String key, GridCoverage2D coverage, long bytes, ReferenceQueue<GridCoverage2D> queue) {
+            super(coverage, queue);
+            this.key = key;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,400 @@
+package ch.so.agi.gretlgt.steps;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Set;
+
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridEnvelope2D;
+import org.geotools.coverage.grid.GridGeometry2D;
+import org.geotools.coverage.grid.io.AbstractGridFormat;
+import org.geotools.coverage.grid.io.GridCoverage2DReader;
+import org.geotools.coverage.grid.io.GridFormatFinder;
+import org.geotools.coverage.processing.CoverageProcessor;
+import org.geotools.coverage.util.CoverageUtilities;
+import org.geotools.geometry.GeneralEnvelope;
+import org.opengis.coverage.grid.GridEnvelope;
+import org.opengis.geometry.Envelope;
+import org.opengis.parameter.GeneralParameterValue;
+import org.opengis.parameter.ParameterNotFoundException;
+import org.opengis.parameter.ParameterValue;
+import org.opengis.parameter.ParameterValueGroup;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+import ch.so.agi.gretlgt.logging.GretlLogger;
+import ch.so.agi.gretlgt.logging.LogEnvironment;
+import it.geosolutions.jaiext.range.NoDataContainer;
+
+/**
+ * Raster input of a step: either a single raster file or a virtual mosaic of tiles.
+ * <p>
+ * A mosaic is described by a directory (all GeoTIFF and ASCII grid files inside it) or by an
+ * explicit list of files. Tile footprints are kept in a {@link MosaicIndex} that is cached between
+ * runs. When reading, only the tiles that intersect the requested processing window are opened and
+ * each of them is read for the intersecting part only before the pieces are mosaicked.
+ * </p>
+ */
+public final class CoverageSource {
+    private static final Set<String> TILE_EXTENSIONS = Set.of("tif", "tiff", "asc");
+
+    private final List<Path> files;
+    private final String name;
+    private final boolean mosaic;
+    private Path indexFile;
+    private MosaicIndex index;
+    private CoverageCache coverageCache;
+
+    private CoverageSource(List<Path> files, String name, boolean mosaic, Path indexFile) {
+        this.files = Collections.unmodifiableList(files);
+        this.name = name;
+        this.mosaic = mosaic;
+        this.indexFile = indexFile;
+    }
+
+    /**
+     * Creates a source for a single raster file or a directory of tiles.
+     *
+     * @param path raster file or tile directory
+     * @return the raster source
+     * @throws IOException if the directory cannot be listed or contains no tiles
+     */
+    public static CoverageSource of(Path path) throws IOException {
+        Objects.requireNonNull(path, "path");
+        if (Files.isDirectory(path)) {
+            List<Path> tiles = listTiles(path);
+            Path fileName = path.toAbsolutePath().normalize().getFileName();
+            String name = fileName != null ? fileName.toString() : "mosaic";
+            Path indexFile = defaultIndexDirectory().resolve(digest(List.of(path)) + ".idx");
+            return new CoverageSource(tiles, name, true, indexFile);
+        }
+        return new CoverageSource(List.of(path), baseName(path), false, null);
+    }
+
+    /**
+     * Creates a source for an explicit list of raster files or tile directories. A list with a
+     * single file is treated like {@link #of(Path)}.
+     *
+     * @param paths raster files and/or tile directories
+     * @return the raster source
+     * @throws IOException if a directory cannot be listed or no tiles are found
+     */
+    public static CoverageSource of(List<Path> paths) throws IOException {
+        Objects.requireNonNull(paths, "paths");
+        if (paths.isEmpty()) {
+            throw new IllegalArgumentException("paths must not be empty");
+        }
+        if (paths.size() == 1) {
+            return of(paths.get(0));
+        }
+        List<Path> tiles = new ArrayList<>();
+        for (Path path : paths) {
+            if (Files.isDirectory(path)) {
+                tiles.addAll(listTiles(path));
+            } else {
+                tiles.add(path);
+            }
+        }
+        Collections.sort(tiles);
+        Path indexFile = defaultIndexDirectory().resolve(digest(tiles) + ".idx");
+        return new CoverageSource(tiles, baseName(tiles.get(0)), true, indexFile);
+    }
+
+    /**
+     * Overrides the location of the mosaic index (e.g. a task's temporary directory). The index file
+     * is named after a digest of the tile directory or the file list, so several mosaics can share a
+     * directory. Has no effect on single files.
+     *
+     * @param directory directory that receives the index file
+     */
+    public void setIndexDirectory(Path directory) {
+        if (mosaic) {
+            this.indexFile = directory.resolve(indexFile.getFileName());
+            this.index = null;
+        }
+    }
+
+    /**
+     * Reads raster files through a cache of decoded coverages, e.g. the one shared by all tasks of
+     * a build, so that steps reading the same file do not decode it again.
+     *
+     * @param coverageCache the cache; {@code null} reads every file from disk
+     */
+    public void setCoverageCache(CoverageCache coverageCache) {
+        this.coverageCache = coverageCache;
+    }
+
+    /**
+     * @return the raster files backing this source, sorted for mosaics
+     */
+    public List<Path> getFiles() {
+        return files;
+    }
+
+    /**
+     * @return {@code true} if this source is a virtual mosaic of several tiles
+     */
+    public boolean isMosaic() {
+        return mosaic;
+    }
+
+    /**
+     * Returns a name that identifies the source: the file name without extension for single files,
+     * the directory name for directory mosaics and the first tile's base name for file lists.
+     *
+     * @return the source name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the CRS declared by the raster header (of the first tile for mosaics) without decoding
+     * any pixels.
+     *
+     * @return the CRS, or {@code null} if the raster declares none
+     * @throws IOException if the header cannot be read
+     */
+    public CoordinateReferenceSystem getCoordinateReferenceSystem() throws IOException {
+        Path file = files.get(0);
+        AbstractGridFormat format = GridFormatFinder.findFormat(file.toFile());
+        if (format == null) {
+            throw new IOException("Unable to determine raster format for " + file);
+        }
+        GridCoverage2DReader reader = null;
+        try {
+            reader = format.getReader(file.toFile());
+            if (reader == null) {
+                throw new IOException("No reader found for raster " + file);
+            }
+            return reader.getCoordinateReferenceSystem();
+        } finally {
+            if (reader != null) {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Reads dimensions, band count and data type from the raster header without decoding any pixels.
+     *
+     * @return the header; for mosaics the pixel count is summed over all tiles
+     * @throws IOException if a header cannot be read
+     */
+    public RasterHeader readHeader() throws IOException {
+        return readHeader(null);
+    }
+
+    /**
+     * Reads dimensions, band count and data type of the part of the raster that intersects a
+     * processing window without decoding any pixels. Mosaics take the tile headers from the
+     * {@link MosaicIndex}, so only tiles that changed since the index was written are opened.
+     *
+     * @param window window in the CRS of the raster; {@code null} covers the whole raster
+     * @return the header; for mosaics the pixel count is summed over the intersecting tiles
+     * @throws IOException if a header cannot be read
+     */
+    public RasterHeader readHeader(Envelope window) throws IOException {
+        if (!mosaic) {
+            return RasterHeader.read(files.get(0), window);
+        }
+        List<MosaicIndex.Entry> selected = index().intersecting(window);
+        List<RasterHeader> headers = new ArrayList<>(selected.size());
+        for (MosaicIndex.Entry entry : selected) {
+            headers.add(entry.header(window));
+        }
+        return RasterHeader.ofTiles(headers);
+    }
+
+    /**
+     * Reads the whole raster.
+     *
+     * @return the decoded coverage
+     * @throws IOException if the raster cannot be read
+     */
+    public GridCoverage2D read() throws IOException {
+        return read(null);
+    }
+
+    /**
+     * Reads the part of the raster that intersects the given processing window.
+     *
+     * @param window window in the CRS of the raster; {@code null} reads everything
+     * @return the decoded coverage
+     * @throws IOException if the raster cannot be read or no tile intersects the window
+     */
+    public GridCoverage2D read(Envelope window) throws IOException {
+        GretlLogger log = LogEnvironment.getLogger(CoverageSource.class);
+        if (!mosaic) {
+            return readCached(files.get(0), window);
+        }
+
+        List<MosaicIndex.Entry> selected = index().intersecting(window);
+        log.info(String.format(Locale.ROOT, "Mosaic %s: reading %d of %d tiles",
+                name, selected.size(), files.size()));
+        if (selected.isEmpty()) {
+            throw new IOException("No mosaic tile intersects the processing window " + window);
+        }
+
+        List<GridCoverage2D> coverages = new ArrayList<>(selected.size());
+        for (MosaicIndex.Entry entry : selected) {
+            coverages.add(readCached(entry.file, window));
+        }
+        if (coverages.size() == 1) {
+            return coverages.get(0);
+        }
+        return mosaic(coverages);
+    }
+
+    private MosaicIndex index() throws IOException {
+        if (index == null) {
+            index = MosaicIndex.load(indexFile, files);
+        }
+        return index;
+    }
+
+    private GridCoverage2D readCached(Path file, Envelope window) throws IOException {
+        if (coverageCache == null) {
+            return readFile(file, window);
+        }
+        return coverageCache.get(file, window, () -> readFile(file, window));
+    }
+
+    /**
+     * Reads a single raster file, restricted to the pixels intersecting {@code window}.
+     */
+    static GridCoverage2D readFile(Path file, Envelope window) throws IOException {
+        AbstractGridFormat format = GridFormatFinder.findFormat(file.toFile());
+        if (format == null) {
+            throw new IOException("Unable to determine raster format for " + file);
+        }
+        GridCoverage2DReader reader = null;
+        try {
+            reader = format.getReader(file.toFile());
+            if (reader == null) {
+                throw new IOException("No reader found for raster " + file);
+            }
+            GeneralParameterValue[] params = null;
+            if (window != null) {
+                params = new GeneralParameterValue[] {windowParameter(reader, window, file)};
+            }
+            GridCoverage2D coverage = reader.read(params);
+            if (coverage == null) {
+                throw new IOException("Unable to read raster coverage from " + file);
+            }
+            return coverage;
+        } finally {
+            if (reader != null) {
+                reader.dispose();
+            }
+        }
+    }
+
+    private static ParameterValue<GridGeometry2D> windowParameter(GridCoverage2DReader reader, Envelope window, Path file)
+            throws IOException {
+        GeneralEnvelope original = reader.getOriginalEnvelope();
+        GridEnvelope range = reader.getOriginalGridRange();
+        double resX = original.getSpan(0) / range.getSpan(0);
+        double resY = original.getSpan(1) / range.getSpan(1);
+
+        // snap the window outwards to the native pixel grid so that no resampling takes place
+        double minX = Math.max(original.getMinimum(0),
+                original.getMinimum(0) + Math.floor((window.getMinimum(0) - original.getMinimum(0)) / resX) * resX);
+        double maxX = Math.min(original.getMaximum(0),
+                original.getMinimum(0) + Math.ceil((window.getMaximum(0) - original.getMinimum(0)) / resX) * resX);
+        double minY = Math.max(original.getMinimum(1),
+                original.getMaximum(1) - Math.ceil((original.getMaximum(1) - window.getMinimum(1)) / resY) * resY);
+        double maxY = Math.min(original.getMaximum(1),
+                original.getMaximum(1) - Math.floor((original.getMaximum(1) - window.getMaximum(1)) / resY) * resY);
+        if (!(maxX > minX) || !(maxY > minY)) {
+            throw new IOException("Processing window does not intersect raster " + file);
+        }
+
+        GeneralEnvelope requested = new GeneralEnvelope(new double[] {minX, minY}, new double[] {maxX, maxY});
+        requested.setCoordinateReferenceSystem(original.getCoordinateReferenceSystem());
+        int width = (int) Math.max(1, Math.round((maxX - minX) / resX));
+        int height = (int) Math.max(1, Math.round((maxY - minY) / resY));
+
+        ParameterValue<GridGeometry2D> gridGeometry = AbstractGridFormat.READ_GRIDGEOMETRY2D.createValue();
+        gridGeometry.setValue(new GridGeometry2D(new GridEnvelope2D(0, 0, width, height), requested));
+        return gridGeometry;
+    }
+
+    private static GridCoverage2D mosaic(List<GridCoverage2D> coverages) {
+        CoverageProcessor processor = CoverageProcessor.getInstance();
+        ParameterValueGroup params = processor.getOperation("Mosaic").getParameters();
+        params.parameter("Sources").setValue(coverages);
+        NoDataContainer noData = CoverageUtilities.getNoDataProperty(coverages.get(0));
+        if (noData != null) {
+            try {
+                params.parameter("outputNoData").setValue(new double[] {noData.getAsSingleValue()});
+            } catch (ParameterNotFoundException e) {
+                // older operation signature without explicit output nodata
+            }
+        }
+        return (GridCoverage2D) processor.doOperation(params);
+    }
+
+    private static List<Path> listTiles(Path directory) throws IOException {
+        List<Path> tiles = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path candidate : stream) {
+                String fileName = candidate.getFileName().toString();
+                int dot = fileName.lastIndexOf('.');
+                if (dot > 0 && Files.isRegularFile(candidate)
+                        && TILE_EXTENSIONS.contains(fileName.substring(dot + 1).toLowerCase(Locale.ROOT))) {
+                    tiles.add(candidate);
+                }
+            }
+        }
+        if (tiles.isEmpty()) {
+            throw new IOException("No raster tiles (" + TILE_EXTENSIONS + ") found in " + directory);
+        }
+        Collections.sort(tiles);
+        return tiles;
+    }
+
+    private static String baseName(Path path) {
+        Path fileName = path.getFileName();
+        if (fileName == null) {
+            return "raster";
+        }
+        String value = fileName.toString();
+        int dot = value.lastIndexOf('.');
+        return dot > 0 ? value.substring(0, dot) : value;
+    }
+
+    private static Path defaultIndexDirectory() {
+        return Path.of(System.getProperty("java.io.tmpdir"), "gretlgt-mosaic");
+    }
+
+    /**
+     * @return a digest of the absolute paths of a tile directory, of the tiles of a file list or of
+     *         any other list of files
+     */
+    static String digest(List<Path> paths) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            for (Path path : paths) {
+                md.update(path.toAbsolutePath().normalize().toString().getBytes(StandardCharsets.UTF_8));
+                md.update((byte) '\n');
+            }
+            StringBuilder sb = new StringBuilder();
+            for (byte b : md.digest()) {
+                sb.append(String.format(Locale.ROOT, "%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 not available", e);
+        }
+    }
+}
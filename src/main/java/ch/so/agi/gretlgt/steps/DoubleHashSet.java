@@ -0,0 +1,102 @@
+package ch.so.agi.gretlgt.steps;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash set of {@code double} values.
+ * <p>
+ * Used by {@link CellValueDiscovery} to collect the distinct values of a tile without boxing.
+ * {@code NaN} cannot be stored and {@code -0.0} is stored as {@code 0.0}. Values cannot be removed.
+ * </p>
+ */
+final class DoubleHashSet {
+    // a NaN bit pattern that Double.doubleToLongBits never returns
+    private static final long EMPTY = 0x7ff8_0000_0000_0001L;
+
+    private long[] keys;
+    private int size;
+
+    DoubleHashSet(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize * 2 - 1)) << 1;
+        keys = new long[capacity];
+        Arrays.fill(keys, EMPTY);
+    }
+
+    /**
+     * Adds {@code value} unless it is already contained.
+     *
+     * @return {@code true} if the value was added
+     */
+    boolean add(double value) {
+        if (Double.isNaN(value)) {
+            throw new IllegalArgumentException("NaN cannot be stored");
+        }
+        long key = Double.doubleToLongBits(value == 0 ? 0d : value);
+        if ((size + 1) * 2 > keys.length) {
+            grow();
+        }
+        int mask = keys.length - 1;
+        for (int i = slot(key, mask); ; i = (i + 1) & mask) {
+            long k = keys[i];
+            if (k == key) {
+                return false;
+            }
+            if (k == EMPTY) {
+                keys[i] = key;
+                size++;
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Adds all values of {@code other}.
+     */
+    void addAll(DoubleHashSet other) {
+        for (long k : other.keys) {
+            if (k != EMPTY) {
+                add(Double.longBitsToDouble(k));
+            }
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the values in ascending order
+     */
+    double[] toSortedArray() {
+        double[] values = new double[size];
+        int n = 0;
+        for (long k : keys) {
+            if (k != EMPTY) {
+                values[n++] = Double.longBitsToDouble(k);
+            }
+        }
+        Arrays.sort(values);
+        return values;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        keys = new long[oldKeys.length * 2];
+        Arrays.fill(keys, EMPTY);
+        int mask = keys.length - 1;
+        for (long k : oldKeys) {
+            if (k != EMPTY) {
+                int i = slot(k, mask);
+                while (keys[i] != EMPTY) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = k;
+            }
+        }
+    }
+
+    private static int slot(long key, int mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+}
@@ -0,0 +1,140 @@
+package ch.so.agi.gretlgt.steps;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.geotools.referencing.CRS;
+import org.geotools.referencing.factory.OrderedAxisAuthorityFactory;
+import org.geotools.util.factory.Hints;
+import org.opengis.referencing.FactoryException;
+import org.opengis.referencing.NoSuchAuthorityCodeException;
+import org.opengis.referencing.ReferenceIdentifier;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+import ch.so.agi.gretlgt.logging.GretlLogger;
+import ch.so.agi.gretlgt.logging.LogEnvironment;
+
+/**
+ * CRS decoding and SRID lookup that use the embedded definitions of {@link EmbeddedCrsFactory}
+ * before falling back to the full EPSG database.
+ * <p>
+ * {@link CRS#lookupEpsgCode(CoordinateReferenceSystem, boolean)} scans the whole database when a
+ * CRS carries no EPSG identifier, e.g. a CRS built from GeoTIFF keys. {@link #lookupEpsgCode} first
+ * reads the identifiers, then compares with the few embedded definitions and only then scans the
+ * database. All axis orders are longitude first, like {@code CRS.decode(code, true)}.
+ * </p>
+ */
+public final class EmbeddedCrs {
+    private static final GretlLogger log = LogEnvironment.getLogger(EmbeddedCrs.class);
+    private static final Map<String, CoordinateReferenceSystem> CACHE = new ConcurrentHashMap<>();
+    private static volatile OrderedAxisAuthorityFactory factory;
+
+    private EmbeddedCrs() {
+    }
+
+    /**
+     * Decodes an EPSG code with longitude-first axis order.
+     *
+     * @param code e.g. {@code "EPSG:2056"}
+     * @return the CRS
+     * @throws FactoryException if the code is unknown to the embedded definitions and the database
+     */
+    public static CoordinateReferenceSystem decode(String code) throws FactoryException {
+        CoordinateReferenceSystem cached = CACHE.get(code);
+        if (cached != null) {
+            return cached;
+        }
+        CoordinateReferenceSystem crs;
+        if (!EmbeddedCrsFactory.isEnabled()) {
+            return CRS.decode(code, true);
+        }
+        try {
+            crs = embeddedFactory().createCoordinateReferenceSystem(code);
+        } catch (NoSuchAuthorityCodeException e) {
+            log.debug(code + " is not embedded, decoding it from the EPSG database");
+            crs = CRS.decode(code, true);
+        }
+        CACHE.put(code, crs);
+        return crs;
+    }
+
+    /**
+     * Returns the EPSG code of a CRS.
+     *
+     * @param crs the CRS
+     * @return the EPSG code, or {@code null} if none matches
+     * @throws FactoryException if the EPSG database cannot be searched
+     */
+    public static Integer lookupEpsgCode(CoordinateReferenceSystem crs) throws FactoryException {
+        for (ReferenceIdentifier identifier : crs.getIdentifiers()) {
+            if ("EPSG".equalsIgnoreCase(identifier.getCodeSpace())) {
+                try {
+                    return Integer.valueOf(identifier.getCode());
+                } catch (NumberFormatException e) {
+                    // not a numeric EPSG code, keep looking
+                }
+            }
+        }
+        for (String code : embeddedCodes()) {
+            if (CRS.equalsIgnoreMetadata(decode("EPSG:" + code), crs)) {
+                return Integer.valueOf(code);
+            }
+        }
+        return CRS.lookupEpsgCode(crs, true);
+    }
+
+    /**
+     * Precomputes the WKT of {@code codes} from the EPSG database and writes them in the format of
+     * {@link EmbeddedCrsFactory}, e.g. to ship a different subset of codes via the system property
+     * {@value EmbeddedCrsFactory#DEFINITIONS_PROPERTY}.
+     *
+     * @param codes  EPSG codes, e.g. {@code "EPSG:2056"} or {@code "2056"}
+     * @param target the definitions file to write
+     * @throws FactoryException if a code is unknown
+     * @throws IOException      if the file cannot be written
+     */
+    public static void writeDefinitions(Collection<String> codes, Path target) throws FactoryException, IOException {
+        Set<String> sorted = new TreeSet<>();
+        for (String code : codes) {
+            sorted.add(code.replaceFirst("(?i)^EPSG:", "").trim());
+        }
+        try (Writer writer = Files.newBufferedWriter(target, StandardCharsets.UTF_8)) {
+            for (String code : sorted) {
+                // EPSG axis order: the factory reorders on request
+                String wkt = CRS.decode("EPSG:" + code, false).toWKT().replaceAll("\\s*\\R\\s*", " ");
+                writer.write(code + "=" + wkt + System.lineSeparator());
+            }
+        }
+    }
+
+    private static Set<String> embeddedCodes() throws FactoryException {
+        Set<String> codes = new TreeSet<>();
+        if (!EmbeddedCrsFactory.isEnabled()) {
+            return codes;
+        }
+        for (String code : embeddedFactory().getAuthorityCodes(CoordinateReferenceSystem.class)) {
+            codes.add(code.replaceFirst("(?i)^EPSG:", ""));
+        }
+        return codes;
+    }
+
+    private static OrderedAxisAuthorityFactory embeddedFactory() {
+        if (factory == null) {
+            synchronized (EmbeddedCrs.class) {
+                if (factory == null) {
+                    factory = new OrderedAxisAuthorityFactory(new EmbeddedCrsFactory(),
+                            new Hints(Hints.FORCE_LONGITUDE_FIRST_AXIS_ORDER, Boolean.TRUE), null);
+                }
+            }
+        }
+        return factory;
+    }
+}
@@ -0,0 +1,72 @@
+package ch.so.agi.gretlgt.steps;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.file.Path;
+
+import org.geotools.referencing.factory.epsg.FactoryUsingWKT;
+import org.geotools.util.factory.Hints;
+
+/**
+ * EPSG authority factory backed by the precomputed WKT definitions shipped with the plugin.
+ * <p>
+ * It is registered as a GeoTools plugin with a higher priority than the EPSG database
+ * ({@code gt-epsg-hsql}), so codes like LV95 are created without unpacking and starting the
+ * database; codes that are not embedded fall back to the database. The definitions are read from
+ * the file named by the system property {@value #DEFINITIONS_PROPERTY} if set, otherwise from the
+ * bundled {@code epsg.properties}. Setting {@value #ENABLED_PROPERTY} to {@code false} disables
+ * the factory.
+ * </p>
+ */
+public class EmbeddedCrsFactory extends FactoryUsingWKT {
+    /**
+     * System property with the path of an alternative definitions file (see
+     * {@link EmbeddedCrs#writeDefinitions(java.util.Collection, Path)}).
+     */
+    public static final String DEFINITIONS_PROPERTY = "gretlgt.crs.definitions";
+
+    /**
+     * System property to disable the embedded definitions ({@code false}).
+     */
+    public static final String ENABLED_PROPERTY = "gretlgt.crs.embedded";
+
+    /**
+     * Creates the factory with default hints; used by the GeoTools plugin registry.
+     */
+    public EmbeddedCrsFactory() {
+        this(null);
+    }
+
+    /**
+     * Creates the factory.
+     *
+     * @param userHints hints for the backing factories, may be {@code null}
+     */
+    public EmbeddedCrsFactory(Hints userHints) {
+        super(userHints, MAXIMUM_PRIORITY);
+    }
+
+    static boolean isEnabled() {
+        return !"false".equalsIgnoreCase(System.getProperty(ENABLED_PROPERTY));
+    }
+
+    /**
+     * @return the definitions file, or {@code null} if the factory is disabled, which makes it
+     *         unavailable to the plugin registry
+     */
+    @Override
+    protected URL getDefinitionsURL() {
+        if (!isEnabled()) {
+            return null;
+        }
+        String definitions = System.getProperty(DEFINITIONS_PROPERTY);
+        if (definitions != null && !definitions.isBlank()) {
+            try {
+                return Path.of(definitions).toUri().toURL();
+            } catch (MalformedURLException e) {
+                throw new IllegalArgumentException("Invalid " + DEFINITIONS_PROPERTY + ": " + definitions, e);
+            }
+        }
+        return EmbeddedCrsFactory.class.getResource(FILENAME);
+    }
+}
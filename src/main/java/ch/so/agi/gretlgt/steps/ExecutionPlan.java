@@ -0,0 +1,147 @@
+package ch.so.agi.gretlgt.steps;
+
+import java.util.Locale;
+
+/**
+ * Decision between processing a raster entirely in memory or tile by tile, together with the
+ * estimates it is based on.
+ * <p>
+ * A step estimates the peak heap usage of both paths from the raster header (see
+ * {@link RasterHeader}) and takes the fast in-memory path if it fits into the memory budget.
+ * Otherwise it takes the tiled path, whose memory use does not depend on the raster size.
+ * </p>
+ */
+public final class ExecutionPlan {
+    /**
+     * Execution mode of a step.
+     */
+    public enum Mode {
+        /**
+         * The whole raster is decoded and processed in the heap.
+         */
+        IN_MEMORY,
+
+        /**
+         * The raster is processed tile by tile (or from an off-heap copy).
+         */
+        TILED
+    }
+
+    private final Mode mode;
+    private final long inMemoryBytes;
+    private final long tiledBytes;
+    private final long budgetBytes;
+    private final boolean automatic;
+
+    private ExecutionPlan(Mode mode, long inMemoryBytes, long tiledBytes, long budgetBytes, boolean automatic) {
+        this.mode = mode;
+        this.inMemoryBytes = inMemoryBytes;
+        this.tiledBytes = tiledBytes;
+        this.budgetBytes = budgetBytes;
+        this.automatic = automatic;
+    }
+
+    /**
+     * Chooses the in-memory path if its estimate fits into the budget.
+     *
+     * @param inMemoryBytes estimated peak heap usage of the in-memory path
+     * @param tiledBytes    estimated peak heap usage of the tiled path
+     * @param budgetBytes   memory budget
+     * @return the plan
+     */
+    public static ExecutionPlan choose(long inMemoryBytes, long tiledBytes, long budgetBytes) {
+        Mode mode = inMemoryBytes <= budgetBytes ? Mode.IN_MEMORY : Mode.TILED;
+        return new ExecutionPlan(mode, inMemoryBytes, tiledBytes, budgetBytes, true);
+    }
+
+    /**
+     * Records a mode that was configured explicitly.
+     *
+     * @param mode          the configured mode
+     * @param inMemoryBytes estimated peak heap usage of the in-memory path
+     * @param tiledBytes    estimated peak heap usage of the tiled path
+     * @param budgetBytes   memory budget
+     * @return the plan
+     */
+    public static ExecutionPlan configured(Mode mode, long inMemoryBytes, long tiledBytes, long budgetBytes) {
+        return new ExecutionPlan(mode, inMemoryBytes, tiledBytes, budgetBytes, false);
+    }
+
+    /**
+     * Returns the default memory budget: half of the maximum heap.
+     *
+     * @return the budget in bytes
+     */
+    public static long defaultBudget() {
+        return Runtime.getRuntime().maxMemory() / 2;
+    }
+
+    /**
+     * @return the chosen mode
+     */
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * @return {@code true} for {@link Mode#TILED}
+     */
+    public boolean isTiled() {
+        return mode == Mode.TILED;
+    }
+
+    /**
+     * @return {@code false} if the mode was configured instead of chosen
+     */
+    public boolean isAutomatic() {
+        return automatic;
+    }
+
+    /**
+     * @return estimated peak heap usage of the in-memory path
+     */
+    public long getInMemoryBytes() {
+        return inMemoryBytes;
+    }
+
+    /**
+     * @return estimated peak heap usage of the tiled path
+     */
+    public long getTiledBytes() {
+        return tiledBytes;
+    }
+
+    /**
+     * @return the memory budget
+     */
+    public long getBudgetBytes() {
+        return budgetBytes;
+    }
+
+    /**
+     * @return {@code true} if the chosen path is estimated to exceed the budget
+     */
+    public boolean exceedsBudget() {
+        return (isTiled() ? tiledBytes : inMemoryBytes) > budgetBytes;
+    }
+
+    static String formatBytes(long bytes) {
+        if (bytes >= 1L << 30) {
+            return String.format(Locale.ROOT, "%.1f GB", bytes / (double) (1L << 30));
+        }
+        if (bytes >= 1L << 20) {
+            return String.format(Locale.ROOT, "%.1f MB", bytes / (double) (1L << 20));
+        }
+        if (bytes >= 1L << 10) {
+            return String.format(Locale.ROOT, "%.1f kB", bytes / (double) (1L << 10));
+        }
+        return bytes + " B";
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "%s %s (in-memory: %s, tiled: %s, budget: %s)",
+                automatic ? "chose" : "configured", mode == Mode.TILED ? "tiled" : "in-memory",
+                formatBytes(inMemoryBytes), formatBytes(tiledBytes), formatBytes(budgetBytes));
+    }
+}
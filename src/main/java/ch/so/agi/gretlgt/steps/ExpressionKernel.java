@@ -0,0 +1,71 @@
+package ch.so.agi.gretlgt.steps;
+
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+
+/**
+ * {@link TileKernel} that evaluates a {@link MapAlgebra} expression over aligned source tiles.
+ * <p>
+ * Source {@code i} is bound to input {@code i} of the expression and read from its first band. The
+ * whole tile region is loaded into primitive arrays at once and the compiled program runs over them.
+ * A pixel becomes {@code noData} if one of the inputs used by the expression is {@code NaN} or its
+ * source no-data value there, or if the result is not a finite number.
+ * </p>
+ */
+final class ExpressionKernel implements TileKernel {
+    private final MapAlgebra expression;
+    private final int[] inputs;
+    private final double[] sourceNoData;
+    private final double noData;
+    private final ThreadLocal<double[][]> registers;
+    private final ThreadLocal<double[]> output;
+
+    /**
+     * @param expression   the compiled expression
+     * @param sourceNoData no-data value per source, {@code NaN} if a source declares none
+     * @param noData       value written for no-data pixels
+     * @param capacity     maximum number of pixels per tile
+     */
+    ExpressionKernel(MapAlgebra expression, double[] sourceNoData, double noData, int capacity) {
+        this.expression = expression;
+        this.inputs = expression.getUsedVariables();
+        this.sourceNoData = sourceNoData.clone();
+        this.noData = noData;
+        this.registers = ThreadLocal.withInitial(() -> expression.newRegisters(capacity));
+        this.output = ThreadLocal.withInitial(() -> new double[capacity]);
+    }
+
+    @Override
+    public void compute(Raster[] sources, WritableRaster target, Rectangle region) {
+        int n = region.width * region.height;
+        double[][] regs = registers.get();
+        for (int input : inputs) {
+            double[] values = sources[input].getSamples(region.x, region.y, region.width, region.height, 0, regs[input]);
+            double missing = sourceNoData[input];
+            if (!Double.isNaN(missing)) {
+                for (int i = 0; i < n; i++) {
+                    if (values[i] == missing) {
+                        values[i] = Double.NaN;
+                    }
+                }
+            }
+        }
+
+        double[] result = expression.evaluate(regs, n);
+        double[] out = output.get();
+        for (int i = 0; i < n; i++) {
+            double value = result[i];
+            out[i] = Double.isFinite(value) ? value : noData;
+        }
+        for (int input : inputs) {
+            double[] values = regs[input];
+            for (int i = 0; i < n; i++) {
+                if (Double.isNaN(values[i])) {
+                    out[i] = noData;
+                }
+            }
+        }
+        target.setSamples(region.x, region.y, region.width, region.height, 0, out);
+    }
+}
@@ -0,0 +1,514 @@
+package ch.so.agi.gretlgt.steps;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.LinearRing;
+import org.locationtech.jts.geom.MultiPolygon;
+import org.locationtech.jts.geom.Polygon;
+
+import com.google.flatbuffers.FlatBufferBuilder;
+
+/**
+ * Writes multipolygon features to a FlatGeobuf file with a packed Hilbert R-tree index.
+ * <p>
+ * Features are serialised as soon as they are written and streamed to a scratch file next to the
+ * target, while only their bounding boxes and byte offsets are kept in memory. On {@link #close()}
+ * the features are sorted along the Hilbert curve, the packed R-tree is built bottom-up from the
+ * boxes and the final file is assembled (magic bytes, header, index, features in index order).
+ * </p>
+ */
+final class FlatGeobufWriter implements Closeable {
+    private static final byte[] MAGIC = {0x66, 0x67, 0x62, 0x03, 0x66, 0x67, 0x62, 0x00};
+    private static final int NODE_SIZE = 16;
+    private static final int NODE_ITEM_BYTES = 40;
+    private static final int HILBERT_MAX = (1 << 16) - 1;
+
+    // GeometryType and ColumnType enum values of the FlatGeobuf schema
+    private static final byte GEOMETRY_POLYGON = 3;
+    private static final byte GEOMETRY_MULTIPOLYGON = 6;
+
+    /**
+     * Attribute types supported by the writer.
+     */
+    enum ColumnType {
+        INT((byte) 5),
+        LONG((byte) 7),
+        DOUBLE((byte) 10),
+        STRING((byte) 11);
+
+        private final byte code;
+
+        ColumnType(byte code) {
+            this.code = code;
+        }
+    }
+
+    /**
+     * Attribute column definition.
+     */
+    static final class Column {
+        final String name;
+        final ColumnType type;
+
+        Column(String name, ColumnType type) {
+            this.name = name;
+            this.type = type;
+        }
+    }
+
+    private final Path target;
+    private final Path scratch;
+    private final String layerName;
+    private final Integer srid;
+    private final List<Column> columns;
+    private final FileChannel scratchChannel;
+    private final List<Item> items = new ArrayList<>();
+    private long scratchSize;
+    private boolean closed;
+
+    /**
+     * Opens a writer.
+     *
+     * @param target    destination file; replaced on close
+     * @param layerName dataset name stored in the header
+     * @param srid      EPSG code of the geometries or {@code null}
+     * @param columns   attribute columns in the order of the values passed to {@link #write(MultiPolygon, Object[])}
+     * @throws IOException if the scratch file cannot be created
+     */
+    FlatGeobufWriter(Path target, String layerName, Integer srid, List<Column> columns) throws IOException {
+        this.target = target;
+        this.layerName = layerName;
+        this.srid = srid;
+        this.columns = List.copyOf(columns);
+        Path parent = target.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        this.scratch = Files.createTempFile(parent, target.getFileName().toString(), ".features");
+        this.scratchChannel = FileChannel.open(scratch, StandardOpenOption.WRITE, StandardOpenOption.READ);
+    }
+
+    /**
+     * Serialises one feature and appends it to the scratch file.
+     *
+     * @param geometry the feature geometry; empty geometries are skipped
+     * @param values   attribute values matching the columns; {@code null} values are omitted
+     * @throws IOException if the scratch file cannot be written
+     */
+    void write(MultiPolygon geometry, Object[] values) throws IOException {
+        if (geometry.isEmpty()) {
+            return;
+        }
+        FlatBufferBuilder builder = new FlatBufferBuilder(1024);
+        int geometryOffset = buildMultiPolygon(builder, geometry);
+        int propertiesOffset = builder.createByteVector(encodeProperties(values));
+        builder.startTable(3);
+        builder.addOffset(1, propertiesOffset, 0);
+        builder.addOffset(0, geometryOffset, 0);
+        builder.finishSizePrefixed(builder.endTable());
+        byte[] bytes = builder.sizedByteArray();
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            scratchChannel.write(buffer, scratchSize + buffer.position());
+        }
+        Envelope envelope = geometry.getEnvelopeInternal();
+        items.add(new Item(envelope.getMinX(), envelope.getMinY(), envelope.getMaxX(), envelope.getMaxY(),
+                scratchSize, bytes.length));
+        scratchSize += bytes.length;
+    }
+
+    /**
+     * @return the number of features written so far
+     */
+    int getFeatureCount() {
+        return items.size();
+    }
+
+    /**
+     * Assembles the FlatGeobuf file and deletes the scratch file.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        Path assembling = Files.createTempFile(scratch.getParent(), target.getFileName().toString(), ".part");
+        try {
+            Envelope extent = new Envelope();
+            for (Item item : items) {
+                extent.expandToInclude(item.minX, item.minY);
+                extent.expandToInclude(item.maxX, item.maxY);
+            }
+            sortByHilbert(items, extent);
+
+            try (OutputStream out = Files.newOutputStream(assembling);
+                    WritableByteChannel outChannel = Channels.newChannel(out)) {
+                out.write(MAGIC);
+                out.write(buildHeader(extent));
+                if (!items.isEmpty()) {
+                    out.write(buildIndex(items));
+                    out.flush();
+                    for (Item item : items) {
+                        long position = item.scratchOffset;
+                        long remaining = item.length;
+                        while (remaining > 0) {
+                            long copied = scratchChannel.transferTo(position, remaining, outChannel);
+                            position += copied;
+                            remaining -= copied;
+                        }
+                    }
+                }
+            }
+            Files.move(assembling, target, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            scratchChannel.close();
+            Files.deleteIfExists(scratch);
+            Files.deleteIfExists(assembling);
+        }
+    }
+
+    private byte[] buildHeader(Envelope extent) {
+        FlatBufferBuilder builder = new FlatBufferBuilder(1024);
+        int nameOffset = builder.createString(layerName);
+
+        int envelopeOffset = 0;
+        if (!extent.isNull()) {
+            builder.startVector(8, 4, 8);
+            builder.addDouble(extent.getMaxY());
+            builder.addDouble(extent.getMaxX());
+            builder.addDouble(extent.getMinY());
+            builder.addDouble(extent.getMinX());
+            envelopeOffset = builder.endVector();
+        }
+
+        int[] columnOffsets = new int[columns.size()];
+        for (int i = 0; i < columns.size(); i++) {
+            int columnName = builder.createString(columns.get(i).name);
+            builder.startTable(11);
+            builder.addOffset(0, columnName, 0);
+            builder.addByte(1, columns.get(i).type.code, 0);
+            columnOffsets[i] = builder.endTable();
+        }
+        builder.startVector(4, columnOffsets.length, 4);
+        for (int i = columnOffsets.length - 1; i >= 0; i--) {
+            builder.addOffset(columnOffsets[i]);
+        }
+        int columnsOffset = builder.endVector();
+
+        int crsOffset = 0;
+        if (srid != null) {
+            int org = builder.createString("EPSG");
+            builder.startTable(6);
+            builder.addOffset(0, org, 0);
+            builder.addInt(1, srid, 0);
+            crsOffset = builder.endTable();
+        }
+
+        builder.startTable(14);
+        builder.addOffset(0, nameOffset, 0);
+        if (envelopeOffset != 0) {
+            builder.addOffset(1, envelopeOffset, 0);
+        }
+        builder.addByte(2, GEOMETRY_MULTIPOLYGON, 0);
+        builder.addOffset(7, columnsOffset, 0);
+        builder.addLong(8, items.size(), 0L);
+        builder.addShort(9, (short) (items.isEmpty() ? 0 : NODE_SIZE), NODE_SIZE);
+        if (crsOffset != 0) {
+            builder.addOffset(10, crsOffset, 0);
+        }
+        builder.finishSizePrefixed(builder.endTable());
+        return builder.sizedByteArray();
+    }
+
+    private static int buildMultiPolygon(FlatBufferBuilder builder, MultiPolygon geometry) {
+        int[] parts = new int[geometry.getNumGeometries()];
+        for (int i = 0; i < parts.length; i++) {
+            parts[i] = buildPolygon(builder, (Polygon) geometry.getGeometryN(i));
+        }
+        builder.startVector(4, parts.length, 4);
+        for (int i = parts.length - 1; i >= 0; i--) {
+            builder.addOffset(parts[i]);
+        }
+        int partsOffset = builder.endVector();
+        builder.startTable(8);
+        builder.addOffset(7, partsOffset, 0);
+        builder.addByte(6, GEOMETRY_MULTIPOLYGON, 0);
+        return builder.endTable();
+    }
+
+    private static int buildPolygon(FlatBufferBuilder builder, Polygon polygon) {
+        int rings = 1 + polygon.getNumInteriorRing();
+        int[] ends = new int[rings];
+        List<Coordinate[]> ringCoordinates = new ArrayList<>(rings);
+        int total = 0;
+        for (int r = 0; r < rings; r++) {
+            LinearRing ring = r == 0 ? polygon.getExteriorRing() : polygon.getInteriorRingN(r - 1);
+            Coordinate[] coordinates = ring.getCoordinates();
+            ringCoordinates.add(coordinates);
+            total += coordinates.length;
+            ends[r] = total;
+        }
+
+        builder.startVector(8, total * 2, 8);
+        for (int r = rings - 1; r >= 0; r--) {
+            Coordinate[] coordinates = ringCoordinates.get(r);
+            for (int i = coordinates.length - 1; i >= 0; i--) {
+                builder.addDouble(coordinates[i].y);
+                builder.addDouble(coordinates[i].x);
+            }
+        }
+        int xyOffset = builder.endVector();
+
+        int endsOffset = 0;
+        if (rings > 1) {
+            builder.startVector(4, rings, 4);
+            for (int r = rings - 1; r >= 0; r--) {
+                builder.addInt(ends[r]);
+            }
+            endsOffset = builder.endVector();
+        }
+
+        builder.startTable(8);
+        builder.addOffset(1, xyOffset, 0);
+        if (endsOffset != 0) {
+            builder.addOffset(0, endsOffset, 0);
+        }
+        builder.addByte(6, GEOMETRY_POLYGON, 0);
+        return builder.endTable();
+    }
+
+    private byte[] encodeProperties(Object[] values) {
+        ByteBuffer buffer = ByteBuffer.allocate(64).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < columns.size() && i < values.length; i++) {
+            Object value = values[i];
+            if (value == null) {
+                continue;
+            }
+            byte[] text = null;
+            int needed = 2;
+            switch (columns.get(i).type) {
+            case INT:
+                needed += 4;
+                break;
+            case LONG:
+            case DOUBLE:
+                needed += 8;
+                break;
+            default:
+                text = value.toString().getBytes(StandardCharsets.UTF_8);
+                needed += 4 + text.length;
+            }
+            if (buffer.remaining() < needed) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + needed))
+                        .order(ByteOrder.LITTLE_ENDIAN);
+                buffer.flip();
+                larger.put(buffer);
+                buffer = larger;
+            }
+            buffer.putShort((short) i);
+            switch (columns.get(i).type) {
+            case INT:
+                buffer.putInt(((Number) value).intValue());
+                break;
+            case LONG:
+                buffer.putLong(((Number) value).longValue());
+                break;
+            case DOUBLE:
+                buffer.putDouble(((Number) value).doubleValue());
+                break;
+            default:
+                buffer.putInt(text.length);
+                buffer.put(text);
+            }
+        }
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    /**
+     * Builds the packed R-tree over the (already sorted) items. Leaf offsets are the byte offsets of
+     * the features in the feature section; inner nodes point to the index of their first child.
+     */
+    private static byte[] buildIndex(List<Item> items) {
+        long[][] levelBounds = levelBounds(items.size(), NODE_SIZE);
+        int numNodes = (int) levelBounds[0][1];
+        double[] minX = new double[numNodes];
+        double[] minY = new double[numNodes];
+        double[] maxX = new double[numNodes];
+        double[] maxY = new double[numNodes];
+        long[] offsets = new long[numNodes];
+
+        int leafStart = (int) levelBounds[0][0];
+        long featureOffset = 0;
+        for (int i = 0; i < items.size(); i++) {
+            Item item = items.get(i);
+            int node = leafStart + i;
+            minX[node] = item.minX;
+            minY[node] = item.minY;
+            maxX[node] = item.maxX;
+            maxY[node] = item.maxY;
+            offsets[node] = featureOffset;
+            featureOffset += item.length;
+        }
+
+        for (int level = 0; level < levelBounds.length - 1; level++) {
+            int pos = (int) levelBounds[level][0];
+            int end = (int) levelBounds[level][1];
+            int parent = (int) levelBounds[level + 1][0];
+            while (pos < end) {
+                minX[parent] = Double.POSITIVE_INFINITY;
+                minY[parent] = Double.POSITIVE_INFINITY;
+                maxX[parent] = Double.NEGATIVE_INFINITY;
+                maxY[parent] = Double.NEGATIVE_INFINITY;
+                offsets[parent] = pos;
+                for (int j = 0; j < NODE_SIZE && pos < end; j++, pos++) {
+                    minX[parent] = Math.min(minX[parent], minX[pos]);
+                    minY[parent] = Math.min(minY[parent], minY[pos]);
+                    maxX[parent] = Math.max(maxX[parent], maxX[pos]);
+                    maxY[parent] = Math.max(maxY[parent], maxY[pos]);
+                }
+                parent++;
+            }
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(numNodes * NODE_ITEM_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < numNodes; i++) {
+            buffer.putDouble(minX[i]).putDouble(minY[i]).putDouble(maxX[i]).putDouble(maxY[i]).putLong(offsets[i]);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Returns {@code [start, end)} node index ranges per tree level, leaves first. Level 0 ends at the
+     * total number of nodes.
+     */
+    static long[][] levelBounds(int numItems, int nodeSize) {
+        List<Long> levelNumNodes = new ArrayList<>();
+        long n = numItems;
+        long numNodes = n;
+        levelNumNodes.add(n);
+        do {
+            n = (n + nodeSize - 1) / nodeSize;
+            numNodes += n;
+            levelNumNodes.add(n);
+        } while (n != 1);
+
+        long[][] bounds = new long[levelNumNodes.size()][];
+        long remaining = numNodes;
+        for (int i = 0; i < levelNumNodes.size(); i++) {
+            long size = levelNumNodes.get(i);
+            bounds[i] = new long[] {remaining - size, remaining};
+            remaining -= size;
+        }
+        return bounds;
+    }
+
+    private static void sortByHilbert(List<Item> items, Envelope extent) {
+        if (items.size() < 2) {
+            return;
+        }
+        double width = extent.getWidth();
+        double height = extent.getHeight();
+        for (Item item : items) {
+            long x = width == 0 ? 0 : (long) Math.floor(HILBERT_MAX * ((item.minX + item.maxX) / 2 - extent.getMinX()) / width);
+            long y = height == 0 ? 0 : (long) Math.floor(HILBERT_MAX * ((item.minY + item.maxY) / 2 - extent.getMinY()) / height);
+            item.hilbert = hilbert((int) x, (int) y);
+        }
+        items.sort(Comparator.comparingLong(item -> item.hilbert));
+    }
+
+    /**
+     * Position of {@code (x, y)} (16 bit each) on the Hilbert curve, as used by the FlatGeobuf
+     * reference implementations.
+     */
+    static long hilbert(int x, int y) {
+        int a = x ^ y;
+        int b = 0xFFFF ^ a;
+        int c = 0xFFFF ^ (x | y);
+        int d = x & (y ^ 0xFFFF);
+
+        int aa = a | (b >>> 1);
+        int bb = (a >>> 1) ^ a;
+        int cc = ((c >>> 1) ^ (b & (d >>> 1))) ^ c;
+        int dd = ((a & (c >>> 1)) ^ (d >>> 1)) ^ d;
+
+        a = aa;
+        b = bb;
+        c = cc;
+        d = dd;
+        aa = (a & (a >>> 2)) ^ (b & (b >>> 2));
+        bb = (a & (b >>> 2)) ^ (b & ((a ^ b) >>> 2));
+        cc ^= (a & (c >>> 2)) ^ (b & (d >>> 2));
+        dd ^= (b & (c >>> 2)) ^ ((a ^ b) & (d >>> 2));
+
+        a = aa;
+        b = bb;
+        c = cc;
+        d = dd;
+        aa = (a & (a >>> 4)) ^ (b & (b >>> 4));
+        bb = (a & (b >>> 4)) ^ (b & ((a ^ b) >>> 4));
+        cc ^= (a & (c >>> 4)) ^ (b & (d >>> 4));
+        dd ^= (b & (c >>> 4)) ^ ((a ^ b) & (d >>> 4));
+
+        a = aa;
+        b = bb;
+        c = cc;
+        d = dd;
+        cc ^= (a & (c >>> 8)) ^ (b & (d >>> 8));
+        dd ^= (b & (c >>> 8)) ^ ((a ^ b) & (d >>> 8));
+
+        a = cc ^ (cc >>> 1);
+        b = dd ^ (dd >>> 1);
+
+        int i0 = x ^ y;
+        int i1 = b | (0xFFFF ^ (i0 | a));
+
+        i0 = (i0 | (i0 << 8)) & 0x00FF00FF;
+        i0 = (i0 | (i0 << 4)) & 0x0F0F0F0F;
+        i0 = (i0 | (i0 << 2)) & 0x33333333;
+        i0 = (i0 | (i0 << 1)) & 0x55555555;
+
+        i1 = (i1 | (i1 << 8)) & 0x00FF00FF;
+        i1 = (i1 | (i1 << 4)) & 0x0F0F0F0F;
+        i1 = (i1 | (i1 << 2)) & 0x33333333;
+        i1 = (i1 | (i1 << 1)) & 0x55555555;
+
+        return ((long) ((i1 << 1) | i0)) & 0xFFFFFFFFL;
+    }
+
+    private static final class Item {
+        private final double minX;
+        private final double minY;
+        private final double maxX;
+        private final double maxY;
+        private final long scratchOffset;
+        private final int length;
+        private long hilbert;
+
+        private Item(double minX, double minY, double maxX, double maxY, long scratchOffset, int length) {
+            this.minX = minX;
+            this.minY = minY;
+            this.maxX = maxX;
+            this.maxY = maxY;
+            this.scratchOffset = scratchOffset;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package ch.so.agi.gretlgt.steps;
+
+import java.awt.image.RenderedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+
+import javax.imageio.ImageWriteParam;
+import javax.media.jai.TiledImage;
+
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridCoverageFactory;
+import org.geotools.coverage.grid.io.AbstractGridFormat;
+import org.geotools.coverage.grid.io.imageio.GeoToolsWriteParams;
+import org.geotools.gce.geotiff.GeoTiffWriteParams;
+import org.geotools.gce.geotiff.GeoTiffWriter;
+import org.opengis.parameter.GeneralParameterValue;
+import org.opengis.parameter.ParameterValue;
+
+/**
+ * Shared GeoTIFF writer path of the raster steps.
+ */
+final class GeoTiffOutput {
+    /**
+     * Tile edge length used for streamed output; GeoTIFF requires multiples of 16.
+     */
+    static final int TILE_SIZE = 512;
+
+    private GeoTiffOutput() {}
+
+    /**
+     * Writes the coverage as GeoTIFF.
+     *
+     * @param coverage   the coverage to write
+     * @param outputPath destination file; missing parent directories are created
+     * @param tiled      if {@code true} the file is written as deflate-compressed {@value #TILE_SIZE}px
+     *                   tiles so that the writer pulls the image tile by tile; otherwise a
+     *                   {@link KernelImage} is {@linkplain #materialize materialised} first, because the
+     *                   strip writer would compute each of its uncached tiles once per strip
+     * @throws IOException if the file cannot be written
+     */
+    static void write(GridCoverage2D coverage, Path outputPath, boolean tiled) throws IOException {
+        File outFile = outputPath.toFile();
+        File parent = outFile.getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+
+        GeneralParameterValue[] params = null;
+        if (tiled) {
+            GeoTiffWriteParams writeParams = new GeoTiffWriteParams();
+            writeParams.setTilingMode(ImageWriteParam.MODE_EXPLICIT);
+            writeParams.setTiling(TILE_SIZE, TILE_SIZE);
+            writeParams.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            writeParams.setCompressionType("Deflate");
+            ParameterValue<GeoToolsWriteParams> value = AbstractGridFormat.GEOTOOLS_WRITE_PARAMS.createValue();
+            value.setValue(writeParams);
+            params = new GeneralParameterValue[] {value};
+        }
+
+        GridCoverage2D written = !tiled && coverage.getRenderedImage() instanceof KernelImage
+                ? materialize(coverage)
+                : coverage;
+        GeoTiffWriter writer = null;
+        try {
+            writer = new GeoTiffWriter(outFile);
+            writer.write(written, params);
+        } finally {
+            if (writer != null) {
+                writer.dispose();  // important: releases resources
+            }
+        }
+    }
+
+    /**
+     * Computes every tile of the coverage once and keeps the pixels in memory with the same tile layout.
+     */
+    static GridCoverage2D materialize(GridCoverage2D coverage) {
+        RenderedImage image = coverage.getRenderedImage();
+        TiledImage materialized = new TiledImage(image.getMinX(), image.getMinY(), image.getWidth(),
+                image.getHeight(), image.getTileGridXOffset(), image.getTileGridYOffset(), image.getSampleModel(),
+                image.getColorModel());
+        materialized.set(image);
+        return new GridCoverageFactory().create(
+                coverage.getName(),
+                materialized,
+                coverage.getGridGeometry(),
+                coverage.getSampleDimensions(),
+                null,
+                coverage.getProperties());
+    }
+}
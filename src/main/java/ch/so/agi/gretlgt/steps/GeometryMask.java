@@ -0,0 +1,97 @@
+package ch.so.agi.gretlgt.steps;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.Polygon;
+
+/**
+ * Scanline rasterisation of a polygonal geometry given in pixel coordinates.
+ * <p>
+ * A cell {@code (x, y)} is inside if its centre {@code (x + 0.5, y + 0.5)} is inside the geometry
+ * (even-odd rule, so holes and multipolygons are handled). Instances are immutable and can be shared
+ * between tile workers.
+ * </p>
+ */
+final class GeometryMask {
+    // edges sorted by their minimum y: x0, y0, x1, y1 with y0 < y1
+    private final double[][] edges;
+
+    GeometryMask(Geometry pixelGeometry) {
+        List<double[]> collected = new ArrayList<>();
+        for (int i = 0; i < pixelGeometry.getNumGeometries(); i++) {
+            Geometry part = pixelGeometry.getGeometryN(i);
+            if (part instanceof Polygon) {
+                Polygon polygon = (Polygon) part;
+                addRing(polygon.getExteriorRing().getCoordinates(), collected);
+                for (int r = 0; r < polygon.getNumInteriorRing(); r++) {
+                    addRing(polygon.getInteriorRingN(r).getCoordinates(), collected);
+                }
+            }
+        }
+        this.edges = collected.toArray(new double[0][]);
+        Arrays.sort(this.edges, Comparator.comparingDouble(edge -> edge[1]));
+    }
+
+    private static void addRing(Coordinate[] ring, List<double[]> target) {
+        for (int i = 0; i + 1 < ring.length; i++) {
+            Coordinate a = ring[i];
+            Coordinate b = ring[i + 1];
+            if (a.y == b.y) {
+                continue; // horizontal edges never cross a scanline
+            }
+            target.add(a.y < b.y
+                    ? new double[] {a.x, a.y, b.x, b.y}
+                    : new double[] {b.x, b.y, a.x, a.y});
+        }
+    }
+
+    /**
+     * Returns the edges that can cross the cell centres of rows {@code [minRow, maxRow)}.
+     */
+    double[][] edgesForRows(int minRow, int maxRow) {
+        double top = minRow + 0.5;
+        double bottom = maxRow - 0.5;
+        List<double[]> selected = new ArrayList<>();
+        for (double[] edge : edges) {
+            if (edge[1] > bottom) {
+                break;
+            }
+            if (edge[3] > top) {
+                selected.add(edge);
+            }
+        }
+        return selected.toArray(new double[0][]);
+    }
+
+    /**
+     * Marks the cells of row {@code y} between {@code x0} (inclusive) and {@code x0 + inside.length}
+     * whose centre lies inside the geometry.
+     *
+     * @param candidates edges from {@link #edgesForRows(int, int)} covering this row
+     */
+    void fillRow(double[][] candidates, int y, int x0, boolean[] inside) {
+        Arrays.fill(inside, false);
+        double yc = y + 0.5;
+        double[] crossings = new double[candidates.length];
+        int count = 0;
+        for (double[] edge : candidates) {
+            if (edge[1] <= yc && yc < edge[3]) {
+                crossings[count++] = edge[0] + (yc - edge[1]) * (edge[2] - edge[0]) / (edge[3] - edge[1]);
+            }
+        }
+        Arrays.sort(crossings, 0, count);
+        for (int i = 0; i + 1 < count; i += 2) {
+            // cells whose centre x + 0.5 lies in [start, end)
+            int from = Math.max(x0, (int) Math.ceil(crossings[i] - 0.5));
+            int to = Math.min(x0 + inside.length, (int) Math.ceil(crossings[i + 1] - 0.5));
+            for (int x = from; x < to; x++) {
+                inside[x - x0] = true;
+            }
+        }
+    }
+}
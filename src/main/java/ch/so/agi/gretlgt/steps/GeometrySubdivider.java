@@ -0,0 +1,204 @@
+package ch.so.agi.gretlgt.steps;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryCollection;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.MultiPolygon;
+import org.locationtech.jts.geom.Polygon;
+import org.locationtech.jts.geom.PrecisionModel;
+import org.locationtech.jts.operation.overlayng.OverlayNG;
+import org.locationtech.jts.operation.overlayng.OverlayNGRobust;
+
+/**
+ * Cuts a dissolved multipolygon into smaller pieces, along a regular grid and/or by recursively
+ * halving its envelope until every piece has at most a maximum number of vertices (like PostGIS
+ * {@code ST_Subdivide}).
+ * <p>
+ * Every piece gets a tile ID: {@code <column>_<row>} of the grid cell (multiples of the grid size in
+ * CRS units), and for the vertex limit the path of halvings ({@code 0} for the whole geometry,
+ * followed by {@code 0}/{@code 1} for the lower/upper half of each split), joined by {@code /} if
+ * both are used. Cuts are computed in the precision model of the geometry factory, so pieces of a
+ * raster-aligned grid stay exactly on the raster grid.
+ * </p>
+ */
+final class GeometrySubdivider {
+    private static final int MAX_DEPTH = 40;
+
+    private final GeometryFactory geometryFactory;
+    private final double gridSize;
+    private final int maxVertices;
+    private final CancellationToken cancellation;
+
+    /**
+     * One piece of a subdivided geometry.
+     */
+    static final class Piece {
+        final MultiPolygon geometry;
+        final String tileId;
+
+        Piece(MultiPolygon geometry, String tileId) {
+            this.geometry = geometry;
+            this.tileId = tileId;
+        }
+    }
+
+    /**
+     * @param geometryFactory factory (and precision model) of the pieces
+     * @param gridSize        edge length of the grid cells in CRS units; {@code 0} disables the grid
+     * @param maxVertices     maximum vertices per piece; {@code 0} disables the limit
+     * @param cancellation    checked between pieces
+     */
+    GeometrySubdivider(GeometryFactory geometryFactory, double gridSize, int maxVertices,
+            CancellationToken cancellation) {
+        if (!(gridSize >= 0)) {
+            throw new IllegalArgumentException("gridSize must be >= 0");
+        }
+        if (maxVertices != 0 && maxVertices < 8) {
+            throw new IllegalArgumentException("maxVertices must be 0 or at least 8");
+        }
+        this.geometryFactory = geometryFactory;
+        this.gridSize = gridSize;
+        this.maxVertices = maxVertices;
+        this.cancellation = cancellation;
+    }
+
+    /**
+     * Subdivides a multipolygon.
+     *
+     * @param geometry the dissolved geometry of one class
+     * @return the non-empty pieces, ordered by grid row and column
+     */
+    List<Piece> subdivide(MultiPolygon geometry) {
+        List<Piece> pieces = new ArrayList<>();
+        if (geometry.isEmpty()) {
+            return pieces;
+        }
+        if (gridSize == 0) {
+            split(geometry, "0", 0, pieces);
+            return pieces;
+        }
+        for (Map.Entry<String, MultiPolygon> tile : cutGrid(geometry).entrySet()) {
+            cancellation.throwIfCancelled();
+            if (maxVertices == 0) {
+                pieces.add(new Piece(tile.getValue(), tile.getKey()));
+            } else {
+                split(tile.getValue(), tile.getKey() + "/0", 0, pieces);
+            }
+        }
+        return pieces;
+    }
+
+    private Map<String, MultiPolygon> cutGrid(MultiPolygon geometry) {
+        // sorted by row, then column: neighbouring pieces end up close to each other in the output
+        TreeMap<Long, TreeMap<Long, List<Polygon>>> tiles = new TreeMap<>();
+        for (int i = 0; i < geometry.getNumGeometries(); i++) {
+            Polygon polygon = (Polygon) geometry.getGeometryN(i);
+            Envelope envelope = polygon.getEnvelopeInternal();
+            long minCol = (long) Math.floor(envelope.getMinX() / gridSize);
+            long maxCol = Math.max(minCol, (long) Math.ceil(envelope.getMaxX() / gridSize) - 1);
+            long minRow = (long) Math.floor(envelope.getMinY() / gridSize);
+            long maxRow = Math.max(minRow, (long) Math.ceil(envelope.getMaxY() / gridSize) - 1);
+            if (minCol == maxCol && minRow == maxRow) {
+                tile(tiles, minRow, minCol).add(polygon);
+                continue;
+            }
+            for (long row = minRow; row <= maxRow; row++) {
+                for (long col = minCol; col <= maxCol; col++) {
+                    Envelope cell = new Envelope(col * gridSize, (col + 1) * gridSize, row * gridSize,
+                            (row + 1) * gridSize);
+                    List<Polygon> parts = new ArrayList<>();
+                    collectPolygons(clip(polygon, cell), parts);
+                    if (!parts.isEmpty()) {
+                        tile(tiles, row, col).addAll(parts);
+                    }
+                }
+            }
+        }
+        Map<String, MultiPolygon> result = new LinkedHashMap<>();
+        for (Map.Entry<Long, TreeMap<Long, List<Polygon>>> row : tiles.entrySet()) {
+            for (Map.Entry<Long, List<Polygon>> tile : row.getValue().entrySet()) {
+                result.put(tile.getKey() + "_" + row.getKey(),
+                        geometryFactory.createMultiPolygon(tile.getValue().toArray(new Polygon[0])));
+            }
+        }
+        return result;
+    }
+
+    private static List<Polygon> tile(TreeMap<Long, TreeMap<Long, List<Polygon>>> tiles, long row, long col) {
+        return tiles.computeIfAbsent(row, r -> new TreeMap<>()).computeIfAbsent(col, c -> new ArrayList<>());
+    }
+
+    private void split(MultiPolygon geometry, String tileId, int depth, List<Piece> pieces) {
+        cancellation.throwIfCancelled();
+        if (geometry.getNumPoints() <= maxVertices || depth >= MAX_DEPTH) {
+            pieces.add(new Piece(geometry, tileId));
+            return;
+        }
+        Envelope envelope = geometry.getEnvelopeInternal();
+        Envelope lower;
+        Envelope upper;
+        if (envelope.getWidth() >= envelope.getHeight()) {
+            double middle = makePrecise(envelope.getMinX() + envelope.getWidth() / 2);
+            lower = new Envelope(envelope.getMinX(), middle, envelope.getMinY(), envelope.getMaxY());
+            upper = new Envelope(middle, envelope.getMaxX(), envelope.getMinY(), envelope.getMaxY());
+        } else {
+            double middle = makePrecise(envelope.getMinY() + envelope.getHeight() / 2);
+            lower = new Envelope(envelope.getMinX(), envelope.getMaxX(), envelope.getMinY(), middle);
+            upper = new Envelope(envelope.getMinX(), envelope.getMaxX(), middle, envelope.getMaxY());
+        }
+        if (lower.getArea() == 0 || upper.getArea() == 0) {
+            pieces.add(new Piece(geometry, tileId));
+            return;
+        }
+        splitHalf(geometry, lower, tileId + "0", depth, pieces);
+        splitHalf(geometry, upper, tileId + "1", depth, pieces);
+    }
+
+    private void splitHalf(MultiPolygon geometry, Envelope half, String tileId, int depth, List<Piece> pieces) {
+        List<Polygon> parts = new ArrayList<>();
+        for (int i = 0; i < geometry.getNumGeometries(); i++) {
+            Polygon polygon = (Polygon) geometry.getGeometryN(i);
+            Envelope envelope = polygon.getEnvelopeInternal();
+            if (half.contains(envelope)) {
+                parts.add(polygon);
+            } else if (half.intersects(envelope)) {
+                collectPolygons(clip(polygon, half), parts);
+            }
+        }
+        if (!parts.isEmpty()) {
+            split(geometryFactory.createMultiPolygon(parts.toArray(new Polygon[0])), tileId, depth + 1, pieces);
+        }
+    }
+
+    private double makePrecise(double value) {
+        PrecisionModel precisionModel = geometryFactory.getPrecisionModel();
+        return precisionModel.isFloating() ? value : precisionModel.makePrecise(value);
+    }
+
+    private Geometry clip(Polygon polygon, Envelope cell) {
+        Geometry rectangle = geometryFactory.toGeometry(cell);
+        PrecisionModel precisionModel = geometryFactory.getPrecisionModel();
+        return precisionModel.isFloating()
+                ? OverlayNGRobust.overlay(polygon, rectangle, OverlayNG.INTERSECTION)
+                : OverlayNG.overlay(polygon, rectangle, OverlayNG.INTERSECTION, precisionModel);
+    }
+
+    private static void collectPolygons(Geometry geometry, List<Polygon> target) {
+        if (geometry instanceof Polygon) {
+            if (!geometry.isEmpty()) {
+                target.add((Polygon) geometry);
+            }
+        } else if (geometry instanceof GeometryCollection) {
+            for (int i = 0; i < geometry.getNumGeometries(); i++) {
+                collectPolygons(geometry.getGeometryN(i), target);
+            }
+        }
+    }
+}
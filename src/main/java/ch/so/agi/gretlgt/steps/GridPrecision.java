@@ -0,0 +1,59 @@
+package ch.so.agi.gretlgt.steps;
+
+import java.awt.geom.AffineTransform;
+
+import org.geotools.coverage.grid.GridGeometry2D;
+import org.locationtech.jts.geom.PrecisionModel;
+import org.opengis.metadata.spatial.PixelOrientation;
+import org.opengis.referencing.operation.MathTransform2D;
+
+/**
+ * Derives a fixed {@link PrecisionModel} whose grid coincides with the cell corners of a raster.
+ * <p>
+ * Vectorized cell boundaries lie on the corners of the raster grid. If the grid is axis-aligned
+ * and has square cells, the corners are multiples of {@code cellSize / m} for a small integer
+ * {@code m} (usually 1 or 2 for LV95 rasters, e.g. 5 m cells with an origin at .5). The fixed
+ * precision model with scale {@code m / cellSize} then contains all corners. Overlay operations in
+ * that precision model are robust (snap rounding), deterministic and keep all output coordinates on
+ * the grid.
+ * </p>
+ */
+final class GridPrecision {
+    private static final double TOLERANCE = 1e-6;
+    private static final int MAX_SUBDIVISION = 1000;
+
+    private GridPrecision() {
+    }
+
+    /**
+     * @param gridGeometry grid geometry of the coverage
+     * @return the precision model of the cell corners, or {@code null} if the grid is rotated, has
+     *         non-square cells or an origin that is no simple fraction of the cell size
+     */
+    static PrecisionModel of(GridGeometry2D gridGeometry) {
+        MathTransform2D gridToCrs = gridGeometry.getGridToCRS2D(PixelOrientation.UPPER_LEFT);
+        if (!(gridToCrs instanceof AffineTransform)) {
+            return null;
+        }
+        AffineTransform affine = (AffineTransform) gridToCrs;
+        if (affine.getShearX() != 0 || affine.getShearY() != 0) {
+            return null;
+        }
+        double cellSize = Math.abs(affine.getScaleX());
+        if (cellSize == 0 || Math.abs(Math.abs(affine.getScaleY()) - cellSize) > cellSize * TOLERANCE) {
+            return null;
+        }
+        for (int m = 1; m <= MAX_SUBDIVISION; m++) {
+            double spacing = cellSize / m;
+            if (isMultiple(affine.getTranslateX(), spacing) && isMultiple(affine.getTranslateY(), spacing)) {
+                return new PrecisionModel(m / cellSize);
+            }
+        }
+        return null;
+    }
+
+    private static boolean isMultiple(double value, double spacing) {
+        double steps = value / spacing;
+        return Math.abs(steps - Math.rint(steps)) < TOLERANCE;
+    }
+}
@@ -0,0 +1,183 @@
+package ch.so.agi.gretlgt.steps;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.ColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.media.jai.ImageLayout;
+import javax.media.jai.PlanarImage;
+
+import ch.so.agi.gretlgt.utils.GretlException;
+
+/**
+ * Image whose tiles are computed on demand by a {@link TileKernel} from aligned source images.
+ * <p>
+ * Tiles are never cached, so memory use does not depend on the raster size. When
+ * {@code tilesInFlight} is positive the image acts as a bounded producer/consumer pipeline: every
+ * {@link #getTile(int, int)} call schedules up to {@code tilesInFlight} following tiles (in row-major
+ * order) on a worker pool, and the consumer (typically a GeoTIFF writer that pulls tiles in the same
+ * order) picks them up as they complete. At most {@code tilesInFlight} computed tiles are held in
+ * memory at any time.
+ * </p>
+ */
+final class KernelImage extends PlanarImage {
+    private static final AtomicInteger THREAD_COUNTER = new AtomicInteger();
+
+    private final RenderedImage[] sources;
+    private final TileKernel kernel;
+    private final int tilesInFlight;
+    private final ExecutorService executor;
+    private final Map<Integer, Future<Raster>> pending = new HashMap<>();
+
+    /**
+     * Creates a kernel image.
+     *
+     * @param sources       source images; all must cover {@code bounds}. May be empty for generators.
+     * @param bounds        image bounds in pixel coordinates
+     * @param tileSize      edge length of the square tiles
+     * @param sampleModel   sample model describing data type and band count of the result
+     * @param kernel        the per-tile computation
+     * @param tilesInFlight number of tiles computed ahead of the consumer; {@code 0} disables prefetching
+     */
+    KernelImage(RenderedImage[] sources, Rectangle bounds, int tileSize, SampleModel sampleModel,
+            TileKernel kernel, int tilesInFlight) {
+        this(sources, bounds, tileSize, sampleModel, null, kernel, tilesInFlight);
+    }
+
+    /**
+     * Creates a kernel image with an explicit colour model, e.g. a palette.
+     *
+     * @param sources       source images; all must cover {@code bounds}. May be empty for generators.
+     * @param bounds        image bounds in pixel coordinates
+     * @param tileSize      edge length of the square tiles
+     * @param sampleModel   sample model describing data type and band count of the result
+     * @param colorModel    colour model compatible with {@code sampleModel}; {@code null} for the default
+     * @param kernel        the per-tile computation
+     * @param tilesInFlight number of tiles computed ahead of the consumer; {@code 0} disables prefetching
+     */
+    KernelImage(RenderedImage[] sources, Rectangle bounds, int tileSize, SampleModel sampleModel,
+            ColorModel colorModel, TileKernel kernel, int tilesInFlight) {
+        super(layout(bounds, tileSize, sampleModel, colorModel), null, null);
+        this.sources = sources.clone();
+        this.kernel = kernel;
+        this.tilesInFlight = Math.max(0, tilesInFlight);
+        if (this.tilesInFlight > 0) {
+            int threads = Math.max(1, Math.min(this.tilesInFlight, Runtime.getRuntime().availableProcessors()));
+            this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+                Thread thread = new Thread(runnable, "gretlgt-tile-" + THREAD_COUNTER.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        } else {
+            this.executor = null;
+        }
+    }
+
+    private static ImageLayout layout(Rectangle bounds, int tileSize, SampleModel sampleModel,
+            ColorModel explicitColorModel) {
+        SampleModel tileSampleModel = sampleModel.createCompatibleSampleModel(tileSize, tileSize);
+        ColorModel colorModel = explicitColorModel != null
+                ? explicitColorModel
+                : PlanarImage.createColorModel(tileSampleModel);
+        ImageLayout layout = new ImageLayout(bounds.x, bounds.y, bounds.width, bounds.height);
+        layout.setTileGridXOffset(bounds.x);
+        layout.setTileGridYOffset(bounds.y);
+        layout.setTileWidth(tileSize);
+        layout.setTileHeight(tileSize);
+        layout.setSampleModel(tileSampleModel);
+        if (colorModel != null) {
+            layout.setColorModel(colorModel);
+        }
+        return layout;
+    }
+
+    @Override
+    public Raster getTile(int tileX, int tileY) {
+        if (tileX < getMinTileX() || tileX > getMaxTileX() || tileY < getMinTileY() || tileY > getMaxTileY()) {
+            return null;
+        }
+        if (executor == null) {
+            return computeTile(tileX, tileY);
+        }
+
+        int index = (tileY - getMinTileY()) * getNumXTiles() + (tileX - getMinTileX());
+        Future<Raster> future;
+        synchronized (pending) {
+            future = pending.remove(index);
+            // tiles the consumer skipped will never be picked up
+            Iterator<Map.Entry<Integer, Future<Raster>>> it = pending.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Integer, Future<Raster>> entry = it.next();
+                if (entry.getKey() < index) {
+                    entry.getValue().cancel(false);
+                    it.remove();
+                }
+            }
+            int lastIndex = getNumXTiles() * getNumYTiles() - 1;
+            for (int next = index + 1; next <= lastIndex && next <= index + tilesInFlight
+                    && pending.size() < tilesInFlight; next++) {
+                if (!pending.containsKey(next)) {
+                    final int tx = getMinTileX() + next % getNumXTiles();
+                    final int ty = getMinTileY() + next / getNumXTiles();
+                    pending.put(next, executor.submit(() -> computeTile(tx, ty)));
+                }
+            }
+        }
+        if (future == null) {
+            return computeTile(tileX, tileY);
+        }
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GretlException("Interrupted while waiting for tile " + tileX + "/" + tileY, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new GretlException("Failed to compute tile " + tileX + "/" + tileY, cause);
+        }
+    }
+
+    private Raster computeTile(int tileX, int tileY) {
+        Point origin = new Point(tileXToX(tileX), tileYToY(tileY));
+        WritableRaster target = Raster.createWritableRaster(getSampleModel(), origin);
+        Rectangle region = new Rectangle(origin.x, origin.y, getTileWidth(), getTileHeight()).intersection(getBounds());
+        Raster[] inputs = new Raster[sources.length];
+        for (int i = 0; i < sources.length; i++) {
+            inputs[i] = sources[i].getData(region);
+        }
+        kernel.compute(inputs, target, region);
+        return target;
+    }
+
+    /**
+     * Stops the prefetching workers and discards pending tiles.
+     */
+    @Override
+    public void dispose() {
+        if (executor != null) {
+            synchronized (pending) {
+                for (Future<Raster> future : pending.values()) {
+                    future.cancel(true);
+                }
+                pending.clear();
+            }
+            executor.shutdownNow();
+        }
+        super.dispose();
+    }
+}
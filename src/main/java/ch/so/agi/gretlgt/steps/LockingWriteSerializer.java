@@ -0,0 +1,54 @@
+package ch.so.agi.gretlgt.steps;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * {@link WriteSerializer} based on a JVM-wide lock per file and an OS file lock on a lock file.
+ * <p>
+ * Lock files are kept in {@code gretlgt-locks} of the temporary directory, named after a digest of
+ * the absolute target path, so that no stray files appear next to published outputs. A lock file
+ * is left in place: deleting it while another process waits for the lock would let a third process
+ * lock a new file with the same name.
+ * </p>
+ */
+final class LockingWriteSerializer implements WriteSerializer {
+    private final ConcurrentHashMap<Path, ReentrantLock> locks = new ConcurrentHashMap<>();
+
+    @Override
+    public void write(Path target, WriteAction action) throws IOException {
+        Path normalized = target.toAbsolutePath().normalize();
+        ReentrantLock lock = locks.computeIfAbsent(normalized, key -> new ReentrantLock());
+        lock.lock();
+        try {
+            Path parent = normalized.getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            Path lockFile = lockFile(normalized);
+            Files.createDirectories(lockFile.getParent());
+            try (FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                    FileLock fileLock = channel.lock()) {
+                action.run();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param target absolute, normalized target path
+     * @return the lock file guarding writes to {@code target}
+     */
+    static Path lockFile(Path target) {
+        return Path.of(System.getProperty("java.io.tmpdir"), "gretlgt-locks",
+                CoverageSource.digest(List.of(target)) + ".lock");
+    }
+}
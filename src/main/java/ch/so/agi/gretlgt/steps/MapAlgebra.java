@@ -0,0 +1,551 @@
+package ch.so.agi.gretlgt.steps;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Map-algebra expression compiled to a register program that is evaluated over whole tiles.
+ * <p>
+ * The expression is parsed once, constant sub-expressions are folded and the remaining operations
+ * are flattened into a list of instructions. Every instruction runs one tight loop over the primitive
+ * {@code double[]} registers of a tile, so there is no per-pixel interpretation overhead. Inputs are
+ * the first registers, constants are materialised once per register set. Temporary registers are
+ * reused after their last read, so the number of registers grows with the nesting depth of the
+ * expression, not with the number of operations.
+ * </p>
+ * <p>
+ * Syntax: numbers, input names, {@code + - * / %}, comparisons {@code < <= > >= == !=},
+ * {@code && || !}, the conditional {@code c ? a : b}, parentheses and the functions {@code abs},
+ * {@code sqrt}, {@code floor}, {@code ceil}, {@code round}, {@code log}, {@code exp}, {@code min},
+ * {@code max} and {@code pow}. Comparisons and logical operators yield {@code 1} or {@code 0}, any
+ * non-zero value is true.
+ * </p>
+ */
+final class MapAlgebra {
+    private static final int ADD = 0;
+    private static final int SUB = 1;
+    private static final int MUL = 2;
+    private static final int DIV = 3;
+    private static final int MOD = 4;
+    private static final int POW = 5;
+    private static final int MIN = 6;
+    private static final int MAX = 7;
+    private static final int LT = 8;
+    private static final int LE = 9;
+    private static final int GT = 10;
+    private static final int GE = 11;
+    private static final int EQ = 12;
+    private static final int NE = 13;
+    private static final int AND = 14;
+    private static final int OR = 15;
+    private static final int NEG = 16;
+    private static final int NOT = 17;
+    private static final int ABS = 18;
+    private static final int SQRT = 19;
+    private static final int FLOOR = 20;
+    private static final int CEIL = 21;
+    private static final int ROUND = 22;
+    private static final int LOG = 23;
+    private static final int EXP = 24;
+    private static final int SELECT = 25;
+
+    private static final Map<String, Integer> UNARY_FUNCTIONS = Map.of("abs", ABS, "sqrt", SQRT, "floor", FLOOR,
+            "ceil", CEIL, "round", ROUND, "log", LOG, "exp", EXP);
+    private static final Map<String, Integer> BINARY_FUNCTIONS = Map.of("min", MIN, "max", MAX, "pow", POW);
+
+    private final String expression;
+    private final int variableCount;
+    private final int[] usedVariables;
+    private final double[] constants;
+    private final int registerCount;
+    private final int[] code;
+    private final int result;
+
+    private MapAlgebra(String expression, int variableCount, int[] usedVariables, double[] constants,
+            int registerCount, int[] code, int result) {
+        this.expression = expression;
+        this.variableCount = variableCount;
+        this.usedVariables = usedVariables;
+        this.constants = constants;
+        this.registerCount = registerCount;
+        this.code = code;
+        this.result = result;
+    }
+
+    /**
+     * Compiles an expression.
+     *
+     * @param expression the expression, e.g. {@code "a > 60 && b < 3 ? 1 : 0"}
+     * @param variables  input names; input {@code i} is bound to register {@code i}
+     * @return the compiled expression
+     * @throws IllegalArgumentException if the expression is invalid or uses an unknown name
+     */
+    static MapAlgebra compile(String expression, List<String> variables) {
+        Node root = new Parser(expression, variables).parse();
+        Compiler compiler = new Compiler(variables.size());
+        int result = compiler.emit(root);
+        return new MapAlgebra(expression, variables.size(), compiler.usedVariables(), compiler.constants(),
+                compiler.registerCount, compiler.code.stream().mapToInt(Integer::intValue).toArray(), result);
+    }
+
+    /**
+     * @return indices of the inputs the expression refers to, ascending
+     */
+    int[] getUsedVariables() {
+        return usedVariables.clone();
+    }
+
+    /**
+     * Allocates the registers for tiles of up to {@code capacity} pixels. The first registers
+     * receive the inputs, constant registers are already filled. A register set must not be used
+     * by two threads at the same time.
+     *
+     * @param capacity maximum number of pixels per evaluation
+     * @return the registers
+     */
+    double[][] newRegisters(int capacity) {
+        double[][] registers = new double[registerCount][];
+        for (int i = 0; i < registerCount; i++) {
+            registers[i] = new double[capacity];
+        }
+        for (int i = 0; i < constants.length; i++) {
+            Arrays.fill(registers[variableCount + i], constants[i]);
+        }
+        return registers;
+    }
+
+    /**
+     * Evaluates the expression for the first {@code n} pixels of the input registers.
+     *
+     * @param registers registers from {@link #newRegisters(int)} with the inputs filled in
+     * @param n         number of pixels
+     * @return the register holding the result; it may be an input or constant register
+     */
+    double[] evaluate(double[][] registers, int n) {
+        for (int pc = 0; pc < code.length; pc += 5) {
+            int op = code[pc];
+            double[] d = registers[code[pc + 1]];
+            double[] a = registers[code[pc + 2]];
+            double[] b = code[pc + 3] >= 0 ? registers[code[pc + 3]] : null;
+            double[] c = code[pc + 4] >= 0 ? registers[code[pc + 4]] : null;
+            switch (op) {
+                case ADD: for (int i = 0; i < n; i++) d[i] = a[i] + b[i]; break;
+                case SUB: for (int i = 0; i < n; i++) d[i] = a[i] - b[i]; break;
+                case MUL: for (int i = 0; i < n; i++) d[i] = a[i] * b[i]; break;
+                case DIV: for (int i = 0; i < n; i++) d[i] = a[i] / b[i]; break;
+                case MOD: for (int i = 0; i < n; i++) d[i] = a[i] % b[i]; break;
+                case POW: for (int i = 0; i < n; i++) d[i] = Math.pow(a[i], b[i]); break;
+                case MIN: for (int i = 0; i < n; i++) d[i] = Math.min(a[i], b[i]); break;
+                case MAX: for (int i = 0; i < n; i++) d[i] = Math.max(a[i], b[i]); break;
+                case LT: for (int i = 0; i < n; i++) d[i] = a[i] < b[i] ? 1 : 0; break;
+                case LE: for (int i = 0; i < n; i++) d[i] = a[i] <= b[i] ? 1 : 0; break;
+                case GT: for (int i = 0; i < n; i++) d[i] = a[i] > b[i] ? 1 : 0; break;
+                case GE: for (int i = 0; i < n; i++) d[i] = a[i] >= b[i] ? 1 : 0; break;
+                case EQ: for (int i = 0; i < n; i++) d[i] = a[i] == b[i] ? 1 : 0; break;
+                case NE: for (int i = 0; i < n; i++) d[i] = a[i] != b[i] ? 1 : 0; break;
+                case AND: for (int i = 0; i < n; i++) d[i] = a[i] != 0 && b[i] != 0 ? 1 : 0; break;
+                case OR: for (int i = 0; i < n; i++) d[i] = a[i] != 0 || b[i] != 0 ? 1 : 0; break;
+                case NEG: for (int i = 0; i < n; i++) d[i] = -a[i]; break;
+                case NOT: for (int i = 0; i < n; i++) d[i] = a[i] == 0 ? 1 : 0; break;
+                case ABS: for (int i = 0; i < n; i++) d[i] = Math.abs(a[i]); break;
+                case SQRT: for (int i = 0; i < n; i++) d[i] = Math.sqrt(a[i]); break;
+                case FLOOR: for (int i = 0; i < n; i++) d[i] = Math.floor(a[i]); break;
+                case CEIL: for (int i = 0; i < n; i++) d[i] = Math.ceil(a[i]); break;
+                case ROUND: for (int i = 0; i < n; i++) d[i] = Math.floor(a[i] + 0.5); break;
+                case LOG: for (int i = 0; i < n; i++) d[i] = Math.log(a[i]); break;
+                case EXP: for (int i = 0; i < n; i++) d[i] = Math.exp(a[i]); break;
+                case SELECT: for (int i = 0; i < n; i++) d[i] = a[i] != 0 ? b[i] : c[i]; break;
+                default: throw new IllegalStateException("Unknown opcode " + op);
+            }
+        }
+        return registers[result];
+    }
+
+    @Override
+    public String toString() {
+        return expression;
+    }
+
+    /**
+     * Scalar semantics of the opcodes, used for constant folding. Must match {@link #evaluate}.
+     */
+    private static double apply(int op, double a, double b, double c) {
+        switch (op) {
+            case ADD: return a + b;
+            case SUB: return a - b;
+            case MUL: return a * b;
+            case DIV: return a / b;
+            case MOD: return a % b;
+            case POW: return Math.pow(a, b);
+            case MIN: return Math.min(a, b);
+            case MAX: return Math.max(a, b);
+            case LT: return a < b ? 1 : 0;
+            case LE: return a <= b ? 1 : 0;
+            case GT: return a > b ? 1 : 0;
+            case GE: return a >= b ? 1 : 0;
+            case EQ: return a == b ? 1 : 0;
+            case NE: return a != b ? 1 : 0;
+            case AND: return a != 0 && b != 0 ? 1 : 0;
+            case OR: return a != 0 || b != 0 ? 1 : 0;
+            case NEG: return -a;
+            case NOT: return a == 0 ? 1 : 0;
+            case ABS: return Math.abs(a);
+            case SQRT: return Math.sqrt(a);
+            case FLOOR: return Math.floor(a);
+            case CEIL: return Math.ceil(a);
+            case ROUND: return Math.floor(a + 0.5);
+            case LOG: return Math.log(a);
+            case EXP: return Math.exp(a);
+            case SELECT: return a != 0 ? b : c;
+            default: throw new IllegalStateException("Unknown opcode " + op);
+        }
+    }
+
+    // --- syntax tree ---
+
+    private abstract static class Node {
+    }
+
+    private static final class Constant extends Node {
+        private final double value;
+
+        private Constant(double value) {
+            this.value = value;
+        }
+    }
+
+    private static final class Variable extends Node {
+        private final int index;
+
+        private Variable(int index) {
+            this.index = index;
+        }
+    }
+
+    private static final class Operation extends Node {
+        private final int op;
+        private final Node[] operands;
+
+        private Operation(int op, Node... operands) {
+            this.op = op;
+            this.operands = operands;
+        }
+    }
+
+    private static Node operation(int op, Node... operands) {
+        double[] values = new double[3];
+        for (int i = 0; i < operands.length; i++) {
+            if (!(operands[i] instanceof Constant)) {
+                return new Operation(op, operands);
+            }
+            values[i] = ((Constant) operands[i]).value;
+        }
+        return new Constant(apply(op, values[0], values[1], values[2]));
+    }
+
+    // --- parser ---
+
+    private static final class Parser {
+        private final String text;
+        private final List<String> variables;
+        private int pos;
+
+        private Parser(String text, List<String> variables) {
+            if (text == null || text.isBlank()) {
+                throw new IllegalArgumentException("Expression must not be empty");
+            }
+            this.text = text;
+            this.variables = variables;
+        }
+
+        Node parse() {
+            Node node = conditional();
+            skipWhitespace();
+            if (pos < text.length()) {
+                throw error("Unexpected '" + text.charAt(pos) + "'");
+            }
+            return node;
+        }
+
+        private Node conditional() {
+            Node condition = or();
+            if (accept("?")) {
+                Node whenTrue = conditional();
+                expect(":");
+                Node whenFalse = conditional();
+                return operation(SELECT, condition, whenTrue, whenFalse);
+            }
+            return condition;
+        }
+
+        private Node or() {
+            Node node = and();
+            while (accept("||")) {
+                node = operation(OR, node, and());
+            }
+            return node;
+        }
+
+        private Node and() {
+            Node node = equality();
+            while (accept("&&")) {
+                node = operation(AND, node, equality());
+            }
+            return node;
+        }
+
+        private Node equality() {
+            Node node = relational();
+            while (true) {
+                if (accept("==")) {
+                    node = operation(EQ, node, relational());
+                } else if (accept("!=")) {
+                    node = operation(NE, node, relational());
+                } else {
+                    return node;
+                }
+            }
+        }
+
+        private Node relational() {
+            Node node = additive();
+            while (true) {
+                if (accept("<=")) {
+                    node = operation(LE, node, additive());
+                } else if (accept(">=")) {
+                    node = operation(GE, node, additive());
+                } else if (accept("<")) {
+                    node = operation(LT, node, additive());
+                } else if (accept(">")) {
+                    node = operation(GT, node, additive());
+                } else {
+                    return node;
+                }
+            }
+        }
+
+        private Node additive() {
+            Node node = multiplicative();
+            while (true) {
+                if (accept("+")) {
+                    node = operation(ADD, node, multiplicative());
+                } else if (accept("-")) {
+                    node = operation(SUB, node, multiplicative());
+                } else {
+                    return node;
+                }
+            }
+        }
+
+        private Node multiplicative() {
+            Node node = unary();
+            while (true) {
+                if (accept("*")) {
+                    node = operation(MUL, node, unary());
+                } else if (accept("/")) {
+                    node = operation(DIV, node, unary());
+                } else if (accept("%")) {
+                    node = operation(MOD, node, unary());
+                } else {
+                    return node;
+                }
+            }
+        }
+
+        private Node unary() {
+            if (accept("-")) {
+                return operation(NEG, unary());
+            }
+            if (accept("+")) {
+                return unary();
+            }
+            if (!peek("!=") && accept("!")) {
+                return operation(NOT, unary());
+            }
+            return primary();
+        }
+
+        private Node primary() {
+            skipWhitespace();
+            if (accept("(")) {
+                Node node = conditional();
+                expect(")");
+                return node;
+            }
+            if (pos < text.length() && (Character.isDigit(text.charAt(pos)) || text.charAt(pos) == '.')) {
+                return number();
+            }
+            if (pos < text.length() && (Character.isLetter(text.charAt(pos)) || text.charAt(pos) == '_')) {
+                int start = pos;
+                String name = identifier();
+                if (accept("(")) {
+                    return call(name, start);
+                }
+                int index = variables.indexOf(name);
+                if (index < 0) {
+                    pos = start;
+                    throw error("Unknown input '" + name + "', expected one of " + variables);
+                }
+                return new Variable(index);
+            }
+            throw error(pos < text.length() ? "Unexpected '" + text.charAt(pos) + "'" : "Unexpected end");
+        }
+
+        private Node call(String name, int start) {
+            List<Node> arguments = new ArrayList<>();
+            if (!accept(")")) {
+                do {
+                    arguments.add(conditional());
+                } while (accept(","));
+                expect(")");
+            }
+            String function = name.toLowerCase(Locale.ROOT);
+            if (UNARY_FUNCTIONS.containsKey(function) && arguments.size() == 1) {
+                return operation(UNARY_FUNCTIONS.get(function), arguments.get(0));
+            }
+            if (BINARY_FUNCTIONS.containsKey(function) && arguments.size() == 2) {
+                return operation(BINARY_FUNCTIONS.get(function), arguments.get(0), arguments.get(1));
+            }
+            pos = start;
+            if (UNARY_FUNCTIONS.containsKey(function) || BINARY_FUNCTIONS.containsKey(function)) {
+                throw error("Wrong number of arguments for " + name);
+            }
+            throw error("Unknown function '" + name + "'");
+        }
+
+        private Node number() {
+            int start = pos;
+            while (pos < text.length() && (Character.isDigit(text.charAt(pos)) || text.charAt(pos) == '.')) {
+                pos++;
+            }
+            if (pos < text.length() && (text.charAt(pos) == 'e' || text.charAt(pos) == 'E')) {
+                pos++;
+                if (pos < text.length() && (text.charAt(pos) == '+' || text.charAt(pos) == '-')) {
+                    pos++;
+                }
+                while (pos < text.length() && Character.isDigit(text.charAt(pos))) {
+                    pos++;
+                }
+            }
+            try {
+                return new Constant(Double.parseDouble(text.substring(start, pos)));
+            } catch (NumberFormatException e) {
+                pos = start;
+                throw error("Invalid number");
+            }
+        }
+
+        private String identifier() {
+            int start = pos;
+            while (pos < text.length() && (Character.isLetterOrDigit(text.charAt(pos)) || text.charAt(pos) == '_')) {
+                pos++;
+            }
+            return text.substring(start, pos);
+        }
+
+        private boolean peek(String token) {
+            skipWhitespace();
+            return text.startsWith(token, pos);
+        }
+
+        private boolean accept(String token) {
+            if (peek(token)) {
+                pos += token.length();
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(String token) {
+            if (!accept(token)) {
+                throw error("Expected '" + token + "'");
+            }
+        }
+
+        private void skipWhitespace() {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+                pos++;
+            }
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " at position " + (pos + 1) + " of expression: " + text);
+        }
+    }
+
+    // --- code generation ---
+
+    private static final class Compiler {
+        private final int variableCount;
+        private final Map<Double, Integer> constantRegisters = new LinkedHashMap<>();
+        private final TreeSet<Integer> used = new TreeSet<>();
+        private final List<Integer> code = new ArrayList<>();
+        private final TreeSet<Integer> free = new TreeSet<>();
+        private int firstTemporary;
+        private int registerCount;
+
+        private Compiler(int variableCount) {
+            this.variableCount = variableCount;
+        }
+
+        int emit(Node node) {
+            collectConstants(node);
+            firstTemporary = variableCount + constantRegisters.size();
+            registerCount = firstTemporary;
+            return generate(node);
+        }
+
+        private void collectConstants(Node node) {
+            if (node instanceof Constant) {
+                constantRegisters.putIfAbsent(((Constant) node).value + 0.0, variableCount + constantRegisters.size());
+            } else if (node instanceof Operation) {
+                for (Node operand : ((Operation) node).operands) {
+                    collectConstants(operand);
+                }
+            }
+        }
+
+        private int generate(Node node) {
+            if (node instanceof Constant) {
+                return constantRegisters.get(((Constant) node).value + 0.0);
+            }
+            if (node instanceof Variable) {
+                int index = ((Variable) node).index;
+                used.add(index);
+                return index;
+            }
+            Operation operation = (Operation) node;
+            int[] operands = {-1, -1, -1};
+            for (int i = 0; i < operation.operands.length; i++) {
+                operands[i] = generate(operation.operands[i]);
+            }
+            // every temporary is read by exactly one instruction, so its register is free once the operands
+            // are computed and may even hold the result, which is written after reading the same pixel
+            for (int operand : operands) {
+                if (operand >= firstTemporary) {
+                    free.add(operand);
+                }
+            }
+            int target = free.isEmpty() ? registerCount++ : free.pollFirst();
+            code.add(operation.op);
+            code.add(target);
+            code.add(operands[0]);
+            code.add(operands[1]);
+            code.add(operands[2]);
+            return target;
+        }
+
+        int[] usedVariables() {
+            return used.stream().mapToInt(Integer::intValue).toArray();
+        }
+
+        double[] constants() {
+            return constantRegisters.keySet().stream().mapToDouble(Double::doubleValue).toArray();
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package ch.so.agi.gretlgt.steps;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferDouble;
+import java.awt.image.DataBufferFloat;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferShort;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.media.jai.ImageLayout;
+import javax.media.jai.PlanarImage;
+
+/**
+ * Image whose tiles are stored in a memory-mapped scratch file instead of on-heap arrays.
+ * <p>
+ * The file is mapped in chunks of whole tiles (at most 1 GiB each), so the pixel data is paged by the
+ * operating system and does not count against the Java heap. {@link #getTile(int, int)} copies a tile
+ * into a regular on-heap raster, which keeps the image compatible with every JAI operation; a small
+ * LRU of recently used tiles (about one tile row) avoids repeated copies for scanline consumers.
+ * </p>
+ */
+final class MappedImage extends PlanarImage {
+    private static final long MAX_CHUNK_BYTES = 1L << 30;
+    private static final long TILE_CACHE_BYTES = 64L << 20;
+
+    private final Path file;
+    private final MappedByteBuffer[] chunks;
+    private final int tilesPerChunk;
+    private final int tileBytes;
+    private final int dataType;
+    private final Map<Integer, Raster> recent;
+
+    MappedImage(Path file, Rectangle bounds, int tileSize, SampleModel sampleModel) throws IOException {
+        super(layout(bounds, tileSize, sampleModel), null, null);
+        this.file = file;
+        this.dataType = getSampleModel().getDataType();
+        DataBuffer prototype = getSampleModel().createDataBuffer();
+        this.tileBytes = prototype.getSize() * (DataBuffer.getDataTypeSize(dataType) / 8);
+
+        int numTiles = getNumXTiles() * getNumYTiles();
+        this.tilesPerChunk = (int) Math.max(1, Math.min(numTiles, MAX_CHUNK_BYTES / tileBytes));
+        int numChunks = (numTiles + tilesPerChunk - 1) / tilesPerChunk;
+        this.chunks = new MappedByteBuffer[numChunks];
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw");
+                FileChannel channel = raf.getChannel()) {
+            raf.setLength((long) numTiles * tileBytes);
+            for (int i = 0; i < numChunks; i++) {
+                long offset = (long) i * tilesPerChunk * tileBytes;
+                long length = (long) Math.min(tilesPerChunk, numTiles - i * tilesPerChunk) * tileBytes;
+                chunks[i] = channel.map(FileChannel.MapMode.READ_WRITE, offset, length);
+            }
+        }
+
+        int cacheTiles = (int) Math.max(2, Math.min(getNumXTiles() + 1L, TILE_CACHE_BYTES / tileBytes));
+        this.recent = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Raster> eldest) {
+                return size() > cacheTiles;
+            }
+        };
+    }
+
+    private static ImageLayout layout(Rectangle bounds, int tileSize, SampleModel sampleModel) {
+        SampleModel tileSampleModel = sampleModel.createCompatibleSampleModel(tileSize, tileSize);
+        ColorModel colorModel = PlanarImage.createColorModel(tileSampleModel);
+        ImageLayout layout = new ImageLayout(bounds.x, bounds.y, bounds.width, bounds.height);
+        layout.setTileGridXOffset(bounds.x);
+        layout.setTileGridYOffset(bounds.y);
+        layout.setTileWidth(tileSize);
+        layout.setTileHeight(tileSize);
+        layout.setSampleModel(tileSampleModel);
+        if (colorModel != null) {
+            layout.setColorModel(colorModel);
+        }
+        return layout;
+    }
+
+    /**
+     * @return the scratch file backing this image
+     */
+    Path getFile() {
+        return file;
+    }
+
+    /**
+     * @return number of bytes mapped for this image
+     */
+    long getMappedBytes() {
+        return (long) getNumXTiles() * getNumYTiles() * tileBytes;
+    }
+
+    /**
+     * Stores the pixels of {@code data} that fall into the given tile.
+     */
+    void putTile(int tileX, int tileY, Raster data) {
+        WritableRaster tile = Raster.createWritableRaster(getSampleModel(),
+                new Point(tileXToX(tileX), tileYToY(tileY)));
+        tile.setRect(data);
+        ByteBuffer slice = slice(tileX, tileY);
+        DataBuffer buffer = tile.getDataBuffer();
+        switch (dataType) {
+        case DataBuffer.TYPE_BYTE:
+            slice.put(((DataBufferByte) buffer).getData());
+            break;
+        case DataBuffer.TYPE_USHORT:
+            slice.asShortBuffer().put(((DataBufferUShort) buffer).getData());
+            break;
+        case DataBuffer.TYPE_SHORT:
+            slice.asShortBuffer().put(((DataBufferShort) buffer).getData());
+            break;
+        case DataBuffer.TYPE_INT:
+            slice.asIntBuffer().put(((DataBufferInt) buffer).getData());
+            break;
+        case DataBuffer.TYPE_FLOAT:
+            slice.asFloatBuffer().put(((DataBufferFloat) buffer).getData());
+            break;
+        case DataBuffer.TYPE_DOUBLE:
+            slice.asDoubleBuffer().put(((DataBufferDouble) buffer).getData());
+            break;
+        default:
+            throw new IllegalStateException("Unsupported data type " + dataType);
+        }
+        synchronized (recent) {
+            recent.remove(tileIndex(tileX, tileY));
+        }
+    }
+
+    @Override
+    public Raster getTile(int tileX, int tileY) {
+        if (tileX < getMinTileX() || tileX > getMaxTileX() || tileY < getMinTileY() || tileY > getMaxTileY()) {
+            return null;
+        }
+        int index = tileIndex(tileX, tileY);
+        synchronized (recent) {
+            Raster cached = recent.get(index);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        WritableRaster tile = Raster.createWritableRaster(getSampleModel(),
+                new Point(tileXToX(tileX), tileYToY(tileY)));
+        ByteBuffer slice = slice(tileX, tileY);
+        DataBuffer buffer = tile.getDataBuffer();
+        switch (dataType) {
+        case DataBuffer.TYPE_BYTE:
+            slice.get(((DataBufferByte) buffer).getData());
+            break;
+        case DataBuffer.TYPE_USHORT:
+            slice.asShortBuffer().get(((DataBufferUShort) buffer).getData());
+            break;
+        case DataBuffer.TYPE_SHORT:
+            slice.asShortBuffer().get(((DataBufferShort) buffer).getData());
+            break;
+        case DataBuffer.TYPE_INT:
+            slice.asIntBuffer().get(((DataBufferInt) buffer).getData());
+            break;
+        case DataBuffer.TYPE_FLOAT:
+            slice.asFloatBuffer().get(((DataBufferFloat) buffer).getData());
+            break;
+        case DataBuffer.TYPE_DOUBLE:
+            slice.asDoubleBuffer().get(((DataBufferDouble) buffer).getData());
+            break;
+        default:
+            throw new IllegalStateException("Unsupported data type " + dataType);
+        }
+        synchronized (recent) {
+            recent.put(index, tile);
+        }
+        return tile;
+    }
+
+    private int tileIndex(int tileX, int tileY) {
+        return (tileY - getMinTileY()) * getNumXTiles() + (tileX - getMinTileX());
+    }
+
+    private ByteBuffer slice(int tileX, int tileY) {
+        int index = tileIndex(tileX, tileY);
+        ByteBuffer chunk = chunks[index / tilesPerChunk].duplicate();
+        int offset = (index % tilesPerChunk) * tileBytes;
+        chunk.position(offset);
+        chunk.limit(offset + tileBytes);
+        return chunk.slice().order(ByteOrder.nativeOrder());
+    }
+
+    @Override
+    public void dispose() {
+        synchronized (recent) {
+            recent.clear();
+        }
+        super.dispose();
+    }
+}
@@ -0,0 +1,126 @@
+package ch.so.agi.gretlgt.steps;
+
+import java.awt.Rectangle;
+import java.awt.image.DataBuffer;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+
+import javax.media.jai.RasterFactory;
+
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridCoverageFactory;
+
+import ch.so.agi.gretlgt.logging.GretlLogger;
+import ch.so.agi.gretlgt.logging.LogEnvironment;
+
+/**
+ * Off-heap storage for intermediate coverages.
+ * <p>
+ * {@link #materialize(GridCoverage2D)} computes the source coverage tile by tile and stores the
+ * pixels in a memory-mapped scratch file. The returned coverage is a regular {@link GridCoverage2D}
+ * whose image reads its tiles back from that file, so multi-gigabyte intermediates can be consumed
+ * several times (e.g. once per vectorised class value) without being recomputed or held on the heap.
+ * Scratch files are deleted on {@link #close()}.
+ * </p>
+ */
+public final class MappedRasterStorage implements Closeable {
+    private final GretlLogger log;
+    private final Path directory;
+    private final List<MappedImage> images = new ArrayList<>();
+
+    /**
+     * Creates a storage that places its scratch files in {@code directory}.
+     *
+     * @param directory directory for the scratch files; created if missing
+     */
+    public MappedRasterStorage(Path directory) {
+        this.directory = Objects.requireNonNull(directory, "directory");
+        this.log = LogEnvironment.getLogger(MappedRasterStorage.class);
+    }
+
+    /**
+     * Copies the coverage into a memory-mapped scratch file.
+     *
+     * @param coverage the coverage to materialise; its image is pulled one tile at a time
+     * @return a coverage with the same grid geometry, sample dimensions and properties backed by the scratch file
+     * @throws IOException if the scratch file cannot be created or mapped
+     */
+    public GridCoverage2D materialize(GridCoverage2D coverage) throws IOException {
+        Objects.requireNonNull(coverage, "coverage");
+        RenderedImage source = coverage.getRenderedImage();
+        int dataType = source.getSampleModel().getDataType();
+        if (dataType == DataBuffer.TYPE_UNDEFINED) {
+            throw new IllegalArgumentException("Unsupported raster data type " + dataType);
+        }
+        Rectangle bounds = new Rectangle(source.getMinX(), source.getMinY(), source.getWidth(), source.getHeight());
+        SampleModel sampleModel = RasterFactory.createPixelInterleavedSampleModel(dataType,
+                GeoTiffOutput.TILE_SIZE, GeoTiffOutput.TILE_SIZE, source.getSampleModel().getNumBands());
+
+        Files.createDirectories(directory);
+        Path file = Files.createTempFile(directory, "gretlgt-", ".tiles");
+        MappedImage image;
+        try {
+            image = new MappedImage(file, bounds, GeoTiffOutput.TILE_SIZE, sampleModel);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(file);
+            throw e;
+        }
+        images.add(image);
+
+        for (int ty = image.getMinTileY(); ty <= image.getMaxTileY(); ty++) {
+            for (int tx = image.getMinTileX(); tx <= image.getMaxTileX(); tx++) {
+                Rectangle region = image.getTileRect(tx, ty);
+                image.putTile(tx, ty, source.getData(region));
+            }
+        }
+        log.info(String.format(Locale.ROOT, "Materialised %dx%d raster (%d MB) in %s",
+                bounds.width, bounds.height, image.getMappedBytes() >> 20, file));
+
+        GridCoverageFactory factory = new GridCoverageFactory();
+        return factory.create(
+                coverage.getName(),
+                image,
+                coverage.getGridGeometry(),
+                coverage.getSampleDimensions(),
+                null,
+                coverage.getProperties()
+        );
+    }
+
+    /**
+     * @return the total number of bytes currently mapped by this storage
+     */
+    public long getMappedBytes() {
+        long total = 0;
+        for (MappedImage image : images) {
+            total += image.getMappedBytes();
+        }
+        return total;
+    }
+
+    /**
+     * Releases the mapped images and deletes their scratch files. Files that cannot be deleted while
+     * still mapped (e.g. on Windows) are removed when the JVM exits.
+     */
+    @Override
+    public void close() {
+        for (MappedImage image : images) {
+            image.dispose();
+            try {
+                Files.deleteIfExists(image.getFile());
+            } catch (IOException e) {
+                log.debug("Unable to delete scratch file " + image.getFile() + ": " + e.getMessage());
+                image.getFile().toFile().deleteOnExit();
+            }
+        }
+        images.clear();
+    }
+}
@@ -0,0 +1,39 @@
+package ch.so.agi.gretlgt.steps;
+
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+
+/**
+ * {@link TileKernel} that sets all bands of cells outside a {@link GeometryMask} to no-data after
+ * the wrapped kernel has run.
+ */
+final class MaskedKernel implements TileKernel {
+    private final TileKernel delegate;
+    private final GeometryMask mask;
+    private final double noData;
+
+    MaskedKernel(TileKernel delegate, GeometryMask mask, double noData) {
+        this.delegate = delegate;
+        this.mask = mask;
+        this.noData = noData;
+    }
+
+    @Override
+    public void compute(Raster[] sources, WritableRaster target, Rectangle region) {
+        delegate.compute(sources, target, region);
+        double[][] edges = mask.edgesForRows(region.y, region.y + region.height);
+        boolean[] inside = new boolean[region.width];
+        int bands = target.getNumBands();
+        for (int y = region.y; y < region.y + region.height; y++) {
+            mask.fillRow(edges, y, region.x, inside);
+            for (int i = 0; i < inside.length; i++) {
+                if (!inside[i]) {
+                    for (int b = 0; b < bands; b++) {
+                        target.setSample(region.x + i, y, b, noData);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package ch.so.agi.gretlgt.steps;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.geotools.coverage.grid.io.AbstractGridFormat;
+import org.geotools.coverage.grid.io.GridCoverage2DReader;
+import org.geotools.coverage.grid.io.GridFormatFinder;
+import org.geotools.geometry.GeneralEnvelope;
+import org.opengis.geometry.Envelope;
+
+import ch.so.agi.gretlgt.logging.GretlLogger;
+import ch.so.agi.gretlgt.logging.LogEnvironment;
+
+/**
+ * Lightweight footprint index of the tiles that make up a virtual mosaic.
+ * <p>
+ * For every tile the index stores the file size, modification time, the native envelope and the
+ * {@link RasterHeader} (dimensions, band count and data type). The
+ * index is persisted as a small tab separated text file and reused on subsequent runs; only tiles
+ * whose size or modification time changed have their header read again.
+ * </p>
+ */
+final class MosaicIndex {
+    private static final String HEADER = "# gretl-gt mosaic index v2";
+
+    private final List<Entry> entries;
+
+    private MosaicIndex(List<Entry> entries) {
+        this.entries = Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * Loads the index for the given tiles, refreshing stale entries and persisting the result.
+     *
+     * @param indexFile location of the persisted index; failures to write it are logged and ignored
+     * @param tiles     tiles that make up the mosaic
+     * @return the up-to-date index
+     * @throws IOException if a tile header cannot be read
+     */
+    static MosaicIndex load(Path indexFile, List<Path> tiles) throws IOException {
+        GretlLogger log = LogEnvironment.getLogger(MosaicIndex.class);
+        Map<String, Entry> cached = readIndex(indexFile, log);
+
+        List<Entry> entries = new ArrayList<>(tiles.size());
+        int refreshed = 0;
+        for (Path tile : tiles) {
+            Path absolute = tile.toAbsolutePath().normalize();
+            long size = Files.size(absolute);
+            long lastModified = Files.getLastModifiedTime(absolute).toMillis();
+            Entry entry = cached.get(absolute.toString());
+            if (entry == null || entry.size != size || entry.lastModified != lastModified) {
+                entry = readHeader(absolute, size, lastModified);
+                refreshed++;
+            }
+            entries.add(entry);
+        }
+
+        if (refreshed > 0 || cached.size() != entries.size()) {
+            try {
+                writeIndex(indexFile, entries);
+            } catch (IOException e) {
+                log.debug("Unable to persist mosaic index " + indexFile + ": " + e.getMessage());
+            }
+        }
+        log.info(String.format(Locale.ROOT, "Mosaic index %s: %d tiles, %d refreshed",
+                indexFile, entries.size(), refreshed));
+        return new MosaicIndex(entries);
+    }
+
+    /**
+     * @return all indexed tiles
+     */
+    List<Entry> entries() {
+        return entries;
+    }
+
+    /**
+     * Returns the tiles whose footprint intersects the given window.
+     *
+     * @param window processing window in the CRS of the tiles; {@code null} selects every tile
+     * @return matching tiles in index order
+     */
+    List<Entry> intersecting(Envelope window) {
+        if (window == null) {
+            return entries;
+        }
+        double minX = window.getMinimum(0);
+        double minY = window.getMinimum(1);
+        double maxX = window.getMaximum(0);
+        double maxY = window.getMaximum(1);
+        List<Entry> result = new ArrayList<>();
+        for (Entry entry : entries) {
+            if (entry.minX < maxX && entry.maxX > minX && entry.minY < maxY && entry.maxY > minY) {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+
+    private static Entry readHeader(Path tile, long size, long lastModified) throws IOException {
+        AbstractGridFormat format = GridFormatFinder.findFormat(tile.toFile());
+        if (format == null) {
+            throw new IOException("Unable to determine raster format for " + tile);
+        }
+        GridCoverage2DReader reader = null;
+        try {
+            reader = format.getReader(tile.toFile());
+            if (reader == null) {
+                throw new IOException("No reader found for raster " + tile);
+            }
+            GeneralEnvelope envelope = reader.getOriginalEnvelope();
+            return new Entry(tile, size, lastModified,
+                    envelope.getMinimum(0), envelope.getMinimum(1),
+                    envelope.getMaximum(0), envelope.getMaximum(1), RasterHeader.of(reader));
+        } finally {
+            if (reader != null) {
+                reader.dispose();
+            }
+        }
+    }
+
+    private static Map<String, Entry> readIndex(Path indexFile, GretlLogger log) {
+        Map<String, Entry> result = new HashMap<>();
+        if (!Files.isRegularFile(indexFile)) {
+            return result;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(indexFile, StandardCharsets.UTF_8)) {
+            String line = reader.readLine();
+            if (!HEADER.equals(line)) {
+                return result;
+            }
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split("\t");
+                if (parts.length != 11) {
+                    continue;
+                }
+                Entry entry = new Entry(Path.of(parts[0]),
+                        Long.parseLong(parts[1]),
+                        Long.parseLong(parts[2]),
+                        Double.parseDouble(parts[3]),
+                        Double.parseDouble(parts[4]),
+                        Double.parseDouble(parts[5]),
+                        Double.parseDouble(parts[6]),
+                        new RasterHeader(Long.parseLong(parts[7]), Long.parseLong(parts[8]), 1,
+                                Integer.parseInt(parts[9]), Integer.parseInt(parts[10])));
+                result.put(parts[0], entry);
+            }
+        } catch (IOException | RuntimeException e) {
+            log.debug("Ignoring unreadable mosaic index " + indexFile + ": " + e.getMessage());
+            result.clear();
+        }
+        return result;
+    }
+
+    private static void writeIndex(Path indexFile, List<Entry> entries) throws IOException {
+        Path parent = indexFile.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Path tmp = Files.createTempFile(parent, indexFile.getFileName().toString(), ".tmp");
+        try {
+            try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                writer.write(HEADER);
+                writer.newLine();
+                for (Entry entry : entries) {
+                    writer.write(entry.file + "\t" + entry.size + "\t" + entry.lastModified + "\t"
+                            + entry.minX + "\t" + entry.minY + "\t" + entry.maxX + "\t" + entry.maxY + "\t"
+                            + entry.header.getWidth() + "\t" + entry.header.getHeight() + "\t"
+                            + entry.header.getBands() + "\t" + entry.header.getDataType());
+                    writer.newLine();
+                }
+            }
+            Files.move(tmp, indexFile, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * Footprint and header of a single tile.
+     */
+    static final class Entry {
+        final Path file;
+        final long size;
+        final long lastModified;
+        final double minX;
+        final double minY;
+        final double maxX;
+        final double maxY;
+        final RasterHeader header;
+
+        Entry(Path file, long size, long lastModified, double minX, double minY, double maxX, double maxY,
+                RasterHeader header) {
+            this.file = file;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.minX = minX;
+            this.minY = minY;
+            this.maxX = maxX;
+            this.maxY = maxY;
+            this.header = header;
+        }
+
+        /**
+         * @param window window in the CRS of the tile; {@code null} covers the whole tile
+         * @return the header of the cells of this tile that intersect the window
+         */
+        RasterHeader header(Envelope window) {
+            return header.clip(minX, minY, maxX, maxY, window);
+        }
+    }
+}
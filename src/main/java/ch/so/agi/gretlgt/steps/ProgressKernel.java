@@ -0,0 +1,25 @@
+package ch.so.agi.gretlgt.steps;
+
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+
+/**
+ * {@link TileKernel} that reports the pixels of every computed tile to a {@link StepProgress}
+ * after the wrapped kernel has run.
+ */
+final class ProgressKernel implements TileKernel {
+    private final TileKernel delegate;
+    private final StepProgress progress;
+
+    ProgressKernel(TileKernel delegate, StepProgress progress) {
+        this.delegate = delegate;
+        this.progress = progress;
+    }
+
+    @Override
+    public void compute(Raster[] sources, WritableRaster target, Rectangle region) {
+        delegate.compute(sources, target, region);
+        progress.advance((long) region.width * region.height);
+    }
+}
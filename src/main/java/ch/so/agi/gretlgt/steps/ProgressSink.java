@@ -0,0 +1,58 @@
+package ch.so.agi.gretlgt.steps;
+
+import ch.so.agi.gretlgt.logging.GretlLogger;
+
+/**
+ * Receives the status lines of a {@link StepProgress}.
+ * <p>
+ * Inside Gradle the sink is backed by the progress logging of the build (the status line below
+ * the task name); standalone, status lines go to the GRETL logger.
+ * </p>
+ */
+public interface ProgressSink {
+
+    /**
+     * Called once when the step starts reporting.
+     *
+     * @param description e.g. the task name
+     */
+    void started(String description);
+
+    /**
+     * Called with the current status, e.g. {@code "extract: 42.0% (12.3 Mpx/s, ETA 0:05:12)"}.
+     *
+     * @param status the status line
+     */
+    void progress(String status);
+
+    /**
+     * Called once when the step has finished.
+     */
+    void completed();
+
+    /**
+     * Returns a sink that writes the status lines to {@code log} at info level.
+     *
+     * @param log the logger
+     * @return the sink
+     */
+    static ProgressSink logging(GretlLogger log) {
+        return new ProgressSink() {
+            private String description = "";
+
+            @Override
+            public void started(String description) {
+                this.description = description;
+            }
+
+            @Override
+            public void progress(String status) {
+                log.info(description + " " + status);
+            }
+
+            @Override
+            public void completed() {
+            }
+        };
+    }
+}
@@ -0,0 +1,288 @@
+package ch.so.agi.gretlgt.steps;
+
+import java.awt.Rectangle;
+import java.awt.image.DataBuffer;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import javax.media.jai.PlanarImage;
+import javax.media.jai.RasterFactory;
+
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridCoverageFactory;
+import org.geotools.coverage.util.CoverageUtilities;
+import org.geotools.geometry.Envelope2D;
+import org.geotools.referencing.CRS;
+import org.opengis.referencing.FactoryException;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+import ch.so.agi.gretlgt.logging.GretlLogger;
+import ch.so.agi.gretlgt.logging.LogEnvironment;
+import ch.so.agi.gretlgt.utils.GretlException;
+
+/**
+ * Combines several aligned rasters cell by cell with a map-algebra expression and writes the result
+ * as a tiled GeoTIFF.
+ * <p>
+ * Every input is bound to a name that the expression refers to, e.g. {@code a > 60 && b < 3 ? 1 : 0}
+ * (see {@link MapAlgebra} for the syntax). The expression is compiled once and evaluated tile by tile
+ * in parallel; the first band of each input is used. All inputs must share CRS, extent and
+ * resolution. Cells where a used input is no-data, and cells whose result is not a finite number,
+ * become {@code noData} in the output.
+ * </p>
+ */
+public class RasterCalcStep {
+    private GretlLogger log;
+    private String taskName;
+    private StepResultCache resultCache;
+    private StepProgress progress;
+    private CancellationToken cancellation = new CancellationToken();
+    private int tilesInFlight = 2 * Runtime.getRuntime().availableProcessors();
+    private double noData = DEFAULT_NO_DATA;
+
+    private static final double DEFAULT_NO_DATA = -9999d;
+
+    /**
+     * Creates a step instance using the class name for logging context.
+     */
+    public RasterCalcStep() {
+        this(null);
+    }
+
+    /**
+     * Creates a step instance that logs progress messages with the provided task name.
+     *
+     * @param taskName optional label used in lifecycle log messages; if {@code null} the class name is used
+     */
+    public RasterCalcStep(String taskName) {
+        if (taskName == null) {
+            this.taskName = RasterCalcStep.class.getSimpleName();
+        } else {
+            this.taskName = taskName;
+        }
+        this.log = LogEnvironment.getLogger(this.getClass());
+        this.progress = new StepProgress(ProgressSink.logging(log));
+    }
+
+    /**
+     * Sets the value written for no-data cells. Defaults to {@code -9999}.
+     *
+     * @param noData the output no-data value
+     */
+    public void setNoData(double noData) {
+        this.noData = noData;
+    }
+
+    /**
+     * Enables the content-addressed result cache.
+     *
+     * @param resultCache cache to consult and populate; {@code null} disables caching
+     */
+    public void setResultCache(StepResultCache resultCache) {
+        this.resultCache = resultCache;
+    }
+
+    /**
+     * Sets the number of tiles that are computed ahead of the writer. Defaults to twice the number of
+     * available processors; {@code 0} computes each tile on the writer thread.
+     *
+     * @param tilesInFlight maximum number of computed tiles held in memory
+     */
+    public void setTilesInFlight(int tilesInFlight) {
+        if (tilesInFlight < 0) {
+            throw new IllegalArgumentException("tilesInFlight must not be negative");
+        }
+        this.tilesInFlight = tilesInFlight;
+    }
+
+    /**
+     * Sets the progress reporting. By default status lines are logged at info level.
+     *
+     * @param progress the progress of this step
+     */
+    public void setProgress(StepProgress progress) {
+        this.progress = Objects.requireNonNull(progress, "progress");
+    }
+
+    /**
+     * Sets the token that is checked between tiles. When it is cancelled, times out or the step thread
+     * is interrupted, the step stops with a {@link StepCancelledException} and removes the partially
+     * written output.
+     *
+     * @param cancellation the token
+     */
+    public void setCancellationToken(CancellationToken cancellation) {
+        this.cancellation = Objects.requireNonNull(cancellation, "cancellation");
+    }
+
+    /**
+     * Evaluates {@code expression} over the inputs.
+     *
+     * @param inputs     inputs by the name used in the expression; iteration order is kept
+     * @param expression the map-algebra expression
+     * @param outputPath path where the GeoTIFF result should be written
+     * @throws IOException      if a raster cannot be read or written
+     * @throws FactoryException if the Swiss LV95 CRS cannot be resolved
+     */
+    public void execute(Map<String, CoverageSource> inputs, String expression, Path outputPath)
+            throws IOException, FactoryException {
+        Objects.requireNonNull(inputs, "inputs");
+        Objects.requireNonNull(expression, "expression");
+        if (inputs.isEmpty()) {
+            throw new IllegalArgumentException("Provide at least one input raster");
+        }
+        Map<String, CoverageSource> ordered = new LinkedHashMap<>(inputs);
+        MapAlgebra program;
+        try {
+            program = MapAlgebra.compile(expression, new ArrayList<>(ordered.keySet()));
+        } catch (IllegalArgumentException e) {
+            throw new GretlException(e.getMessage(), e);
+        }
+
+        log.lifecycle(String.format(
+                "Start RasterCalcStep(Name: %s inputs: %s expression: %s outputPath: %s noData: %s)",
+                taskName, describe(ordered), expression, outputPath, noData));
+
+        progress.begin(taskName);
+        try {
+            calculate(ordered, program, outputPath);
+        } catch (IOException | RuntimeException e) {
+            if (Thread.currentThread().isInterrupted()) {
+                cancellation.cancel("interrupted");
+            }
+            if (!cancellation.isCancelled()) {
+                throw e;
+            }
+            try {
+                if (Files.deleteIfExists(outputPath)) {
+                    log.info("Removed partial output " + outputPath);
+                }
+            } catch (IOException deleteFailure) {
+                log.error("Unable to remove partial output " + outputPath, deleteFailure);
+            }
+            throw e instanceof StepCancelledException ? (StepCancelledException) e
+                    : new StepCancelledException("Step " + cancellation.getReason(), e);
+        } finally {
+            progress.finish();
+        }
+
+        log.lifecycle(String.format("Finished RasterCalcStep(Name: %s outputPath: %s)", taskName, outputPath));
+    }
+
+    private void calculate(Map<String, CoverageSource> inputs, MapAlgebra program, Path outputPath)
+            throws IOException, FactoryException {
+        StepResultCache.Key cacheKey = null;
+        if (resultCache != null) {
+            cacheKey = resultCache.newKey(RasterCalcStep.class.getSimpleName());
+            for (Map.Entry<String, CoverageSource> input : inputs.entrySet()) {
+                cacheKey.add("input", input.getKey());
+                for (Path file : input.getValue().getFiles()) {
+                    cacheKey.addFile(file);
+                }
+            }
+            cacheKey.add("expression", program.toString())
+                    .add("noData", noData);
+            if (resultCache.restore(cacheKey, outputPath)) {
+                log.info("Restored " + outputPath + " from result cache " + resultCache.getDirectory());
+                return;
+            }
+        }
+
+        CoordinateReferenceSystem swiss = EmbeddedCrs.decode("EPSG:2056");
+        List<String> names = new ArrayList<>(inputs.keySet());
+        GridCoverage2D[] coverages = new GridCoverage2D[names.size()];
+        for (int i = 0; i < coverages.length; i++) {
+            // inputs the expression does not use are still checked for alignment
+            coverages[i] = RasterReclassify.ensureCrs(inputs.get(names.get(i)).read(), swiss);
+            cancellation.throwIfCancelled();
+            if (i > 0) {
+                checkAligned(coverages[0], names.get(0), coverages[i], names.get(i));
+            }
+        }
+
+        GridCoverage2D out = evaluate(coverages, program);
+        RenderedImage image = out.getRenderedImage();
+        progress.phase("calculate", (long) image.getWidth() * image.getHeight());
+        try {
+            GeoTiffOutput.write(out, outputPath, true);
+        } finally {
+            ((PlanarImage) image).dispose();  // stops the tile workers
+        }
+
+        if (cacheKey != null) {
+            resultCache.store(cacheKey, outputPath);
+        }
+    }
+
+    private GridCoverage2D evaluate(GridCoverage2D[] coverages, MapAlgebra program) {
+        RenderedImage[] images = new RenderedImage[coverages.length];
+        double[] sourceNoData = new double[coverages.length];
+        for (int i = 0; i < coverages.length; i++) {
+            images[i] = coverages[i].getRenderedImage();
+            sourceNoData[i] = RasterReclassify.sourceNoData(coverages[i], 0);
+        }
+
+        RenderedImage first = images[0];
+        Rectangle bounds = new Rectangle(first.getMinX(), first.getMinY(), first.getWidth(), first.getHeight());
+        int tileSize = GeoTiffOutput.TILE_SIZE;
+        SampleModel sampleModel = RasterFactory.createPixelInterleavedSampleModel(
+                DataBuffer.TYPE_FLOAT, tileSize, tileSize, 1);
+        TileKernel kernel = new ExpressionKernel(program, sourceNoData, noData, tileSize * tileSize);
+        kernel = new ProgressKernel(kernel, progress);
+        kernel = new CancellableKernel(kernel, cancellation);
+        KernelImage result = new KernelImage(images, bounds, tileSize, sampleModel, kernel, tilesInFlight);
+
+        HashMap<String, Object> properties = new HashMap<>();
+        CoverageUtilities.setNoDataProperty(properties, Double.valueOf(noData));
+        return new GridCoverageFactory().create(
+                "calc",
+                result,
+                coverages[0].getGridGeometry(),
+                null,
+                coverages,
+                properties);
+    }
+
+    private static void checkAligned(GridCoverage2D reference, String referenceName,
+            GridCoverage2D coverage, String name) {
+        RenderedImage a = reference.getRenderedImage();
+        RenderedImage b = coverage.getRenderedImage();
+        if (a.getWidth() != b.getWidth() || a.getHeight() != b.getHeight()
+                || a.getMinX() != b.getMinX() || a.getMinY() != b.getMinY()) {
+            throw new GretlException(String.format("Input %s (%dx%d) is not aligned with input %s (%dx%d)",
+                    name, b.getWidth(), b.getHeight(), referenceName, a.getWidth(), a.getHeight()));
+        }
+        if (!CRS.equalsIgnoreMetadata(reference.getCoordinateReferenceSystem2D(),
+                coverage.getCoordinateReferenceSystem2D())) {
+            throw new GretlException("Input " + name + " does not use the CRS of input " + referenceName);
+        }
+        Envelope2D ea = reference.getEnvelope2D();
+        Envelope2D eb = coverage.getEnvelope2D();
+        double toleranceX = ea.getWidth() / a.getWidth() / 2;
+        double toleranceY = ea.getHeight() / a.getHeight() / 2;
+        if (Math.abs(ea.getMinX() - eb.getMinX()) > toleranceX || Math.abs(ea.getMaxX() - eb.getMaxX()) > toleranceX
+                || Math.abs(ea.getMinY() - eb.getMinY()) > toleranceY
+                || Math.abs(ea.getMaxY() - eb.getMaxY()) > toleranceY) {
+            throw new GretlException("Input " + name + " " + eb + " is not aligned with input "
+                    + referenceName + " " + ea);
+        }
+    }
+
+    private static Map<String, Object> describe(Map<String, CoverageSource> inputs) {
+        Map<String, Object> description = new LinkedHashMap<>();
+        for (Map.Entry<String, CoverageSource> input : inputs.entrySet()) {
+            CoverageSource source = input.getValue();
+            description.put(input.getKey(), source.isMosaic() ? source.getFiles() : source.getFiles().get(0));
+        }
+        return description;
+    }
+}
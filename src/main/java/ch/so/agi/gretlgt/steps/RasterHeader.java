@@ -0,0 +1,192 @@
+package ch.so.agi.gretlgt.steps;
+
+import java.awt.image.DataBuffer;
+import java.awt.image.SampleModel;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Locale;
+
+import javax.media.jai.ImageLayout;
+
+import org.geotools.coverage.grid.io.AbstractGridFormat;
+import org.geotools.coverage.grid.io.GridCoverage2DReader;
+import org.geotools.coverage.grid.io.GridFormatFinder;
+import org.geotools.geometry.GeneralEnvelope;
+import org.opengis.coverage.grid.GridEnvelope;
+import org.opengis.geometry.Envelope;
+
+/**
+ * Dimensions, band count and data type of a raster, read from the file header without decoding
+ * any pixels. A header can be restricted to the cells within a processing window.
+ */
+public final class RasterHeader {
+    private final long width;
+    private final long height;
+    private final int tiles;
+    private final int bands;
+    private final int dataType;
+
+    RasterHeader(long width, long height, int tiles, int bands, int dataType) {
+        this.width = width;
+        this.height = height;
+        this.tiles = tiles;
+        this.bands = bands;
+        this.dataType = dataType;
+    }
+
+    /**
+     * Reads the header of a raster file, restricted to the cells that intersect a processing window.
+     * If the reader does not expose the sample model, one band of doubles is assumed.
+     *
+     * @param file   the raster file
+     * @param window window in the CRS of the raster; {@code null} covers the whole raster
+     * @return the header
+     * @throws IOException if the header cannot be read
+     */
+    static RasterHeader read(Path file, Envelope window) throws IOException {
+        AbstractGridFormat format = GridFormatFinder.findFormat(file.toFile());
+        if (format == null) {
+            throw new IOException("Unable to determine raster format for " + file);
+        }
+        GridCoverage2DReader reader = null;
+        try {
+            reader = format.getReader(file.toFile());
+            if (reader == null) {
+                throw new IOException("No reader found for raster " + file);
+            }
+            GeneralEnvelope envelope = reader.getOriginalEnvelope();
+            return of(reader).clip(envelope.getMinimum(0), envelope.getMinimum(1), envelope.getMaximum(0),
+                    envelope.getMaximum(1), window);
+        } finally {
+            if (reader != null) {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Takes the header from an open reader. If the reader does not expose the sample model, one band
+     * of doubles is assumed.
+     */
+    static RasterHeader of(GridCoverage2DReader reader) {
+        GridEnvelope range = reader.getOriginalGridRange();
+        int bands = 1;
+        int dataType = DataBuffer.TYPE_DOUBLE;
+        ImageLayout layout = reader.getImageLayout();
+        SampleModel sampleModel = layout != null ? layout.getSampleModel(null) : null;
+        if (sampleModel != null) {
+            bands = sampleModel.getNumBands();
+            dataType = sampleModel.getDataType();
+        }
+        return new RasterHeader(range.getSpan(0), range.getSpan(1), 1, bands, dataType);
+    }
+
+    /**
+     * Restricts the header to the cells that intersect a processing window. Partially covered cells
+     * count as a whole, like when the window is read.
+     *
+     * @param minX   western edge of the raster
+     * @param minY   southern edge of the raster
+     * @param maxX   eastern edge of the raster
+     * @param maxY   northern edge of the raster
+     * @param window window in the CRS of the raster; {@code null} keeps all cells
+     * @return the restricted header
+     */
+    RasterHeader clip(double minX, double minY, double maxX, double maxY, Envelope window) {
+        if (window == null) {
+            return this;
+        }
+        long columns = cells(width, minX, maxX, window.getMinimum(0), window.getMaximum(0));
+        long rows = cells(height, minY, maxY, window.getMinimum(1), window.getMaximum(1));
+        return new RasterHeader(columns, rows, tiles, bands, dataType);
+    }
+
+    private static long cells(long count, double min, double max, double windowMin, double windowMax) {
+        double span = max - min;
+        if (!(span > 0)) {
+            return count;
+        }
+        double overlap = Math.min(max, windowMax) - Math.max(min, windowMin);
+        if (!(overlap > 0)) {
+            return 0;
+        }
+        return Math.min(count, (long) Math.ceil(overlap / span * count) + 1);
+    }
+
+    /**
+     * Combines the headers of mosaic tiles; the pixel count is the sum over all tiles.
+     */
+    static RasterHeader ofTiles(List<RasterHeader> headers) {
+        long pixels = 0;
+        int bands = 0;
+        int bytes = 0;
+        int dataType = DataBuffer.TYPE_BYTE;
+        for (RasterHeader header : headers) {
+            pixels += header.getPixels();
+            bands = Math.max(bands, header.bands);
+            if (header.getBytesPerSample() > bytes) {
+                bytes = header.getBytesPerSample();
+                dataType = header.dataType;
+            }
+        }
+        return new RasterHeader(pixels, 1, headers.size(), bands, dataType);
+    }
+
+    /**
+     * @return number of columns
+     */
+    long getWidth() {
+        return width;
+    }
+
+    /**
+     * @return number of rows
+     */
+    long getHeight() {
+        return height;
+    }
+
+    /**
+     * @return number of pixels (summed over the tiles of a mosaic)
+     */
+    public long getPixels() {
+        return width * height;
+    }
+
+    /**
+     * @return number of bands
+     */
+    public int getBands() {
+        return bands;
+    }
+
+    /**
+     * @return the {@link DataBuffer} data type of the samples
+     */
+    public int getDataType() {
+        return dataType;
+    }
+
+    /**
+     * @return bytes per sample of one band
+     */
+    public int getBytesPerSample() {
+        return DataBuffer.getDataTypeSize(dataType) / 8;
+    }
+
+    /**
+     * @return bytes of all decoded pixels of all bands
+     */
+    public long getBytes() {
+        return getPixels() * bands * getBytesPerSample();
+    }
+
+    @Override
+    public String toString() {
+        String size = tiles > 1
+                ? String.format(Locale.ROOT, "%d tiles, %d pixels", tiles, getPixels())
+                : String.format(Locale.ROOT, "%dx%d", width, height);
+        return String.format(Locale.ROOT, "%s, %d band(s) of %d bytes", size, bands, getBytesPerSample());
+    }
+}
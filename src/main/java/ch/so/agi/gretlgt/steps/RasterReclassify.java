@@ -1,21 +1,41 @@
 package ch.so.agi.gretlgt.steps;
 
+import org.geotools.coverage.GridSampleDimension;
 import org.geotools.coverage.grid.GridCoverage2D;
 import org.geotools.coverage.grid.GridCoverageFactory;
 import org.geotools.coverage.util.CoverageUtilities;
 import org.geotools.geometry.Envelope2D;
+import org.geotools.geometry.jts.JTS;
 import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.image.ImageWorker;
 import org.geotools.process.raster.RangeLookupProcess;
 import org.jaitools.numeric.Range;
+import org.locationtech.jts.geom.Geometry;
+import org.opengis.metadata.spatial.PixelOrientation;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 import org.opengis.referencing.crs.EngineeringCRS;
+import org.opengis.referencing.operation.MathTransform2D;
+import org.opengis.referencing.operation.TransformException;
 import org.opengis.util.ProgressListener;
 
+import ch.so.agi.gretlgt.utils.GretlException;
+import it.geosolutions.jaiext.range.NoDataContainer;
+
+import javax.media.jai.RasterFactory;
+
+import java.awt.Color;
+import java.awt.Rectangle;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.IndexColorModel;
 import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Objects;
 
 public final class RasterReclassify {
@@ -41,7 +61,8 @@ public final class RasterReclassify {
 
     /**
      * Reclassify using consecutive breakpoints with explicit class values.
-     * Length of classValues must be breaks.length - 1.
+     * Length of classValues must be breaks.length - 1. The result uses the narrowest data type that
+     * holds all class values and noData, see {@link #narrowestDataType(int[][], double)}.
      */
     public static GridCoverage2D reclassifyByBreaks(
             GridCoverage2D source,
@@ -78,11 +99,23 @@ public final class RasterReclassify {
         HashMap<String, Object> properties = new HashMap<>(coverage.getProperties());
         CoverageUtilities.setNoDataProperty(properties, Double.valueOf(noData));
         GridCoverageFactory factory = new GridCoverageFactory();
+        int dataType = narrowestDataType(new int[][] {classValues}, noData);
+        if (dataType == coverage.getRenderedImage().getSampleModel().getDataType()) {
+            return factory.create(
+                    coverage.getName(),
+                    coverage.getRenderedImage(),
+                    coverage.getGridGeometry(),
+                    coverage.getSampleDimensions(),
+                    new GridCoverage2D[] {coverage},
+                    properties
+            );
+        }
+        RenderedImage narrowed = new ImageWorker(coverage.getRenderedImage()).format(dataType).getRenderedImage();
         return factory.create(
                 coverage.getName(),
-                coverage.getRenderedImage(),
+                narrowed,
                 coverage.getGridGeometry(),
-                coverage.getSampleDimensions(),
+                null,
                 new GridCoverage2D[] {coverage},
                 properties
         );
@@ -107,8 +140,302 @@ public final class RasterReclassify {
         return reclassifyByBreaks(source, band, arr, noData);
     }
 
+    /**
+     * Reclassify individual codes with a {@link CategoryMapping}.
+     * <p>
+     * The lookup is computed tile by tile on the calling thread and the result is held in memory, so it
+     * can be written strip by strip without computing a tile twice. The result uses the narrowest data
+     * type that holds all class values and noData.
+     * </p>
+     *
+     * @param source       the input coverage
+     * @param band         the band index to evaluate
+     * @param classes      class value per code
+     * @param defaultClass class value for codes without an entry; {@code null} maps them to {@code noData}
+     * @param noData       value for source no-data and unmapped codes
+     * @return the materialised reclassified coverage
+     */
+    public static GridCoverage2D reclassifyByCategories(
+            GridCoverage2D source,
+            int band,
+            Map<Integer, Integer> classes,
+            Integer defaultClass,
+            double noData
+    ) {
+        Objects.requireNonNull(source, "source");
+        GridCoverage2D computed = reclassifyBands(source, new int[] {band},
+                List.of(BandClassification.categorical(classes, defaultClass)), noData, 0);
+        try {
+            return GeoTiffOutput.materialize(computed);
+        } finally {
+            ((KernelImage) computed.getRenderedImage()).dispose();
+        }
+    }
+
+    /**
+     * Streaming variant of {@link #reclassifyByBreaks(GridCoverage2D, int, double[], int[], double)}.
+     * <p>
+     * The returned coverage is backed by an image that computes {@value GeoTiffOutput#TILE_SIZE}px
+     * tiles on demand from the corresponding source tiles, so nothing is materialised up front.
+     * When consumed in row-major order (as the GeoTIFF writer does), at most {@code tilesInFlight}
+     * tiles are computed ahead on worker threads. The caller should dispose the rendered image of the
+     * result once it has been written to stop the workers.
+     * </p>
+     *
+     * @param source        the input coverage
+     * @param band          the band index to evaluate
+     * @param breaks        ordered break values describing the class boundaries
+     * @param classValues   class value per interval; length must be {@code breaks.length - 1}
+     * @param noData        value for source no-data and values outside all intervals
+     * @param tilesInFlight number of tiles computed ahead of the consumer; {@code 0} computes tiles on the calling thread
+     * @return the lazily computed reclassified coverage
+     */
+    public static GridCoverage2D reclassifyByBreaksStreaming(
+            GridCoverage2D source,
+            int band,
+            double[] breaks,
+            int[] classValues,
+            double noData,
+            int tilesInFlight
+    ) {
+        Objects.requireNonNull(source, "source");
+        return reclassifyBands(source, new int[] {band},
+                List.of(new BandClassification(breaks, classValues)), noData, tilesInFlight);
+    }
+
+    /**
+     * Reclassifies several bands in a single pass over each source tile.
+     * <p>
+     * Output band {@code i} holds the classes of source band {@code bands[i]}. Like
+     * {@link #reclassifyByBreaksStreaming(GridCoverage2D, int, double[], int[], double, int)} the result is
+     * computed lazily tile by tile; each source tile is read once for all bands.
+     * </p>
+     *
+     * @param source          the input coverage
+     * @param bands           source band indices to reclassify, in output order
+     * @param classifications one classification per entry of {@code bands}, or a single one applied to all bands
+     * @param noData          value for source no-data and values outside all intervals
+     * @param tilesInFlight   number of tiles computed ahead of the consumer; {@code 0} computes tiles on the calling thread
+     * @return the lazily computed coverage with {@code bands.length} bands
+     */
+    public static GridCoverage2D reclassifyBands(
+            GridCoverage2D source,
+            int[] bands,
+            List<BandClassification> classifications,
+            double noData,
+            int tilesInFlight
+    ) {
+        return reclassifyBands(source, bands, classifications, noData, tilesInFlight, null, null, null, null);
+    }
+
+    /**
+     * Like {@link #reclassifyBands(GridCoverage2D, int[], List, double, int)}, but cells whose centre lies
+     * outside {@code mask} are set to {@code noData}, every computed tile advances {@code progress} by its
+     * pixel count, no tile is computed once {@code cancellation} is cancelled and a single-band result
+     * carries a palette colour map.
+     *
+     * @param source          the input coverage
+     * @param bands           source band indices to reclassify, in output order
+     * @param classifications one classification per entry of {@code bands}, or a single one applied to all bands
+     * @param noData          value for source no-data, values outside all intervals and cells outside the mask
+     * @param tilesInFlight   number of tiles computed ahead of the consumer
+     * @param mask            polygonal mask in the CRS of {@code source}; {@code null} disables masking
+     * @param progress        progress of the calling step; {@code null} disables reporting
+     * @param cancellation    cancellation of the calling step; {@code null} if it cannot be cancelled
+     * @param palette         colour per class value, see {@link #palette(Map, int, double)}; {@code null} for none
+     * @return the lazily computed coverage with {@code bands.length} bands
+     * @throws IllegalArgumentException if a palette is given for a result that cannot be indexed, or if
+     *                                  categorical and interval classifications are mixed
+     */
+    public static GridCoverage2D reclassifyBands(
+            GridCoverage2D source,
+            int[] bands,
+            List<BandClassification> classifications,
+            double noData,
+            int tilesInFlight,
+            Geometry mask,
+            StepProgress progress,
+            CancellationToken cancellation,
+            Map<Integer, Color> palette
+    ) {
+        Objects.requireNonNull(source, "source");
+        Objects.requireNonNull(bands, "bands");
+        Objects.requireNonNull(classifications, "classifications");
+        if (bands.length == 0) {
+            throw new IllegalArgumentException("Provide at least one band");
+        }
+        if (classifications.size() != 1 && classifications.size() != bands.length) {
+            throw new IllegalArgumentException("Provide one classification for all bands or one per band");
+        }
+
+        int numSourceBands = source.getNumSampleDimensions();
+        boolean categorical = classifications.get(0).isCategorical();
+        double[][] breaks = new double[bands.length][];
+        CategoryMapping[] categories = new CategoryMapping[bands.length];
+        int[][] classValues = new int[bands.length][];
+        double[] sourceNoData = new double[bands.length];
+        for (int i = 0; i < bands.length; i++) {
+            if (bands[i] < 0 || bands[i] >= numSourceBands) {
+                throw new IllegalArgumentException("Band " + bands[i] + " does not exist, raster has "
+                        + numSourceBands + " band(s)");
+            }
+            BandClassification classification = classifications.get(classifications.size() == 1 ? 0 : i);
+            if (classification.isCategorical() != categorical) {
+                throw new IllegalArgumentException("Categorical and interval classifications cannot be mixed");
+            }
+            breaks[i] = classification.getBreaks();
+            categories[i] = classification.getCategories();
+            classValues[i] = classification.getClassValues();
+            sourceNoData[i] = sourceNoData(source, bands[i]);
+        }
+
+        RenderedImage image = source.getRenderedImage();
+        Rectangle bounds = new Rectangle(image.getMinX(), image.getMinY(), image.getWidth(), image.getHeight());
+        int dataType = narrowestDataType(classValues, noData);
+        SampleModel sampleModel = RasterFactory.createPixelInterleavedSampleModel(
+                dataType, GeoTiffOutput.TILE_SIZE, GeoTiffOutput.TILE_SIZE, bands.length);
+        ColorModel colorModel = null;
+        if (palette != null) {
+            if (bands.length != 1) {
+                throw new IllegalArgumentException("A palette requires a single output band");
+            }
+            colorModel = palette(palette, dataType, noData);
+        }
+        TileKernel kernel = categorical
+                ? new CategoryKernel(bands, categories, noData, sourceNoData)
+                : new BreaksKernel(bands, breaks, classValues, noData, sourceNoData);
+        if (mask != null) {
+            kernel = new MaskedKernel(kernel, new GeometryMask(toPixels(source, mask)), noData);
+        }
+        if (progress != null) {
+            kernel = new ProgressKernel(kernel, progress);
+        }
+        if (cancellation != null) {
+            kernel = new CancellableKernel(kernel, cancellation);
+        }
+        KernelImage result = new KernelImage(new RenderedImage[] {image}, bounds, GeoTiffOutput.TILE_SIZE,
+                sampleModel, colorModel, kernel, tilesInFlight);
+
+        HashMap<String, Object> properties = new HashMap<>();
+        CoverageUtilities.setNoDataProperty(properties, Double.valueOf(noData));
+        GridCoverageFactory factory = new GridCoverageFactory();
+        return factory.create(
+                source.getName(),
+                result,
+                source.getGridGeometry(),
+                null,
+                new GridCoverage2D[] {source},
+                properties
+        );
+    }
+
+    /**
+     * Returns the narrowest data type that holds all class values and {@code noData}: unsigned byte,
+     * unsigned short, signed short or int, in this order. A non-integral {@code noData} requires float.
+     * Java images have no signed 8-bit type, so negative values need at least a short. Non-negative
+     * values are kept unsigned, so that they can be indexed by a {@link #palette(Map, int, double)}.
+     *
+     * @param classValues class values per band
+     * @param noData      the no-data value of the result
+     * @return a {@link DataBuffer} data type
+     */
+    public static int narrowestDataType(int[][] classValues, double noData) {
+        if (noData != Math.rint(noData) || noData < Integer.MIN_VALUE || noData > Integer.MAX_VALUE) {
+            return DataBuffer.TYPE_FLOAT;
+        }
+        long min = (long) noData;
+        long max = (long) noData;
+        for (int[] values : classValues) {
+            for (int value : values) {
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+            }
+        }
+        if (min >= 0 && max <= 0xFF) {
+            return DataBuffer.TYPE_BYTE;
+        }
+        if (min >= 0 && max <= 0xFFFF) {
+            return DataBuffer.TYPE_USHORT;
+        }
+        if (min >= Short.MIN_VALUE && max <= Short.MAX_VALUE) {
+            return DataBuffer.TYPE_SHORT;
+        }
+        return DataBuffer.TYPE_INT;
+    }
+
+    /**
+     * Builds a palette colour map for an unsigned byte or short result. The map has an entry for every
+     * value up to the largest class value (or {@code noData}); values without colour and
+     * {@code noData} are fully transparent.
+     *
+     * @param colors   colour per class value
+     * @param dataType {@link DataBuffer#TYPE_BYTE} or {@link DataBuffer#TYPE_USHORT}
+     * @param noData   the no-data value of the result
+     * @return the colour map
+     * @throws IllegalArgumentException if the data type cannot be indexed or a value is out of range
+     */
+    public static IndexColorModel palette(Map<Integer, Color> colors, int dataType, double noData) {
+        int bits;
+        if (dataType == DataBuffer.TYPE_BYTE) {
+            bits = 8;
+        } else if (dataType == DataBuffer.TYPE_USHORT) {
+            bits = 16;
+        } else {
+            throw new IllegalArgumentException("A palette requires class values and noData between 0 and 65535");
+        }
+        int limit = 1 << bits;
+        int size = noData >= 0 && noData < limit ? (int) noData + 1 : 1;
+        for (int value : colors.keySet()) {
+            if (value < 0 || value >= limit) {
+                throw new IllegalArgumentException(String.format(Locale.ROOT,
+                        "Palette value %d is outside the range of the %d-bit output", value, bits));
+            }
+            size = Math.max(size, value + 1);
+        }
+        byte[] r = new byte[size];
+        byte[] g = new byte[size];
+        byte[] b = new byte[size];
+        byte[] a = new byte[size];
+        for (Map.Entry<Integer, Color> entry : colors.entrySet()) {
+            int i = entry.getKey();
+            if (i == noData) {
+                continue;
+            }
+            Color color = entry.getValue();
+            r[i] = (byte) color.getRed();
+            g[i] = (byte) color.getGreen();
+            b[i] = (byte) color.getBlue();
+            a[i] = (byte) color.getAlpha();
+        }
+        return new IndexColorModel(bits, size, r, g, b, a);
+    }
+
+    /**
+     * Parses a colour in the form {@code #rrggbb} or {@code #rrggbbaa}.
+     *
+     * @param color the hex colour
+     * @return the colour
+     * @throws IllegalArgumentException if the text is not a hex colour
+     */
+    public static Color parseColor(String color) {
+        String hex = color != null && color.startsWith("#") ? color.substring(1) : color;
+        if (hex == null || (hex.length() != 6 && hex.length() != 8)) {
+            throw new IllegalArgumentException("Colour must be #rrggbb or #rrggbbaa: " + color);
+        }
+        try {
+            long value = Long.parseLong(hex, 16);
+            if (hex.length() == 6) {
+                return new Color((int) value);
+            }
+            return new Color((int) (value >>> 24), (int) (value >>> 16) & 0xFF, (int) (value >>> 8) & 0xFF,
+                    (int) value & 0xFF);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Colour must be #rrggbb or #rrggbbaa: " + color, e);
+        }
+    }
+
     // --- helpers ---
-    private static int validateBreaks(double[] breaks) {
+    static int validateBreaks(double[] breaks) {
         Objects.requireNonNull(breaks, "breaks");
         if (breaks.length < 2) {
             throw new IllegalArgumentException("Provide at least two break values");
@@ -122,6 +449,28 @@ public final class RasterReclassify {
         return breaks.length - 1; // number of bins
     }
     
+    static Geometry toPixels(GridCoverage2D coverage, Geometry geometry) {
+        try {
+            MathTransform2D crsToGrid = coverage.getGridGeometry().getCRSToGrid2D(PixelOrientation.UPPER_LEFT);
+            return JTS.transform(geometry, crsToGrid);
+        } catch (TransformException e) {
+            throw new GretlException("Unable to transform mask to raster grid coordinates", e);
+        }
+    }
+
+    /**
+     * Returns the no-data value of the given band, or {@code NaN} if the coverage declares none.
+     */
+    static double sourceNoData(GridCoverage2D coverage, int band) {
+        NoDataContainer container = CoverageUtilities.getNoDataProperty(coverage);
+        if (container != null) {
+            return container.getAsSingleValue();
+        }
+        GridSampleDimension dimension = coverage.getSampleDimension(band);
+        double[] values = dimension != null ? dimension.getNoDataValues() : null;
+        return values != null && values.length > 0 ? values[0] : Double.NaN;
+    }
+
     /**
      * Ensures the supplied coverage exposes a real-world coordinate reference system.
      *
@@ -1,23 +1,35 @@
 package ch.so.agi.gretlgt.steps;
 
-import java.io.File;
+import java.awt.Color;
+import java.awt.image.DataBuffer;
+import java.awt.image.RenderedImage;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Objects;
+import java.util.TreeMap;
+
+import javax.media.jai.PlanarImage;
 
 import org.geotools.coverage.grid.GridCoverage2D;
-import org.geotools.coverage.grid.io.AbstractGridFormat;
-import org.geotools.coverage.grid.io.GridFormatFinder;
-import org.geotools.gce.geotiff.GeoTiffWriter;
-import org.geotools.referencing.CRS;
+import org.geotools.coverage.grid.GridCoverageFactory;
+import org.geotools.coverage.processing.CoverageProcessor;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.locationtech.jts.geom.Geometry;
+import org.opengis.parameter.ParameterValueGroup;
 import org.opengis.referencing.FactoryException;
 import org.opengis.referencing.NoSuchAuthorityCodeException;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
-import org.geotools.coverage.grid.io.GridCoverage2DReader;
 
 import ch.so.agi.gretlgt.logging.GretlLogger;
 import ch.so.agi.gretlgt.logging.LogEnvironment;
+import ch.so.agi.gretlgt.utils.GretlException;
 
 /**
  * Reclassifies a raster by applying user provided break points and writing the
@@ -34,10 +46,32 @@ import ch.so.agi.gretlgt.logging.LogEnvironment;
 public class RasterReclassifyStep {
     private GretlLogger log;
     private String taskName;
+    private StepResultCache resultCache;
+    private Boolean streaming;
+    private long memoryBudget = ExecutionPlan.defaultBudget();
+    private ExecutionPlan executionPlan;
+    private boolean splitBands;
+    private Path scratchDirectory;
+    private RegionOfInterest regionOfInterest;
+    private Map<Integer, Color> palette;
+    private StepProgress progress;
+    private CancellationToken cancellation = new CancellationToken();
+    private int tilesInFlight = 2 * Runtime.getRuntime().availableProcessors();
 
     private static final double[] DEFAULT_BREAKS = {0, 55, 60, 65, 70, 500};
     private static final int[] DEFAULT_CLASS_VALUES = {0, 55, 60, 65, 70};
-    private static final double DEFAULT_NO_DATA = -100d;
+
+    /**
+     * Classification applied if no breaks are given: the intervals 0, 55, 60, 65, 70, 500 classified by
+     * their lower bounds.
+     */
+    public static final BandClassification DEFAULT_CLASSIFICATION =
+            new BandClassification(DEFAULT_BREAKS, DEFAULT_CLASS_VALUES);
+
+    /**
+     * No-data value of the output if none is given.
+     */
+    public static final double DEFAULT_NO_DATA = -100d;
     
     /**
      * Creates a step instance using the class name for logging context.
@@ -58,6 +92,129 @@ public class RasterReclassifyStep {
             this.taskName = taskName;
         }
         this.log = LogEnvironment.getLogger(this.getClass());
+        this.progress = new StepProgress(ProgressSink.logging(log));
+    }
+
+    /**
+     * Enables the content-addressed result cache. When an identical input raster was already
+     * reclassified with the same parameters, the cached GeoTIFF is copied to the output path instead
+     * of recomputing it.
+     *
+     * @param resultCache cache to consult and populate; {@code null} disables caching
+     */
+    public void setResultCache(StepResultCache resultCache) {
+        this.resultCache = resultCache;
+    }
+
+    /**
+     * Enables or disables the streaming mode. Instead of reclassifying the whole coverage before
+     * writing it, source tiles are pulled, reclassified and written as tiled, deflate-compressed
+     * GeoTIFF tiles one after the other, so that peak memory no longer depends on the raster size.
+     * If not set, the mode is chosen from the raster header and the memory budget (see
+     * {@link #setMemoryBudget(long)}).
+     *
+     * @param streaming {@code true} to process tile by tile
+     */
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    /**
+     * Sets the memory budget for choosing between in-memory and streaming execution. Defaults to
+     * half of the maximum heap.
+     *
+     * @param memoryBudget budget in bytes
+     */
+    public void setMemoryBudget(long memoryBudget) {
+        if (memoryBudget <= 0) {
+            throw new IllegalArgumentException("memoryBudget must be positive");
+        }
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * @return the execution plan of the last run, {@code null} before the first run or if the result
+     *         was restored from the result cache
+     */
+    public ExecutionPlan getExecutionPlan() {
+        return executionPlan;
+    }
+
+    /**
+     * Sets the number of tiles that are reclassified ahead of the writer in streaming mode.
+     * Defaults to twice the number of available processors; {@code 0} reclassifies each tile on the
+     * writer thread.
+     *
+     * @param tilesInFlight maximum number of computed tiles held in memory
+     */
+    public void setTilesInFlight(int tilesInFlight) {
+        if (tilesInFlight < 0) {
+            throw new IllegalArgumentException("tilesInFlight must not be negative");
+        }
+        this.tilesInFlight = tilesInFlight;
+    }
+
+    /**
+     * Writes one GeoTIFF per reclassified band instead of a single multi-band file.
+     *
+     * @param splitBands {@code true} to write {@link #bandOutputPath(Path, int)} files
+     */
+    public void setSplitBands(boolean splitBands) {
+        this.splitBands = splitBands;
+    }
+
+    /**
+     * Sets the directory for memory-mapped scratch files used when bands are split. Defaults to
+     * {@code gretlgt-scratch} in the system temporary directory.
+     *
+     * @param scratchDirectory directory for scratch files
+     */
+    public void setScratchDirectory(Path scratchDirectory) {
+        this.scratchDirectory = scratchDirectory;
+    }
+
+    /**
+     * Writes a palette colour map with the given colour per class value. The output is always
+     * written in the narrowest data type that holds all class values and noData (see
+     * {@link RasterReclassify#narrowestDataType(int[][], double)}); a palette additionally requires a
+     * single band and values between 0 and 65535. Class values without colour and noData are
+     * transparent.
+     *
+     * @param palette colour per class value; {@code null} writes no palette
+     */
+    public void setPalette(Map<Integer, Color> palette) {
+        this.palette = palette != null ? new TreeMap<>(palette) : null;
+    }
+
+    /**
+     * Sets the progress reporting. By default status lines with percent done, pixel throughput and
+     * ETA are logged at info level.
+     *
+     * @param progress the progress of this step
+     */
+    public void setProgress(StepProgress progress) {
+        this.progress = Objects.requireNonNull(progress, "progress");
+    }
+
+    /**
+     * Sets the token that is checked between tiles and before writing. When it is cancelled, times
+     * out or the step thread is interrupted, the step stops with a {@link StepCancelledException} and
+     * removes the partially written output files.
+     *
+     * @param cancellation the token
+     */
+    public void setCancellationToken(CancellationToken cancellation) {
+        this.cancellation = Objects.requireNonNull(cancellation, "cancellation");
+    }
+
+    /**
+     * Restricts the reclassification to a region. Only the raster window covering the region is read
+     * and, for polygon masks, cells whose centre lies outside the polygon are set to no-data.
+     *
+     * @param regionOfInterest bounding box or polygon mask; {@code null} processes the whole raster
+     */
+    public void setRegionOfInterest(RegionOfInterest regionOfInterest) {
+        this.regionOfInterest = regionOfInterest;
     }
 
     /**
@@ -70,7 +227,7 @@ public class RasterReclassifyStep {
      * @throws FactoryException              if CRS creation fails for other reasons
      */
     public void execute(Path inputPath, Path outputPath) throws IOException, NoSuchAuthorityCodeException, FactoryException {
-        executeInternal(inputPath, outputPath, DEFAULT_BREAKS, DEFAULT_CLASS_VALUES, DEFAULT_NO_DATA);
+        executeInternal(CoverageSource.of(inputPath), outputPath, DEFAULT_BREAKS, DEFAULT_CLASS_VALUES, DEFAULT_NO_DATA);
     }
 
     /**
@@ -105,53 +262,349 @@ public class RasterReclassifyStep {
             throws IOException, NoSuchAuthorityCodeException, FactoryException {
         Objects.requireNonNull(breaks, "breaks");
         int[] classValues = deriveClassValuesFromBreaks(breaks);
-        executeInternal(inputPath, outputPath, breaks, classValues, noData);
+        executeInternal(CoverageSource.of(inputPath), outputPath, breaks, classValues, noData);
+    }
+
+    /**
+     * Executes the reclassification for a virtual mosaic made of several raster tiles or tile
+     * directories. The tiles must share CRS and resolution.
+     *
+     * @param inputPaths  raster tiles and/or tile directories forming the mosaic
+     * @param outputPath  path where the GeoTIFF result should be written
+     * @param breaks      ordered break points defining the class intervals
+     * @param noData      the value that should represent missing data in the output coverage
+     * @throws IOException                   if a tile cannot be read or the result cannot be written
+     * @throws NoSuchAuthorityCodeException  if the Swiss LV95 CRS cannot be resolved
+     * @throws FactoryException              if CRS creation fails for other reasons
+     */
+    public void execute(List<Path> inputPaths, Path outputPath, double[] breaks, double noData)
+            throws IOException, NoSuchAuthorityCodeException, FactoryException {
+        execute(CoverageSource.of(inputPaths), outputPath, breaks, noData);
+    }
+
+    /**
+     * Executes the reclassification for an already resolved raster source.
+     *
+     * @param source      single raster or virtual mosaic to reclassify
+     * @param outputPath  path where the GeoTIFF result should be written
+     * @param breaks      ordered break points defining the class intervals
+     * @param noData      the value that should represent missing data in the output coverage
+     * @throws IOException                   if the raster cannot be read or written
+     * @throws NoSuchAuthorityCodeException  if the Swiss LV95 CRS cannot be resolved
+     * @throws FactoryException              if CRS creation fails for other reasons
+     */
+    public void execute(CoverageSource source, Path outputPath, double[] breaks, double noData)
+            throws IOException, NoSuchAuthorityCodeException, FactoryException {
+        Objects.requireNonNull(source, "source");
+        Objects.requireNonNull(breaks, "breaks");
+        int[] classValues = deriveClassValuesFromBreaks(breaks);
+        executeInternal(source, outputPath, breaks, classValues, noData);
     }
 
-    private void executeInternal(Path inputPath, Path outputPath, double[] breaks, int[] classValues, double noData)
+    /**
+     * Reclassifies several bands of the source in a single read and a single pass over each tile.
+     * <p>
+     * By default the result is one GeoTIFF whose band {@code i} holds the classes of source band
+     * {@code bands[i]}. With {@link #setSplitBands(boolean)} one GeoTIFF per band is written instead
+     * (see {@link #bandOutputPath(Path, int)}); the classified bands are then materialised once in a
+     * memory-mapped scratch file and written from there.
+     * </p>
+     *
+     * @param source          single raster or virtual mosaic to reclassify
+     * @param outputPath      path where the GeoTIFF result should be written
+     * @param bands           zero-based source band indices
+     * @param classifications one classification per band, or a single one applied to all bands
+     * @param noData          the value that should represent missing data in the output coverage
+     * @throws IOException                   if the raster cannot be read or written
+     * @throws NoSuchAuthorityCodeException  if the Swiss LV95 CRS cannot be resolved
+     * @throws FactoryException              if CRS creation fails for other reasons
+     */
+    public void execute(CoverageSource source, Path outputPath, int[] bands, List<BandClassification> classifications,
+            double noData) throws IOException, NoSuchAuthorityCodeException, FactoryException {
+        Objects.requireNonNull(source, "source");
+        Objects.requireNonNull(bands, "bands");
+        Objects.requireNonNull(classifications, "classifications");
+        if (bands.length == 0) {
+            throw new IllegalArgumentException("Provide at least one band");
+        }
+        if (classifications.size() != 1 && classifications.size() != bands.length) {
+            throw new IllegalArgumentException("Provide one classification for all bands or one per band");
+        }
+        executeInternal(source, outputPath, bands, classifications, noData);
+    }
+
+    /**
+     * Returns the file written for {@code band} when bands are split, e.g. {@code reclass.tif} becomes
+     * {@code reclass_band2.tif}.
+     *
+     * @param outputPath the configured output path
+     * @param band       zero-based source band index
+     * @return the per-band output path
+     */
+    public static Path bandOutputPath(Path outputPath, int band) {
+        String fileName = outputPath.getFileName().toString();
+        int dot = fileName.lastIndexOf('.');
+        String base = dot > 0 ? fileName.substring(0, dot) : fileName;
+        String extension = dot > 0 ? fileName.substring(dot) : ".tif";
+        return outputPath.resolveSibling(base + "_band" + band + extension);
+    }
+
+    private void executeInternal(CoverageSource source, Path outputPath, double[] breaks, int[] classValues, double noData)
             throws IOException, NoSuchAuthorityCodeException, FactoryException {
+        executeInternal(source, outputPath, new int[] {0}, List.of(new BandClassification(breaks, classValues)), noData);
+    }
+
+    private void executeInternal(CoverageSource source, Path outputPath, int[] bands,
+            List<BandClassification> classifications, double noData)
+            throws IOException, NoSuchAuthorityCodeException, FactoryException {
+        Object inputPath = source.isMosaic() ? source.getFiles() : source.getFiles().get(0);
         log.lifecycle(String.format(
-                "Start RasterReclassifyStep(Name: %s inputPath: %s outputPath: %s breaks: %s noData: %s)",
+                "Start RasterReclassifyStep(Name: %s inputPath: %s outputPath: %s bands: %s breaks: %s noData: %s)",
                 taskName,
                 inputPath,
                 outputPath,
-                Arrays.toString(breaks),
+                Arrays.toString(bands),
+                classifications.size() == 1 && !classifications.get(0).isCategorical()
+                        ? Arrays.toString(classifications.get(0).getBreaks()) : classifications,
                 noData));
 
-        AbstractGridFormat format = GridFormatFinder.findFormat(inputPath.toFile());
-        GridCoverage2DReader reader = null;
-        GridCoverage2D cov;
+        progress.begin(taskName);
         try {
-            reader = format.getReader(inputPath.toFile());
-            cov = reader.read(null);
+            reclassify(source, outputPath, bands, classifications, noData);
+        } catch (IOException | RuntimeException e) {
+            if (Thread.currentThread().isInterrupted()) {
+                cancellation.cancel("interrupted");
+            }
+            if (!cancellation.isCancelled()) {
+                throw e;
+            }
+            removePartialOutputs(outputPath, bands);
+            throw e instanceof StepCancelledException ? (StepCancelledException) e
+                    : new StepCancelledException("Step " + cancellation.getReason(), e);
         } finally {
-            if (reader != null) {
-                reader.dispose();
+            progress.finish();
+        }
+    }
+
+    private void removePartialOutputs(Path outputPath, int[] bands) {
+        List<Path> outputs = new ArrayList<>();
+        outputs.add(outputPath);
+        if (splitBands) {
+            for (int band : bands) {
+                outputs.add(bandOutputPath(outputPath, band));
             }
         }
+        for (Path output : outputs) {
+            try {
+                if (Files.deleteIfExists(output)) {
+                    log.info("Removed partial output " + output);
+                }
+            } catch (IOException e) {
+                log.error("Unable to remove partial output " + output, e);
+            }
+        }
+    }
 
-        CoordinateReferenceSystem swiss = CRS.decode("EPSG:2056", true);
+    private void reclassify(CoverageSource source, Path outputPath, int[] bands,
+            List<BandClassification> classifications, double noData)
+            throws IOException, NoSuchAuthorityCodeException, FactoryException {
+        int dataType = RasterReclassify.narrowestDataType(classValues(classifications), noData);
+        if (palette != null) {
+            if (bands.length != 1 || splitBands) {
+                throw new GretlException("A palette can only be written for a single reclassified band");
+            }
+            RasterReclassify.palette(palette, dataType, noData);  // fails early for values that cannot be indexed
+        }
+        executionPlan = null;
+
+        StepResultCache.Key cacheKey = null;
+        if (resultCache != null && splitBands) {
+            log.info("Result cache is not used when bands are split into several files");
+        } else if (resultCache != null) {
+            cacheKey = resultCache.newKey(RasterReclassifyStep.class.getSimpleName());
+            for (Path file : source.getFiles()) {
+                cacheKey.addFile(file);
+            }
+            cacheKey.add("bands", bands);
+            for (int i = 0; i < classifications.size(); i++) {
+                BandClassification classification = classifications.get(i);
+                cacheKey.add("breaks" + i, classification.getBreaks())
+                        .add("classValues" + i, classification.getClassValues())
+                        .add("categories" + i, classification.isCategorical()
+                                ? classification.getCategories().toString() : null);
+            }
+            // the execution plan follows from the raster, the region of interest and these settings
+            cacheKey.add("noData", noData)
+                    .add("streaming", streaming)
+                    .add("memoryBudget", memoryBudget)
+                    .add("palette", palette != null ? describePalette() : null)
+                    .add("regionOfInterest", regionOfInterest != null ? regionOfInterest.describe() : null);
+            if (resultCache.restore(cacheKey, outputPath)) {
+                log.info("Restored " + outputPath + " from result cache " + resultCache.getDirectory());
+                return;
+            }
+        }
+
+        ReferencedEnvelope window = null;
+        if (regionOfInterest != null) {
+            log.info("Restricting reclassification to " + regionOfInterest);
+            window = regionOfInterest.windowIn(source.getCoordinateReferenceSystem());
+        }
+        executionPlan = plan(source, window, bands.length, DataBuffer.getDataTypeSize(dataType) / 8);
+        log.info("Execution plan: " + executionPlan);
+        boolean tiled = executionPlan.isTiled();
+
+        GridCoverage2D cov = source.read(window);
+        cancellation.throwIfCancelled();
+
+        CoordinateReferenceSystem swiss = EmbeddedCrs.decode("EPSG:2056");
         GridCoverage2D stamped = RasterReclassify.ensureCrs(cov, swiss);
+        Geometry mask = regionOfInterest != null && !regionOfInterest.isRectangle()
+                ? regionOfInterest.geometryIn(stamped.getCoordinateReferenceSystem2D())
+                : null;
 
-        GridCoverage2D out = RasterReclassify.reclassifyByBreaks(stamped, 0, breaks, classValues, noData);
+        RenderedImage image = stamped.getRenderedImage();
+        long pixels = (long) image.getWidth() * image.getHeight();
+        log.info("Writing " + dataTypeName(dataType) + " samples" + (palette != null ? " with palette" : ""));
+        // paletted output needs the byte image with colour model of reclassifyBands; written untiled it is
+        // materialised once by GeoTiffOutput
+        if (bands.length == 1 && !tiled && !splitBands && mask == null && palette == null) {
+            // the lookup is computed while the writer pulls the image, so only the phase is reported
+            progress.phase("reclassify and write", 0);
+            BandClassification classification = classifications.get(0);
+            GridCoverage2D out;
+            if (classification.isCategorical()) {
+                CategoryMapping categories = classification.getCategories();
+                out = RasterReclassify.reclassifyByCategories(stamped, bands[0], categories.getClasses(),
+                        categories.getDefaultClass(), noData);
+            } else {
+                out = RasterReclassify.reclassifyByBreaks(stamped, bands[0], classification.getBreaks(),
+                        classification.getClassValues(), noData);
+            }
+            GeoTiffOutput.write(out, outputPath, false);
+        } else {
+            if (tiled) {
+                log.info("Streaming reclassification with " + tilesInFlight + " tiles in flight");
+            }
+            progress.phase(String.format(Locale.ROOT, "reclassify %d band(s)", bands.length), pixels);
+            GridCoverage2D out = RasterReclassify.reclassifyBands(stamped, bands, classifications, noData,
+                    tilesInFlight, mask, progress, cancellation, palette);
+            try {
+                if (splitBands) {
+                    writeBands(out, outputPath, bands, tiled);
+                } else {
+                    GeoTiffOutput.write(out, outputPath, tiled);
+                }
+            } finally {
+                if (out.getRenderedImage() instanceof PlanarImage) {
+                    ((PlanarImage) out.getRenderedImage()).dispose();  // stops the tile workers
+                }
+            }
+        }
 
-        File outFile = outputPath.toFile();
-        File parent = outFile.getParentFile();
-        if (parent != null) {
-            parent.mkdirs();
+        if (cacheKey != null) {
+            resultCache.store(cacheKey, outputPath);
         }
+    }
 
-        GeoTiffWriter writer = null;
-        try {
-            writer = new GeoTiffWriter(outFile);
-            writer.write(out, null);
-        } finally {
-            if (writer != null) {
-                writer.dispose();  // important: releases resources
+    /**
+     * Estimates the peak heap usage of both paths from the raster header: the in-memory path holds
+     * the decoded source and the reclassified output, the streaming path only the tiles
+     * in flight. Only the cells within the window of the region of interest are counted.
+     */
+    private ExecutionPlan plan(CoverageSource source, ReferencedEnvelope window, int bandCount,
+            int outputBytesPerSample) throws IOException {
+        RasterHeader header = source.readHeader(window);
+        log.debug("Raster header of " + source.getName() + ": " + header);
+        long outputBytesPerPixel = (long) bandCount * outputBytesPerSample;
+        long inMemory = header.getBytes() + header.getPixels() * outputBytesPerPixel;
+        long tilePixels = (long) GeoTiffOutput.TILE_SIZE * GeoTiffOutput.TILE_SIZE;
+        long tiled = (tilesInFlight + 2) * tilePixels
+                * ((long) header.getBands() * header.getBytesPerSample() + outputBytesPerPixel);
+        if (streaming != null) {
+            return ExecutionPlan.configured(streaming ? ExecutionPlan.Mode.TILED : ExecutionPlan.Mode.IN_MEMORY,
+                    inMemory, tiled, memoryBudget);
+        }
+        ExecutionPlan plan = ExecutionPlan.choose(inMemory, tiled, memoryBudget);
+        if (plan.exceedsBudget()) {
+            log.info("Estimated memory use exceeds the budget even when streaming: " + plan);
+        }
+        return plan;
+    }
+
+    private String describePalette() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<Integer, Color> entry : palette.entrySet()) {
+            sb.append(entry.getKey()).append('=').append(String.format(Locale.ROOT, "%08x", entry.getValue().getRGB()))
+                    .append(';');
+        }
+        return sb.toString();
+    }
+
+    private static int[][] classValues(List<BandClassification> classifications) {
+        int[][] classValues = new int[classifications.size()][];
+        for (int i = 0; i < classValues.length; i++) {
+            classValues[i] = classifications.get(i).getClassValues();
+        }
+        return classValues;
+    }
+
+    private static String dataTypeName(int dataType) {
+        switch (dataType) {
+        case DataBuffer.TYPE_BYTE:
+            return "unsigned 8-bit";
+        case DataBuffer.TYPE_SHORT:
+            return "signed 16-bit";
+        case DataBuffer.TYPE_USHORT:
+            return "unsigned 16-bit";
+        case DataBuffer.TYPE_INT:
+            return "signed 32-bit";
+        default:
+            return "32-bit float";
+        }
+    }
+
+    private void writeBands(GridCoverage2D classified, Path outputPath, int[] bands, boolean tiled)
+            throws IOException {
+        if (bands.length == 1) {
+            GeoTiffOutput.write(classified, bandOutputPath(outputPath, bands[0]), tiled);
+            return;
+        }
+        Path scratch = scratchDirectory != null
+                ? scratchDirectory
+                : Path.of(System.getProperty("java.io.tmpdir"), "gretlgt-scratch");
+        try (MappedRasterStorage storage = new MappedRasterStorage(scratch)) {
+            GridCoverage2D mapped = storage.materialize(classified);
+            for (int i = 0; i < bands.length; i++) {
+                Path bandPath = bandOutputPath(outputPath, bands[i]);
+                log.info("Writing band " + bands[i] + " to " + bandPath);
+                cancellation.throwIfCancelled();
+                progress.phase("write band " + bands[i], 0);
+                GeoTiffOutput.write(selectBand(mapped, i), bandPath, tiled);
             }
         }
     }
 
+    private static GridCoverage2D selectBand(GridCoverage2D coverage, int index) {
+        CoverageProcessor processor = CoverageProcessor.getInstance();
+        ParameterValueGroup params = processor.getOperation("SelectSampleDimension").getParameters();
+        params.parameter("Source").setValue(coverage);
+        params.parameter("SampleDimensions").setValue(new int[] {index});
+        GridCoverage2D selected = (GridCoverage2D) processor.doOperation(params);
+
+        HashMap<String, Object> properties = new HashMap<>(selected.getProperties());
+        properties.putAll(coverage.getProperties());
+        GridCoverageFactory factory = new GridCoverageFactory();
+        return factory.create(
+                selected.getName(),
+                selected.getRenderedImage(),
+                selected.getGridGeometry(),
+                selected.getSampleDimensions(),
+                null,
+                properties
+        );
+    }
+
     private static int[] deriveClassValuesFromBreaks(double[] breaks) {
         if (breaks.length < 2) {
             throw new IllegalArgumentException("Provide at least two break values");
@@ -0,0 +1,339 @@
+package ch.so.agi.gretlgt.steps;
+
+import java.awt.Rectangle;
+import java.awt.image.DataBuffer;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Objects;
+
+import javax.media.jai.PlanarImage;
+import javax.media.jai.RasterFactory;
+
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridCoverageFactory;
+import org.geotools.coverage.grid.GridEnvelope2D;
+import org.geotools.coverage.grid.GridGeometry2D;
+import org.geotools.coverage.util.CoverageUtilities;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.CRS;
+import org.geotools.referencing.operation.transform.ConcatenatedTransform;
+import org.opengis.referencing.FactoryException;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.datum.PixelInCell;
+import org.opengis.referencing.operation.MathTransform;
+import org.opengis.referencing.operation.NoninvertibleTransformException;
+import org.opengis.referencing.operation.TransformException;
+
+import ch.so.agi.gretlgt.logging.GretlLogger;
+import ch.so.agi.gretlgt.logging.LogEnvironment;
+import ch.so.agi.gretlgt.utils.GretlException;
+
+/**
+ * Reprojects a raster to another coordinate reference system and resolution and writes the result
+ * as a tiled GeoTIFF.
+ * <p>
+ * The output grid covers the transformed source envelope, aligned to multiples of the resolution.
+ * Output tiles are computed in parallel ahead of the writer (see {@link WarpKernel}); each tile reads
+ * only the source window it maps to, so memory stays bounded for large rasters. Sources without a
+ * real CRS are assumed to be in LV95 (EPSG:2056).
+ * </p>
+ */
+public class RasterReprojectStep {
+    private GretlLogger log;
+    private String taskName;
+    private StepResultCache resultCache;
+    private StepProgress progress;
+    private CancellationToken cancellation = new CancellationToken();
+    private int tilesInFlight = 2 * Runtime.getRuntime().availableProcessors();
+    private Resampling resampling = Resampling.NEAREST;
+    private Double resolution;
+    private Double noData;
+
+    private static final double DEFAULT_NO_DATA = -9999d;
+
+    /**
+     * Creates a step instance using the class name for logging context.
+     */
+    public RasterReprojectStep() {
+        this(null);
+    }
+
+    /**
+     * Creates a step instance that logs progress messages with the provided task name.
+     *
+     * @param taskName optional label used in lifecycle log messages; if {@code null} the class name is used
+     */
+    public RasterReprojectStep(String taskName) {
+        if (taskName == null) {
+            this.taskName = RasterReprojectStep.class.getSimpleName();
+        } else {
+            this.taskName = taskName;
+        }
+        this.log = LogEnvironment.getLogger(this.getClass());
+        this.progress = new StepProgress(ProgressSink.logging(log));
+    }
+
+    /**
+     * Sets the resampling method. Defaults to {@link Resampling#NEAREST}.
+     *
+     * @param resampling the method
+     */
+    public void setResampling(Resampling resampling) {
+        this.resampling = Objects.requireNonNull(resampling, "resampling");
+    }
+
+    /**
+     * Sets the cell size of the output in units of the target CRS. By default the cell size is chosen
+     * so that the output has about as many cells as the source.
+     *
+     * @param resolution the cell size; {@code null} derives it from the source
+     */
+    public void setResolution(Double resolution) {
+        if (resolution != null && !(resolution > 0)) {
+            throw new IllegalArgumentException("resolution must be positive");
+        }
+        this.resolution = resolution;
+    }
+
+    /**
+     * Sets the value of output cells without valid source cells. Defaults to the no-data value of the
+     * source or, if it declares none, {@code -9999}.
+     *
+     * @param noData the output no-data value; {@code null} for the default
+     */
+    public void setNoData(Double noData) {
+        this.noData = noData;
+    }
+
+    /**
+     * Enables the content-addressed result cache.
+     *
+     * @param resultCache cache to consult and populate; {@code null} disables caching
+     */
+    public void setResultCache(StepResultCache resultCache) {
+        this.resultCache = resultCache;
+    }
+
+    /**
+     * Sets the number of tiles that are warped ahead of the writer. Defaults to twice the number of
+     * available processors; {@code 0} warps each tile on the writer thread.
+     *
+     * @param tilesInFlight maximum number of computed tiles held in memory
+     */
+    public void setTilesInFlight(int tilesInFlight) {
+        if (tilesInFlight < 0) {
+            throw new IllegalArgumentException("tilesInFlight must not be negative");
+        }
+        this.tilesInFlight = tilesInFlight;
+    }
+
+    /**
+     * Sets the progress reporting. By default status lines are logged at info level.
+     *
+     * @param progress the progress of this step
+     */
+    public void setProgress(StepProgress progress) {
+        this.progress = Objects.requireNonNull(progress, "progress");
+    }
+
+    /**
+     * Sets the token that is checked between tiles. When it is cancelled, times out or the step thread
+     * is interrupted, the step stops with a {@link StepCancelledException} and removes the partially
+     * written output.
+     *
+     * @param cancellation the token
+     */
+    public void setCancellationToken(CancellationToken cancellation) {
+        this.cancellation = Objects.requireNonNull(cancellation, "cancellation");
+    }
+
+    /**
+     * Reprojects a raster file.
+     *
+     * @param inputPath  path to the raster to reproject
+     * @param targetCrs  code of the target CRS, e.g. {@code "EPSG:2056"}
+     * @param outputPath path where the GeoTIFF result should be written
+     * @throws IOException      if the raster cannot be read or written
+     * @throws FactoryException if a CRS cannot be resolved or no transformation is known
+     */
+    public void execute(Path inputPath, String targetCrs, Path outputPath) throws IOException, FactoryException {
+        execute(CoverageSource.of(inputPath), targetCrs, outputPath);
+    }
+
+    /**
+     * Reprojects a single raster or virtual mosaic.
+     *
+     * @param source     the raster source
+     * @param targetCrs  code of the target CRS, e.g. {@code "EPSG:2056"}
+     * @param outputPath path where the GeoTIFF result should be written
+     * @throws IOException      if the raster cannot be read or written
+     * @throws FactoryException if a CRS cannot be resolved or no transformation is known
+     */
+    public void execute(CoverageSource source, String targetCrs, Path outputPath) throws IOException, FactoryException {
+        Objects.requireNonNull(source, "source");
+        Objects.requireNonNull(targetCrs, "targetCrs");
+        Object inputPath = source.isMosaic() ? source.getFiles() : source.getFiles().get(0);
+        log.lifecycle(String.format(
+                "Start RasterReprojectStep(Name: %s inputPath: %s outputPath: %s targetCrs: %s resolution: %s resampling: %s)",
+                taskName, inputPath, outputPath, targetCrs, resolution, resampling));
+
+        progress.begin(taskName);
+        try {
+            reproject(source, targetCrs, outputPath);
+        } catch (IOException | RuntimeException e) {
+            if (Thread.currentThread().isInterrupted()) {
+                cancellation.cancel("interrupted");
+            }
+            if (!cancellation.isCancelled()) {
+                throw e;
+            }
+            try {
+                if (Files.deleteIfExists(outputPath)) {
+                    log.info("Removed partial output " + outputPath);
+                }
+            } catch (IOException deleteFailure) {
+                log.error("Unable to remove partial output " + outputPath, deleteFailure);
+            }
+            throw e instanceof StepCancelledException ? (StepCancelledException) e
+                    : new StepCancelledException("Step " + cancellation.getReason(), e);
+        } finally {
+            progress.finish();
+        }
+
+        log.lifecycle(String.format("Finished RasterReprojectStep(Name: %s outputPath: %s)", taskName, outputPath));
+    }
+
+    private void reproject(CoverageSource source, String targetCrsCode, Path outputPath)
+            throws IOException, FactoryException {
+        StepResultCache.Key cacheKey = null;
+        if (resultCache != null) {
+            cacheKey = resultCache.newKey(RasterReprojectStep.class.getSimpleName());
+            for (Path file : source.getFiles()) {
+                cacheKey.addFile(file);
+            }
+            cacheKey.add("targetCrs", targetCrsCode)
+                    .add("resolution", resolution)
+                    .add("resampling", resampling)
+                    .add("noData", noData);
+            if (resultCache.restore(cacheKey, outputPath)) {
+                log.info("Restored " + outputPath + " from result cache " + resultCache.getDirectory());
+                return;
+            }
+        }
+
+        GridCoverage2D coverage = RasterReclassify.ensureCrs(source.read(), EmbeddedCrs.decode("EPSG:2056"));
+        cancellation.throwIfCancelled();
+        CoordinateReferenceSystem targetCrs = EmbeddedCrs.decode(targetCrsCode);
+
+        GridCoverage2D out = warp(coverage, targetCrs);
+        RenderedImage image = out.getRenderedImage();
+        log.info(String.format(Locale.ROOT, "Warping %dx%d source cells to %dx%d cells of %s",
+                coverage.getRenderedImage().getWidth(), coverage.getRenderedImage().getHeight(),
+                image.getWidth(), image.getHeight(), targetCrsCode));
+        progress.phase("reproject", (long) image.getWidth() * image.getHeight());
+        try {
+            GeoTiffOutput.write(out, outputPath, true);
+        } finally {
+            ((PlanarImage) image).dispose();  // stops the tile workers
+        }
+
+        if (cacheKey != null) {
+            resultCache.store(cacheKey, outputPath);
+        }
+    }
+
+    private GridCoverage2D warp(GridCoverage2D coverage, CoordinateReferenceSystem targetCrs) throws FactoryException {
+        CoordinateReferenceSystem sourceCrs = coverage.getCoordinateReferenceSystem2D();
+        RenderedImage sourceImage = coverage.getRenderedImage();
+        GridGeometry2D targetGrid = targetGrid(coverage, targetCrs);
+
+        MathTransform pixelTransform;
+        try {
+            MathTransform targetToCrs = targetGrid.getGridToCRS(PixelInCell.CELL_CORNER);
+            MathTransform crsToSource = CRS.findMathTransform(targetCrs, sourceCrs, true);
+            MathTransform sourceToGrid = coverage.getGridGeometry().getGridToCRS(PixelInCell.CELL_CORNER).inverse();
+            pixelTransform = ConcatenatedTransform.create(ConcatenatedTransform.create(targetToCrs, crsToSource),
+                    sourceToGrid);
+        } catch (NoninvertibleTransformException e) {
+            throw new GretlException("Source grid transform is not invertible", e);
+        }
+
+        int bands = sourceImage.getSampleModel().getNumBands();
+        double[] sourceNoData = new double[bands];
+        for (int b = 0; b < bands; b++) {
+            sourceNoData[b] = RasterReclassify.sourceNoData(coverage, b);
+        }
+        double outputNoData = noData != null ? noData
+                : !Double.isNaN(sourceNoData[0]) ? sourceNoData[0] : DEFAULT_NO_DATA;
+
+        int sourceType = sourceImage.getSampleModel().getDataType();
+        int dataType = resampling == Resampling.BILINEAR && sourceType != DataBuffer.TYPE_DOUBLE
+                ? DataBuffer.TYPE_FLOAT
+                : fits(sourceType, outputNoData) ? sourceType : DataBuffer.TYPE_FLOAT;
+
+        GridEnvelope2D range = targetGrid.getGridRange2D();
+        Rectangle bounds = new Rectangle(range.x, range.y, range.width, range.height);
+        int tileSize = GeoTiffOutput.TILE_SIZE;
+        SampleModel sampleModel = RasterFactory.createPixelInterleavedSampleModel(dataType, tileSize, tileSize, bands);
+        TileKernel kernel = new WarpKernel(sourceImage, bounds, pixelTransform, resampling, sourceNoData,
+                outputNoData);
+        kernel = new ProgressKernel(kernel, progress);
+        kernel = new CancellableKernel(kernel, cancellation);
+        KernelImage result = new KernelImage(new RenderedImage[0], bounds, tileSize, sampleModel, kernel,
+                tilesInFlight);
+
+        HashMap<String, Object> properties = new HashMap<>();
+        CoverageUtilities.setNoDataProperty(properties, Double.valueOf(outputNoData));
+        return new GridCoverageFactory().create(
+                coverage.getName(),
+                result,
+                targetGrid,
+                null,
+                null,
+                properties);
+    }
+
+    /**
+     * Returns the output grid: the densified, transformed source envelope snapped outwards to
+     * multiples of the resolution.
+     */
+    private GridGeometry2D targetGrid(GridCoverage2D coverage, CoordinateReferenceSystem targetCrs)
+            throws FactoryException {
+        ReferencedEnvelope envelope;
+        try {
+            envelope = new ReferencedEnvelope(coverage.getEnvelope2D()).transform(targetCrs, true, 10);
+        } catch (TransformException e) {
+            throw new GretlException("Unable to transform the raster envelope to " + targetCrs.getName(), e);
+        }
+        RenderedImage image = coverage.getRenderedImage();
+        double cellSize = resolution != null ? resolution
+                : Math.sqrt(envelope.getWidth() * envelope.getHeight() / ((double) image.getWidth() * image.getHeight()));
+        double minX = Math.floor(envelope.getMinX() / cellSize) * cellSize;
+        double minY = Math.floor(envelope.getMinY() / cellSize) * cellSize;
+        int width = Math.max(1, (int) Math.ceil((envelope.getMaxX() - minX) / cellSize - 1e-9));
+        int height = Math.max(1, (int) Math.ceil((envelope.getMaxY() - minY) / cellSize - 1e-9));
+        ReferencedEnvelope aligned = new ReferencedEnvelope(minX, minX + width * cellSize, minY,
+                minY + height * cellSize, targetCrs);
+        return new GridGeometry2D(new GridEnvelope2D(0, 0, width, height), aligned);
+    }
+
+    private static boolean fits(int dataType, double value) {
+        switch (dataType) {
+            case DataBuffer.TYPE_BYTE:
+                return value == Math.rint(value) && value >= 0 && value <= 255;
+            case DataBuffer.TYPE_USHORT:
+                return value == Math.rint(value) && value >= 0 && value <= 65535;
+            case DataBuffer.TYPE_SHORT:
+                return value == Math.rint(value) && value >= Short.MIN_VALUE && value <= Short.MAX_VALUE;
+            case DataBuffer.TYPE_INT:
+                return value == Math.rint(value) && value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE;
+            default:
+                return true;
+        }
+    }
+}
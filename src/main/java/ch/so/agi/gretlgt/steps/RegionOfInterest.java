@@ -0,0 +1,181 @@
+package ch.so.agi.gretlgt.steps;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+import org.geotools.data.simple.SimpleFeatureReader;
+import org.geotools.factory.CommonFactoryFinder;
+import org.geotools.geometry.jts.JTS;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.geopkg.FeatureEntry;
+import org.geotools.geopkg.GeoPackage;
+import org.geotools.referencing.CRS;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.operation.union.UnaryUnionOp;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.filter.Filter;
+import org.opengis.filter.FilterFactory2;
+import org.opengis.referencing.FactoryException;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.crs.EngineeringCRS;
+import org.opengis.referencing.operation.MathTransform;
+import org.opengis.referencing.operation.TransformException;
+
+import ch.so.agi.gretlgt.utils.GretlException;
+
+/**
+ * Area a step is restricted to: a bounding box or a polygon mask.
+ * <p>
+ * The steps ask the raster reader only for the window covering the region and, for polygon masks,
+ * treat all cells whose centre lies outside the polygon as no-data. Geometries in a different CRS
+ * than the raster are reprojected.
+ * </p>
+ */
+public final class RegionOfInterest {
+    private final Geometry geometry;
+    private final CoordinateReferenceSystem crs;
+    private final boolean rectangle;
+
+    private RegionOfInterest(Geometry geometry, CoordinateReferenceSystem crs, boolean rectangle) {
+        this.geometry = geometry;
+        this.crs = crs;
+        this.rectangle = rectangle;
+    }
+
+    /**
+     * Creates a bounding box region in the CRS of the raster.
+     *
+     * @param minX minimum easting
+     * @param minY minimum northing
+     * @param maxX maximum easting
+     * @param maxY maximum northing
+     * @return the region
+     */
+    public static RegionOfInterest ofBounds(double minX, double minY, double maxX, double maxY) {
+        if (!(maxX > minX) || !(maxY > minY)) {
+            throw new IllegalArgumentException("Invalid bounds: " + minX + "," + minY + "," + maxX + "," + maxY);
+        }
+        Geometry box = new GeometryFactory().toGeometry(new Envelope(minX, maxX, minY, maxY));
+        return new RegionOfInterest(box, null, true);
+    }
+
+    /**
+     * Creates a polygon mask in the given CRS.
+     *
+     * @param geometry polygonal geometry
+     * @param crs      CRS of the geometry; {@code null} means the CRS of the raster
+     * @return the region
+     */
+    public static RegionOfInterest ofGeometry(Geometry geometry, CoordinateReferenceSystem crs) {
+        Objects.requireNonNull(geometry, "geometry");
+        if (geometry.isEmpty() || geometry.getDimension() != 2) {
+            throw new IllegalArgumentException("Region of interest must be a non-empty polygonal geometry");
+        }
+        return new RegionOfInterest(geometry, crs, false);
+    }
+
+    /**
+     * Creates a polygon mask from the union of the features of a GeoPackage layer.
+     *
+     * @param geopackage GeoPackage file
+     * @param layer      feature table name
+     * @param attribute  optional attribute used to select features; {@code null} uses all features
+     * @param value      attribute value of the features to use
+     * @return the region
+     * @throws IOException if the GeoPackage cannot be read or no feature matches
+     */
+    public static RegionOfInterest ofGeoPackage(Path geopackage, String layer, String attribute, Object value)
+            throws IOException {
+        Objects.requireNonNull(geopackage, "geopackage");
+        Objects.requireNonNull(layer, "layer");
+        if (!Files.isRegularFile(geopackage)) {
+            throw new IOException("GeoPackage not found: " + geopackage);
+        }
+        Filter filter = Filter.INCLUDE;
+        if (attribute != null) {
+            FilterFactory2 ff = CommonFactoryFinder.getFilterFactory2();
+            filter = ff.equals(ff.property(attribute), ff.literal(value));
+        }
+
+        List<Geometry> geometries = new ArrayList<>();
+        CoordinateReferenceSystem crs;
+        try (GeoPackage gpkg = new GeoPackage(geopackage.toFile())) {
+            gpkg.init();
+            FeatureEntry entry = gpkg.feature(layer);
+            if (entry == null) {
+                throw new IOException("Layer " + layer + " not found in " + geopackage);
+            }
+            try (SimpleFeatureReader reader = gpkg.reader(entry, filter, null)) {
+                crs = reader.getFeatureType().getCoordinateReferenceSystem();
+                while (reader.hasNext()) {
+                    SimpleFeature feature = reader.next();
+                    Object geometry = feature.getDefaultGeometry();
+                    if (geometry instanceof Geometry && !((Geometry) geometry).isEmpty()) {
+                        geometries.add((Geometry) geometry);
+                    }
+                }
+            }
+        }
+        if (geometries.isEmpty()) {
+            throw new IOException("No features in layer " + layer + " of " + geopackage
+                    + (attribute != null ? " with " + attribute + " = " + value : ""));
+        }
+        return ofGeometry(UnaryUnionOp.union(geometries), crs);
+    }
+
+    /**
+     * @return {@code true} if the region is a plain bounding box that needs no cell mask
+     */
+    public boolean isRectangle() {
+        return rectangle;
+    }
+
+    /**
+     * Returns the region geometry in the CRS of the raster. Rasters without a real CRS are assumed
+     * to share the CRS of the region.
+     *
+     * @param rasterCrs CRS of the raster; may be {@code null}
+     * @return the (reprojected) geometry
+     */
+    public Geometry geometryIn(CoordinateReferenceSystem rasterCrs) {
+        if (crs == null || rasterCrs == null || rasterCrs instanceof EngineeringCRS
+                || CRS.equalsIgnoreMetadata(crs, rasterCrs)) {
+            return geometry;
+        }
+        try {
+            MathTransform transform = CRS.findMathTransform(crs, rasterCrs, true);
+            return JTS.transform(geometry, transform);
+        } catch (FactoryException | TransformException e) {
+            throw new GretlException("Unable to reproject region of interest to the raster CRS", e);
+        }
+    }
+
+    /**
+     * Returns the processing window, i.e. the envelope of the region in the CRS of the raster.
+     *
+     * @param rasterCrs CRS of the raster; may be {@code null}
+     * @return the window
+     */
+    public ReferencedEnvelope windowIn(CoordinateReferenceSystem rasterCrs) {
+        return new ReferencedEnvelope(geometryIn(rasterCrs).getEnvelopeInternal(), rasterCrs);
+    }
+
+    @Override
+    public String toString() {
+        return (rectangle ? "bounds " : "mask ") + geometry.getEnvelopeInternal();
+    }
+
+    /**
+     * @return a stable textual description used for cache keys
+     */
+    String describe() {
+        String crsName = crs == null ? "raster" : CRS.toSRS(crs);
+        return crsName + ";" + geometry.toText();
+    }
+}
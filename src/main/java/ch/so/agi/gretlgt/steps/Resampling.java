@@ -0,0 +1,38 @@
+package ch.so.agi.gretlgt.steps;
+
+/**
+ * Resampling methods supported by {@link RasterReprojectStep}.
+ */
+public enum Resampling {
+    /**
+     * Value of the source cell containing the target cell centre. Keeps class values intact.
+     */
+    NEAREST,
+
+    /**
+     * Distance-weighted mean of the four source cells around the target cell centre; no-data
+     * neighbours are left out. For continuous values such as elevations or noise levels.
+     */
+    BILINEAR,
+
+    /**
+     * Most frequent value of the source cells covered by the target cell (smallest value on ties).
+     * For class rasters that are resampled to a coarser resolution.
+     */
+    MODE;
+
+    /**
+     * Parses a method name (case-insensitive).
+     *
+     * @param name e.g. {@code "bilinear"}
+     * @return the method
+     */
+    public static Resampling fromName(String name) {
+        for (Resampling resampling : values()) {
+            if (resampling.name().equalsIgnoreCase(name)) {
+                return resampling;
+            }
+        }
+        throw new IllegalArgumentException("Unknown resampling method: " + name);
+    }
+}
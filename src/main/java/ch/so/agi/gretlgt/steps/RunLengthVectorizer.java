@@ -0,0 +1,483 @@
+package ch.so.agi.gretlgt.steps;
+
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.geometry.jts.JTS;
+import org.locationtech.jts.algorithm.Orientation;
+import org.locationtech.jts.algorithm.PointLocation;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LinearRing;
+import org.locationtech.jts.geom.MultiPolygon;
+import org.locationtech.jts.geom.Polygon;
+import org.locationtech.jts.index.strtree.STRtree;
+import org.opengis.metadata.spatial.PixelOrientation;
+import org.opengis.referencing.operation.MathTransform2D;
+import org.opengis.referencing.operation.TransformException;
+
+import ch.so.agi.gretlgt.utils.GretlException;
+
+/**
+ * Vectorizer that traces the boundaries of raster classes directly into dissolved multipolygons.
+ * <p>
+ * The raster is scanned once, strip by strip, and every row is run-length encoded per requested
+ * cell value. For each value the boundary edges between member and non-member cells are derived
+ * from the runs of consecutive rows (horizontal edges are merged along the row) and linked into
+ * closed rings. Rings passing a vertex twice are split there, so every ring is simple and rings only
+ * touch at single points. Rings with a positive signed area in grid space are shells, the others
+ * holes, which are assigned to the smallest enclosing shell. Because the classes tile the grid
+ * exactly, the result needs no overlay union.
+ * </p>
+ * <p>
+ * Cells are members of a class if their value equals the cell value. Cells are connected through
+ * their edges; cells touching only at a corner yield polygons touching at that point. Coordinates
+ * are rounded to the precision model of the geometry factory.
+ * </p>
+ */
+final class RunLengthVectorizer {
+    private static final int STRIP_HEIGHT = 256;
+
+    private final GeometryFactory geometryFactory;
+    private final StepProgress progress;
+    private final CancellationToken cancellation;
+
+    /**
+     * @param geometryFactory factory of the output geometries
+     * @param progress        optional progress; advanced per strip during the scan
+     * @param cancellation    optional token; checked per strip and per traced cell value
+     */
+    RunLengthVectorizer(GeometryFactory geometryFactory, StepProgress progress, CancellationToken cancellation) {
+        this.geometryFactory = geometryFactory;
+        this.progress = progress;
+        this.cancellation = cancellation;
+    }
+
+    /**
+     * Vectorizes the cells of {@code band} that equal one of {@code cellValues}.
+     *
+     * @param coverage   source raster
+     * @param band       zero-based band index
+     * @param cellValues values to vectorize
+     * @param mask       optional polygon mask in pixel coordinates; only cells whose centre lies inside
+     *                   are considered
+     * @return one multipolygon per cell value, in the order of {@code cellValues}; values without
+     *         matching cells map to an empty multipolygon
+     */
+    Map<Double, MultiPolygon> vectorize(GridCoverage2D coverage, int band, List<Double> cellValues,
+            GeometryMask mask) {
+        RenderedImage image = coverage.getRenderedImage();
+        int minX = image.getMinX();
+        int minY = image.getMinY();
+        int width = image.getWidth();
+        int height = image.getHeight();
+
+        double[] sortedValues = new double[cellValues.size()];
+        for (int i = 0; i < sortedValues.length; i++) {
+            sortedValues[i] = cellValues.get(i) + 0.0;
+        }
+        Arrays.sort(sortedValues);
+        Runs[] runs = new Runs[sortedValues.length];
+        for (int i = 0; i < runs.length; i++) {
+            runs[i] = new Runs(height);
+        }
+
+        double[] row = new double[width];
+        boolean[] inside = mask != null ? new boolean[width] : null;
+        for (int y0 = 0; y0 < height; y0 += STRIP_HEIGHT) {
+            if (cancellation != null) {
+                cancellation.throwIfCancelled();
+            }
+            int stripHeight = Math.min(STRIP_HEIGHT, height - y0);
+            Raster strip = image.getData(new Rectangle(minX, minY + y0, width, stripHeight));
+            double[][] maskEdges = mask != null ? mask.edgesForRows(minY + y0, minY + y0 + stripHeight) : null;
+            for (int y = y0; y < y0 + stripHeight; y++) {
+                strip.getSamples(minX, minY + y, width, 1, band, row);
+                if (mask != null) {
+                    mask.fillRow(maskEdges, minY + y, minX, inside);
+                }
+                for (Runs r : runs) {
+                    r.startRow(y);
+                }
+                encodeRow(row, inside, sortedValues, runs);
+            }
+            if (progress != null) {
+                progress.advance((long) width * stripHeight);
+            }
+        }
+        if (progress != null) {
+            progress.phase("trace", 0);
+        }
+
+        MathTransform2D gridToCrs = coverage.getGridGeometry().getGridToCRS2D(PixelOrientation.UPPER_LEFT);
+        Map<Double, MultiPolygon> result = new LinkedHashMap<>();
+        for (Double cellValue : cellValues) {
+            if (cancellation != null) {
+                cancellation.throwIfCancelled();
+            }
+            int index = Arrays.binarySearch(sortedValues, cellValue + 0.0);
+            Runs classRuns = runs[index];
+            classRuns.finish(height);
+            result.put(cellValue, toMultiPolygon(trace(classRuns, width, height), minX, minY, gridToCrs));
+        }
+        return result;
+    }
+
+    private static void encodeRow(double[] row, boolean[] inside, double[] sortedValues, Runs[] runs) {
+        int current = -1;
+        int start = 0;
+        for (int x = 0; x < row.length; x++) {
+            int index = -1;
+            double value = row[x];
+            if (!Double.isNaN(value) && (inside == null || inside[x])) {
+                index = Arrays.binarySearch(sortedValues, value + 0.0);
+                if (index < 0) {
+                    index = -1;
+                }
+            }
+            if (index != current) {
+                if (current >= 0) {
+                    runs[current].add(start, x);
+                }
+                current = index;
+                start = x;
+            }
+        }
+        if (current >= 0) {
+            runs[current].add(start, row.length);
+        }
+    }
+
+    /**
+     * Builds the directed boundary edges of one class and links them into simple rings.
+     */
+    private static List<Ring> trace(Runs runs, int width, int height) {
+        long stride = width + 1L;
+        Edges edges = new Edges();
+        int[] r = runs.values;
+        for (int y = 0; y <= height; y++) {
+            int aFrom = y > 0 ? runs.rowOffsets[y - 1] : 0;
+            int aTo = y > 0 ? runs.rowOffsets[y] : 0;
+            int bFrom = y < height ? runs.rowOffsets[y] : 0;
+            int bTo = y < height ? runs.rowOffsets[y + 1] : 0;
+            long rowKey = y * stride;
+            // member above, non-member below: bottom edge, running left
+            int[] above = difference(r, aFrom, aTo, bFrom, bTo);
+            for (int i = 0; i < above.length; i += 2) {
+                edges.add(rowKey + above[i + 1], rowKey + above[i]);
+            }
+            // member below, non-member above: top edge, running right
+            int[] below = difference(r, bFrom, bTo, aFrom, aTo);
+            for (int i = 0; i < below.length; i += 2) {
+                edges.add(rowKey + below[i], rowKey + below[i + 1]);
+            }
+            for (int i = bFrom; i < bTo; i += 2) {
+                // left side running up, right side running down
+                edges.add(rowKey + stride + r[i], rowKey + r[i]);
+                edges.add(rowKey + r[i + 1], rowKey + stride + r[i + 1]);
+            }
+        }
+
+        int count = edges.size;
+        LongIntHashMap firstOut = new LongIntHashMap(count);
+        int[] nextOut = new int[count];
+        for (int e = 0; e < count; e++) {
+            nextOut[e] = firstOut.get(edges.from[e], -1);
+            firstOut.put(edges.from[e], e);
+        }
+
+        List<Ring> rings = new ArrayList<>();
+        boolean[] used = new boolean[count];
+        LongIntHashMap pathPosition = new LongIntHashMap(count);
+        long[] path = new long[16];
+        for (int start = 0; start < count; start++) {
+            if (used[start]) {
+                continue;
+            }
+            path[0] = edges.from[start];
+            pathPosition.put(path[0], 0);
+            int pathLength = 1;
+            int e = start;
+            while (e >= 0) {
+                used[e] = true;
+                long vertex = edges.to[e];
+                int position = pathPosition.get(vertex, -1);
+                if (position >= 0 && position < pathLength && path[position] == vertex) {
+                    // back at a vertex of the current walk: the loop since then is a simple ring
+                    rings.add(Ring.of(path, position, pathLength, stride));
+                    pathLength = position + 1;
+                } else {
+                    if (pathLength == path.length) {
+                        path = Arrays.copyOf(path, path.length * 2);
+                    }
+                    path[pathLength] = vertex;
+                    pathPosition.put(vertex, pathLength);
+                    pathLength++;
+                }
+                e = nextEdge(edges, firstOut, nextOut, used, e, stride);
+            }
+        }
+        return rings;
+    }
+
+    /**
+     * Returns the unused edge leaving the end vertex of {@code incoming}, or {@code -1}. At a vertex
+     * where two member cells touch diagonally the edge turning right, i.e. towards the member cell
+     * the walk is following, is taken. Member cells are thus connected through edges only, and the
+     * interior of every traced shell stays connected once its holes are removed.
+     */
+    private static int nextEdge(Edges edges, LongIntHashMap firstOut, int[] nextOut, boolean[] used,
+            int incoming, long stride) {
+        long vertex = edges.to[incoming];
+        long vx = vertex % stride;
+        long vy = vertex / stride;
+        long dx = Long.signum(vx - edges.from[incoming] % stride);
+        long dy = Long.signum(vy - edges.from[incoming] / stride);
+        int candidate = -1;
+        for (int e = firstOut.get(vertex, -1); e >= 0; e = nextOut[e]) {
+            if (used[e]) {
+                continue;
+            }
+            candidate = e;
+            long ux = Long.signum(edges.to[e] % stride - vx);
+            long uy = Long.signum(edges.to[e] / stride - vy);
+            // right turn in grid space, where y points down: (dx, dy) -> (-dy, dx)
+            if (ux == -dy && uy == dx) {
+                break;
+            }
+        }
+        return candidate;
+    }
+
+    /**
+     * Returns the intervals of the runs {@code [aFrom, aTo)} not covered by the runs {@code [bFrom, bTo)}.
+     */
+    static int[] difference(int[] r, int aFrom, int aTo, int bFrom, int bTo) {
+        int[] out = new int[8];
+        int size = 0;
+        int j = bFrom;
+        for (int i = aFrom; i < aTo; i += 2) {
+            int cursor = r[i];
+            int end = r[i + 1];
+            while (j < bTo && r[j + 1] <= cursor) {
+                j += 2;
+            }
+            for (int k = j; k < bTo && r[k] < end; k += 2) {
+                if (r[k] > cursor) {
+                    if (size + 2 > out.length) {
+                        out = Arrays.copyOf(out, out.length * 2);
+                    }
+                    out[size++] = cursor;
+                    out[size++] = r[k];
+                }
+                cursor = Math.max(cursor, r[k + 1]);
+            }
+            if (cursor < end) {
+                if (size + 2 > out.length) {
+                    out = Arrays.copyOf(out, out.length * 2);
+                }
+                out[size++] = cursor;
+                out[size++] = end;
+            }
+        }
+        return Arrays.copyOf(out, size);
+    }
+
+    private MultiPolygon toMultiPolygon(List<Ring> rings, int minX, int minY, MathTransform2D gridToCrs) {
+        List<Ring> shells = new ArrayList<>();
+        List<Ring> holes = new ArrayList<>();
+        STRtree index = new STRtree();
+        for (Ring ring : rings) {
+            if (ring.area > 0) {
+                shells.add(ring);
+                index.insert(ring.envelope(), ring);
+            } else {
+                holes.add(ring);
+            }
+        }
+
+        Map<Ring, List<Ring>> holesByShell = new LinkedHashMap<>();
+        for (Ring hole : holes) {
+            Coordinate probe = hole.probe();
+            Ring owner = null;
+            for (Object candidate : index.query(new Envelope(probe))) {
+                Ring shell = (Ring) candidate;
+                if ((owner == null || shell.area < owner.area)
+                        && PointLocation.isInRing(probe, shell.coordinates())) {
+                    owner = shell;
+                }
+            }
+            if (owner == null) {
+                throw new GretlException("Hole at " + probe + " has no enclosing shell");
+            }
+            holesByShell.computeIfAbsent(owner, k -> new ArrayList<>()).add(hole);
+        }
+
+        Polygon[] polygons = new Polygon[shells.size()];
+        try {
+            for (int i = 0; i < polygons.length; i++) {
+                Ring shell = shells.get(i);
+                List<Ring> shellHoles = holesByShell.getOrDefault(shell, List.of());
+                LinearRing[] interiors = new LinearRing[shellHoles.size()];
+                for (int h = 0; h < interiors.length; h++) {
+                    interiors[h] = toLinearRing(shellHoles.get(h), minX, minY, gridToCrs, false);
+                }
+                polygons[i] = geometryFactory.createPolygon(toLinearRing(shell, minX, minY, gridToCrs, true),
+                        interiors);
+            }
+        } catch (TransformException e) {
+            throw new GretlException("Unable to transform vectorized rings to the raster CRS", e);
+        }
+        return geometryFactory.createMultiPolygon(polygons);
+    }
+
+    private LinearRing toLinearRing(Ring ring, int minX, int minY, MathTransform2D gridToCrs, boolean shell)
+            throws TransformException {
+        Coordinate[] world = ring.coordinates();
+        for (Coordinate c : world) {
+            c.x += minX;
+            c.y += minY;
+            JTS.transform(c, c, gridToCrs);
+            geometryFactory.getPrecisionModel().makePrecise(c);
+        }
+        // OGC orientation: counter-clockwise shells, clockwise holes
+        if (Orientation.isCCW(world) != shell) {
+            Coordinate[] reversed = new Coordinate[world.length];
+            for (int i = 0; i < world.length; i++) {
+                reversed[i] = world[world.length - 1 - i];
+            }
+            world = reversed;
+        }
+        return geometryFactory.createLinearRing(world);
+    }
+
+    /**
+     * Closed ring of grid vertices without collinear vertices.
+     */
+    private static final class Ring {
+        private final int[] xs;
+        private final int[] ys;
+        // shoelace area in grid space, positive for shells (clockwise on screen)
+        private final double area;
+
+        private Ring(int[] xs, int[] ys, double area) {
+            this.xs = xs;
+            this.ys = ys;
+            this.area = area;
+        }
+
+        static Ring of(long[] path, int from, int to, long stride) {
+            int n = to - from;
+            int[] xs = new int[n];
+            int[] ys = new int[n];
+            int size = 0;
+            for (int i = 0; i < n; i++) {
+                long prev = path[from + (i + n - 1) % n];
+                long current = path[from + i];
+                long next = path[from + (i + 1) % n];
+                int px = (int) (prev % stride);
+                int py = (int) (prev / stride);
+                int cx = (int) (current % stride);
+                int cy = (int) (current / stride);
+                int nx = (int) (next % stride);
+                int ny = (int) (next / stride);
+                if ((px == cx && cx == nx) || (py == cy && cy == ny)) {
+                    continue;
+                }
+                xs[size] = cx;
+                ys[size] = cy;
+                size++;
+            }
+            xs = Arrays.copyOf(xs, size);
+            ys = Arrays.copyOf(ys, size);
+            double twiceArea = 0;
+            for (int i = 0; i < size; i++) {
+                int j = (i + 1) % size;
+                twiceArea += (double) xs[i] * ys[j] - (double) xs[j] * ys[i];
+            }
+            return new Ring(xs, ys, twiceArea / 2);
+        }
+
+        Envelope envelope() {
+            Envelope envelope = new Envelope();
+            for (int i = 0; i < xs.length; i++) {
+                envelope.expandToInclude(xs[i], ys[i]);
+            }
+            return envelope;
+        }
+
+        /**
+         * @return a point in the middle of the first unit edge, which lies on no other ring
+         */
+        Coordinate probe() {
+            double dx = Integer.signum(xs[1] - xs[0]) * 0.5;
+            double dy = Integer.signum(ys[1] - ys[0]) * 0.5;
+            return new Coordinate(xs[0] + dx, ys[0] + dy);
+        }
+
+        Coordinate[] coordinates() {
+            Coordinate[] coordinates = new Coordinate[xs.length + 1];
+            for (int i = 0; i < xs.length; i++) {
+                coordinates[i] = new Coordinate(xs[i], ys[i]);
+            }
+            coordinates[xs.length] = new Coordinate(xs[0], ys[0]);
+            return coordinates;
+        }
+    }
+
+    /**
+     * Run-length encoded member cells of one class: {@code [start, end)} pairs, grouped by row.
+     */
+    private static final class Runs {
+        private int[] values = new int[64];
+        private int size;
+        private final int[] rowOffsets;
+
+        Runs(int height) {
+            rowOffsets = new int[height + 1];
+        }
+
+        void startRow(int y) {
+            rowOffsets[y] = size;
+        }
+
+        void add(int start, int end) {
+            if (size + 2 > values.length) {
+                values = Arrays.copyOf(values, values.length * 2);
+            }
+            values[size++] = start;
+            values[size++] = end;
+        }
+
+        void finish(int height) {
+            rowOffsets[height] = size;
+        }
+    }
+
+    /**
+     * Directed boundary edges as pairs of vertex keys {@code y * (width + 1) + x}.
+     */
+    private static final class Edges {
+        private long[] from = new long[256];
+        private long[] to = new long[256];
+        private int size;
+
+        void add(long start, long end) {
+            if (size == from.length) {
+                from = Arrays.copyOf(from, size * 2);
+                to = Arrays.copyOf(to, size * 2);
+            }
+            from[size] = start;
+            to[size] = end;
+            size++;
+        }
+    }
+}
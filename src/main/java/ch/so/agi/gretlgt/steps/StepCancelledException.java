@@ -0,0 +1,18 @@
+package ch.so.agi.gretlgt.steps;
+
+import ch.so.agi.gretlgt.utils.GretlException;
+
+/**
+ * Thrown when a step stops because its {@link CancellationToken} was cancelled, timed out or the
+ * step thread was interrupted. Partial output files have been removed when it is thrown.
+ */
+public class StepCancelledException extends GretlException {
+
+    public StepCancelledException(String message) {
+        super(message);
+    }
+
+    public StepCancelledException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,223 @@
+package ch.so.agi.gretlgt.steps;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import org.opengis.util.InternationalString;
+import org.opengis.util.ProgressListener;
+
+import ch.so.agi.gretlgt.logging.GretlLogger;
+import ch.so.agi.gretlgt.logging.LogEnvironment;
+
+/**
+ * Progress of a step, reported as percent done, pixel throughput, current phase and ETA.
+ * <p>
+ * A step announces each phase with the number of pixels it will process and then reports processed
+ * pixels with {@link #advance(long)}, typically once per tile and from several threads. GeoTools
+ * processes can be given the instance as {@link ProgressListener}; their percentages are mapped to
+ * the pixels of the current phase. Status lines are passed to the {@link ProgressSink} at most every
+ * {@link #REPORT_INTERVAL_SECONDS} seconds and whenever a phase starts or completes.
+ * </p>
+ */
+public class StepProgress implements ProgressListener {
+    /**
+     * Minimum time between two status lines of the same phase.
+     */
+    public static final int REPORT_INTERVAL_SECONDS = 5;
+
+    private final GretlLogger log = LogEnvironment.getLogger(StepProgress.class);
+    private final ProgressSink sink;
+    private final LongSupplier nanoClock;
+    private final AtomicLong donePixels = new AtomicLong();
+
+    private volatile String phase = "";
+    private volatile long totalPixels;
+    private volatile long phaseStart;
+    private volatile long lastReport;
+    private volatile boolean canceled;
+    private InternationalString task;
+
+    /**
+     * Creates a progress reporting to {@code sink}.
+     *
+     * @param sink receives the status lines
+     */
+    public StepProgress(ProgressSink sink) {
+        this(sink, System::nanoTime);
+    }
+
+    StepProgress(ProgressSink sink, LongSupplier nanoClock) {
+        this.sink = sink;
+        this.nanoClock = nanoClock;
+    }
+
+    /**
+     * Announces the start of the step.
+     *
+     * @param description e.g. the task name
+     */
+    public void begin(String description) {
+        sink.started(description);
+    }
+
+    /**
+     * Announces the end of the step.
+     */
+    public void finish() {
+        sink.completed();
+    }
+
+    /**
+     * Starts a new phase.
+     *
+     * @param name        phase name shown in the status, e.g. {@code "reclassify"}
+     * @param totalPixels pixels the phase will process; {@code 0} if unknown
+     */
+    public synchronized void phase(String name, long totalPixels) {
+        this.phase = name;
+        this.totalPixels = Math.max(0, totalPixels);
+        this.donePixels.set(0);
+        this.phaseStart = nanoClock.getAsLong();
+        this.lastReport = phaseStart;
+        sink.progress(status());
+    }
+
+    /**
+     * Reports processed pixels of the current phase. Thread-safe.
+     *
+     * @param pixels pixels processed since the last call
+     */
+    public void advance(long pixels) {
+        long done = donePixels.addAndGet(pixels);
+        long now = nanoClock.getAsLong();
+        boolean finished = totalPixels > 0 && done >= totalPixels && done - pixels < totalPixels;
+        if (finished || now - lastReport >= TimeUnit.SECONDS.toNanos(REPORT_INTERVAL_SECONDS)) {
+            synchronized (this) {
+                if (finished || now - lastReport >= TimeUnit.SECONDS.toNanos(REPORT_INTERVAL_SECONDS)) {
+                    lastReport = now;
+                    sink.progress(status());
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the status line of the current phase
+     */
+    public String status() {
+        long done = donePixels.get();
+        long total = totalPixels;
+        if (total == 0) {
+            return phase;
+        }
+        double seconds = Math.max(1e-9, (nanoClock.getAsLong() - phaseStart) / 1e9);
+        double pixelsPerSecond = done / seconds;
+        StringBuilder status = new StringBuilder(String.format(Locale.ROOT, "%s: %.1f%% (%s/s",
+                phase, 100.0 * Math.min(done, total) / total, formatPixels(pixelsPerSecond)));
+        if (done > 0 && done < total) {
+            status.append(", ETA ").append(formatDuration((long) ((total - done) / pixelsPerSecond)));
+        }
+        return status.append(')').toString();
+    }
+
+    /**
+     * @return the current phase name
+     */
+    public String getPhase() {
+        return phase;
+    }
+
+    static String formatPixels(double pixels) {
+        if (pixels >= 1e9) {
+            return String.format(Locale.ROOT, "%.1f Gpx", pixels / 1e9);
+        }
+        if (pixels >= 1e6) {
+            return String.format(Locale.ROOT, "%.1f Mpx", pixels / 1e6);
+        }
+        if (pixels >= 1e3) {
+            return String.format(Locale.ROOT, "%.1f kpx", pixels / 1e3);
+        }
+        return String.format(Locale.ROOT, "%.0f px", pixels);
+    }
+
+    static String formatDuration(long seconds) {
+        return String.format(Locale.ROOT, "%d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60);
+    }
+
+    // --- ProgressListener ---
+
+    @Override
+    public InternationalString getTask() {
+        return task;
+    }
+
+    @Override
+    public void setTask(InternationalString task) {
+        this.task = task;
+        if (task != null) {
+            this.phase = task.toString();
+        }
+    }
+
+    /**
+     * GeoTools processes call this when they start; the step itself reports with {@link #begin(String)}.
+     */
+    @Override
+    public void started() {
+    }
+
+    @Override
+    public void progress(float percent) {
+        long total = totalPixels;
+        if (total > 0) {
+            long target = (long) (total * Math.min(100f, Math.max(0f, percent)) / 100.0);
+            long delta = target - donePixels.get();
+            if (delta > 0) {
+                advance(delta);
+            }
+        }
+    }
+
+    @Override
+    public float getProgress() {
+        long total = totalPixels;
+        return total == 0 ? 0f : (float) (100.0 * Math.min(donePixels.get(), total) / total);
+    }
+
+    /**
+     * Marks the current phase as done; the step itself reports its end with {@link #finish()}.
+     */
+    @Override
+    public void complete() {
+        long remaining = totalPixels - donePixels.get();
+        if (remaining > 0) {
+            advance(remaining);
+        }
+    }
+
+    @Override
+    public void dispose() {
+    }
+
+    @Override
+    public boolean isCanceled() {
+        return canceled;
+    }
+
+    @Override
+    public void setCanceled(boolean cancel) {
+        this.canceled = cancel;
+    }
+
+    @Override
+    public void warningOccurred(String source, String location, String warning) {
+        log.info("Warning from " + source + (location != null ? " (" + location + ")" : "") + ": " + warning);
+    }
+
+    @Override
+    public void exceptionOccurred(Throwable exception) {
+        log.error("Exception during " + phase, exception);
+    }
+}
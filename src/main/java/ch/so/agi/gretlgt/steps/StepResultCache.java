@@ -0,0 +1,276 @@
+package ch.so.agi.gretlgt.steps;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Content-addressed cache for step results that works independently of Gradle.
+ * <p>
+ * Entries are keyed by a SHA-256 digest over the content of the input raster (including
+ * sidecar files such as {@code .prj} or {@code .tfw}) and the normalised step parameters.
+ * A cache hit replaces the whole computation with a file copy, which allows CI agents that
+ * share the cache directory to reuse results computed elsewhere.
+ * </p>
+ */
+public final class StepResultCache {
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final List<String> SIDECAR_EXTENSIONS =
+            Arrays.asList(".prj", ".tfw", ".tifw", ".wld", ".aux.xml", ".ovr");
+
+    private final Path directory;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Creates a cache that stores its entries below the given directory.
+     *
+     * @param directory cache root; created on first store if missing
+     */
+    public StepResultCache(Path directory) {
+        this.directory = Objects.requireNonNull(directory, "directory");
+    }
+
+    /**
+     * Starts a new cache key for the given step.
+     *
+     * @param stepName name of the step producing the cached output; part of the key
+     * @return a mutable key builder
+     */
+    public Key newKey(String stepName) {
+        return new Key(stepName);
+    }
+
+    /**
+     * Copies the cached result for {@code key} to {@code target} if one exists.
+     *
+     * @param key    the cache key
+     * @param target destination of the cached output
+     * @return {@code true} on a cache hit, {@code false} otherwise
+     * @throws IOException if the cached entry cannot be copied
+     */
+    public boolean restore(Key key, Path target) throws IOException {
+        Path entry = entryPath(key);
+        if (!Files.isRegularFile(entry)) {
+            misses.incrementAndGet();
+            return false;
+        }
+        Path parent = target.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Files.copy(entry, target, StandardCopyOption.REPLACE_EXISTING);
+        hits.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Stores {@code source} as the result for {@code key}. The entry becomes visible atomically so
+     * that concurrent readers never see a partially written file.
+     *
+     * @param key    the cache key
+     * @param source the freshly computed output
+     * @throws IOException if the entry cannot be written
+     */
+    public void store(Key key, Path source) throws IOException {
+        Path entry = entryPath(key);
+        Files.createDirectories(entry.getParent());
+        Path tmp = Files.createTempFile(entry.getParent(), entry.getFileName().toString(), ".tmp");
+        try {
+            Files.copy(source, tmp, StandardCopyOption.REPLACE_EXISTING);
+            try {
+                Files.move(tmp, entry, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, entry, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * @return number of successful {@link #restore(Key, Path)} calls
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return number of {@link #restore(Key, Path)} calls that found no entry
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return the cache root directory
+     */
+    public Path getDirectory() {
+        return directory;
+    }
+
+    private Path entryPath(Key key) {
+        String digest = key.digest();
+        return directory.resolve(digest.substring(0, 2)).resolve(digest);
+    }
+
+    /**
+     * Canonical description of a step invocation. Parameters are normalised so that equivalent
+     * invocations (e.g. {@code -0.0} vs. {@code 0.0}) map to the same entry.
+     */
+    public static final class Key {
+        private final StringBuilder canonical = new StringBuilder();
+
+        private Key(String stepName) {
+            canonical.append("step=").append(Objects.requireNonNull(stepName, "stepName")).append('\n');
+        }
+
+        /**
+         * Adds the content hash of a raster file and its sidecar files to the key.
+         *
+         * @param file the raster file
+         * @return this key
+         * @throws IOException if the file cannot be read
+         */
+        public Key addFile(Path file) throws IOException {
+            canonical.append("file=").append(hashWithSidecars(file)).append('\n');
+            return this;
+        }
+
+        /**
+         * Adds a named parameter to the key.
+         *
+         * @param name  parameter name
+         * @param value parameter value; arrays and collections are normalised element-wise
+         * @return this key
+         */
+        public Key add(String name, Object value) {
+            canonical.append(name).append('=').append(normalize(value)).append('\n');
+            return this;
+        }
+
+        String digest() {
+            MessageDigest md = sha256();
+            return toHex(md.digest(canonical.toString().getBytes(StandardCharsets.UTF_8)));
+        }
+
+        @Override
+        public String toString() {
+            return canonical.toString();
+        }
+    }
+
+    static String normalize(Object value) {
+        if (value == null) {
+            return "null";
+        }
+        if (value instanceof Double || value instanceof Float) {
+            return normalizeDouble(((Number) value).doubleValue());
+        }
+        if (value instanceof double[]) {
+            double[] arr = (double[]) value;
+            List<String> parts = new ArrayList<>(arr.length);
+            for (double d : arr) {
+                parts.add(normalizeDouble(d));
+            }
+            return parts.toString();
+        }
+        if (value instanceof int[]) {
+            return Arrays.toString((int[]) value);
+        }
+        if (value instanceof Collection) {
+            List<String> parts = new ArrayList<>();
+            for (Object element : (Collection<?>) value) {
+                parts.add(normalize(element));
+            }
+            return parts.toString();
+        }
+        return value.toString();
+    }
+
+    private static String normalizeDouble(double d) {
+        if (d == 0d) {
+            return "0.0"; // folds -0.0
+        }
+        return Double.toString(d);
+    }
+
+    private static String hashWithSidecars(Path file) throws IOException {
+        MessageDigest md = sha256();
+        updateDigest(md, file);
+        for (Path sidecar : sidecars(file)) {
+            md.update(sidecar.getFileName().toString().toLowerCase(Locale.ROOT)
+                    .getBytes(StandardCharsets.UTF_8));
+            updateDigest(md, sidecar);
+        }
+        return toHex(md.digest());
+    }
+
+    /**
+     * Returns the existing sidecar files of a raster file ({@code .prj}, {@code .tfw}, {@code .aux.xml}
+     * and similar) that are part of its content hash, e.g. to declare them as task inputs.
+     *
+     * @param file the raster file
+     * @return the sidecar files, sorted
+     */
+    public static List<Path> sidecars(Path file) {
+        Path parent = file.toAbsolutePath().getParent();
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        if (parent == null || dot <= 0) {
+            return Collections.emptyList();
+        }
+        String base = name.substring(0, dot);
+        List<Path> result = new ArrayList<>();
+        for (String extension : SIDECAR_EXTENSIONS) {
+            for (String candidateName : Arrays.asList(base + extension, name + extension)) {
+                Path candidate = parent.resolve(candidateName);
+                if (Files.isRegularFile(candidate) && !result.contains(candidate)) {
+                    result.add(candidate);
+                }
+            }
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    private static void updateDigest(MessageDigest md, Path file) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream in = Files.newInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                md.update(buffer, 0, read);
+            }
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,257 @@
+package ch.so.agi.gretlgt.steps;
+
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.geometry.Envelope2D;
+import org.locationtech.jts.geom.Envelope;
+
+/**
+ * Checksums of the raster cells below each cell of the subdivision grid of {@link VectorizeStep}.
+ * <p>
+ * Grid cells have the IDs of {@link GeometrySubdivider} ({@code <column>_<row>}, multiples of the grid
+ * size in CRS units). The checksum of a grid cell covers the samples of one band of all raster cells
+ * that intersect it, so a grid cell whose checksum did not change yields the same pieces. The checksums
+ * of a layer are kept in the table {@value #TABLE} of the GeoPackage, together with the parameters
+ * they were computed for.
+ * </p>
+ */
+final class TileChecksums {
+    /** Table holding the checksums of all incrementally updated layers of a GeoPackage. */
+    static final String TABLE = "gretlgt_tile_checksums";
+
+    /** Tile ID of the row holding the parameters of a layer. */
+    private static final String PARAMETERS_ROW = "parameters";
+
+    private static final double EPSILON = 1e-9;
+
+    private final TreeMap<String, Long> checksums;
+
+    private TileChecksums(TreeMap<String, Long> checksums) {
+        this.checksums = checksums;
+    }
+
+    /**
+     * Computes the checksums of all grid cells intersecting the raster, one grid cell per task.
+     *
+     * @param coverage     the raster; its grid must be north-up
+     * @param band         zero-based band index
+     * @param gridSize     edge length of the grid cells in CRS units
+     * @param progress     advanced by the pixels of each grid cell
+     * @param cancellation checked before each grid cell
+     * @return the checksums
+     */
+    static TileChecksums compute(GridCoverage2D coverage, int band, double gridSize, StepProgress progress,
+            CancellationToken cancellation) {
+        RenderedImage image = coverage.getRenderedImage();
+        if (band < 0 || band >= image.getSampleModel().getNumBands()) {
+            throw new IllegalArgumentException("Band " + band + " does not exist, raster has "
+                    + image.getSampleModel().getNumBands() + " band(s)");
+        }
+        Envelope2D envelope = coverage.getEnvelope2D();
+        double resX = envelope.getWidth() / image.getWidth();
+        double resY = envelope.getHeight() / image.getHeight();
+        long minCol = (long) Math.floor(envelope.getMinX() / gridSize);
+        long maxCol = Math.max(minCol, (long) Math.ceil(envelope.getMaxX() / gridSize) - 1);
+        long minRow = (long) Math.floor(envelope.getMinY() / gridSize);
+        long maxRow = Math.max(minRow, (long) Math.ceil(envelope.getMaxY() / gridSize) - 1);
+
+        List<long[]> cells = new ArrayList<>();
+        for (long row = minRow; row <= maxRow; row++) {
+            for (long col = minCol; col <= maxCol; col++) {
+                cells.add(new long[] {col, row});
+            }
+        }
+        Map<String, Long> computed = cells.parallelStream().collect(Collectors.toMap(
+                cell -> cell[0] + "_" + cell[1],
+                cell -> {
+                    cancellation.throwIfCancelled();
+                    Rectangle pixels = pixels(image, envelope, resX, resY, cellEnvelope(cell[0], cell[1], gridSize));
+                    long checksum = checksum(image, pixels, band);
+                    progress.advance((long) pixels.width * pixels.height);
+                    return checksum;
+                }));
+        return new TileChecksums(new TreeMap<>(computed));
+    }
+
+    /**
+     * Returns the pixels of the raster cells intersecting a grid cell, clipped to the image.
+     */
+    private static Rectangle pixels(RenderedImage image, Envelope2D envelope, double resX, double resY, Envelope cell) {
+        int x0 = (int) Math.floor((cell.getMinX() - envelope.getMinX()) / resX + EPSILON);
+        int x1 = (int) Math.ceil((cell.getMaxX() - envelope.getMinX()) / resX - EPSILON);
+        int y0 = (int) Math.floor((envelope.getMaxY() - cell.getMaxY()) / resY + EPSILON);
+        int y1 = (int) Math.ceil((envelope.getMaxY() - cell.getMinY()) / resY - EPSILON);
+        Rectangle bounds = new Rectangle(image.getMinX(), image.getMinY(), image.getWidth(), image.getHeight());
+        Rectangle pixels = new Rectangle(image.getMinX() + x0, image.getMinY() + y0, x1 - x0, y1 - y0)
+                .intersection(bounds);
+        return pixels.isEmpty() ? new Rectangle(bounds.x, bounds.y, 0, 0) : pixels;
+    }
+
+    private static long checksum(RenderedImage image, Rectangle pixels, int band) {
+        long hash = 0xCBF29CE484222325L;
+        if (pixels.isEmpty()) {
+            return hash;
+        }
+        Raster raster = image.getData(pixels);
+        double[] row = new double[pixels.width];
+        for (int y = pixels.y; y < pixels.y + pixels.height; y++) {
+            raster.getSamples(pixels.x, y, pixels.width, 1, band, row);
+            for (double value : row) {
+                hash = (hash ^ Double.doubleToLongBits(value)) * 0x100000001B3L;
+                hash ^= hash >>> 29;
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * @return the envelope of grid cell {@code column}/{@code row} in CRS units
+     */
+    static Envelope cellEnvelope(long column, long row, double gridSize) {
+        return new Envelope(column * gridSize, (column + 1) * gridSize, row * gridSize, (row + 1) * gridSize);
+    }
+
+    /**
+     * @return the envelope of the grid cell of a tile ID in CRS units
+     */
+    static Envelope cellEnvelope(String tileId, double gridSize) {
+        long[] cell = parseCell(tileId);
+        return cellEnvelope(cell[0], cell[1], gridSize);
+    }
+
+    /**
+     * @return column and row of the grid cell of a tile ID, ignoring the path of halvings
+     */
+    static long[] parseCell(String tileId) {
+        String cell = gridCell(tileId);
+        int separator = cell.indexOf('_', 1);
+        if (separator < 0) {
+            throw new IllegalArgumentException("Tile ID " + tileId + " is not on a grid");
+        }
+        return new long[] {Long.parseLong(cell.substring(0, separator)), Long.parseLong(cell.substring(separator + 1))};
+    }
+
+    /**
+     * @return the grid cell part {@code <column>_<row>} of a tile ID
+     */
+    static String gridCell(String tileId) {
+        int path = tileId.indexOf('/');
+        return path < 0 ? tileId : tileId.substring(0, path);
+    }
+
+    /**
+     * Returns the grid cells whose checksum differs from {@code previous}, including cells that only
+     * exist in one of them.
+     */
+    Set<String> changedSince(TileChecksums previous) {
+        Set<String> changed = new TreeSet<>();
+        for (Map.Entry<String, Long> entry : checksums.entrySet()) {
+            if (!entry.getValue().equals(previous.checksums.get(entry.getKey()))) {
+                changed.add(entry.getKey());
+            }
+        }
+        for (String cell : previous.checksums.keySet()) {
+            if (!checksums.containsKey(cell)) {
+                changed.add(cell);
+            }
+        }
+        return changed;
+    }
+
+    boolean contains(String cell) {
+        return checksums.containsKey(cell);
+    }
+
+    int size() {
+        return checksums.size();
+    }
+
+    /**
+     * Loads the checksums of a layer.
+     *
+     * @param parameters description of the parameters the checksums must have been computed for
+     * @return the checksums, or {@code null} if there are none or they were computed for other parameters
+     */
+    static TileChecksums load(Connection cx, String layerName, String parameters) throws SQLException {
+        try (PreparedStatement ps = cx.prepareStatement(
+                "SELECT 1 FROM sqlite_master WHERE type = 'table' AND name = ?")) {
+            ps.setString(1, TABLE);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (!rs.next()) {
+                    return null;
+                }
+            }
+        }
+        TreeMap<String, Long> checksums = new TreeMap<>();
+        String storedParameters = null;
+        try (PreparedStatement ps = cx.prepareStatement(
+                "SELECT tile_id, checksum, parameters FROM " + TABLE + " WHERE table_name = ?")) {
+            ps.setString(1, layerName);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    if (PARAMETERS_ROW.equals(rs.getString(1))) {
+                        storedParameters = rs.getString(3);
+                    } else {
+                        checksums.put(rs.getString(1), rs.getLong(2));
+                    }
+                }
+            }
+        }
+        return parameters.equals(storedParameters) ? new TileChecksums(checksums) : null;
+    }
+
+    /**
+     * Replaces the stored checksums of a layer in one transaction.
+     */
+    void store(Connection cx, String layerName, String parameters) throws SQLException {
+        boolean autoCommit = cx.getAutoCommit();
+        cx.setAutoCommit(false);
+        try {
+            try (Statement st = cx.createStatement()) {
+                st.execute("CREATE TABLE IF NOT EXISTS " + TABLE + " (table_name TEXT NOT NULL, tile_id TEXT NOT NULL, "
+                        + "checksum INTEGER, parameters TEXT, PRIMARY KEY (table_name, tile_id))");
+            }
+            try (PreparedStatement ps = cx.prepareStatement("DELETE FROM " + TABLE + " WHERE table_name = ?")) {
+                ps.setString(1, layerName);
+                ps.executeUpdate();
+            }
+            try (PreparedStatement ps = cx.prepareStatement(
+                    "INSERT INTO " + TABLE + " (table_name, tile_id, checksum, parameters) VALUES (?, ?, ?, ?)")) {
+                ps.setString(1, layerName);
+                ps.setString(2, PARAMETERS_ROW);
+                ps.setNull(3, Types.INTEGER);
+                ps.setString(4, parameters);
+                ps.addBatch();
+                for (Map.Entry<String, Long> entry : checksums.entrySet()) {
+                    ps.setString(2, entry.getKey());
+                    ps.setLong(3, entry.getValue());
+                    ps.setNull(4, Types.VARCHAR);
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+            }
+            cx.commit();
+        } catch (SQLException | RuntimeException e) {
+            cx.rollback();
+            throw e;
+        } finally {
+            cx.setAutoCommit(autoCommit);
+        }
+    }
+}
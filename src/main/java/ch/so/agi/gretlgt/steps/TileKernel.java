@@ -0,0 +1,25 @@
+package ch.so.agi.gretlgt.steps;
+
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+
+/**
+ * Per-tile computation used by {@link KernelImage}.
+ * <p>
+ * Implementations read the source rasters row by row into primitive arrays and write the result into
+ * the target raster. They must be stateless or thread-safe because tiles are computed concurrently.
+ * </p>
+ */
+@FunctionalInterface
+interface TileKernel {
+
+    /**
+     * Computes the target pixels inside {@code region}.
+     *
+     * @param sources the source rasters, each covering at least {@code region}; empty for generators
+     * @param target  the raster receiving the result; it covers the whole tile
+     * @param region  the pixels to compute, in image coordinates
+     */
+    void compute(Raster[] sources, WritableRaster target, Rectangle region);
+}
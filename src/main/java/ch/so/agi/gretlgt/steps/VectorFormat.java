@@ -0,0 +1,58 @@
+package ch.so.agi.gretlgt.steps;
+
+import java.nio.file.Path;
+import java.util.Locale;
+
+/**
+ * Output formats supported by {@link VectorizeStep}.
+ */
+public enum VectorFormat {
+    /**
+     * OGC GeoPackage (SQLite), one table per layer.
+     */
+    GEOPACKAGE("gpkg"),
+
+    /**
+     * FlatGeobuf with packed Hilbert R-tree index, one layer per file.
+     */
+    FLATGEOBUF("fgb");
+
+    private final String extension;
+
+    VectorFormat(String extension) {
+        this.extension = extension;
+    }
+
+    /**
+     * @return the usual file extension without dot
+     */
+    public String getExtension() {
+        return extension;
+    }
+
+    /**
+     * Derives the format from the file extension; everything except {@code .fgb} is written as GeoPackage.
+     *
+     * @param path output file
+     * @return the format
+     */
+    public static VectorFormat fromPath(Path path) {
+        String fileName = path.getFileName().toString().toLowerCase(Locale.ROOT);
+        return fileName.endsWith("." + FLATGEOBUF.extension) ? FLATGEOBUF : GEOPACKAGE;
+    }
+
+    /**
+     * Parses a format name, accepting the enum name or the file extension (case-insensitive).
+     *
+     * @param name e.g. {@code "flatgeobuf"} or {@code "fgb"}
+     * @return the format
+     */
+    public static VectorFormat fromName(String name) {
+        for (VectorFormat format : values()) {
+            if (format.name().equalsIgnoreCase(name) || format.extension.equalsIgnoreCase(name)) {
+                return format;
+            }
+        }
+        throw new IllegalArgumentException("Unknown vector format: " + name);
+    }
+}
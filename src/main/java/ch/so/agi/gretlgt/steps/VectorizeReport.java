@@ -0,0 +1,145 @@
+package ch.so.agi.gretlgt.steps;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Per-class statistics of a {@link VectorizeStep} run.
+ * <p>
+ * For every cell value the report holds the number of polygons extracted from the raster, the
+ * number of polygons dropped because they were smaller than the minimum area and the number of
+ * interior rings removed because they were smaller than the minimum hole area. It also records the
+ * {@link ExecutionPlan} the raster was processed with and, for incremental updates, how many grid
+ * cells changed.
+ * </p>
+ */
+public final class VectorizeReport {
+    private final Map<Double, int[]> counts = new LinkedHashMap<>();
+    private ExecutionPlan executionPlan;
+    private List<Double> discoveredValues;
+    private int changedGridCells = -1;
+    private int gridCells = -1;
+
+    void setExecutionPlan(ExecutionPlan executionPlan) {
+        this.executionPlan = executionPlan;
+    }
+
+    /**
+     * @return whether the raster was vectorised on the heap or from an off-heap copy, and why
+     */
+    public ExecutionPlan getExecutionPlan() {
+        return executionPlan;
+    }
+
+    void record(double cellValue, int extractedPolygons, int droppedPolygons, int droppedHoles) {
+        // an incremental update vectorises a cell value once per changed window
+        counts.merge(cellValue, new int[] {extractedPolygons, droppedPolygons, droppedHoles}, (a, b) -> {
+            for (int i = 0; i < a.length; i++) {
+                a[i] += b[i];
+            }
+            return a;
+        });
+    }
+
+    void setChangedGridCells(int changedGridCells, int gridCells) {
+        this.changedGridCells = changedGridCells;
+        this.gridCells = gridCells;
+    }
+
+    /**
+     * @return the number of grid cells re-vectorised by an incremental update; {@code -1} if the
+     *         layer was written completely
+     */
+    public int getChangedGridCells() {
+        return changedGridCells;
+    }
+
+    /**
+     * @return the number of grid cells of the raster in an incremental update; {@code -1} if the
+     *         layer was written completely
+     */
+    public int getGridCells() {
+        return gridCells;
+    }
+
+    void setDiscoveredValues(Collection<Double> discoveredValues) {
+        this.discoveredValues = List.copyOf(discoveredValues);
+    }
+
+    /**
+     * @return the distinct values found when all values were vectorised, in ascending order;
+     *         {@code null} if the cell values were given
+     */
+    public List<Double> getDiscoveredValues() {
+        return discoveredValues;
+    }
+
+    /**
+     * @return the cell values that were vectorised, in processing order
+     */
+    public Set<Double> getCellValues() {
+        return Collections.unmodifiableSet(counts.keySet());
+    }
+
+    /**
+     * @param cellValue vectorised cell value
+     * @return number of polygons extracted from the raster before filtering
+     */
+    public int getExtractedPolygons(double cellValue) {
+        return count(cellValue, 0);
+    }
+
+    /**
+     * @param cellValue vectorised cell value
+     * @return number of polygons dropped because of the minimum area
+     */
+    public int getDroppedPolygons(double cellValue) {
+        return count(cellValue, 1);
+    }
+
+    /**
+     * @param cellValue vectorised cell value
+     * @return number of interior rings removed because of the minimum hole area
+     */
+    public int getDroppedHoles(double cellValue) {
+        return count(cellValue, 2);
+    }
+
+    /**
+     * @return number of polygons dropped over all cell values
+     */
+    public int getTotalDroppedPolygons() {
+        return counts.values().stream().mapToInt(c -> c[1]).sum();
+    }
+
+    private int count(double cellValue, int index) {
+        int[] c = counts.get(cellValue);
+        return c == null ? 0 : c[index];
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("VectorizeReport(");
+        String separator = "";
+        if (executionPlan != null) {
+            sb.append(executionPlan);
+            separator = ", ";
+        }
+        if (changedGridCells >= 0) {
+            sb.append(separator).append(changedGridCells).append(" of ").append(gridCells)
+                    .append(" grid cells changed");
+            separator = ", ";
+        }
+        for (Map.Entry<Double, int[]> entry : counts.entrySet()) {
+            int[] c = entry.getValue();
+            sb.append(separator).append(entry.getKey()).append(": extracted ").append(c[0])
+                    .append(" dropped ").append(c[1]).append(" holes removed ").append(c[2]);
+            separator = ", ";
+        }
+        return sb.append(')').toString();
+    }
+}
@@ -1,36 +1,56 @@
 package ch.so.agi.gretlgt.steps;
 
+import java.awt.image.RenderedImage;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
 
 import org.geotools.coverage.grid.GridCoverage2D;
-import org.geotools.coverage.grid.io.AbstractGridFormat;
-import org.geotools.coverage.grid.io.GridCoverage2DReader;
-import org.geotools.coverage.grid.io.GridFormatFinder;
+import org.geotools.data.Transaction;
 import org.geotools.data.collection.ListFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.data.simple.SimpleFeatureWriter;
 import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
 import org.geotools.geopkg.Entry;
 import org.geotools.geopkg.FeatureEntry;
 import org.geotools.geopkg.GeoPackage;
+import org.geotools.geometry.Envelope2D;
 import org.geotools.geometry.jts.Geometries;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.process.ProcessException;
 import org.geotools.process.raster.PolygonExtractionProcess;
 import org.jaitools.numeric.Range;
+import org.locationtech.jts.algorithm.Area;
+import org.locationtech.jts.algorithm.PointLocation;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
 import org.locationtech.jts.geom.Geometry;
 import org.locationtech.jts.geom.GeometryCollection;
 import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LinearRing;
 import org.locationtech.jts.geom.MultiPolygon;
 import org.locationtech.jts.geom.Polygon;
+import org.locationtech.jts.geom.PrecisionModel;
+import org.locationtech.jts.index.strtree.STRtree;
+import org.locationtech.jts.operation.overlayng.UnaryUnionNG;
 import org.locationtech.jts.operation.union.UnaryUnionOp;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
@@ -40,7 +60,7 @@ import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
 import ch.so.agi.gretlgt.logging.GretlLogger;
 import ch.so.agi.gretlgt.logging.LogEnvironment;
-import org.geotools.referencing.CRS;
+import ch.so.agi.gretlgt.utils.GretlException;
 
 /**
  * Converts raster cells with a matching value into a dissolved multipolygon and
@@ -54,10 +74,42 @@ import org.geotools.referencing.CRS;
  * stored in a GeoPackage layer whose table name matches the source raster file
  * name.
  * </p>
+ * <p>
+ * With {@link Vectorizer#RUN_LENGTH} the dissolved multipolygons are traced
+ * directly from run-length encoded rows instead (see {@link RunLengthVectorizer}).
+ * </p>
  */
 public class VectorizeStep {
+    /**
+     * Name of the attribute holding the tile ID of subdivided features.
+     */
+    public static final String TILE_ID = "tile_id";
+
+    /**
+     * Default limit of distinct values when all values are vectorised.
+     */
+    public static final int DEFAULT_MAX_DISTINCT_VALUES = 1000;
+
     private final GretlLogger log;
     private final String taskName;
+    private StepResultCache resultCache;
+    private Path scratchDirectory;
+    private long memoryBudget = ExecutionPlan.defaultBudget();
+    private int maxDistinctValues = DEFAULT_MAX_DISTINCT_VALUES;
+    private RegionOfInterest regionOfInterest;
+    private VectorFormat outputFormat;
+    private boolean append;
+    private boolean incremental;
+    private String layerName;
+    private WriteSerializer writeSerializer = WriteSerializer.LOCKING;
+    private Vectorizer vectorizer = Vectorizer.JAI;
+    private double minArea;
+    private double minHoleArea;
+    private double subdivideGridSize;
+    private int subdivideMaxVertices;
+    private VectorizeReport report;
+    private StepProgress progress;
+    private CancellationToken cancellation = new CancellationToken();
 
     /**
      * Creates a vectorize step instance using the class name as logging context.
@@ -78,6 +130,220 @@ public class VectorizeStep {
             this.taskName = taskName;
         }
         this.log = LogEnvironment.getLogger(this.getClass());
+        this.progress = new StepProgress(ProgressSink.logging(log));
+    }
+
+    /**
+     * Enables the content-addressed result cache. When an identical raster was already vectorised
+     * with the same parameters, the cached GeoPackage is copied to the destination instead of
+     * recomputing it.
+     *
+     * @param resultCache cache to consult and populate; {@code null} disables caching
+     */
+    public void setResultCache(StepResultCache resultCache) {
+        this.resultCache = resultCache;
+    }
+
+    /**
+     * Enables off-heap materialisation of the input raster. The decoded raster is copied once into a
+     * memory-mapped scratch file in {@code scratchDirectory} and every cell value is then extracted from
+     * that copy, instead of decoding the source again on the heap for each value.
+     *
+     * @param scratchDirectory directory for scratch files; {@code null} chooses from the memory budget
+     */
+    public void setScratchDirectory(Path scratchDirectory) {
+        this.scratchDirectory = scratchDirectory;
+    }
+
+    /**
+     * Sets the memory budget for choosing between vectorising the decoded raster on the heap and
+     * extracting the cell values from an off-heap copy in {@code gretlgt-scratch} of the system
+     * temporary directory. Ignored if a scratch directory is set. Defaults to half of the maximum heap.
+     *
+     * @param memoryBudget budget in bytes
+     */
+    public void setMemoryBudget(long memoryBudget) {
+        if (memoryBudget <= 0) {
+            throw new IllegalArgumentException("memoryBudget must be positive");
+        }
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Sets the maximum number of distinct values accepted when all values of a band are vectorised
+     * (see {@link #execute(Path, Path, int)}). Defaults to {@value #DEFAULT_MAX_DISTINCT_VALUES}.
+     *
+     * @param maxDistinctValues the limit
+     */
+    public void setMaxDistinctValues(int maxDistinctValues) {
+        if (maxDistinctValues < 1) {
+            throw new IllegalArgumentException("maxDistinctValues must be positive");
+        }
+        this.maxDistinctValues = maxDistinctValues;
+    }
+
+    /**
+     * Restricts the vectorisation to a region. Only the raster window covering the region is read
+     * and, for polygon masks, cells whose centre lies outside the polygon are ignored.
+     *
+     * @param regionOfInterest bounding box or polygon mask; {@code null} processes the whole raster
+     */
+    public void setRegionOfInterest(RegionOfInterest regionOfInterest) {
+        this.regionOfInterest = regionOfInterest;
+    }
+
+    /**
+     * Sets the output format. By default it is derived from the file extension of the output path
+     * ({@code .fgb} writes FlatGeobuf, everything else GeoPackage).
+     *
+     * @param outputFormat the format; {@code null} derives it from the extension
+     */
+    public void setOutputFormat(VectorFormat outputFormat) {
+        this.outputFormat = outputFormat;
+    }
+
+    /**
+     * Enables the append mode for GeoPackage outputs. The file is not recreated; only the target
+     * layer is added or, if it already exists, replaced. Other layers are left untouched. The
+     * result cache is not used in append mode.
+     *
+     * @param append {@code true} to update an existing GeoPackage
+     */
+    public void setAppend(boolean append) {
+        this.append = append;
+    }
+
+    /**
+     * Enables the incremental mode for GeoPackage outputs. Like in append mode, the file is not
+     * recreated. The checksums of the raster cells below each cell of the subdivision grid are stored
+     * in the GeoPackage; the next run only re-vectorises the grid cells whose checksum changed (read
+     * with a margin of one raster cell) and replaces their pieces. If the layer has no checksums yet
+     * or they were computed with other parameters, the layer is rebuilt.
+     * <p>
+     * Requires a {@link #setSubdivideGridSize(double) subdivision grid}, because pieces are replaced
+     * per grid cell, and no area filters, because they depend on whole polygons. The result cache is
+     * not used in incremental mode.
+     * </p>
+     *
+     * @param incremental {@code true} to update only the changed grid cells of an existing layer
+     */
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    /**
+     * Overrides the layer name, which is derived from the raster name by default.
+     *
+     * @param layerName table name of the GeoPackage layer; {@code null} uses the default
+     */
+    public void setLayerName(String layerName) {
+        this.layerName = layerName;
+    }
+
+    /**
+     * Sets the serializer that guards writes to the output file. Defaults to
+     * {@link WriteSerializer#LOCKING}.
+     *
+     * @param writeSerializer the serializer
+     */
+    public void setWriteSerializer(WriteSerializer writeSerializer) {
+        this.writeSerializer = Objects.requireNonNull(writeSerializer, "writeSerializer");
+    }
+
+    /**
+     * Selects the vectorization algorithm. Defaults to {@link Vectorizer#JAI}.
+     *
+     * @param vectorizer the algorithm
+     */
+    public void setVectorizer(Vectorizer vectorizer) {
+        this.vectorizer = Objects.requireNonNull(vectorizer, "vectorizer");
+    }
+
+    /**
+     * Sets the minimum area of the extracted polygons. Smaller polygons (e.g. single-cell speckle)
+     * are dropped before they are dissolved, which reduces the input of the union.
+     *
+     * @param minArea minimum area in squared CRS units; {@code 0} keeps all polygons
+     */
+    public void setMinArea(double minArea) {
+        if (!(minArea >= 0)) {
+            throw new IllegalArgumentException("minArea must be >= 0");
+        }
+        this.minArea = minArea;
+    }
+
+    /**
+     * Sets the minimum area of interior rings. Smaller holes of the dissolved multipolygons are
+     * filled, which reduces the vertex count of the output.
+     *
+     * @param minHoleArea minimum hole area in squared CRS units; {@code 0} keeps all holes
+     */
+    public void setMinHoleArea(double minHoleArea) {
+        if (!(minHoleArea >= 0)) {
+            throw new IllegalArgumentException("minHoleArea must be >= 0");
+        }
+        this.minHoleArea = minHoleArea;
+    }
+
+    /**
+     * Cuts the dissolved multipolygon of each cell value along a regular grid, so that each feature
+     * covers at most one grid cell. The pieces carry the cell value and a {@code tile_id}
+     * ({@code <column>_<row>} of the grid cell).
+     *
+     * @param subdivideGridSize edge length of the grid cells in CRS units, ideally a multiple of the
+     *                          raster cell size; {@code 0} disables the grid
+     */
+    public void setSubdivideGridSize(double subdivideGridSize) {
+        if (!(subdivideGridSize >= 0)) {
+            throw new IllegalArgumentException("subdivideGridSize must be >= 0");
+        }
+        this.subdivideGridSize = subdivideGridSize;
+    }
+
+    /**
+     * Recursively halves the dissolved multipolygons (or their grid pieces) until each feature has at
+     * most the given number of vertices, like PostGIS {@code ST_Subdivide}. The {@code tile_id} of a
+     * piece is extended by the path of halvings.
+     *
+     * @param subdivideMaxVertices maximum vertices per feature, at least 8; {@code 0} disables the limit
+     */
+    public void setSubdivideMaxVertices(int subdivideMaxVertices) {
+        if (subdivideMaxVertices != 0 && subdivideMaxVertices < 8) {
+            throw new IllegalArgumentException("subdivideMaxVertices must be 0 or at least 8");
+        }
+        this.subdivideMaxVertices = subdivideMaxVertices;
+    }
+
+    /**
+     * Sets the progress reporting. By default status lines with percent done, pixel throughput and
+     * ETA are logged at info level.
+     *
+     * @param progress the progress of this step
+     */
+    public void setProgress(StepProgress progress) {
+        this.progress = Objects.requireNonNull(progress, "progress");
+    }
+
+    /**
+     * Sets the token that is checked between raster strips, cell values and written features. When it
+     * is cancelled, times out or the step thread is interrupted, the step stops with a
+     * {@link StepCancelledException} and removes the partially written output file. In append and
+     * incremental mode the GeoPackage is kept.
+     *
+     * @param cancellation the token
+     */
+    public void setCancellationToken(CancellationToken cancellation) {
+        this.cancellation = Objects.requireNonNull(cancellation, "cancellation");
+    }
+
+    /**
+     * Returns the statistics of the last run: extracted and dropped polygons and removed holes per
+     * cell value. The report is empty if the result was restored from the result cache.
+     *
+     * @return the report, or {@code null} before the first execution
+     */
+    public VectorizeReport getReport() {
+        return report;
     }
 
     /**
@@ -94,19 +360,192 @@ public class VectorizeStep {
     public void execute(Path rasterPath, Path geopackagePath, int band, Collection<Double> cellValues)
             throws IOException, ProcessException {
         Objects.requireNonNull(rasterPath, "rasterPath");
-        Objects.requireNonNull(geopackagePath, "geopackagePath");
+        execute(CoverageSource.of(rasterPath), geopackagePath, band, cellValues);
+    }
+
+    /**
+     * Executes the vectorisation pipeline for a virtual mosaic made of several raster tiles. The
+     * tiles must share CRS and resolution; the layer is named after the first tile.
+     *
+     * @param rasterPaths     raster tiles and/or tile directories forming the mosaic
+     * @param geopackagePath  destination GeoPackage path
+     * @param band            zero-based raster band index to inspect
+     * @param cellValues      raster cell values to vectorise
+     * @throws IOException              if a tile cannot be read or the GeoPackage cannot be written
+     * @throws ProcessException         if the polygon extraction process fails
+     * @throws IllegalArgumentException if {@code cellValues} is empty or contains {@code null}
+     */
+    public void execute(List<Path> rasterPaths, Path geopackagePath, int band, Collection<Double> cellValues)
+            throws IOException, ProcessException {
+        Objects.requireNonNull(rasterPaths, "rasterPaths");
+        execute(CoverageSource.of(rasterPaths), geopackagePath, band, cellValues);
+    }
+
+    /**
+     * Executes the vectorisation pipeline for an already resolved raster source.
+     *
+     * @param source          single raster or virtual mosaic to analyse
+     * @param geopackagePath  destination GeoPackage path
+     * @param band            zero-based raster band index to inspect
+     * @param cellValues      raster cell values to vectorise
+     * @throws IOException              if the raster cannot be read or the GeoPackage cannot be written
+     * @throws ProcessException         if the polygon extraction process fails
+     * @throws IllegalArgumentException if {@code cellValues} is empty or contains {@code null}
+     */
+    public void execute(CoverageSource source, Path geopackagePath, int band, Collection<Double> cellValues)
+            throws IOException, ProcessException {
         Objects.requireNonNull(cellValues, "cellValues");
         if (cellValues.isEmpty()) {
             throw new IllegalArgumentException("cellValues must not be empty");
         }
+        run(source, geopackagePath, band, cellValues);
+    }
+
+    /**
+     * Vectorises every distinct value of the band except {@code NaN} and no-data. The values are
+     * discovered in one parallel pass over the raster tiles before the vectorisation; rasters with
+     * more than {@link #setMaxDistinctValues(int) maxDistinctValues} values are rejected.
+     *
+     * @param rasterPath      path to the raster to analyse
+     * @param geopackagePath  destination GeoPackage path
+     * @param band            zero-based raster band index to inspect
+     * @throws IOException      if the raster cannot be read or the GeoPackage cannot be written
+     * @throws ProcessException if the polygon extraction process fails
+     * @throws GretlException   if the band has too many distinct values
+     */
+    public void execute(Path rasterPath, Path geopackagePath, int band) throws IOException, ProcessException {
+        Objects.requireNonNull(rasterPath, "rasterPath");
+        execute(CoverageSource.of(rasterPath), geopackagePath, band);
+    }
+
+    /**
+     * Vectorises every distinct value of the band of an already resolved raster source, see
+     * {@link #execute(Path, Path, int)}.
+     *
+     * @param source          single raster or virtual mosaic to analyse
+     * @param geopackagePath  destination GeoPackage path
+     * @param band            zero-based raster band index to inspect
+     * @throws IOException      if the raster cannot be read or the GeoPackage cannot be written
+     * @throws ProcessException if the polygon extraction process fails
+     * @throws GretlException   if the band has too many distinct values
+     */
+    public void execute(CoverageSource source, Path geopackagePath, int band) throws IOException, ProcessException {
+        run(source, geopackagePath, band, null);
+    }
 
+    private void run(CoverageSource source, Path geopackagePath, int band, Collection<Double> cellValues)
+            throws IOException, ProcessException {
+        Objects.requireNonNull(source, "source");
+        Objects.requireNonNull(geopackagePath, "geopackagePath");
+
+        String rasterPath = source.isMosaic() ? source.getFiles().toString() : source.getFiles().get(0).toString();
+        String layerName = this.layerName != null ? this.layerName : source.getName();
+        VectorFormat format = outputFormat != null ? outputFormat : VectorFormat.fromPath(geopackagePath);
+        if (append && format != VectorFormat.GEOPACKAGE) {
+            throw new IllegalArgumentException("Append mode is only supported for GeoPackage outputs");
+        }
+        if (incremental) {
+            if (format != VectorFormat.GEOPACKAGE) {
+                throw new IllegalArgumentException("Incremental mode is only supported for GeoPackage outputs");
+            }
+            if (subdivideGridSize <= 0) {
+                throw new IllegalArgumentException("Incremental mode requires a subdivision grid (subdivideGridSize)");
+            }
+            if (minArea > 0 || minHoleArea > 0) {
+                throw new IllegalArgumentException(
+                        "Incremental mode does not support minArea and minHoleArea, they depend on whole polygons");
+            }
+        }
         log.lifecycle(String.format(Locale.ROOT,
                 "Start VectorizeStep(Name: %s rasterPath: %s geopackagePath: %s band: %d cellValues: %s)",
                 taskName,
                 rasterPath,
                 geopackagePath,
                 band,
-                cellValues));
+                cellValues != null ? cellValues : "all"));
+
+        progress.begin(taskName);
+        try {
+            executeInternal(source, geopackagePath, band, cellValues, rasterPath, layerName, format);
+        } catch (IOException | RuntimeException e) {
+            if (Thread.currentThread().isInterrupted()) {
+                cancellation.cancel("interrupted");
+            }
+            if (!cancellation.isCancelled()) {
+                throw e;
+            }
+            removePartialOutput(geopackagePath);
+            throw e instanceof StepCancelledException ? (StepCancelledException) e
+                    : new StepCancelledException("Step " + cancellation.getReason(), e);
+        } finally {
+            progress.finish();
+        }
+        log.lifecycle(String.format(Locale.ROOT,
+                "Finished VectorizeStep(Name: %s rasterPath: %s geopackagePath: %s)",
+                taskName,
+                rasterPath,
+                geopackagePath));
+    }
+
+    /**
+     * Estimates the heap usage of the raster on both paths from its header: on the heap the decoded
+     * raster and the working copy of the extraction, off-heap only the pages being read. The
+     * extracted polygons come on top of either. Only the cells within the window of the region of
+     * interest are counted.
+     */
+    private ExecutionPlan plan(CoverageSource source, ReferencedEnvelope window) throws IOException {
+        RasterHeader header = source.readHeader(window);
+        log.debug("Raster header of " + source.getName() + ": " + header);
+        long inMemory = 2 * header.getBytes();
+        long tiled = 2L * GeoTiffOutput.TILE_SIZE * GeoTiffOutput.TILE_SIZE * header.getBands()
+                * header.getBytesPerSample();
+        if (scratchDirectory != null) {
+            return ExecutionPlan.configured(ExecutionPlan.Mode.TILED, inMemory, tiled, memoryBudget);
+        }
+        return ExecutionPlan.choose(inMemory, tiled, memoryBudget);
+    }
+
+    private void removePartialOutput(Path outputPath) {
+        if (append || incremental) {
+            log.info("Keeping shared GeoPackage " + outputPath + " of cancelled step");
+            return;
+        }
+        try {
+            if (Files.deleteIfExists(outputPath)) {
+                log.info("Removed partial output " + outputPath);
+            }
+        } catch (IOException e) {
+            log.error("Unable to remove partial output " + outputPath, e);
+        }
+    }
+
+    private void executeInternal(CoverageSource source, Path geopackagePath, int band, Collection<Double> cellValues,
+            String rasterPath, String layerName, VectorFormat format) throws IOException, ProcessException {
+        report = new VectorizeReport();
+
+        StepResultCache.Key cacheKey = null;
+        if (resultCache != null && (append || incremental)) {
+            log.info("Result cache is not used in " + (append ? "append" : "incremental") + " mode");
+        } else if (resultCache != null) {
+            cacheKey = resultCache.newKey(VectorizeStep.class.getSimpleName());
+            for (Path file : source.getFiles()) {
+                cacheKey.addFile(file);
+            }
+            cacheKey.add("layerName", layerName)
+                    .add("band", band)
+                    .add("cellValues", cellValues != null ? cellValues : "all")
+                    .add("format", format)
+                    .add("vectorizer", vectorizer)
+                    .add("minArea", minArea)
+                    .add("minHoleArea", minHoleArea)
+                    .add("subdivideGridSize", subdivideGridSize)
+                    .add("subdivideMaxVertices", subdivideMaxVertices)
+                    .add("regionOfInterest", regionOfInterest != null ? regionOfInterest.describe() : null);
+            if (resultCache.restore(cacheKey, geopackagePath)) {
+                log.info("Restored " + geopackagePath + " from result cache " + resultCache.getDirectory());
+                return;
+            }
+        }
 
         // Ensure GeoTools formats are properly initialized before attempting to read coverage
         // This is important for TestKit environment where service loading may differ
@@ -118,97 +557,480 @@ public class VectorizeStep {
         } catch (ClassNotFoundException e) {
             log.lifecycle("JAI-EXT operations class not available: " + e.getMessage());
         }
+        if (vectorizer != Vectorizer.RUN_LENGTH) {
+            log.lifecycle("JAI-EXT enabled: " + Boolean.getBoolean("org.geotools.coverage.jaiext.enabled"));
+            try {
+                Class.forName("org.jaitools.media.jai.vectorize.VectorizeDescriptor");
+                log.lifecycle("jt-vectorize present ✔");
+            } catch (ClassNotFoundException e) {
+                log.lifecycle("jt-vectorize missing ✖");
+            }
+        }
         
-        GridCoverage2D coverage = readCoverage(rasterPath);
+        ReferencedEnvelope window = null;
+        if (regionOfInterest != null) {
+            log.info("Restricting vectorisation to " + regionOfInterest);
+            window = regionOfInterest.windowIn(source.getCoordinateReferenceSystem());
+        }
+        ExecutionPlan plan = plan(source, window);
+        report.setExecutionPlan(plan);
+        log.info("Execution plan: " + plan);
+
+        GridCoverage2D coverage = source.read(window);
         if (coverage == null) {
             throw new IOException("Unable to read raster coverage from " + rasterPath + 
                 ". This may be due to missing format readers in the classpath.");
         }
+        Geometry roi = null;
+        if (regionOfInterest != null && !regionOfInterest.isRectangle()) {
+            roi = regionOfInterest.geometryIn(coverage.getCoordinateReferenceSystem2D());
+        }
         
+        cancellation.throwIfCancelled();
+        TileChecksums checksums = null;
+        String checksumParameters = null;
+        if (incremental) {
+            checksumParameters = checksumParameters(coverage, band, cellValues);
+            progress.phase("checksum grid cells", (long) coverage.getRenderedImage().getWidth()
+                    * coverage.getRenderedImage().getHeight());
+            checksums = TileChecksums.compute(coverage, band, subdivideGridSize, progress, cancellation);
+            TileChecksums previous = loadChecksums(geopackagePath, layerName, checksumParameters);
+            if (previous != null) {
+                update(source, coverage, roi, geopackagePath, band, cellValues, rasterPath, layerName, checksums,
+                        previous, checksumParameters);
+                return;
+            }
+            log.info("Layer " + layerName + " has no checksums for these parameters, rebuilding it");
+        }
+
+        Extraction extraction = extract(coverage, roi, band, cellValues, plan.isTiled(), rasterPath);
+
+        cancellation.throwIfCancelled();
+        List<DissolvedFeature> features = isSubdividing()
+                ? subdivide(extraction.features, extraction.geometryFactory)
+                : extraction.features;
+
+        SimpleFeatureType featureType = extraction.type;
+        TileChecksums writtenChecksums = checksums;
+        String writtenParameters = checksumParameters;
+        progress.phase("write " + features.size() + " features", 0);
+        writeSerializer.write(geopackagePath, () -> {
+            cancellation.throwIfCancelled();  // waiting for the lock may have taken a while
+            if (format == VectorFormat.FLATGEOBUF) {
+                writeToFlatGeobuf(layerName, geopackagePath, featureType, features);
+            } else {
+                writeToGeoPackage(layerName, geopackagePath, featureType, features);
+            }
+            if (writtenChecksums != null) {
+                storeChecksums(geopackagePath, layerName, writtenChecksums, writtenParameters);
+            }
+        });
+
+        if (cacheKey != null) {
+            resultCache.store(cacheKey, geopackagePath);
+        }
+    }
+
+    /**
+     * Vectorises the cell values of a raster into one dissolved multipolygon per value.
+     *
+     * @param materialize whether the raster is first copied off-heap
+     */
+    private Extraction extract(GridCoverage2D coverage, Geometry roi, int band, Collection<Double> cellValues,
+            boolean materialize, String rasterPath) throws IOException, ProcessException {
+        MappedRasterStorage storage = null;
+        long pixels = (long) coverage.getRenderedImage().getWidth() * coverage.getRenderedImage().getHeight();
+        if (materialize) {
+            progress.phase("materialize", 0);
+            storage = new MappedRasterStorage(scratchDirectory != null
+                    ? scratchDirectory
+                    : Path.of(System.getProperty("java.io.tmpdir"), "gretlgt-scratch"));
+            coverage = storage.materialize(coverage);
+        }
+
+        if (cellValues == null) {
+            cellValues = discoverValues(coverage, band);
+        }
+
+        PrecisionModel gridPrecision = GridPrecision.of(coverage.getGridGeometry());
+        if (gridPrecision != null) {
+            log.info("Dissolving in the fixed precision of the raster grid (scale " + gridPrecision.getScale() + ")");
+        } else {
+            log.info("Raster grid has no fixed precision model, dissolving in floating precision");
+        }
+        GeometryFactory geometryFactory = gridPrecision != null ? new GeometryFactory(gridPrecision) : new GeometryFactory();
+
         PolygonExtractionProcess process = new PolygonExtractionProcess();
         List<DissolvedFeature> dissolvedFeatures = new ArrayList<>();
         SimpleFeatureType extractedType = null;
 
-        for (Double cellValue : cellValues) {
-            if (cellValue == null) {
-                throw new IllegalArgumentException("cellValues must not contain null values");
-            }
-            @SuppressWarnings({"rawtypes", "unchecked"})
-            List<Range> classificationRanges = new ArrayList<>();
-            classificationRanges.add(Range.create(cellValue, true, cellValue, true));
+        try {
+            if (vectorizer == Vectorizer.RUN_LENGTH) {
+                if (cellValues.stream().anyMatch(Objects::isNull)) {
+                    throw new IllegalArgumentException("cellValues must not contain null values");
+                }
+                GeometryMask mask = roi != null ? new GeometryMask(RasterReclassify.toPixels(coverage, roi)) : null;
+                progress.phase("scan", pixels);
+                Map<Double, MultiPolygon> traced = new RunLengthVectorizer(geometryFactory, progress, cancellation)
+                        .vectorize(coverage, band, new ArrayList<>(cellValues), mask);
+                for (Map.Entry<Double, MultiPolygon> entry : traced.entrySet()) {
+                    MultiPolygon dissolved = filterTraced(entry.getValue(), entry.getKey(), geometryFactory);
+                    if (!dissolved.isEmpty()) {
+                        dissolvedFeatures.add(new DissolvedFeature(dissolved, entry.getKey()));
+                    }
+                }
+                extractedType = tracedFeatureType(coverage);
+            } else {
+                int classIndex = 0;
+                for (Double cellValue : cellValues) {
+                    if (cellValue == null) {
+                        throw new IllegalArgumentException("cellValues must not contain null values");
+                    }
+                    cancellation.throwIfCancelled();
+                    progress.phase(String.format(Locale.ROOT, "extract %s (%d/%d)", cellValue, ++classIndex,
+                            cellValues.size()), pixels);
+                    @SuppressWarnings({"rawtypes", "unchecked"})
+                    List<Range> classificationRanges = new ArrayList<>();
+                    classificationRanges.add(Range.create(cellValue, true, cellValue, true));
             
-            log.lifecycle("JAI-EXT enabled: " + Boolean.getBoolean("org.geotools.coverage.jaiext.enabled"));
-            try {
-                Class.forName("org.jaitools.media.jai.vectorize.VectorizeDescriptor");
-                log.lifecycle("jt-vectorize present ✔");
-            } catch (ClassNotFoundException e) {
-                log.lifecycle("jt-vectorize missing ✖");
-            }
+                    // Check for null arguments that might cause the error
+                    if (coverage == null) {
+                        throw new IOException("Coverage is null - unable to process raster " + rasterPath);
+                    }
+                    if (Integer.valueOf(band) == null) {
+                        throw new IOException("Band index is null");
+                    }
+                    if (classificationRanges == null) {
+                        throw new IOException("Classification ranges are null");
+                    }
             
-            // Check for null arguments that might cause the error
-            if (coverage == null) {
-                throw new IOException("Coverage is null - unable to process raster " + rasterPath);
+                    SimpleFeatureCollection extracted =
+                            process.execute(coverage, Integer.valueOf(band), Boolean.FALSE, roi, null, classificationRanges, progress);
+
+                    if (extractedType == null) {
+                        extractedType = extracted.getSchema();
+                    }
+
+                    cancellation.throwIfCancelled();
+                    MultiPolygon dissolved = dissolveToMultipolygon(extracted, cellValue, geometryFactory);
+                    if (!dissolved.isEmpty()) {
+                        dissolvedFeatures.add(new DissolvedFeature(dissolved, cellValue));
+                    }
+                    progress.complete();
+                }
             }
-            if (Integer.valueOf(band) == null) {
-                throw new IOException("Band index is null");
+        } finally {
+            if (storage != null) {
+                storage.close();
             }
-            if (classificationRanges == null) {
-                throw new IOException("Classification ranges are null");
+        }
+
+        if (extractedType == null) {
+            throw new IOException("Unable to determine feature type from raster extraction");
+        }
+        if (minArea > 0 || minHoleArea > 0) {
+            log.info("Area filter (minArea: " + minArea + " minHoleArea: " + minHoleArea + "): " + report);
+        }
+        return new Extraction(extractedType, dissolvedFeatures, geometryFactory);
+    }
+
+    /**
+     * Finds the distinct values of a raster band and records them in the report.
+     */
+    private List<Double> discoverValues(GridCoverage2D coverage, int band) {
+        progress.phase("discover values",
+                (long) coverage.getRenderedImage().getWidth() * coverage.getRenderedImage().getHeight());
+        double[] discovered = new CellValueDiscovery(maxDistinctValues, progress, cancellation)
+                .discover(coverage, band);
+        List<Double> cellValues = new ArrayList<>(discovered.length);
+        for (double value : discovered) {
+            cellValues.add(value);
+        }
+        report.setDiscoveredValues(cellValues);
+        log.info(String.format(Locale.ROOT, "Discovered %d distinct value(s): %s", cellValues.size(), cellValues));
+        if (cellValues.isEmpty()) {
+            log.info("Raster band contains only no-data, nothing to vectorise");
+        }
+        return cellValues;
+    }
+
+    private boolean isSubdividing() {
+        return subdivideGridSize > 0 || subdivideMaxVertices > 0;
+    }
+
+    /**
+     * Re-vectorises the grid cells whose checksum changed and replaces their pieces in the layer.
+     * Changed grid cells of a grid row are read as one window, with a margin of one raster cell so
+     * that the cells along the window edge are traced like in a full run. Pieces of the margin are
+     * discarded. The checksums are stored only after the pieces were replaced, so an interrupted
+     * update is repeated by the next run. Without explicit cell values, the values are discovered once
+     * from the whole raster and vectorised in every window.
+     */
+    private void update(CoverageSource source, GridCoverage2D coverage, Geometry roi, Path geopackagePath, int band,
+            Collection<Double> cellValues, String rasterPath, String layerName, TileChecksums checksums,
+            TileChecksums previous, String checksumParameters) throws IOException, ProcessException {
+        Set<String> changed = checksums.changedSince(previous);
+        report.setChangedGridCells(changed.size(), checksums.size());
+        if (changed.isEmpty()) {
+            log.info("Layer " + layerName + " is up to date, no grid cell changed");
+            return;
+        }
+        log.info(String.format(Locale.ROOT, "%d of %d grid cell(s) changed, updating layer %s",
+                changed.size(), checksums.size(), layerName));
+
+        CoordinateReferenceSystem crs = coverage.getCoordinateReferenceSystem2D();
+        Envelope bounds = envelope(coverage);
+        if (regionOfInterest != null) {
+            bounds = bounds.intersection(regionOfInterest.windowIn(crs));
+        }
+        RenderedImage image = coverage.getRenderedImage();
+        double marginX = envelope(coverage).getWidth() / image.getWidth();
+        double marginY = envelope(coverage).getHeight() / image.getHeight();
+
+        Collection<Double> values = cellValues != null ? cellValues : discoverValues(coverage, band);
+        List<Envelope> windows = windows(changed, checksums);
+        List<DissolvedFeature> pieces = new ArrayList<>();
+        int windowIndex = 0;
+        for (Envelope cells : windows) {
+            cancellation.throwIfCancelled();
+            progress.phase(String.format(Locale.ROOT, "update window %d/%d", ++windowIndex, windows.size()), 0);
+            Envelope window = new Envelope(cells);
+            window.expandBy(marginX, marginY);
+            window = window.intersection(bounds);
+            if (window.isNull() || window.getArea() == 0) {
+                continue;
             }
-            
-            SimpleFeatureCollection extracted =
-                    process.execute(coverage, Integer.valueOf(band), Boolean.FALSE, null, null, classificationRanges, null);
+            GridCoverage2D part = source.read(new ReferencedEnvelope(window, crs));
+            Extraction extraction = extract(part, roi, band, values, false, rasterPath);
+            for (DissolvedFeature piece : subdivide(extraction.features, extraction.geometryFactory)) {
+                if (changed.contains(TileChecksums.gridCell(piece.tileId))) {
+                    pieces.add(piece);
+                }
+            }
+        }
+
+        progress.phase("replace " + pieces.size() + " features", 0);
+        writeSerializer.write(geopackagePath, () -> {
+            cancellation.throwIfCancelled();  // waiting for the lock may have taken a while
+            replacePieces(geopackagePath, layerName, changed, pieces);
+            storeChecksums(geopackagePath, layerName, checksums, checksumParameters);
+        });
+    }
 
-            if (extractedType == null) {
-                extractedType = extracted.getSchema();
+    /**
+     * Groups the changed grid cells that still intersect the raster into runs of neighbouring
+     * columns per grid row.
+     *
+     * @return the envelopes of the runs in CRS units
+     */
+    private List<Envelope> windows(Set<String> changed, TileChecksums checksums) {
+        TreeMap<Long, TreeSet<Long>> rows = new TreeMap<>();
+        for (String cell : changed) {
+            if (checksums.contains(cell)) {
+                long[] columnRow = TileChecksums.parseCell(cell);
+                rows.computeIfAbsent(columnRow[1], r -> new TreeSet<>()).add(columnRow[0]);
+            }
+        }
+        List<Envelope> windows = new ArrayList<>();
+        for (Map.Entry<Long, TreeSet<Long>> row : rows.entrySet()) {
+            Long first = null;
+            long last = 0;
+            for (long column : row.getValue()) {
+                if (first != null && column == last + 1) {
+                    last = column;
+                    continue;
+                }
+                if (first != null) {
+                    windows.add(runEnvelope(first, last, row.getKey()));
+                }
+                first = column;
+                last = column;
             }
+            windows.add(runEnvelope(first, last, row.getKey()));
+        }
+        return windows;
+    }
+
+    private Envelope runEnvelope(long firstColumn, long lastColumn, long row) {
+        Envelope envelope = TileChecksums.cellEnvelope(firstColumn, row, subdivideGridSize);
+        envelope.expandToInclude(TileChecksums.cellEnvelope(lastColumn, row, subdivideGridSize));
+        return envelope;
+    }
+
+    /**
+     * Describes everything besides the raster samples that determines the pieces of a grid cell:
+     * the vectorisation parameters and the pixel grid (resolution and alignment).
+     */
+    private String checksumParameters(GridCoverage2D coverage, int band, Collection<Double> cellValues) {
+        RenderedImage image = coverage.getRenderedImage();
+        Envelope envelope = envelope(coverage);
+        double resX = envelope.getWidth() / image.getWidth();
+        double resY = envelope.getHeight() / image.getHeight();
+        return String.format(Locale.ROOT,
+                "band=%d;cellValues=%s;vectorizer=%s;subdivideGridSize=%s;subdivideMaxVertices=%d;"
+                        + "regionOfInterest=%s;resolution=%s,%s;alignment=%d,%d",
+                band,
+                cellValues != null ? StepResultCache.normalize(cellValues) : "all",
+                vectorizer,
+                StepResultCache.normalize(subdivideGridSize),
+                subdivideMaxVertices,
+                regionOfInterest != null ? regionOfInterest.describe() : null,
+                StepResultCache.normalize(resX),
+                StepResultCache.normalize(resY),
+                Math.floorMod(Math.round(envelope.getMinX() / resX * 1000), 1000),
+                Math.floorMod(Math.round(envelope.getMaxY() / resY * 1000), 1000));
+    }
+
+    private static Envelope envelope(GridCoverage2D coverage) {
+        Envelope2D envelope = coverage.getEnvelope2D();
+        return new Envelope(envelope.getMinX(), envelope.getMaxX(), envelope.getMinY(), envelope.getMaxY());
+    }
 
-            MultiPolygon dissolved = dissolveToMultipolygon(extracted);
-            if (!dissolved.isEmpty()) {
-                dissolvedFeatures.add(new DissolvedFeature(dissolved, cellValue));
+    private TileChecksums loadChecksums(Path geopackagePath, String layerName, String parameters) throws IOException {
+        if (!Files.exists(geopackagePath)) {
+            return null;
+        }
+        try (GeoPackage geoPackage = new GeoPackage(geopackagePath.toFile())) {
+            geoPackage.init();
+            if (geoPackage.feature(layerName) == null) {
+                return null;
+            }
+            try (Connection cx = geoPackage.getDataSource().getConnection()) {
+                return TileChecksums.load(cx, layerName, parameters);
             }
+        } catch (SQLException e) {
+            throw new IOException("Unable to read the checksums of layer " + layerName, e);
         }
+    }
 
-        if (extractedType == null) {
-            throw new IOException("Unable to determine feature type from raster extraction");
+    private void storeChecksums(Path geopackagePath, String layerName, TileChecksums checksums, String parameters)
+            throws IOException {
+        try (GeoPackage geoPackage = new GeoPackage(geopackagePath.toFile());
+                Connection cx = geoPackage.getDataSource().getConnection()) {
+            checksums.store(cx, layerName, parameters);
+        } catch (SQLException e) {
+            throw new IOException("Unable to store the checksums of layer " + layerName, e);
         }
+    }
 
-        writeToGeoPackage(rasterPath, geopackagePath, extractedType, dissolvedFeatures);
+    /**
+     * Removes the pieces of the given grid cells from a layer and inserts the new pieces.
+     */
+    private void replacePieces(Path geopackagePath, String layerName, Set<String> cells,
+            List<DissolvedFeature> pieces) throws IOException {
+        try (GeoPackage geoPackage = new GeoPackage(geopackagePath.toFile())) {
+            geoPackage.init();
+            FeatureEntry entry = geoPackage.feature(layerName);
+            if (entry == null) {
+                throw new IOException("Layer " + layerName + " does not exist in " + geopackagePath);
+            }
+            int removed;
+            try (Connection cx = geoPackage.getDataSource().getConnection()) {
+                removed = deletePieces(cx, layerName, cells);
+            } catch (SQLException e) {
+                throw new IOException("Unable to remove changed pieces of layer " + layerName, e);
+            }
 
-        log.lifecycle(String.format(Locale.ROOT,
-                "Finished VectorizeStep(Name: %s rasterPath: %s geopackagePath: %s)",
-                taskName,
-                rasterPath,
-                geopackagePath));
+            Envelope bounds = new Envelope();
+            try (SimpleFeatureWriter writer = geoPackage.writer(entry, true, null, Transaction.AUTO_COMMIT)) {
+                for (DissolvedFeature piece : pieces) {
+                    cancellation.throwIfCancelled();
+                    SimpleFeature feature = writer.next();
+                    feature.setAttribute(entry.getGeometryColumn(), piece.geometry);
+                    feature.setAttribute("value", piece.value);
+                    feature.setAttribute(TILE_ID, piece.tileId);
+                    writer.write();
+                    bounds.expandToInclude(piece.geometry.getEnvelopeInternal());
+                }
+            }
+            if (!bounds.isNull()) {
+                try (Connection cx = geoPackage.getDataSource().getConnection();
+                        PreparedStatement ps = cx.prepareStatement("UPDATE gpkg_contents SET "
+                                + "min_x = min(coalesce(min_x, ?), ?), min_y = min(coalesce(min_y, ?), ?), "
+                                + "max_x = max(coalesce(max_x, ?), ?), max_y = max(coalesce(max_y, ?), ?) "
+                                + "WHERE table_name = ?")) {
+                    double[] values = {bounds.getMinX(), bounds.getMinY(), bounds.getMaxX(), bounds.getMaxY()};
+                    for (int i = 0; i < values.length; i++) {
+                        ps.setDouble(2 * i + 1, values[i]);
+                        ps.setDouble(2 * i + 2, values[i]);
+                    }
+                    ps.setString(9, layerName);
+                    ps.executeUpdate();
+                } catch (SQLException e) {
+                    throw new IOException("Unable to update the extent of layer " + layerName, e);
+                }
+            }
+            log.info(String.format(Locale.ROOT, "Replaced %d feature(s) of %d grid cell(s) by %d feature(s) in %s",
+                    removed, cells.size(), pieces.size(), geopackagePath));
+        }
     }
 
-    private GridCoverage2D readCoverage(Path rasterPath) throws IOException {
-        File rasterFile = rasterPath.toFile();
-        AbstractGridFormat format = GridFormatFinder.findFormat(rasterFile);
-        if (format == null) {
-            throw new IOException("Unable to determine raster format for " + rasterPath);
+    /**
+     * Deletes the features whose {@code tile_id} lies in one of the given grid cells.
+     *
+     * @return the number of deleted features
+     */
+    private static int deletePieces(Connection cx, String layerName, Set<String> cells) throws SQLException {
+        String primaryKey = "fid";
+        try (Statement st = cx.createStatement();
+                ResultSet rs = st.executeQuery("PRAGMA table_info(" + quote(layerName) + ")")) {
+            while (rs.next()) {
+                if (rs.getInt("pk") > 0) {
+                    primaryKey = rs.getString("name");
+                }
+            }
         }
-        GridCoverage2DReader reader = null;
-        try {
-            reader = format.getReader(rasterFile);
-            if (reader == null) {
-                throw new IOException("No reader found for raster " + rasterPath);
+        List<Long> ids = new ArrayList<>();
+        try (Statement st = cx.createStatement();
+                ResultSet rs = st.executeQuery("SELECT " + quote(primaryKey) + ", " + quote(TILE_ID) + " FROM "
+                        + quote(layerName))) {
+            while (rs.next()) {
+                String tileId = rs.getString(2);
+                if (tileId != null && cells.contains(TileChecksums.gridCell(tileId))) {
+                    ids.add(rs.getLong(1));
+                }
             }
-            GridCoverage2D coverage = reader.read(null);
-            if (coverage == null) {
-                throw new IOException("Unable to read raster coverage from " + rasterPath);
+        }
+        boolean autoCommit = cx.getAutoCommit();
+        cx.setAutoCommit(false);
+        try (PreparedStatement ps = cx.prepareStatement(
+                "DELETE FROM " + quote(layerName) + " WHERE " + quote(primaryKey) + " = ?")) {
+            for (long id : ids) {
+                ps.setLong(1, id);
+                ps.addBatch();
             }
-            return coverage;
+            ps.executeBatch();
+            cx.commit();
+        } catch (SQLException | RuntimeException e) {
+            cx.rollback();
+            throw e;
         } finally {
-            if (reader != null) {
-                reader.dispose();
-            }
+            cx.setAutoCommit(autoCommit);
         }
+        return ids.size();
+    }
+
+    /**
+     * Cuts the multipolygons of all cell values into pieces, one cell value per worker.
+     */
+    private List<DissolvedFeature> subdivide(List<DissolvedFeature> dissolvedFeatures, GeometryFactory geometryFactory) {
+        progress.phase("subdivide " + dissolvedFeatures.size() + " class(es)", 0);
+        GeometrySubdivider subdivider = new GeometrySubdivider(geometryFactory, subdivideGridSize,
+                subdivideMaxVertices, cancellation);
+        List<DissolvedFeature> pieces = dissolvedFeatures.parallelStream()
+                .flatMap(feature -> subdivider.subdivide(feature.geometry).stream()
+                        .map(piece -> new DissolvedFeature(piece.geometry, feature.value, piece.tileId)))
+                .collect(Collectors.toList());
+        log.info(String.format(Locale.ROOT, "Subdivided %d cell value(s) into %d features (grid size: %s, max vertices: %d)",
+                dissolvedFeatures.size(), pieces.size(), subdivideGridSize, subdivideMaxVertices));
+        return pieces;
     }
 
-    private MultiPolygon dissolveToMultipolygon(SimpleFeatureCollection extracted) {
-        GeometryFactory geometryFactory = new GeometryFactory();
+    private MultiPolygon dissolveToMultipolygon(SimpleFeatureCollection extracted, double cellValue,
+            GeometryFactory geometryFactory) {
         List<Geometry> geometries = new ArrayList<>();
+        int extractedPolygons = 0;
+        int droppedPolygons = 0;
         try (SimpleFeatureIterator iterator = extracted.features()) {
             while (iterator.hasNext()) {
                 SimpleFeature feature = iterator.next();
@@ -216,18 +1038,95 @@ public class VectorizeStep {
                 if (geometry instanceof Geometry) {
                     Geometry geom = (Geometry) geometry;
                     if (!geom.isEmpty()) {
-                        geometries.add(geom);
+                        extractedPolygons++;
+                        if (minArea > 0 && geom.getArea() < minArea) {
+                            droppedPolygons++;
+                        } else {
+                            geometries.add(geom);
+                        }
                     }
                 }
             }
         }
 
         if (geometries.isEmpty()) {
-            return geometryFactory.createMultiPolygon(new Polygon[0]);
+            return finishClass(geometryFactory.createMultiPolygon(new Polygon[0]), cellValue, extractedPolygons,
+                    droppedPolygons, geometryFactory);
+        }
+
+        PrecisionModel precisionModel = geometryFactory.getPrecisionModel();
+        // cell corners are exact in the grid precision: snap-rounding overlay is robust and output stays on the grid
+        Geometry union = precisionModel.isFloating() ? UnaryUnionOp.union(geometries)
+                : UnaryUnionNG.union(geometryFactory.buildGeometry(geometries), precisionModel);
+        MultiPolygon dissolved = enforceMultiPolygon(union, geometryFactory);
+        return finishClass(dissolved, cellValue, extractedPolygons, droppedPolygons, geometryFactory);
+    }
+
+    private MultiPolygon filterTraced(MultiPolygon traced, double cellValue, GeometryFactory geometryFactory) {
+        List<Polygon> kept = new ArrayList<>();
+        int droppedPolygons = 0;
+        for (int i = 0; i < traced.getNumGeometries(); i++) {
+            Polygon polygon = (Polygon) traced.getGeometryN(i);
+            if (minArea > 0 && polygon.getArea() < minArea) {
+                droppedPolygons++;
+            } else {
+                kept.add(polygon);
+            }
+        }
+        MultiPolygon result = droppedPolygons == 0 ? traced
+                : geometryFactory.createMultiPolygon(kept.toArray(new Polygon[0]));
+        return finishClass(result, cellValue, traced.getNumGeometries(), droppedPolygons, geometryFactory);
+    }
+
+    /**
+     * Fills holes below the minimum hole area and records the statistics of a cell value.
+     */
+    private MultiPolygon finishClass(MultiPolygon dissolved, double cellValue, int extractedPolygons,
+            int droppedPolygons, GeometryFactory geometryFactory) {
+        int droppedHoles = 0;
+        if (minHoleArea > 0 && !dissolved.isEmpty()) {
+            List<Polygon> polygons = new ArrayList<>();
+            STRtree filledHoles = new STRtree();
+            for (int i = 0; i < dissolved.getNumGeometries(); i++) {
+                Polygon polygon = (Polygon) dissolved.getGeometryN(i);
+                List<LinearRing> holes = new ArrayList<>();
+                for (int j = 0; j < polygon.getNumInteriorRing(); j++) {
+                    LinearRing hole = polygon.getInteriorRingN(j);
+                    if (Area.ofRing(hole.getCoordinateSequence()) < minHoleArea) {
+                        filledHoles.insert(hole.getEnvelopeInternal(), hole);
+                        droppedHoles++;
+                    } else {
+                        holes.add(hole);
+                    }
+                }
+                polygons.add(holes.size() == polygon.getNumInteriorRing() ? polygon
+                        : geometryFactory.createPolygon(polygon.getExteriorRing(), holes.toArray(new LinearRing[0])));
+            }
+            if (droppedHoles > 0) {
+                // islands of the same value inside a filled hole are now covered by its shell; the
+                // probe comes from the unfilled polygon, so it never lies in one of its own holes
+                for (int i = polygons.size() - 1; i >= 0; i--) {
+                    Coordinate probe = dissolved.getGeometryN(i).getInteriorPoint().getCoordinate();
+                    for (Object hole : filledHoles.query(new Envelope(probe))) {
+                        if (PointLocation.isInRing(probe, ((LinearRing) hole).getCoordinates())) {
+                            polygons.remove(i);
+                            break;
+                        }
+                    }
+                }
+                dissolved = geometryFactory.createMultiPolygon(polygons.toArray(new Polygon[0]));
+            }
         }
+        report.record(cellValue, extractedPolygons, droppedPolygons, droppedHoles);
+        return dissolved;
+    }
 
-        Geometry union = UnaryUnionOp.union(geometries);
-        return enforceMultiPolygon(union, geometryFactory);
+    private SimpleFeatureType tracedFeatureType(GridCoverage2D coverage) {
+        SimpleFeatureTypeBuilder typeBuilder = new SimpleFeatureTypeBuilder();
+        typeBuilder.setName("traced");
+        typeBuilder.setCRS(coverage.getCoordinateReferenceSystem2D());
+        typeBuilder.add("the_geom", MultiPolygon.class);
+        return typeBuilder.buildFeatureType();
     }
 
     private MultiPolygon enforceMultiPolygon(Geometry geometry, GeometryFactory factory) {
@@ -264,9 +1163,8 @@ public class VectorizeStep {
         }
     }
 
-    private void writeToGeoPackage(Path rasterPath, Path geopackagePath, SimpleFeatureType extractedType,
+    private void writeToGeoPackage(String layerName, Path geopackagePath, SimpleFeatureType extractedType,
             List<DissolvedFeature> dissolvedFeatures) throws IOException {
-        String layerName = deriveLayerName(rasterPath);
         GeometryDescriptor geometryDescriptor = extractedType.getGeometryDescriptor();
         CoordinateReferenceSystem crs = geometryDescriptor != null ? geometryDescriptor.getCoordinateReferenceSystem() : null;
 
@@ -280,6 +1178,9 @@ public class VectorizeStep {
         for (DissolvedFeature featureData : dissolvedFeatures) {
             builder.set(geometryName, featureData.geometry);
             builder.set("value", featureData.value);
+            if (featureData.tileId != null) {
+                builder.set(TILE_ID, featureData.tileId);
+            }
             collection.add(builder.buildFeature(Integer.toString(featureIndex++)));
 
             if (bounds == null) {
@@ -295,7 +1196,9 @@ public class VectorizeStep {
         if (parent != null) {
             Files.createDirectories(parent.toPath());
         }
-        Files.deleteIfExists(geopackagePath);
+        if (!append && !incremental) {
+            Files.deleteIfExists(geopackagePath);
+        }
 
         FeatureEntry entry = new FeatureEntry();
         entry.setDataType(Entry.DataType.Feature);
@@ -307,7 +1210,7 @@ public class VectorizeStep {
         }
         if (crs != null) {
             try {
-                Integer srid = CRS.lookupEpsgCode(crs, true);
+                Integer srid = EmbeddedCrs.lookupEpsgCode(crs);
                 if (srid != null) {
                     entry.setSrid(srid);
                 }
@@ -318,14 +1221,109 @@ public class VectorizeStep {
 
         try (GeoPackage geoPackage = new GeoPackage(geopackageFile)) {
             geoPackage.init();
+            if ((append || incremental) && dropLayer(geoPackage, layerName)) {
+                log.info("Replacing layer " + layerName + " in " + geopackagePath);
+            }
             geoPackage.add(entry, collection);
         }
     }
 
+    /**
+     * Removes a feature layer including its spatial index and metadata rows.
+     *
+     * @return {@code true} if the layer existed
+     */
+    private boolean dropLayer(GeoPackage geoPackage, String layerName) throws IOException {
+        try (Connection cx = geoPackage.getDataSource().getConnection()) {
+            boolean exists;
+            try (PreparedStatement ps = cx.prepareStatement("SELECT 1 FROM gpkg_contents WHERE table_name = ?")) {
+                ps.setString(1, layerName);
+                try (ResultSet rs = ps.executeQuery()) {
+                    exists = rs.next();
+                }
+            }
+            if (!exists) {
+                return false;
+            }
+
+            List<String> geometryColumns = new ArrayList<>();
+            try (PreparedStatement ps = cx.prepareStatement(
+                    "SELECT column_name FROM gpkg_geometry_columns WHERE table_name = ?")) {
+                ps.setString(1, layerName);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        geometryColumns.add(rs.getString(1));
+                    }
+                }
+            }
+            try (Statement st = cx.createStatement()) {
+                for (String geometryColumn : geometryColumns) {
+                    st.execute("DROP TABLE IF EXISTS " + quote("rtree_" + layerName + "_" + geometryColumn));
+                }
+                st.execute("DROP TABLE IF EXISTS " + quote(layerName));
+            }
+            for (String metadataTable : List.of("gpkg_geometry_columns", "gpkg_extensions", "gpkg_data_columns",
+                    "gpkg_ogr_contents", "gpkg_contents", TileChecksums.TABLE)) {
+                if (!tableExists(cx, metadataTable)) {
+                    continue;
+                }
+                try (PreparedStatement ps = cx.prepareStatement(
+                        "DELETE FROM " + metadataTable + " WHERE table_name = ?")) {
+                    ps.setString(1, layerName);
+                    ps.executeUpdate();
+                }
+            }
+            return true;
+        } catch (SQLException e) {
+            throw new IOException("Unable to replace layer " + layerName, e);
+        }
+    }
+
+    private static boolean tableExists(Connection cx, String table) throws SQLException {
+        try (PreparedStatement ps = cx.prepareStatement(
+                "SELECT 1 FROM sqlite_master WHERE type = 'table' AND name = ?")) {
+            ps.setString(1, table);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next();
+            }
+        }
+    }
+
+    private static String quote(String identifier) {
+        return "\"" + identifier.replace("\"", "\"\"") + "\"";
+    }
+
+    private void writeToFlatGeobuf(String layerName, Path outputPath, SimpleFeatureType extractedType,
+            List<DissolvedFeature> dissolvedFeatures) throws IOException {
+        GeometryDescriptor geometryDescriptor = extractedType.getGeometryDescriptor();
+        CoordinateReferenceSystem crs = geometryDescriptor != null ? geometryDescriptor.getCoordinateReferenceSystem() : null;
+        Integer srid = null;
+        if (crs != null) {
+            try {
+                srid = EmbeddedCrs.lookupEpsgCode(crs);
+            } catch (FactoryException e) {
+                throw new IOException("Unable to determine SRID for FlatGeobuf header", e);
+            }
+        }
+
+        List<FlatGeobufWriter.Column> columns = new ArrayList<>();
+        columns.add(new FlatGeobufWriter.Column("value", FlatGeobufWriter.ColumnType.DOUBLE));
+        if (isSubdividing()) {
+            columns.add(new FlatGeobufWriter.Column(TILE_ID, FlatGeobufWriter.ColumnType.STRING));
+        }
+        try (FlatGeobufWriter writer = new FlatGeobufWriter(outputPath, layerName, srid, columns)) {
+            for (DissolvedFeature featureData : dissolvedFeatures) {
+                cancellation.throwIfCancelled();
+                writer.write(featureData.geometry, isSubdividing()
+                        ? new Object[] {featureData.value, featureData.tileId}
+                        : new Object[] {featureData.value});
+            }
+        }
+    }
+
     private SimpleFeatureType buildTargetType(String layerName, GeometryDescriptor sourceGeometry,
             CoordinateReferenceSystem crs) {
-        org.geotools.feature.simple.SimpleFeatureTypeBuilder typeBuilder =
-                new org.geotools.feature.simple.SimpleFeatureTypeBuilder();
+        SimpleFeatureTypeBuilder typeBuilder = new SimpleFeatureTypeBuilder();
         typeBuilder.setName(layerName);
         if (crs != null) {
             typeBuilder.setCRS(crs);
@@ -333,29 +1331,37 @@ public class VectorizeStep {
         String geometryName = sourceGeometry != null ? sourceGeometry.getLocalName() : "the_geom";
         typeBuilder.add(geometryName, MultiPolygon.class);
         typeBuilder.add("value", Double.class);
+        if (isSubdividing()) {
+            typeBuilder.add(TILE_ID, String.class);
+        }
         return typeBuilder.buildFeatureType();
     }
 
-    private String deriveLayerName(Path rasterPath) {
-        Path fileName = rasterPath.getFileName();
-        if (fileName == null) {
-            return "vectorized";
-        }
-        String name = fileName.toString();
-        int dotIndex = name.lastIndexOf('.');
-        if (dotIndex > 0) {
-            return name.substring(0, dotIndex);
+    private static final class Extraction {
+        private final SimpleFeatureType type;
+        private final List<DissolvedFeature> features;
+        private final GeometryFactory geometryFactory;
+
+        private Extraction(SimpleFeatureType type, List<DissolvedFeature> features, GeometryFactory geometryFactory) {
+            this.type = type;
+            this.features = features;
+            this.geometryFactory = geometryFactory;
         }
-        return name;
     }
 
     private static final class DissolvedFeature {
         private final MultiPolygon geometry;
         private final double value;
+        private final String tileId;
 
         private DissolvedFeature(MultiPolygon geometry, double value) {
+            this(geometry, value, null);
+        }
+
+        private DissolvedFeature(MultiPolygon geometry, double value, String tileId) {
             this.geometry = geometry;
             this.value = value;
+            this.tileId = tileId;
         }
     }
 }
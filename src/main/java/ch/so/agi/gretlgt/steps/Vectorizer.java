@@ -0,0 +1,35 @@
+package ch.so.agi.gretlgt.steps;
+
+import java.util.Locale;
+
+/**
+ * Algorithms available in {@link VectorizeStep} to turn raster cells into polygons.
+ */
+public enum Vectorizer {
+    /**
+     * {@code PolygonExtractionProcess} (JAI) extracts one polygon per region, which are dissolved
+     * with an overlay union.
+     */
+    JAI,
+
+    /**
+     * Run-length encoding and boundary tracing; produces the dissolved multipolygons directly.
+     */
+    RUN_LENGTH;
+
+    /**
+     * Parses a vectorizer name (case-insensitive, {@code -} and {@code _} are equivalent).
+     *
+     * @param name e.g. {@code "jai"} or {@code "run-length"}
+     * @return the vectorizer
+     */
+    public static Vectorizer fromName(String name) {
+        String normalized = name.trim().replace('-', '_').toUpperCase(Locale.ROOT);
+        for (Vectorizer vectorizer : values()) {
+            if (vectorizer.name().equals(normalized)) {
+                return vectorizer;
+            }
+        }
+        throw new IllegalArgumentException("Unknown vectorizer: " + name);
+    }
+}
@@ -0,0 +1,385 @@
+package ch.so.agi.gretlgt.steps;
+
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+
+import org.opengis.referencing.operation.MathTransform;
+import org.opengis.referencing.operation.TransformException;
+
+/**
+ * {@link TileKernel} that warps a source image into the target grid (generator: it reads the source
+ * window it needs itself).
+ * <p>
+ * The pixel transform (target grid → target CRS → source CRS → source grid) is expensive, so it is
+ * evaluated exactly only on a grid of nodes every {@value #GRID_STEP} pixels of the output image and
+ * interpolated bilinearly in between. Grid cells where the interpolation at the cell centre deviates
+ * by more than {@value #TOLERANCE} source pixels from the exact position are transformed per pixel.
+ * The grid is computed once for the whole output image (16 bytes per {@value #GRID_STEP}x{@value #GRID_STEP}
+ * pixels) and shared by all tiles.
+ * </p>
+ */
+final class WarpKernel implements TileKernel {
+    static final int GRID_STEP = 16;
+    static final double TOLERANCE = 0.125;
+
+    private final RenderedImage source;
+    private final Rectangle sourceBounds;
+    private final Rectangle bounds;
+    private final MathTransform pixelTransform;
+    private final Resampling resampling;
+    private final double[] sourceNoData;
+    private final double noData;
+    private final int nodesX;
+    private final int nodesY;
+    /** Source pixel position ({@code x, y}) of every grid node, row by row. */
+    private final double[] nodes;
+    /** Grid cells whose pixels are transformed exactly instead of interpolated, row by row. */
+    private final boolean[] exactCells;
+
+    /**
+     * @param source         the source image
+     * @param bounds         bounds of the output image in target pixel coordinates
+     * @param pixelTransform maps target pixel coordinates to source pixel coordinates (corner based)
+     * @param resampling     the resampling method
+     * @param sourceNoData   no-data value per source band, {@code NaN} if none
+     * @param noData         value for target cells without valid source cells
+     */
+    WarpKernel(RenderedImage source, Rectangle bounds, MathTransform pixelTransform, Resampling resampling,
+            double[] sourceNoData, double noData) {
+        this.source = source;
+        this.sourceBounds = new Rectangle(source.getMinX(), source.getMinY(), source.getWidth(), source.getHeight());
+        this.bounds = new Rectangle(bounds);
+        this.pixelTransform = pixelTransform;
+        this.resampling = resampling;
+        this.sourceNoData = sourceNoData.clone();
+        this.noData = noData;
+        this.nodesX = (bounds.width + GRID_STEP - 1) / GRID_STEP + 1;
+        this.nodesY = (bounds.height + GRID_STEP - 1) / GRID_STEP + 1;
+        this.nodes = new double[nodesX * nodesY * 2];
+        this.exactCells = new boolean[(nodesX - 1) * (nodesY - 1)];
+        buildGrid();
+    }
+
+    @Override
+    public void compute(Raster[] sources, WritableRaster target, Rectangle region) {
+        int w = region.width;
+        int h = region.height;
+        double[] sx = new double[w * h];
+        double[] sy = new double[w * h];
+        double[] footprint = locate(region, sx, sy);
+        double halfX = resampling == Resampling.MODE ? footprint[0] / 2 : 0;
+        double halfY = resampling == Resampling.MODE ? footprint[1] / 2 : 0;
+
+        Rectangle window = window(sx, sy, halfX + 1, halfY + 1);
+        double[] row = new double[w];
+        if (window.isEmpty()) {
+            Arrays.fill(row, noData);
+            for (int b = 0; b < target.getNumBands(); b++) {
+                for (int y = 0; y < h; y++) {
+                    target.setSamples(region.x, region.y + y, w, 1, b, row);
+                }
+            }
+            return;
+        }
+
+        Raster data = source.getData(window);
+        boolean mode = resampling == Resampling.MODE && (halfX >= 0.5 || halfY >= 0.5);
+        double[] modeBuffer = mode ? new double[modeCapacity(halfX, halfY)] : null;
+        for (int b = 0; b < target.getNumBands(); b++) {
+            double[] samples = data.getSamples(window.x, window.y, window.width, window.height, b, (double[]) null);
+            double missing = sourceNoData[b];
+            for (int i = 0; i < samples.length; i++) {
+                if (samples[i] == missing) {
+                    samples[i] = Double.NaN;
+                }
+            }
+            for (int y = 0; y < h; y++) {
+                for (int x = 0; x < w; x++) {
+                    int i = y * w + x;
+                    double value;
+                    if (Double.isNaN(sx[i]) || Double.isNaN(sy[i])) {
+                        value = Double.NaN;
+                    } else if (resampling == Resampling.BILINEAR) {
+                        value = bilinear(samples, window, sx[i], sy[i]);
+                    } else if (mode) {
+                        value = mode(samples, window, sx[i], sy[i], halfX, halfY, modeBuffer);
+                    } else {
+                        value = nearest(samples, window, sx[i], sy[i]);
+                    }
+                    row[x] = Double.isNaN(value) ? noData : value;
+                }
+                target.setSamples(region.x, region.y + y, w, 1, b, row);
+            }
+        }
+    }
+
+    /**
+     * Transforms the grid nodes of the output image and decides per grid cell whether bilinear
+     * interpolation between its corners is accurate enough.
+     */
+    private void buildGrid() {
+        for (int j = 0; j < nodesY; j++) {
+            for (int i = 0; i < nodesX; i++) {
+                int k = (j * nodesX + i) * 2;
+                nodes[k] = bounds.x + nodeOffset(i, bounds.width) + 0.5;
+                nodes[k + 1] = bounds.y + nodeOffset(j, bounds.height) + 0.5;
+            }
+        }
+        transform(nodes, nodes.length / 2);
+
+        int cells = exactCells.length;
+        double[] centres = new double[cells * 2];
+        for (int j = 0; j < nodesY - 1; j++) {
+            for (int i = 0; i < nodesX - 1; i++) {
+                int c = (j * (nodesX - 1) + i) * 2;
+                centres[c] = bounds.x + (nodeOffset(i, bounds.width) + nodeOffset(i + 1, bounds.width)) / 2.0 + 0.5;
+                centres[c + 1] = bounds.y + (nodeOffset(j, bounds.height) + nodeOffset(j + 1, bounds.height)) / 2.0
+                        + 0.5;
+            }
+        }
+        transform(centres, cells);
+
+        for (int j = 0; j < nodesY - 1; j++) {
+            for (int i = 0; i < nodesX - 1; i++) {
+                int c = j * (nodesX - 1) + i;
+                int k00 = (j * nodesX + i) * 2;
+                int k10 = k00 + 2;
+                int k01 = k00 + nodesX * 2;
+                int k11 = k01 + 2;
+                boolean exact = false;
+                for (int k : new int[] {k00, k10, k01, k11}) {
+                    exact |= Double.isNaN(nodes[k]) || Double.isNaN(nodes[k + 1]);
+                }
+                boolean degenerate = nodeOffset(i + 1, bounds.width) == nodeOffset(i, bounds.width)
+                        || nodeOffset(j + 1, bounds.height) == nodeOffset(j, bounds.height);
+                if (!exact && !degenerate) {
+                    double ix = (nodes[k00] + nodes[k10] + nodes[k01] + nodes[k11]) / 4;
+                    double iy = (nodes[k00 + 1] + nodes[k10 + 1] + nodes[k01 + 1] + nodes[k11 + 1]) / 4;
+                    exact = !(Math.abs(centres[2 * c] - ix) <= TOLERANCE
+                            && Math.abs(centres[2 * c + 1] - iy) <= TOLERANCE);
+                }
+                exactCells[c] = exact;
+            }
+        }
+    }
+
+    /**
+     * @return the pixel offset of grid node {@code index} from the image origin; the last node lies on
+     *         the last pixel
+     */
+    private static int nodeOffset(int index, int size) {
+        return Math.min(index * GRID_STEP, size - 1);
+    }
+
+    /**
+     * Fills the source pixel position of every target pixel centre in {@code region}; positions that
+     * cannot be transformed are {@code NaN}.
+     *
+     * @return the approximate size of a target cell in source pixels ({@code x, y})
+     */
+    private double[] locate(Rectangle region, double[] sx, double[] sy) {
+        int w = region.width;
+        int h = region.height;
+        int ox = region.x - bounds.x;
+        int oy = region.y - bounds.y;
+        int firstColumn = ox / GRID_STEP;
+        int firstRow = oy / GRID_STEP;
+        int lastColumn = Math.min(nodesX - 2, (ox + w - 1) / GRID_STEP);
+        int lastRow = Math.min(nodesY - 2, (oy + h - 1) / GRID_STEP);
+
+        for (int j = firstRow; j <= lastRow; j++) {
+            int y0 = nodeOffset(j, bounds.height);
+            int y1 = nodeOffset(j + 1, bounds.height);
+            int yFrom = Math.max(y0, oy);
+            int yTo = Math.min(j == nodesY - 2 ? y1 : y1 - 1, oy + h - 1);
+            for (int i = firstColumn; i <= lastColumn; i++) {
+                int x0 = nodeOffset(i, bounds.width);
+                int x1 = nodeOffset(i + 1, bounds.width);
+                int xFrom = Math.max(x0, ox);
+                int xTo = Math.min(i == nodesX - 2 ? x1 : x1 - 1, ox + w - 1);
+                if (xFrom > xTo || yFrom > yTo) {
+                    continue;
+                }
+                if (exactCells[j * (nodesX - 1) + i]) {
+                    int count = (xTo - xFrom + 1) * (yTo - yFrom + 1);
+                    double[] points = new double[count * 2];
+                    int p = 0;
+                    for (int y = yFrom; y <= yTo; y++) {
+                        for (int x = xFrom; x <= xTo; x++) {
+                            points[p++] = bounds.x + x + 0.5;
+                            points[p++] = bounds.y + y + 0.5;
+                        }
+                    }
+                    transform(points, count);
+                    p = 0;
+                    for (int y = yFrom; y <= yTo; y++) {
+                        for (int x = xFrom; x <= xTo; x++) {
+                            sx[(y - oy) * w + (x - ox)] = points[p++];
+                            sy[(y - oy) * w + (x - ox)] = points[p++];
+                        }
+                    }
+                } else {
+                    int k00 = (j * nodesX + i) * 2;
+                    int k10 = k00 + 2;
+                    int k01 = k00 + nodesX * 2;
+                    int k11 = k01 + 2;
+                    for (int y = yFrom; y <= yTo; y++) {
+                        double ty = y1 > y0 ? (double) (y - y0) / (y1 - y0) : 0;
+                        for (int x = xFrom; x <= xTo; x++) {
+                            double tx = x1 > x0 ? (double) (x - x0) / (x1 - x0) : 0;
+                            int i2 = (y - oy) * w + (x - ox);
+                            sx[i2] = lerp(lerp(nodes[k00], nodes[k10], tx), lerp(nodes[k01], nodes[k11], tx), ty);
+                            sy[i2] = lerp(lerp(nodes[k00 + 1], nodes[k10 + 1], tx),
+                                    lerp(nodes[k01 + 1], nodes[k11 + 1], tx), ty);
+                        }
+                    }
+                }
+            }
+        }
+
+        // size of a target cell in source pixels, from the first grid cell of the tile
+        int k00 = (firstRow * nodesX + firstColumn) * 2;
+        int k10 = k00 + 2;
+        int k01 = k00 + nodesX * 2;
+        double dx = Math.max(1, nodeOffset(firstColumn + 1, bounds.width) - nodeOffset(firstColumn, bounds.width));
+        double dy = Math.max(1, nodeOffset(firstRow + 1, bounds.height) - nodeOffset(firstRow, bounds.height));
+        double cellX = (Math.abs(nodes[k10] - nodes[k00]) + Math.abs(nodes[k01] - nodes[k00])) / dx;
+        double cellY = (Math.abs(nodes[k10 + 1] - nodes[k00 + 1]) + Math.abs(nodes[k01 + 1] - nodes[k00 + 1])) / dy;
+        return new double[] {Double.isFinite(cellX) ? cellX : 1, Double.isFinite(cellY) ? cellY : 1};
+    }
+
+    private void transform(double[] points, int count) {
+        try {
+            pixelTransform.transform(points, 0, points, 0, count);
+        } catch (TransformException e) {
+            // transform point by point, points outside the domain of the projection become NaN
+            double[] point = new double[2];
+            for (int p = 0; p < count; p++) {
+                point[0] = points[2 * p];
+                point[1] = points[2 * p + 1];
+                try {
+                    pixelTransform.transform(point, 0, point, 0, 1);
+                    points[2 * p] = point[0];
+                    points[2 * p + 1] = point[1];
+                } catch (TransformException outside) {
+                    points[2 * p] = Double.NaN;
+                    points[2 * p + 1] = Double.NaN;
+                }
+            }
+        }
+    }
+
+    private static double lerp(double a, double b, double t) {
+        return a + (b - a) * t;
+    }
+
+    private Rectangle window(double[] sx, double[] sy, double marginX, double marginY) {
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < sx.length; i++) {
+            if (!Double.isNaN(sx[i]) && !Double.isNaN(sy[i])) {
+                minX = Math.min(minX, sx[i]);
+                maxX = Math.max(maxX, sx[i]);
+                minY = Math.min(minY, sy[i]);
+                maxY = Math.max(maxY, sy[i]);
+            }
+        }
+        if (minX > maxX) {
+            return new Rectangle();
+        }
+        int x0 = (int) Math.floor(minX - marginX);
+        int y0 = (int) Math.floor(minY - marginY);
+        int x1 = (int) Math.ceil(maxX + marginX);
+        int y1 = (int) Math.ceil(maxY + marginY);
+        Rectangle window = new Rectangle(x0, y0, x1 - x0 + 1, y1 - y0 + 1).intersection(sourceBounds);
+        return window.isEmpty() ? new Rectangle() : window;
+    }
+
+    private static double sample(double[] samples, Rectangle window, int x, int y) {
+        if (x < window.x || y < window.y || x >= window.x + window.width || y >= window.y + window.height) {
+            return Double.NaN;
+        }
+        return samples[(y - window.y) * window.width + (x - window.x)];
+    }
+
+    private static double nearest(double[] samples, Rectangle window, double sx, double sy) {
+        return sample(samples, window, (int) Math.floor(sx), (int) Math.floor(sy));
+    }
+
+    private double bilinear(double[] samples, Rectangle window, double sx, double sy) {
+        double fx = sx - 0.5;
+        double fy = sy - 0.5;
+        int x0 = (int) Math.floor(fx);
+        int y0 = (int) Math.floor(fy);
+        double tx = fx - x0;
+        double ty = fy - y0;
+        if (!sourceBounds.contains(Math.floor(sx), Math.floor(sy))) {
+            return Double.NaN;
+        }
+        double sum = 0;
+        double weights = 0;
+        for (int dy = 0; dy <= 1; dy++) {
+            for (int dx = 0; dx <= 1; dx++) {
+                double value = sample(samples, window, x0 + dx, y0 + dy);
+                if (!Double.isNaN(value)) {
+                    double weight = (dx == 0 ? 1 - tx : tx) * (dy == 0 ? 1 - ty : ty);
+                    sum += weight * value;
+                    weights += weight;
+                }
+            }
+        }
+        return weights > 0 ? sum / weights : Double.NaN;
+    }
+
+    private static double mode(double[] samples, Rectangle window, double sx, double sy, double halfX, double halfY,
+            double[] buffer) {
+        int x0 = (int) Math.ceil(sx - halfX - 0.5);
+        int x1 = Math.max(x0 + 1, (int) Math.ceil(sx + halfX - 0.5));
+        int y0 = (int) Math.ceil(sy - halfY - 0.5);
+        int y1 = Math.max(y0 + 1, (int) Math.ceil(sy + halfY - 0.5));
+        if ((long) (x1 - x0) * (y1 - y0) > buffer.length) {
+            throw new IllegalStateException("Mode window of " + (x1 - x0) + "x" + (y1 - y0)
+                    + " source cells exceeds the buffer of " + buffer.length + " samples");
+        }
+        int count = 0;
+        for (int y = y0; y < y1; y++) {
+            for (int x = x0; x < x1; x++) {
+                double value = sample(samples, window, x, y);
+                if (!Double.isNaN(value)) {
+                    buffer[count++] = value;
+                }
+            }
+        }
+        if (count == 0) {
+            return Double.NaN;
+        }
+        Arrays.sort(buffer, 0, count);
+        double best = buffer[0];
+        int bestRun = 0;
+        for (int start = 0; start < count; ) {
+            int end = start;
+            while (end < count && buffer[end] == buffer[start]) {
+                end++;
+            }
+            if (end - start > bestRun) {
+                bestRun = end - start;
+                best = buffer[start];
+            }
+            start = end;
+        }
+        return best;
+    }
+
+    /**
+     * @return the largest number of source cells in the mode window of a target cell with the given
+     *         half footprint
+     */
+    private static int modeCapacity(double halfX, double halfY) {
+        return ((int) Math.ceil(2 * halfX) + 2) * ((int) Math.ceil(2 * halfY) + 2);
+    }
+}
@@ -0,0 +1,35 @@
+package ch.so.agi.gretlgt.steps;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Serialises writes to shared output files, so that several steps can update the same GeoPackage
+ * without corrupting it.
+ */
+@FunctionalInterface
+public interface WriteSerializer {
+
+    /**
+     * Default serializer: one lock per file within the JVM plus an OS file lock on a lock file in
+     * the temporary directory against concurrent writers in other processes.
+     */
+    WriteSerializer LOCKING = new LockingWriteSerializer();
+
+    /**
+     * Runs {@code action} while no other write to {@code target} is in progress.
+     *
+     * @param target the file being written
+     * @param action the write
+     * @throws IOException if the action fails
+     */
+    void write(Path target, WriteAction action) throws IOException;
+
+    /**
+     * A write to a shared file.
+     */
+    @FunctionalInterface
+    interface WriteAction {
+        void run() throws IOException;
+    }
+}
@@ -0,0 +1,156 @@
+package ch.so.agi.gretlgt.tasks;
+
+import ch.so.agi.gretlgt.logging.GretlLogger;
+import ch.so.agi.gretlgt.logging.LogEnvironment;
+import ch.so.agi.gretlgt.services.CoverageCacheService;
+import ch.so.agi.gretlgt.steps.CancellationToken;
+import ch.so.agi.gretlgt.steps.CoverageSource;
+import ch.so.agi.gretlgt.steps.RasterCalcStep;
+import ch.so.agi.gretlgt.steps.StepProgress;
+import ch.so.agi.gretlgt.steps.StepResultCache;
+import ch.so.agi.gretlgt.utils.GradleProgressSink;
+import ch.so.agi.gretlgt.utils.TaskUtil;
+
+import org.gradle.api.DefaultTask;
+import org.gradle.api.GradleException;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.provider.MapProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.api.tasks.CacheableTask;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.InputFiles;
+import org.gradle.api.tasks.Internal;
+import org.gradle.api.tasks.OutputFile;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
+import org.gradle.api.tasks.TaskAction;
+import org.opengis.referencing.FactoryException;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+@CacheableTask
+public abstract class RasterCalc extends DefaultTask {
+    private GretlLogger log;
+
+    private static final double DEFAULT_NO_DATA = -9999d;
+
+    public RasterCalc() {
+        getNoData().convention(DEFAULT_NO_DATA);
+    }
+
+    /**
+     * Input-Rasterdateien nach dem Namen, unter dem sie im Ausdruck verwendet werden, z.B.
+     * {@code [a: file('laerm.tif'), b: file('zonen.tif')]}. Die Raster müssen dasselbe
+     * Koordinatensystem, dieselbe Ausdehnung und dieselbe Auflösung haben. Es wird jeweils das erste
+     * Band verwendet.
+     */
+    @Internal
+    public abstract MapProperty<String, File> getInputRasters();
+
+    /**
+     * Die Input-Rasterdateien (für die Up-to-date-Prüfung).
+     */
+    @InputFiles
+    @PathSensitive(PathSensitivity.NAME_ONLY)
+    public List<File> getInputRasterFiles() {
+        return new ArrayList<>(new TreeMap<>(getInputRasters().get()).values());
+    }
+
+    /**
+     * Die Zuordnung der Namen zu den Input-Rasterdateien (für die Up-to-date-Prüfung).
+     */
+    @Input
+    public Map<String, String> getInputRasterNames() {
+        Map<String, String> names = new TreeMap<>();
+        getInputRasters().get().forEach((name, file) -> names.put(name, file.getName()));
+        return names;
+    }
+
+    /**
+     * Map-Algebra-Ausdruck, der pro Rasterzelle ausgewertet wird, z.B. {@code a > 60 && b < 3 ? 1 : 0}.
+     * Unterstützt werden Zahlen, die Namen der Input-Raster, {@code + - * / %}, Vergleiche,
+     * {@code && || !}, {@code ? :}, Klammern sowie die Funktionen {@code abs, sqrt, floor, ceil, round,
+     * log, exp, min, max, pow}.
+     */
+    @Input
+    public abstract Property<String> getExpression();
+
+    /**
+     * Output-Rasterdatei (gekachelte GeoTIFF-Datei mit Float-Werten).
+     */
+    @OutputFile
+    public abstract RegularFileProperty getOutputRaster();
+
+    /**
+     * NoData-Wert der Output-Rasterdatei. Default: {@code -9999}.
+     */
+    @Input
+    public abstract Property<Double> getNoData();
+
+    /**
+     * Anzahl Kacheln, die dem Schreiben voraus berechnet werden. Default: doppelte Anzahl Prozessoren.
+     */
+    @Internal
+    public abstract Property<Integer> getTilesInFlight();
+
+    /**
+     * Optionales Verzeichnis für den inhaltsadressierten Resultat-Cache des Steps.
+     */
+    @Internal
+    public abstract DirectoryProperty getResultCacheDirectory();
+
+    /**
+     * Build-Service mit dem Cache der dekodierten Raster, den alle Raster-Tasks eines Builds teilen.
+     * Wird vom Plugin gesetzt.
+     */
+    @Internal
+    public abstract Property<CoverageCacheService> getCoverageCache();
+
+    @TaskAction
+    public void execute() {
+        log = LogEnvironment.getLogger(RasterCalc.class);
+
+        RasterCalcStep step = new RasterCalcStep(getName());
+        step.setProgress(new StepProgress(GradleProgressSink.forTask(this, log)));
+        if (getTimeout().isPresent()) {
+            step.setCancellationToken(CancellationToken.withTimeout(getTimeout().get()));
+        }
+        if (getResultCacheDirectory().isPresent()) {
+            step.setResultCache(new StepResultCache(getResultCacheDirectory().get().getAsFile().toPath()));
+        }
+        if (getTilesInFlight().isPresent()) {
+            step.setTilesInFlight(getTilesInFlight().get());
+        }
+        step.setNoData(getNoData().get());
+
+        Map<String, File> rasters = getInputRasters().get();
+        if (rasters.isEmpty()) {
+            throw new IllegalStateException("inputRasters must not be empty");
+        }
+        Path outputPath = getOutputRaster().get().getAsFile().toPath();
+
+        try {
+            Map<String, CoverageSource> inputs = new LinkedHashMap<>();
+            for (Map.Entry<String, File> raster : rasters.entrySet()) {
+                CoverageSource source = CoverageSource.of(raster.getValue().toPath());
+                if (getCoverageCache().isPresent()) {
+                    source.setCoverageCache(getCoverageCache().get().getCache());
+                }
+                inputs.put(raster.getKey(), source);
+            }
+            step.execute(inputs, getExpression().get(), outputPath);
+        } catch (IOException | FactoryException e) {
+            log.error("Failed to calculate raster from " + rasters, e);
+            GradleException ge = TaskUtil.toGradleException(e);
+            throw ge;
+        }
+    }
+}
@@ -2,26 +2,48 @@ package ch.so.agi.gretlgt.tasks;
 
 import ch.so.agi.gretlgt.logging.GretlLogger;
 import ch.so.agi.gretlgt.logging.LogEnvironment;
+import ch.so.agi.gretlgt.services.CoverageCacheService;
+import ch.so.agi.gretlgt.steps.BandClassification;
+import ch.so.agi.gretlgt.steps.RasterReclassify;
 import ch.so.agi.gretlgt.steps.RasterReclassifyStep;
+import ch.so.agi.gretlgt.steps.CancellationToken;
+import ch.so.agi.gretlgt.steps.CoverageSource;
+import ch.so.agi.gretlgt.steps.StepProgress;
+import ch.so.agi.gretlgt.steps.StepResultCache;
+import ch.so.agi.gretlgt.utils.GradleProgressSink;
 import ch.so.agi.gretlgt.utils.TaskUtil;
 
 import org.gradle.api.DefaultTask;
 import org.gradle.api.GradleException;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.DirectoryProperty;
 import org.gradle.api.file.RegularFileProperty;
 import org.gradle.api.provider.ListProperty;
+import org.gradle.api.provider.MapProperty;
 import org.gradle.api.provider.Property;
+import org.gradle.api.tasks.CacheableTask;
 import org.gradle.api.tasks.Input;
 import org.gradle.api.tasks.InputFile;
+import org.gradle.api.tasks.InputFiles;
+import org.gradle.api.tasks.Internal;
+import org.gradle.api.tasks.Optional;
 import org.gradle.api.tasks.OutputFile;
+import org.gradle.api.tasks.OutputFiles;
 import org.gradle.api.tasks.PathSensitive;
 import org.gradle.api.tasks.PathSensitivity;
 import org.gradle.api.tasks.TaskAction;
 import org.opengis.referencing.FactoryException;
 
+import java.awt.Color;
+import java.io.File;
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
+@CacheableTask
 public abstract class RasterReclassify extends DefaultTask {
     private GretlLogger log;
     
@@ -31,15 +53,37 @@ public abstract class RasterReclassify extends DefaultTask {
     public RasterReclassify() {
         getBreaks().convention(DEFAULT_BREAKS);
         getNoData().convention(DEFAULT_NO_DATA);
+        getBands().convention(List.of(0));
+        getSplitBands().convention(false);
     }
 
     /**
      * Zu reklassifizierende Input-Rasterdatei.
      */
     @InputFile
-    @PathSensitive(PathSensitivity.RELATIVE)
+    @Optional
+    @PathSensitive(PathSensitivity.NONE)
     public abstract RegularFileProperty getInputRaster();
 
+    /**
+     * Rasterkacheln, die als virtuelles Mosaik gelesen werden (Alternative zu {@code inputRaster}).
+     * Es werden nur die Kacheln gelesen, die das Verarbeitungsfenster schneiden.
+     */
+    @InputFiles
+    @Optional
+    @PathSensitive(PathSensitivity.NONE)
+    public abstract ConfigurableFileCollection getInputRasters();
+
+    /**
+     * Begleitdateien der Input-Raster ({@code .prj}, {@code .tfw}, {@code .aux.xml} usw.). Sie werden
+     * aus den Rasterpfaden abgeleitet, damit eine geänderte Georeferenzierung den Task neu ausführt.
+     */
+    @InputFiles
+    @PathSensitive(PathSensitivity.NAME_ONLY)
+    public List<File> getInputSidecars() {
+        return TaskUtil.sidecarFiles(getInputRaster(), getInputRasters());
+    }
+
     /**
      * Klassifizierte Output-Rasterdatei.
      */
@@ -52,19 +96,189 @@ public abstract class RasterReclassify extends DefaultTask {
     @Input
     public abstract ListProperty<Double> getBreaks();
 
+    /**
+     * Zu reklassifizierende Rasterbänder (beginnend bei null). Alle Bänder werden in einem einzigen
+     * Durchgang gelesen und reklassifiziert. Default: {@code [0]}.
+     */
+    @Input
+    public abstract ListProperty<Integer> getBands();
+
+    /**
+     * Optionale Klassenintervalle pro Band (Bandindex → Intervalle). Bänder ohne Eintrag verwenden
+     * {@code breaks}.
+     */
+    @Input
+    @Optional
+    public abstract MapProperty<Integer, List<Double>> getBandBreaks();
+
+    /**
+     * Optionale kategoriale Reklassifizierung (Zellwert → Klassenwert), z.B. {@code [11: 1, 12: 1, 21: 2]}.
+     * Ersetzt {@code breaks} und {@code bandBreaks} und gilt für alle Bänder.
+     */
+    @Input
+    @Optional
+    public abstract MapProperty<Integer, Integer> getCategories();
+
+    /**
+     * Klassenwert für Zellwerte ohne Eintrag in {@code categories}. Ohne Angabe erhalten sie den
+     * NoData-Wert.
+     */
+    @Input
+    @Optional
+    public abstract Property<Integer> getDefaultClass();
+
+    /**
+     * Optionale Farbpalette (Klassenwert → {@code #rrggbb} oder {@code #rrggbbaa}), die als Colormap in die
+     * Output-Rasterdatei geschrieben wird. Erfordert ein einzelnes Band und Klassenwerte sowie NoData
+     * zwischen 0 und 65535. Der Datentyp der Output-Rasterdatei ist immer der kleinste, der alle
+     * Klassenwerte und den NoData-Wert aufnehmen kann.
+     */
+    @Input
+    @Optional
+    public abstract MapProperty<Integer, String> getPalette();
+
+    /**
+     * Schreibt pro Band eine eigene Rasterdatei ({@code <name>_band<index>.tif} neben
+     * {@code outputRaster}) anstatt einer mehrbandigen Datei. Default: {@code false}.
+     */
+    @Input
+    public abstract Property<Boolean> getSplitBands();
+
+    /**
+     * Optionales Verzeichnis für Scratch-Dateien, wenn die Bänder aufgeteilt werden.
+     */
+    @Internal
+    public abstract DirectoryProperty getScratchDirectory();
+
+    /**
+     * Die Rasterdateien pro Band, falls {@code splitBands} gesetzt ist.
+     */
+    @OutputFiles
+    public Map<String, File> getBandOutputs() {
+        Map<String, File> outputs = new LinkedHashMap<>();
+        if (getSplitBands().getOrElse(false) && getOutputRaster().isPresent()) {
+            Path outputPath = getOutputRaster().get().getAsFile().toPath();
+            for (Integer band : getBands().get()) {
+                outputs.put("band" + band, RasterReclassifyStep.bandOutputPath(outputPath, band).toFile());
+            }
+        }
+        return outputs;
+    }
+
     /**
      * NoData-Wert der Output-Rasterdatei.
      */
     @Input
     public abstract Property<Double> getNoData();
 
+    /**
+     * Verarbeitet den Raster kachelweise (Lesen, Reklassifizieren und Schreiben als gekachelte
+     * GeoTIFF-Datei), so dass der Speicherbedarf nicht von der Rastergrösse abhängt. Ohne Angabe wird
+     * der Modus anhand des Rasterheaders und des Speicherbudgets ({@code memoryBudget}) gewählt.
+     */
+    @Input
+    @Optional
+    public abstract Property<Boolean> getStreaming();
+
+    /**
+     * Speicherbudget in Bytes für die automatische Wahl zwischen Verarbeitung im Speicher und
+     * kachelweiser Verarbeitung. Default: halber maximaler Heap.
+     */
+    @Internal
+    public abstract Property<Long> getMemoryBudget();
+
+    /**
+     * Anzahl Kacheln, die im Streaming-Modus dem Schreiben voraus berechnet werden.
+     * Default: doppelte Anzahl Prozessoren.
+     */
+    @Internal
+    public abstract Property<Integer> getTilesInFlight();
+
+    /**
+     * Optionales Rechteck ({@code minX, minY, maxX, maxY}) im Koordinatensystem des Rasters, auf das die
+     * Verarbeitung beschränkt wird. Es wird nur der entsprechende Ausschnitt des Rasters gelesen.
+     */
+    @Input
+    @Optional
+    public abstract ListProperty<Double> getRoiBounds();
+
+    /**
+     * Optionales GeoPackage mit Polygonen, auf welche die Verarbeitung beschränkt wird (Alternative zu
+     * {@code roiBounds}). Zellen ausserhalb der Polygone werden ignoriert.
+     */
+    @InputFile
+    @Optional
+    @PathSensitive(PathSensitivity.NONE)
+    public abstract RegularFileProperty getRoiGeopackage();
+
+    /**
+     * Layer im {@code roiGeopackage}.
+     */
+    @Input
+    @Optional
+    public abstract Property<String> getRoiLayer();
+
+    /**
+     * Optionales Attribut, nach dem die Polygone im {@code roiLayer} gefiltert werden.
+     */
+    @Input
+    @Optional
+    public abstract Property<String> getRoiAttribute();
+
+    /**
+     * Wert des {@code roiAttribute}, z.B. die BFS-Nummer einer Gemeinde.
+     */
+    @Input
+    @Optional
+    public abstract Property<String> getRoiValue();
+
+    /**
+     * Optionales Verzeichnis für den inhaltsadressierten Resultat-Cache des Steps. Der Cache wirkt
+     * zusätzlich zum Gradle Build-Cache und kann zwischen Builds und Agents geteilt werden.
+     */
+    @Internal
+    public abstract DirectoryProperty getResultCacheDirectory();
+
+    /**
+     * Build-Service mit dem Cache der dekodierten Raster, den alle Raster-Tasks eines Builds teilen.
+     * Wird vom Plugin gesetzt.
+     */
+    @Internal
+    public abstract Property<CoverageCacheService> getCoverageCache();
+
     @TaskAction
     public void execute() {
         log = LogEnvironment.getLogger(RasterReclassify.class);
         
         RasterReclassifyStep step = new RasterReclassifyStep(getName());
+        step.setProgress(new StepProgress(GradleProgressSink.forTask(this, log)));
+        if (getTimeout().isPresent()) {
+            // Gradle interrupts the task when the timeout expires; the token also stops the tile workers
+            step.setCancellationToken(CancellationToken.withTimeout(getTimeout().get()));
+        }
+        if (getResultCacheDirectory().isPresent()) {
+            step.setResultCache(new StepResultCache(getResultCacheDirectory().get().getAsFile().toPath()));
+        }
+        if (getStreaming().isPresent()) {
+            step.setStreaming(getStreaming().get());
+        }
+        if (getMemoryBudget().isPresent()) {
+            step.setMemoryBudget(getMemoryBudget().get());
+        }
+        if (getTilesInFlight().isPresent()) {
+            step.setTilesInFlight(getTilesInFlight().get());
+        }
+        step.setSplitBands(getSplitBands().get());
+        if (getScratchDirectory().isPresent()) {
+            step.setScratchDirectory(getScratchDirectory().get().getAsFile().toPath());
+        }
+        Map<Integer, String> palette = getPalette().getOrElse(Map.of());
+        if (!palette.isEmpty()) {
+            Map<Integer, Color> colors = new LinkedHashMap<>();
+            palette.forEach((value, color) -> colors.put(value, RasterReclassify.parseColor(color)));
+            step.setPalette(colors);
+        }
 
-        Path inputPath = getInputRaster().get().getAsFile().toPath();
         Path outputPath = getOutputRaster().get().getAsFile().toPath();
 
         List<Double> breakValues = getBreaks().get();
@@ -78,10 +292,41 @@ public abstract class RasterReclassify extends DefaultTask {
 
         double noData = getNoData().get();
 
+        List<Integer> bandList = getBands().get();
+        if (bandList.isEmpty()) {
+            throw new IllegalStateException("bands must not be empty");
+        }
+        int[] bands = bandList.stream().mapToInt(Integer::intValue).toArray();
+        Map<Integer, List<Double>> bandBreaks = getBandBreaks().getOrElse(Map.of());
+        Map<Integer, Integer> categories = getCategories().getOrElse(Map.of());
+        List<BandClassification> classifications = new ArrayList<>();
+        if (!categories.isEmpty()) {
+            if (!bandBreaks.isEmpty()) {
+                throw new IllegalStateException("categories and bandBreaks must not be set together");
+            }
+            classifications.add(BandClassification.categorical(categories, getDefaultClass().getOrNull()));
+        } else if (bandBreaks.isEmpty()) {
+            classifications.add(BandClassification.lowerBounds(breaks));
+        } else {
+            for (int band : bands) {
+                List<Double> values = bandBreaks.get(band);
+                classifications.add(values == null
+                        ? BandClassification.lowerBounds(breaks)
+                        : BandClassification.lowerBounds(values.stream().mapToDouble(Double::doubleValue).toArray()));
+            }
+        }
+
+        CoverageSource source = null;
         try {
-            step.execute(inputPath, outputPath, breaks, noData);
+            source = TaskUtil.coverageSource(getInputRaster(), getInputRasters(), getTemporaryDir());
+            if (getCoverageCache().isPresent()) {
+                source.setCoverageCache(getCoverageCache().get().getCache());
+            }
+            step.setRegionOfInterest(TaskUtil.regionOfInterest(getRoiBounds(), getRoiGeopackage(),
+                    getRoiLayer(), getRoiAttribute(), getRoiValue()));
+            step.execute(source, outputPath, bands, classifications, noData);
         } catch (IOException | FactoryException e) {
-            log.error("Failed to reclassify raster " + inputPath, e);
+            log.error("Failed to reclassify raster " + (source != null ? source.getFiles() : getInputRaster().getOrNull()), e);
             GradleException ge = TaskUtil.toGradleException(e);
             throw ge;
         }
@@ -0,0 +1,136 @@
+package ch.so.agi.gretlgt.tasks;
+
+import ch.so.agi.gretlgt.logging.GretlLogger;
+import ch.so.agi.gretlgt.logging.LogEnvironment;
+import ch.so.agi.gretlgt.services.CoverageCacheService;
+import ch.so.agi.gretlgt.steps.CancellationToken;
+import ch.so.agi.gretlgt.steps.CoverageSource;
+import ch.so.agi.gretlgt.steps.RasterReprojectStep;
+import ch.so.agi.gretlgt.steps.Resampling;
+import ch.so.agi.gretlgt.steps.StepProgress;
+import ch.so.agi.gretlgt.steps.StepResultCache;
+import ch.so.agi.gretlgt.utils.GradleProgressSink;
+import ch.so.agi.gretlgt.utils.TaskUtil;
+
+import org.gradle.api.DefaultTask;
+import org.gradle.api.GradleException;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.api.tasks.CacheableTask;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.InputFile;
+import org.gradle.api.tasks.Internal;
+import org.gradle.api.tasks.Optional;
+import org.gradle.api.tasks.OutputFile;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
+import org.gradle.api.tasks.TaskAction;
+import org.opengis.referencing.FactoryException;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+@CacheableTask
+public abstract class RasterReproject extends DefaultTask {
+    private GretlLogger log;
+
+    public RasterReproject() {
+        getTargetCrs().convention("EPSG:2056");
+        getResampling().convention("nearest");
+    }
+
+    /**
+     * Zu transformierende Input-Rasterdatei.
+     */
+    @InputFile
+    @PathSensitive(PathSensitivity.NONE)
+    public abstract RegularFileProperty getInputRaster();
+
+    /**
+     * Transformierte Output-Rasterdatei (gekachelte GeoTIFF-Datei).
+     */
+    @OutputFile
+    public abstract RegularFileProperty getOutputRaster();
+
+    /**
+     * Ziel-Koordinatensystem, z.B. {@code EPSG:2056}. Default: {@code EPSG:2056}.
+     */
+    @Input
+    public abstract Property<String> getTargetCrs();
+
+    /**
+     * Zellgrösse im Ziel-Koordinatensystem. Default: so, dass der Output etwa gleich viele Zellen hat
+     * wie der Input.
+     */
+    @Input
+    @Optional
+    public abstract Property<Double> getResolution();
+
+    /**
+     * Resampling-Methode: {@code nearest} (Default, für Klassen), {@code bilinear} (für kontinuierliche
+     * Werte) oder {@code mode} (häufigster Wert, für Klassen bei gröberer Auflösung).
+     */
+    @Input
+    public abstract Property<String> getResampling();
+
+    /**
+     * NoData-Wert der Output-Rasterdatei. Default: NoData-Wert des Inputs bzw. {@code -9999}.
+     */
+    @Input
+    @Optional
+    public abstract Property<Double> getNoData();
+
+    /**
+     * Anzahl Kacheln, die dem Schreiben voraus berechnet werden. Default: doppelte Anzahl Prozessoren.
+     */
+    @Internal
+    public abstract Property<Integer> getTilesInFlight();
+
+    /**
+     * Optionales Verzeichnis für den inhaltsadressierten Resultat-Cache des Steps.
+     */
+    @Internal
+    public abstract DirectoryProperty getResultCacheDirectory();
+
+    /**
+     * Build-Service mit dem Cache der dekodierten Raster, den alle Raster-Tasks eines Builds teilen.
+     * Wird vom Plugin gesetzt.
+     */
+    @Internal
+    public abstract Property<CoverageCacheService> getCoverageCache();
+
+    @TaskAction
+    public void execute() {
+        log = LogEnvironment.getLogger(RasterReproject.class);
+
+        RasterReprojectStep step = new RasterReprojectStep(getName());
+        step.setProgress(new StepProgress(GradleProgressSink.forTask(this, log)));
+        if (getTimeout().isPresent()) {
+            step.setCancellationToken(CancellationToken.withTimeout(getTimeout().get()));
+        }
+        if (getResultCacheDirectory().isPresent()) {
+            step.setResultCache(new StepResultCache(getResultCacheDirectory().get().getAsFile().toPath()));
+        }
+        if (getTilesInFlight().isPresent()) {
+            step.setTilesInFlight(getTilesInFlight().get());
+        }
+        step.setResampling(Resampling.fromName(getResampling().get()));
+        step.setResolution(getResolution().getOrNull());
+        step.setNoData(getNoData().getOrNull());
+
+        Path inputPath = getInputRaster().get().getAsFile().toPath();
+        Path outputPath = getOutputRaster().get().getAsFile().toPath();
+        try {
+            CoverageSource source = CoverageSource.of(inputPath);
+            if (getCoverageCache().isPresent()) {
+                source.setCoverageCache(getCoverageCache().get().getCache());
+            }
+            step.execute(source, getTargetCrs().get(), outputPath);
+        } catch (IOException | FactoryException e) {
+            log.error("Failed to reproject raster " + inputPath, e);
+            GradleException ge = TaskUtil.toGradleException(e);
+            throw ge;
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package ch.so.agi.gretlgt.tasks;
 
+import ch.so.agi.gretlgt.steps.EmbeddedCrs;
+
 import org.gradle.api.DefaultTask;
 import org.gradle.api.file.RegularFileProperty;
 import org.gradle.api.provider.Property;
@@ -8,7 +10,6 @@ import java.io.File;
 import org.geotools.data.FileDataStore;
 import org.geotools.data.FileDataStoreFinder;
 import org.geotools.data.simple.SimpleFeatureSource;
-import org.geotools.referencing.CRS;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
 public abstract class ReadShapefileTask extends DefaultTask {
@@ -33,7 +34,7 @@ public abstract class ReadShapefileTask extends DefaultTask {
             String code = getCrsCode().getOrNull();
             CoordinateReferenceSystem crs = null;
             if (code != null && !code.isBlank()) {
-                crs = CRS.decode(code, true);
+                crs = EmbeddedCrs.decode(code);
             }
 
             long count = featureSource.getFeatures().size();
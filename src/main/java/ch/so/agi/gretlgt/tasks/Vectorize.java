@@ -2,46 +2,133 @@ package ch.so.agi.gretlgt.tasks;
 
 import ch.so.agi.gretlgt.logging.GretlLogger;
 import ch.so.agi.gretlgt.logging.LogEnvironment;
+import ch.so.agi.gretlgt.services.CoverageCacheService;
+import ch.so.agi.gretlgt.services.GeoPackageWriterService;
+import ch.so.agi.gretlgt.steps.CancellationToken;
+import ch.so.agi.gretlgt.steps.CoverageSource;
+import ch.so.agi.gretlgt.steps.StepProgress;
+import ch.so.agi.gretlgt.steps.StepResultCache;
+import ch.so.agi.gretlgt.steps.VectorFormat;
+import ch.so.agi.gretlgt.steps.Vectorizer;
 import ch.so.agi.gretlgt.steps.VectorizeStep;
+import ch.so.agi.gretlgt.utils.GradleProgressSink;
 import ch.so.agi.gretlgt.utils.TaskUtil;
 import org.gradle.api.DefaultTask;
 import org.gradle.api.GradleException;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.DirectoryProperty;
 import org.gradle.api.file.RegularFileProperty;
 import org.gradle.api.provider.ListProperty;
 import org.gradle.api.provider.Property;
+import org.gradle.api.tasks.CacheableTask;
 import org.gradle.api.tasks.Input;
 import org.gradle.api.tasks.InputFile;
+import org.gradle.api.tasks.InputFiles;
+import org.gradle.api.tasks.Internal;
 import org.gradle.api.tasks.Optional;
 import org.gradle.api.tasks.OutputFile;
 import org.gradle.api.tasks.PathSensitive;
 import org.gradle.api.tasks.PathSensitivity;
 import org.gradle.api.tasks.TaskAction;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.util.List;
 import java.util.Objects;
 
+@CacheableTask
 public abstract class Vectorize extends DefaultTask {
     private GretlLogger log;
 
     public Vectorize() {
         getBand().convention(0);
+        getAppend().convention(false);
+        getIncremental().convention(false);
+        getAllCellValues().convention(false);
+        // Im Append-Modus enthält die Ausgabedatei auch Layer anderer Tasks.
+        getOutputs().doNotCacheIf("append mode updates a shared GeoPackage", task -> getAppend().get());
+        // Im inkrementellen Modus hängt das Resultat vom vorherigen Stand der Ausgabedatei ab.
+        getOutputs().doNotCacheIf("incremental mode updates the previous GeoPackage", task -> getIncremental().get());
     }
 
     /**
      * Input-Rasterdatei, aus der die Multipolygone extrahiert werden sollen.
      */
     @InputFile
-    @PathSensitive(PathSensitivity.RELATIVE)
+    @Optional
+    @PathSensitive(PathSensitivity.NAME_ONLY)
     public abstract RegularFileProperty getInputRaster();
 
     /**
-     * Ziel-GeoPackage-Datei, welche die extrahierten Multipolygone beinhaltet.
+     * Rasterkacheln, die als virtuelles Mosaik gelesen werden (Alternative zu {@code inputRaster}).
+     * Es werden nur die Kacheln gelesen, die das Verarbeitungsfenster schneiden.
+     */
+    @InputFiles
+    @Optional
+    @PathSensitive(PathSensitivity.NAME_ONLY)
+    public abstract ConfigurableFileCollection getInputRasters();
+
+    /**
+     * Begleitdateien der Input-Raster ({@code .prj}, {@code .tfw}, {@code .aux.xml} usw.). Sie werden
+     * aus den Rasterpfaden abgeleitet, damit eine geänderte Georeferenzierung den Task neu ausführt.
+     */
+    @InputFiles
+    @PathSensitive(PathSensitivity.NAME_ONLY)
+    public List<File> getInputSidecars() {
+        return TaskUtil.sidecarFiles(getInputRaster(), getInputRasters());
+    }
+
+    /**
+     * Ziel-GeoPackage-Datei, welche die extrahierten Multipolygone beinhaltet. Mit der Endung {@code .fgb}
+     * wird stattdessen eine FlatGeobuf-Datei geschrieben.
      */
     @OutputFile
     public abstract RegularFileProperty getOutputGeopackage();
 
+    /**
+     * Optionales Ausgabeformat: {@code GPKG} oder {@code FLATGEOBUF}. Ohne Angabe wird das Format aus der
+     * Dateiendung von {@code outputGeopackage} abgeleitet ({@code .fgb} ergibt FlatGeobuf).
+     */
+    @Input
+    @Optional
+    public abstract Property<String> getOutputFormat();
+
+    /**
+     * Ist der Wert {@code true}, wird {@code outputGeopackage} nicht neu erstellt, sondern nur der Layer
+     * hinzugefügt bzw. ersetzt. So können mehrere Tasks in dasselbe GeoPackage schreiben.
+     */
+    @Input
+    public abstract Property<Boolean> getAppend();
+
+    /**
+     * Ist der Wert {@code true}, werden nur die Zellen des Unterteilungsrasters ({@code subdivideGridSize})
+     * neu vektorisiert, deren Rasterwerte sich seit dem letzten Lauf geändert haben. Die Prüfsummen
+     * werden im GeoPackage gespeichert. Nicht kombinierbar mit {@code minArea} und {@code minHoleArea}.
+     */
+    @Input
+    public abstract Property<Boolean> getIncremental();
+
+    /**
+     * Optionaler Name des Layers. Standardmässig wird der Name des Rasters verwendet.
+     */
+    @Input
+    @Optional
+    public abstract Property<String> getLayerName();
+
+    /**
+     * Build-Service, der gleichzeitige Schreibzugriffe auf dieselbe Datei serialisiert. Wird vom Plugin gesetzt.
+     */
+    @Internal
+    public abstract Property<GeoPackageWriterService> getWriterService();
+
+    /**
+     * Build-Service mit dem Cache der dekodierten Raster, den alle Raster-Tasks eines Builds teilen.
+     * Wird vom Plugin gesetzt.
+     */
+    @Internal
+    public abstract Property<CoverageCacheService> getCoverageCache();
+
     /**
      * Index (beginnend bei null) des Rasterbands, aus dem Polygone extrahiert werden.
      */
@@ -55,30 +142,199 @@ public abstract class Vectorize extends DefaultTask {
     @Input
     public abstract ListProperty<Double> getCellValues();
 
+    /**
+     * Vektorisiert alle im Band vorkommenden Werte ausser NoData anstelle von {@code cellValues}. Die Werte
+     * werden in einem parallelen Durchgang über die Rasterkacheln ermittelt. Default: {@code false}.
+     */
+    @Input
+    public abstract Property<Boolean> getAllCellValues();
+
+    /**
+     * Maximale Anzahl verschiedener Werte für {@code allCellValues}. Raster mit mehr Werten (z.B. kontinuierliche
+     * Raster) werden abgelehnt. Default: 1000.
+     */
+    @Internal
+    public abstract Property<Integer> getMaxDistinctValues();
+
+    /**
+     * Optionaler Vektorisierungs-Algorithmus: {@code JAI} (Standard) oder {@code RUN_LENGTH}. Letzterer
+     * verfolgt die Umrisse der Klassen direkt und erzeugt die aufgelösten Multipolygone ohne Verschneidung.
+     */
+    @Input
+    @Optional
+    public abstract Property<String> getVectorizer();
+
+    /**
+     * Optionale Mindestfläche (in Quadrat-Einheiten des Koordinatensystems). Kleinere Polygone, z.B.
+     * einzelne Rasterzellen, werden vor dem Auflösen verworfen.
+     */
+    @Input
+    @Optional
+    public abstract Property<Double> getMinArea();
+
+    /**
+     * Optionale Mindestfläche von Löchern. Kleinere Löcher werden nach dem Auflösen gefüllt.
+     */
+    @Input
+    @Optional
+    public abstract Property<Double> getMinHoleArea();
+
+    /**
+     * Optionale Kantenlänge eines regelmässigen Rasters (in Einheiten des Koordinatensystems), entlang dem
+     * die aufgelösten Multipolygone in einzelne Features zerschnitten werden. Jedes Feature erhält
+     * zusätzlich das Attribut {@code tile_id}.
+     */
+    @Input
+    @Optional
+    public abstract Property<Double> getSubdivideGridSize();
+
+    /**
+     * Optionale maximale Anzahl Stützpunkte pro Feature (mindestens 8). Grössere Multipolygone werden
+     * rekursiv halbiert (wie {@code ST_Subdivide}).
+     */
+    @Input
+    @Optional
+    public abstract Property<Integer> getSubdivideMaxVertices();
+
+    /**
+     * Optionales Rechteck ({@code minX, minY, maxX, maxY}) im Koordinatensystem des Rasters, auf das die
+     * Verarbeitung beschränkt wird. Es wird nur der entsprechende Ausschnitt des Rasters gelesen.
+     */
+    @Input
+    @Optional
+    public abstract ListProperty<Double> getRoiBounds();
+
+    /**
+     * Optionales GeoPackage mit Polygonen, auf welche die Verarbeitung beschränkt wird (Alternative zu
+     * {@code roiBounds}). Zellen ausserhalb der Polygone werden ignoriert.
+     */
+    @InputFile
+    @Optional
+    @PathSensitive(PathSensitivity.NONE)
+    public abstract RegularFileProperty getRoiGeopackage();
+
+    /**
+     * Layer im {@code roiGeopackage}.
+     */
+    @Input
+    @Optional
+    public abstract Property<String> getRoiLayer();
+
+    /**
+     * Optionales Attribut, nach dem die Polygone im {@code roiLayer} gefiltert werden.
+     */
+    @Input
+    @Optional
+    public abstract Property<String> getRoiAttribute();
+
+    /**
+     * Wert des {@code roiAttribute}, z.B. die BFS-Nummer einer Gemeinde.
+     */
+    @Input
+    @Optional
+    public abstract Property<String> getRoiValue();
+
+    /**
+     * Optionales Verzeichnis für den inhaltsadressierten Resultat-Cache des Steps. Der Cache wirkt
+     * zusätzlich zum Gradle Build-Cache und kann zwischen Builds und Agents geteilt werden.
+     */
+    @Internal
+    public abstract DirectoryProperty getResultCacheDirectory();
+
+    /**
+     * Optionales Verzeichnis für Scratch-Dateien. Ist es gesetzt, wird der Raster einmal in eine
+     * memory-mapped Datei ausserhalb des Java-Heaps kopiert und alle Zellenwerte werden daraus extrahiert.
+     */
+    @Internal
+    public abstract DirectoryProperty getScratchDirectory();
+
+    /**
+     * Speicherbudget in Bytes. Übersteigt der geschätzte Speicherbedarf des Rasters das Budget und ist
+     * kein {@code scratchDirectory} gesetzt, wird der Raster in eine memory-mapped Datei im temporären
+     * Verzeichnis kopiert. Default: halber maximaler Heap.
+     */
+    @Internal
+    public abstract Property<Long> getMemoryBudget();
+
     @TaskAction
     public void execute() {
         log = LogEnvironment.getLogger(Vectorize.class);
 
         VectorizeStep step = new VectorizeStep(getName());
+        step.setProgress(new StepProgress(GradleProgressSink.forTask(this, log)));
+        if (getTimeout().isPresent()) {
+            // Gradle interrupts the task when the timeout expires; the token also stops the tile workers
+            step.setCancellationToken(CancellationToken.withTimeout(getTimeout().get()));
+        }
+        if (getResultCacheDirectory().isPresent()) {
+            step.setResultCache(new StepResultCache(getResultCacheDirectory().get().getAsFile().toPath()));
+        }
+        if (getScratchDirectory().isPresent()) {
+            step.setScratchDirectory(getScratchDirectory().get().getAsFile().toPath());
+        }
+        if (getMemoryBudget().isPresent()) {
+            step.setMemoryBudget(getMemoryBudget().get());
+        }
+        if (getOutputFormat().isPresent()) {
+            step.setOutputFormat(VectorFormat.fromName(getOutputFormat().get()));
+        }
+        if (getWriterService().isPresent()) {
+            step.setWriteSerializer(getWriterService().get());
+        }
+        if (getVectorizer().isPresent()) {
+            step.setVectorizer(Vectorizer.fromName(getVectorizer().get()));
+        }
+        step.setAppend(getAppend().get());
+        step.setIncremental(getIncremental().get());
+        if (getMinArea().isPresent()) {
+            step.setMinArea(getMinArea().get());
+        }
+        if (getMinHoleArea().isPresent()) {
+            step.setMinHoleArea(getMinHoleArea().get());
+        }
+        if (getSubdivideGridSize().isPresent()) {
+            step.setSubdivideGridSize(getSubdivideGridSize().get());
+        }
+        if (getSubdivideMaxVertices().isPresent()) {
+            step.setSubdivideMaxVertices(getSubdivideMaxVertices().get());
+        }
+        step.setLayerName(getLayerName().getOrNull());
 
-        Path rasterPath = getInputRaster().get().getAsFile().toPath();
         Path geopackagePath = getOutputGeopackage().get().getAsFile().toPath();
         int band = getBand().get();
         List<Double> cellValues = getCellValues().get();
+        boolean allCellValues = getAllCellValues().get();
+        if (getMaxDistinctValues().isPresent()) {
+            step.setMaxDistinctValues(getMaxDistinctValues().get());
+        }
 
-        if (cellValues == null || cellValues.isEmpty()) {
+        if (allCellValues && !cellValues.isEmpty()) {
+            throw new IllegalStateException("cellValues must be empty if allCellValues is set");
+        }
+        if (!allCellValues && cellValues.isEmpty()) {
             throw new IllegalStateException("cellValues must not be empty");
         }
         if (cellValues.stream().anyMatch(Objects::isNull)) {
             throw new IllegalStateException("cellValues must not contain null values");
         }
 
+        CoverageSource source = null;
         try {
-            step.execute(rasterPath, geopackagePath, band, cellValues);
+            source = TaskUtil.coverageSource(getInputRaster(), getInputRasters(), getTemporaryDir());
+            if (getCoverageCache().isPresent()) {
+                source.setCoverageCache(getCoverageCache().get().getCache());
+            }
+            step.setRegionOfInterest(TaskUtil.regionOfInterest(getRoiBounds(), getRoiGeopackage(),
+                    getRoiLayer(), getRoiAttribute(), getRoiValue()));
+            if (allCellValues) {
+                step.execute(source, geopackagePath, band);
+            } else {
+                step.execute(source, geopackagePath, band, cellValues);
+            }
         } catch (IOException e) {
-            log.error("Failed to vectorize raster " + rasterPath, e);
+            log.error("Failed to vectorize raster " + (source != null ? source.getFiles() : getInputRaster().getOrNull()), e);
             GradleException ge = TaskUtil.toGradleException(e);
             throw ge;
         }
     }
-}
\ No newline at end of file
+}
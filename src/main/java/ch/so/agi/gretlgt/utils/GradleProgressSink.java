@@ -0,0 +1,66 @@
+package ch.so.agi.gretlgt.utils;
+
+import org.gradle.api.Task;
+import org.gradle.api.internal.AbstractTask;
+import org.gradle.internal.logging.progress.ProgressLogger;
+import org.gradle.internal.logging.progress.ProgressLoggerFactory;
+
+import ch.so.agi.gretlgt.logging.GretlLogger;
+import ch.so.agi.gretlgt.steps.ProgressSink;
+
+/**
+ * {@link ProgressSink} that shows the status of a step in the progress area of the Gradle console
+ * (the line below the running task), like downloads or test executions do.
+ * <p>
+ * The progress logger is an internal Gradle service. If it is not available, e.g. in a
+ * different Gradle version, the status lines are logged instead.
+ * </p>
+ */
+public class GradleProgressSink implements ProgressSink {
+    private final ProgressLoggerFactory factory;
+    private final Class<?> category;
+    private ProgressLogger logger;
+
+    private GradleProgressSink(ProgressLoggerFactory factory, Class<?> category) {
+        this.factory = factory;
+        this.category = category;
+    }
+
+    /**
+     * Returns the sink for a task.
+     *
+     * @param task the running task
+     * @param log  fallback logger if the Gradle progress logging is not available
+     * @return the sink
+     */
+    public static ProgressSink forTask(Task task, GretlLogger log) {
+        try {
+            ProgressLoggerFactory factory = ((AbstractTask) task).getServices().get(ProgressLoggerFactory.class);
+            return new GradleProgressSink(factory, task.getClass());
+        } catch (RuntimeException | LinkageError e) {
+            log.debug("Gradle progress logging not available: " + e);
+            return ProgressSink.logging(log);
+        }
+    }
+
+    @Override
+    public synchronized void started(String description) {
+        logger = factory.newOperation(category);
+        logger.start(description, null);
+    }
+
+    @Override
+    public synchronized void progress(String status) {
+        if (logger != null) {
+            logger.progress(status);
+        }
+    }
+
+    @Override
+    public synchronized void completed() {
+        if (logger != null) {
+            logger.completed();
+            logger = null;
+        }
+    }
+}
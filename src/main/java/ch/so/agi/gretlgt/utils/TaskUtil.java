@@ -1,6 +1,21 @@
 package ch.so.agi.gretlgt.utils;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
 import org.gradle.api.GradleException;
+import org.gradle.api.file.FileCollection;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.provider.ListProperty;
+import org.gradle.api.provider.Property;
+
+import ch.so.agi.gretlgt.steps.CoverageSource;
+import ch.so.agi.gretlgt.steps.RegionOfInterest;
+import ch.so.agi.gretlgt.steps.StepResultCache;
 
 /**
  * Utility Class with methods used in the Tasks.
@@ -27,4 +42,79 @@ public class TaskUtil {
         }
         return exception;
     }
+
+    /**
+     * Builds the region of interest of a task from its ROI properties: either a bounding box
+     * ({@code minX, minY, maxX, maxY}) or a GeoPackage layer, optionally filtered by one attribute value.
+     *
+     * @return the region, or {@code null} if none is configured
+     */
+    public static RegionOfInterest regionOfInterest(ListProperty<Double> bounds, RegularFileProperty geopackage,
+            Property<String> layer, Property<String> attribute, Property<String> value) throws IOException {
+        List<Double> box = bounds.getOrElse(List.of());
+        if (!box.isEmpty() && geopackage.isPresent()) {
+            throw new GretlException("Only one of roiBounds or roiGeopackage may be set");
+        }
+        if (!box.isEmpty()) {
+            if (box.size() != 4) {
+                throw new GretlException("roiBounds must contain minX, minY, maxX, maxY");
+            }
+            return RegionOfInterest.ofBounds(box.get(0), box.get(1), box.get(2), box.get(3));
+        }
+        if (geopackage.isPresent()) {
+            if (!layer.isPresent()) {
+                throw new GretlException("roiLayer must be set together with roiGeopackage");
+            }
+            return RegionOfInterest.ofGeoPackage(geopackage.get().getAsFile().toPath(), layer.get(),
+                    attribute.getOrNull(), value.getOrNull());
+        }
+        return null;
+    }
+
+    /**
+     * Builds the raster source of a task from its {@code inputRaster} and {@code inputRasters}
+     * properties, exactly one of which must be set. The mosaic index is kept in the task's temporary
+     * directory.
+     *
+     * @return a single raster or a virtual mosaic
+     */
+    public static CoverageSource coverageSource(RegularFileProperty inputRaster, FileCollection inputRasters,
+            File temporaryDir) throws IOException {
+        List<Path> tiles = inputRasters.getFiles().stream()
+                .map(File::toPath)
+                .sorted()
+                .collect(Collectors.toList());
+        if (inputRaster.isPresent() == !tiles.isEmpty()) {
+            throw new IllegalStateException("Exactly one of inputRaster or inputRasters must be set");
+        }
+        CoverageSource source = tiles.isEmpty()
+                ? CoverageSource.of(inputRaster.get().getAsFile().toPath())
+                : CoverageSource.of(tiles);
+        source.setIndexDirectory(temporaryDir.toPath());
+        return source;
+    }
+
+    /**
+     * Returns the existing sidecar files ({@code .prj}, {@code .tfw}, {@code .aux.xml}, ...) of the
+     * raster files of a task, including the tiles of tile directories. {@link StepResultCache} hashes
+     * them with the rasters, so the tasks declare them as inputs as well.
+     *
+     * @return the sidecar files
+     */
+    public static List<File> sidecarFiles(RegularFileProperty inputRaster, FileCollection inputRasters) {
+        List<File> rasters = new ArrayList<>(inputRasters.getFiles());
+        if (inputRaster.isPresent()) {
+            rasters.add(inputRaster.get().getAsFile());
+        }
+        List<File> sidecars = new ArrayList<>();
+        for (File raster : rasters) {
+            File[] tiles = raster.isDirectory() ? raster.listFiles(File::isFile) : new File[] {raster};
+            for (File tile : tiles != null ? tiles : new File[0]) {
+                for (Path sidecar : StepResultCache.sidecars(tile.toPath())) {
+                    sidecars.add(sidecar.toFile());
+                }
+            }
+        }
+        return sidecars;
+    }
 }
@@ -0,0 +1,316 @@
+package ch.so.agi.gretlgt.steps;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import ch.so.agi.gretlgt.logging.GretlLogger;
+import ch.so.agi.gretlgt.logging.LogEnvironment;
+
+/**
+ * Runs the raster steps on synthetic rasters of increasing size and checks that run time and peak
+ * memory grow as expected. Run with {@code ./gradlew scalingTest}, which caps the heap.
+ * <p>
+ * Sizes (raster edge lengths) are taken from {@code gretlgt.scaling.sizes}. Every run happens in a
+ * forked JVM with the same maximum heap, a fixed young generation of {@value #YOUNG_GENERATION_MB} MB
+ * and the serial collector, so that memory touched by earlier runs does not hide the memory of a
+ * run. The fork warms up on the smallest raster, takes the RSS after a full GC as baseline and
+ * measures the time and the growth of the peak RSS over that baseline for the measured size. For
+ * every step the growth exponent {@code k} of {@code value ~ cells^k} between the smallest and the
+ * largest size is compared with the expected complexity plus a tolerance; memory growth below
+ * {@value #MEMORY_RESOLUTION_MB} MB counts as noise. Time and peak RSS growth of every run are
+ * appended to the CSV file {@code gretlgt.scaling.report}.
+ * </p>
+ */
+class ScalingTest {
+    private static final GretlLogger log = LogEnvironment.getLogger(ScalingTest.class);
+    private static final double TOLERANCE = Double.parseDouble(System.getProperty("gretlgt.scaling.tolerance", "0.3"));
+    private static final double[] BREAKS = {0, 3, 6, 9, 12, 255};
+    private static final List<Double> CELL_VALUES = List.of(0d, 1d, 2d, 3d);
+    private static final int YOUNG_GENERATION_MB = 16;
+    private static final int MEMORY_RESOLUTION_MB = YOUNG_GENERATION_MB;
+    private static final String RESULT_PREFIX = "gretlgt-scaling-result ";
+
+    private static int[] sizes;
+
+    @TempDir
+    static Path tempDir;
+
+    @BeforeAll
+    static void generateRasters() throws Exception {
+        sizes = Arrays.stream(System.getProperty("gretlgt.scaling.sizes", "1000,2000,4000").split(","))
+                .map(String::trim)
+                .mapToInt(Integer::parseInt)
+                .sorted()
+                .toArray();
+        for (int size : sizes) {
+            SyntheticRaster raster = new SyntheticRaster(size, size, 12, 0.6, 0.05, 42);
+            log.info("Generating " + raster);
+            raster.write(input(size));
+        }
+    }
+
+    @Test
+    void streamingReclassificationIsLinearInTimeAndConstantInMemory() throws Exception {
+        Measurement[] runs = measureAll("reclassify");
+        assertGrowth(runs, "time", 1.0, m -> m.seconds);
+        assertGrowth(runs, "peak RSS", 0.0, ScalingTest::memory);
+    }
+
+    @Test
+    void inMemoryReclassificationFailsTheConstantMemoryCheck() throws Exception {
+        // guards the measurement itself: a run that holds the whole raster must not pass as constant
+        Measurement[] runs = measureAll("reclassify-in-memory");
+        if (runs.length < 2) {
+            return;
+        }
+        double exponent = exponent(runs, ScalingTest::memory);
+        log.info(String.format(Locale.ROOT, "reclassify-in-memory peak RSS grows with cells^%.2f", exponent));
+        assertTrue(exponent > TOLERANCE, String.format(Locale.ROOT,
+                "In-memory reclassification grows with cells^%.2f, the constant memory check cannot detect it",
+                exponent));
+    }
+
+    @Test
+    void runLengthVectorizationIsLinearInTimeAndMemory() throws Exception {
+        Measurement[] runs = measureAll("vectorize");
+        assertGrowth(runs, "time", 1.0, m -> m.seconds);
+        assertGrowth(runs, "peak RSS", 1.0, ScalingTest::memory);
+    }
+
+    private static void run(String step, int size) throws Exception {
+        switch (step) {
+        case "reclassify":
+            reclassify(size, true);
+            break;
+        case "reclassify-in-memory":
+            reclassify(size, false);
+            break;
+        case "vectorize":
+            vectorize(size);
+            break;
+        default:
+            throw new IllegalArgumentException("Unknown step " + step);
+        }
+    }
+
+    private static void reclassify(int size, boolean streaming) throws Exception {
+        RasterReclassifyStep step = new RasterReclassifyStep("scaling");
+        step.setStreaming(streaming);
+        step.execute(input(size), tempDir.resolve("reclass-" + size + ".tif"), BREAKS, -1d);
+    }
+
+    private static void vectorize(int size) throws Exception {
+        Path output = tempDir.resolve("vectorize-" + size + ".gpkg");
+        Files.deleteIfExists(output);
+        VectorizeStep step = new VectorizeStep("scaling");
+        step.setVectorizer(Vectorizer.RUN_LENGTH);
+        step.execute(input(size), output, 0, CELL_VALUES);
+    }
+
+    private static Path input(int size) {
+        return tempDir.resolve("synthetic-" + size + ".tif");
+    }
+
+    // --- measurement ---
+
+    @FunctionalInterface
+    private interface Metric {
+        double of(Measurement measurement);
+    }
+
+    private static final class Measurement {
+        private final String step;
+        private final long cells;
+        private final double seconds;
+        private final double peakBytes;
+
+        private Measurement(String step, long cells, double seconds, double peakBytes) {
+            this.step = step;
+            this.cells = cells;
+            this.seconds = seconds;
+            this.peakBytes = peakBytes;
+        }
+    }
+
+    private static double memory(Measurement measurement) {
+        return Math.max(measurement.peakBytes, MEMORY_RESOLUTION_MB * 1024d * 1024d);
+    }
+
+    private static Measurement[] measureAll(String step) throws Exception {
+        Measurement[] runs = new Measurement[sizes.length];
+        for (int i = 0; i < sizes.length; i++) {
+            runs[i] = measure(step, sizes[i]);
+        }
+        return runs;
+    }
+
+    /**
+     * Runs one step on one size in a forked JVM, see {@link Fork}.
+     */
+    private static Measurement measure(String step, int size) throws Exception {
+        Path java = Path.of(System.getProperty("java.home"), "bin", "java");
+        ProcessBuilder builder = new ProcessBuilder(java.toString(),
+                "-Xmx" + Runtime.getRuntime().maxMemory(),
+                "-Xmn" + YOUNG_GENERATION_MB + "m",
+                "-XX:+UseSerialGC",
+                "-cp", System.getProperty("java.class.path"),
+                Fork.class.getName(), step, Integer.toString(size), Integer.toString(sizes[0]), tempDir.toString());
+        builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+        Process process = builder.start();
+        String result = null;
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(RESULT_PREFIX)) {
+                    result = line.substring(RESULT_PREFIX.length());
+                }
+            }
+        }
+        int exitCode = process.waitFor();
+        if (exitCode != 0 || result == null) {
+            throw new IllegalStateException("Forked " + step + " run on " + size + " failed with exit code " + exitCode);
+        }
+        String[] values = result.split(" ");
+        Measurement measurement = new Measurement(step, (long) size * size, Double.parseDouble(values[0]),
+                Double.parseDouble(values[1]));
+        String line = String.format(Locale.ROOT, "%s,%d,%d,%.3f,%.0f", step, size, measurement.cells,
+                measurement.seconds, measurement.peakBytes);
+        log.info("Scaling " + line);
+        String report = System.getProperty("gretlgt.scaling.report");
+        if (report != null) {
+            Path path = Path.of(report);
+            Files.createDirectories(path.toAbsolutePath().getParent());
+            if (!Files.exists(path)) {
+                Files.writeString(path, "step,size,cells,seconds,peakBytes\n");
+            }
+            Files.writeString(path, line + "\n", StandardOpenOption.APPEND);
+        }
+        return measurement;
+    }
+
+    private static double exponent(Measurement[] runs, Metric value) {
+        Measurement first = runs[0];
+        Measurement last = runs[runs.length - 1];
+        return Math.log(value.of(last) / value.of(first)) / Math.log((double) last.cells / first.cells);
+    }
+
+    private static void assertGrowth(Measurement[] runs, String metric, double expectedExponent, Metric value) {
+        if (runs.length < 2) {
+            return;
+        }
+        double exponent = exponent(runs, value);
+        String message = String.format(Locale.ROOT, "%s %s grows with cells^%.2f, expected at most cells^%.2f",
+                runs[0].step, metric, exponent, expectedExponent + TOLERANCE);
+        log.info(message);
+        assertTrue(exponent <= expectedExponent + TOLERANCE, message);
+    }
+
+    /**
+     * Entry point of the forked JVM: {@code <step> <size> <warm-up size> <directory>}. Warms up on the
+     * smallest raster, then prints the seconds and the peak RSS growth over the RSS after a full GC of
+     * the measured run.
+     */
+    static final class Fork {
+        private Fork() {
+        }
+
+        public static void main(String[] args) throws Exception {
+            String step = args[0];
+            int size = Integer.parseInt(args[1]);
+            tempDir = Path.of(args[3]);
+            run(step, Integer.parseInt(args[2]));  // warm-up: class loading, JIT and the young generation
+            System.gc();
+            double baseline = currentBytes();
+            resetPeak();
+            long start = System.nanoTime();
+            run(step, size);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            double growth = Math.max(0, peakBytes() - baseline);
+            System.out.println(String.format(Locale.ROOT, "%s%.6f %.0f", RESULT_PREFIX, seconds, growth));
+        }
+    }
+
+    /**
+     * Resets the peak RSS of the process (Linux) or, elsewhere, the peak usage of the heap pools.
+     */
+    private static void resetPeak() {
+        try {
+            Files.writeString(Path.of("/proc/self/clear_refs"), "5");
+        } catch (IOException | RuntimeException e) {
+            // not Linux or not permitted: the heap pools are used instead
+        }
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            pool.resetPeakUsage();
+        }
+    }
+
+    /**
+     * Returns the current RSS of the process, or the used heap if RSS is not available.
+     */
+    private static double currentBytes() {
+        double rss = procStatus("VmRSS:");
+        if (rss >= 0) {
+            return rss;
+        }
+        long used = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                used += pool.getUsage().getUsed();
+            }
+        }
+        return used;
+    }
+
+    /**
+     * Returns the peak RSS of the process since {@link #resetPeak()}, or the summed peak usage of the
+     * heap pools if RSS is not available.
+     */
+    private static double peakBytes() {
+        double hwm = procStatus("VmHWM:");
+        if (hwm >= 0) {
+            return hwm;
+        }
+        List<Long> peaks = new ArrayList<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peaks.add(pool.getPeakUsage().getUsed());
+            }
+        }
+        return peaks.stream().mapToLong(Long::longValue).sum();
+    }
+
+    /**
+     * @return a size from {@code /proc/self/status} in bytes, or {@code -1} if it is not available
+     */
+    private static double procStatus(String field) {
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc/self/status"))) {
+                if (line.startsWith(field)) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024d;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // not Linux
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,134 @@
+package ch.so.agi.gretlgt.steps;
+
+import java.awt.Rectangle;
+import java.awt.image.DataBuffer;
+import java.awt.image.RenderedImage;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Locale;
+
+import javax.media.jai.RasterFactory;
+
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridCoverageFactory;
+import org.geotools.coverage.grid.GridEnvelope2D;
+import org.geotools.coverage.grid.GridGeometry2D;
+import org.geotools.coverage.util.CoverageUtilities;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.opengis.referencing.FactoryException;
+
+/**
+ * Deterministic synthetic class raster for scaling tests.
+ * <p>
+ * The raster consists of square patches whose class is derived from a hash of the patch position and
+ * the seed, so the same parameters always produce the same cells. The fragmentation controls the
+ * patch size (from 64 cells at {@code 0} down to single cells at {@code 1}) and the share of
+ * speckle cells whose class differs from their patch. Whole patches become no-data with the given
+ * share. Tiles are generated on demand, so rasters of any size are written with bounded memory.
+ * </p>
+ */
+final class SyntheticRaster {
+    static final int NO_DATA = 255;
+
+    private final int width;
+    private final int height;
+    private final int classCount;
+    private final double fragmentation;
+    private final double noDataShare;
+    private final long seed;
+
+    /**
+     * @param width         number of columns
+     * @param height        number of rows
+     * @param classCount    number of classes, values {@code 0 .. classCount - 1}; at most 255
+     * @param fragmentation {@code 0} (large patches) to {@code 1} (salt and pepper)
+     * @param noDataShare   share of no-data patches, {@code 0} to {@code 1}
+     * @param seed          seed of the hash
+     */
+    SyntheticRaster(int width, int height, int classCount, double fragmentation, double noDataShare, long seed) {
+        if (classCount < 1 || classCount > 255) {
+            throw new IllegalArgumentException("classCount must be between 1 and 255");
+        }
+        if (!(fragmentation >= 0 && fragmentation <= 1) || !(noDataShare >= 0 && noDataShare <= 1)) {
+            throw new IllegalArgumentException("fragmentation and noDataShare must be between 0 and 1");
+        }
+        this.width = width;
+        this.height = height;
+        this.classCount = classCount;
+        this.fragmentation = fragmentation;
+        this.noDataShare = noDataShare;
+        this.seed = seed;
+    }
+
+    /**
+     * @return the class of a cell, or {@link #NO_DATA}
+     */
+    int valueAt(int x, int y) {
+        int patch = Math.max(1, (int) Math.round(64 * (1 - fragmentation)));
+        long px = x / patch;
+        long py = y / patch;
+        if (unit(hash(px, py, 1)) < noDataShare) {
+            return NO_DATA;
+        }
+        if (unit(hash(x, y, 2)) < fragmentation * 0.25) {
+            return (int) (hash(x, y, 3) % classCount);
+        }
+        return (int) (hash(px, py, 4) % classCount);
+    }
+
+    /**
+     * Writes the raster as tiled LV95 GeoTIFF with 1 m cells.
+     *
+     * @param path destination file
+     * @throws IOException      if the file cannot be written
+     * @throws FactoryException if LV95 cannot be decoded
+     */
+    void write(Path path) throws IOException, FactoryException {
+        TileKernel generator = (sources, target, region) -> {
+            int[] row = new int[region.width];
+            for (int y = region.y; y < region.y + region.height; y++) {
+                for (int i = 0; i < row.length; i++) {
+                    row[i] = valueAt(region.x + i, y);
+                }
+                target.setSamples(region.x, y, region.width, 1, 0, row);
+            }
+        };
+        KernelImage image = new KernelImage(new RenderedImage[0], new Rectangle(0, 0, width, height),
+                GeoTiffOutput.TILE_SIZE,
+                RasterFactory.createPixelInterleavedSampleModel(DataBuffer.TYPE_BYTE, 16, 16, 1),
+                generator, Runtime.getRuntime().availableProcessors());
+        try {
+            ReferencedEnvelope envelope = new ReferencedEnvelope(2_600_000, 2_600_000 + width, 1_200_000,
+                    1_200_000 + height, EmbeddedCrs.decode("EPSG:2056"));
+            HashMap<String, Object> properties = new HashMap<>();
+            CoverageUtilities.setNoDataProperty(properties, Double.valueOf(NO_DATA));
+            GridCoverage2D coverage = new GridCoverageFactory().create("synthetic", image,
+                    new GridGeometry2D(new GridEnvelope2D(0, 0, width, height), envelope),
+                    null, null, properties);
+            GeoTiffOutput.write(coverage, path, true);
+        } finally {
+            image.dispose();
+        }
+    }
+
+    private long hash(long x, long y, long salt) {
+        long h = seed * 0x9E3779B97F4A7C15L + x * 0xBF58476D1CE4E5B9L + y * 0x94D049BB133111EBL + salt;
+        h ^= h >>> 31;
+        h *= 0x7FB5D329728EA185L;
+        h ^= h >>> 27;
+        h *= 0x81DADEF4BC2DD44DL;
+        h ^= h >>> 33;
+        return h & Long.MAX_VALUE;
+    }
+
+    private static double unit(long hash) {
+        return (hash >>> 11) / (double) (1L << 52);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "%dx%d, %d classes, fragmentation %.2f, no-data %.2f, seed %d",
+                width, height, classCount, fragmentation, noDataShare, seed);
+    }
+}
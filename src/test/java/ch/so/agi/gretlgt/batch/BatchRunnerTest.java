@@ -0,0 +1,102 @@
+package ch.so.agi.gretlgt.batch;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import ch.so.agi.gretlgt.steps.CoverageCache;
+
+class BatchRunnerTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void watchMovesMalformedJobFileAsideAndKeepsPolling() throws Exception {
+        Path spool = Files.createDirectories(tempDir.resolve("spool"));
+        // not valid UTF-8, so the job file cannot be read at all
+        Files.write(spool.resolve("a-broken.jsonl"), new byte[] {'{', (byte) 0xC3, (byte) 0x28, '}'});
+        Files.write(spool.resolve("b-empty.jsonl"), List.of("# no jobs"));
+
+        Thread watcher;
+        try (BatchRunner runner = new BatchRunner(1)) {
+            watcher = new Thread(() -> {
+                try {
+                    runner.watch(spool, Duration.ofMillis(20));
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            watcher.start();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+            while (!Files.exists(spool.resolve("b-empty.jsonl.done")) && System.nanoTime() < deadline) {
+                Thread.sleep(20);
+            }
+            Files.write(spool.resolve("c-late.jsonl"), List.of("# no jobs"));
+            while (!Files.exists(spool.resolve("c-late.jsonl.done")) && System.nanoTime() < deadline) {
+                Thread.sleep(20);
+            }
+            watcher.interrupt();
+            watcher.join(TimeUnit.SECONDS.toMillis(10));
+        }
+
+        assertFalse(watcher.isAlive());
+        assertTrue(Files.exists(spool.resolve("a-broken.jsonl.failed")), "Broken job file must be moved aside");
+        assertFalse(Files.exists(spool.resolve("a-broken.jsonl")));
+        assertTrue(Files.exists(spool.resolve("b-empty.jsonl.done")), "Watching must continue after a failure");
+        assertTrue(Files.exists(spool.resolve("c-late.jsonl.done")), "Job files arriving later must be processed");
+
+        List<String> lines = Files.readAllLines(spool.resolve("a-broken.results.jsonl"));
+        assertEquals(1, lines.size());
+        assertTrue(lines.get(0).startsWith("{\"id\":\"a-broken\""), lines.get(0));
+        assertTrue(lines.get(0).contains("\"status\":\"failed\""), lines.get(0));
+    }
+
+    @Test
+    void batchRunnerRunsJobFileInWarmJvmAndWritesResults() throws IOException, InterruptedException {
+        Path input = Path.of("src/test/data/RasterReclassifyStep/Beispiel_Rasterfile.asc").toAbsolutePath();
+        Path jobFile = tempDir.resolve("jobs.jsonl");
+        Files.write(jobFile, List.of(
+                "# both jobs read the raster through the shared coverage cache",
+                "{\"id\": \"a\", \"step\": \"reclassify\", \"input\": \"" + input + "\", \"output\": \"a.tif\", "
+                        + "\"breaks\": [0, 40, 42, 45], \"noData\": -5}",
+                "{\"id\": \"b\", \"step\": \"reclassify\", \"input\": \"" + input + "\", \"output\": \"b.tif\", "
+                        + "\"breaks\": [0, 40, 42, 45], \"noData\": -5, \"streaming\": true}",
+                "{\"id\": \"c\", \"step\": \"unknown\"}",
+                "{\"step\": "));
+        Path resultFile = tempDir.resolve("jobs.results.jsonl");
+
+        CoverageCache cache = new CoverageCache(64L * 1024 * 1024);
+        List<JobResult> results;
+        try (BatchRunner runner = new BatchRunner(2)) {
+            runner.setCoverageCache(cache);
+            results = runner.runFile(jobFile, resultFile);
+        }
+
+        assertEquals(4, results.size());
+        assertEquals(JobResult.Status.SUCCEEDED, results.get(0).getStatus());
+        assertEquals(JobResult.Status.SUCCEEDED, results.get(1).getStatus());
+        assertEquals(JobResult.Status.FAILED, results.get(2).getStatus());
+        assertTrue(results.get(2).getMessage().contains("unknown step"));
+        assertEquals(JobResult.Status.FAILED, results.get(3).getStatus());
+        assertEquals("5", results.get(3).getId());
+        assertTrue(Files.exists(tempDir.resolve("a.tif")));
+        assertTrue(Files.exists(tempDir.resolve("b.tif")));
+        assertEquals(2, cache.getHits() + cache.getMisses());
+
+        List<String> lines = Files.readAllLines(resultFile);
+        assertEquals(4, lines.size());
+        assertTrue(lines.get(0).startsWith("{\"id\":\"a\",\"step\":\"reclassify\",\"status\":\"succeeded\""));
+        assertTrue(lines.get(2).contains("\"status\":\"failed\""));
+    }
+}
@@ -0,0 +1,47 @@
+package ch.so.agi.gretlgt.steps;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class CoverageCacheTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void coverageCacheServesDecodedRasterUntilFileChanges() throws IOException {
+        Path input = tempDir.resolve("cached.asc");
+        Files.copy(Path.of("src/test/data/RasterReclassifyStep/Beispiel_Rasterfile.asc"), input);
+        CoverageCache cache = new CoverageCache(64L << 20);
+
+        CoverageSource first = CoverageSource.of(input);
+        first.setCoverageCache(cache);
+        GridCoverage2D decoded = first.read();
+        CoverageSource second = CoverageSource.of(input);
+        second.setCoverageCache(cache);
+        GridCoverage2D reused = second.read();
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getHits());
+        assertTrue(decoded == reused, "Second read must reuse the decoded coverage");
+        assertEquals(CoverageCache.estimateBytes(decoded.getRenderedImage()), cache.getUsedBytes());
+
+        Files.setLastModifiedTime(input, FileTime.fromMillis(Files.getLastModifiedTime(input).toMillis() + 2000));
+        second.read();
+        assertEquals(2, cache.getMisses(), "A modified file must be decoded again");
+
+        CoverageCache tooSmall = new CoverageCache(16);
+        CoverageSource third = CoverageSource.of(input);
+        third.setCoverageCache(tooSmall);
+        third.read();
+        assertEquals(0, tooSmall.getUsedBytes(), "Rasters above the budget must not be cached");
+    }
+}
@@ -0,0 +1,30 @@
+package ch.so.agi.gretlgt.steps;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.geotools.geometry.DirectPosition2D;
+import org.geotools.referencing.CRS;
+import org.junit.jupiter.api.Test;
+import org.opengis.referencing.FactoryException;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.operation.MathTransform;
+import org.opengis.referencing.operation.TransformException;
+
+class EmbeddedCrsTest {
+
+    @Test
+    void embeddedCrsDecodesAndLooksUpLv95() throws FactoryException, TransformException {
+        CoordinateReferenceSystem lv95 = EmbeddedCrs.decode("EPSG:2056");
+        MathTransform toWgs84 = CRS.findMathTransform(lv95, EmbeddedCrs.decode("EPSG:4326"));
+        DirectPosition2D bern = new DirectPosition2D(2_600_000, 1_200_000);
+        toWgs84.transform(bern, bern);
+        assertEquals(7.43863, bern.getX(), 1e-4, "Longitude first");
+        assertEquals(46.95108, bern.getY(), 1e-4);
+
+        String anonymous = lv95.toWKT().replaceAll(",\\s*AUTHORITY\\[[^\\]]*\\]", "");
+        CoordinateReferenceSystem parsed = CRS.parseWKT(anonymous);
+        assertTrue(parsed.getIdentifiers().isEmpty());
+        assertEquals(Integer.valueOf(2056), EmbeddedCrs.lookupEpsgCode(parsed));
+    }
+}
@@ -0,0 +1,39 @@
+package ch.so.agi.gretlgt.steps;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class MapAlgebraTest {
+
+    @Test
+    void temporaryRegistersAreReusedAfterTheirLastRead() {
+        StringBuilder expression = new StringBuilder("a");
+        for (int i = 0; i < 200; i++) {
+            expression.append(" + a * b");
+        }
+        MapAlgebra algebra = MapAlgebra.compile(expression.toString(), List.of("a", "b"));
+        double[][] registers = algebra.newRegisters(2);
+        assertTrue(registers.length <= 4, "Registers must grow with depth, not length: " + registers.length);
+
+        registers[0][0] = 2;
+        registers[1][0] = 3;
+        registers[0][1] = -1;
+        registers[1][1] = 0.5;
+        double[] result = algebra.evaluate(registers, 2);
+        assertEquals(2 + 200 * 6d, result[0]);
+        assertEquals(-1 - 200 * 0.5, result[1]);
+
+        MapAlgebra nested = MapAlgebra.compile("max(a, b) / (b - 1) + 2 * -3 > 0 ? sqrt(a * a) : -b", List.of("a", "b"));
+        registers = nested.newRegisters(1);
+        registers[0][0] = 10;
+        registers[1][0] = 2;
+        assertEquals(10d, nested.evaluate(registers, 1)[0]);
+        registers[0][0] = 1;
+        registers[1][0] = 3;
+        assertEquals(-3d, nested.evaluate(registers, 1)[0]);
+    }
+}
@@ -0,0 +1,97 @@
+package ch.so.agi.gretlgt.steps;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.media.jai.RasterFactory;
+
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridCoverageFactory;
+import org.geotools.coverage.grid.io.AbstractGridFormat;
+import org.geotools.coverage.grid.io.GridCoverage2DReader;
+import org.geotools.coverage.grid.io.GridFormatFinder;
+import org.geotools.coverage.util.CoverageUtilities;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.CRS;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.opengis.referencing.FactoryException;
+
+import ch.so.agi.gretlgt.utils.GretlException;
+
+class RasterCalcStepTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void rasterCalcEvaluatesCompiledExpressionOverAlignedInputs() throws IOException, FactoryException {
+        int width = 700;
+        int height = 600;
+        WritableRaster noise = RasterFactory.createBandedRaster(DataBuffer.TYPE_FLOAT, width, height, 1, null);
+        WritableRaster zones = RasterFactory.createBandedRaster(DataBuffer.TYPE_INT, width, height, 1, null);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                noise.setSample(x, y, 0, x % 100);
+                zones.setSample(x, y, 0, y % 5);
+            }
+        }
+        noise.setSample(3, 3, 0, -1);
+        ReferencedEnvelope envelope = new ReferencedEnvelope(2_600_000, 2_600_000 + width, 1_200_000,
+                1_200_000 + height, CRS.decode("EPSG:2056", true));
+        Path noisePath = tempDir.resolve("noise.tif");
+        Path zonesPath = tempDir.resolve("zones.tif");
+        HashMap<String, Object> properties = new HashMap<>();
+        CoverageUtilities.setNoDataProperty(properties, Double.valueOf(-1));
+        GeoTiffOutput.write(new GridCoverageFactory().create("noise", noise, envelope, null, null, properties),
+                noisePath, false);
+        GeoTiffOutput.write(new GridCoverageFactory().create("zones", zones, envelope), zonesPath, false);
+
+        Map<String, CoverageSource> inputs = new LinkedHashMap<>();
+        inputs.put("a", CoverageSource.of(noisePath));
+        inputs.put("b", CoverageSource.of(zonesPath));
+        Path output = tempDir.resolve("calc.tif");
+        RasterCalcStep step = new RasterCalcStep("test");
+        step.execute(inputs, "a > 60 && b < 3 ? 1 : 0", output);
+
+        Raster result = readCoverage(output).getRenderedImage().getData();
+        assertEquals(1d, result.getSampleDouble(61, 0, 0));
+        assertEquals(0d, result.getSampleDouble(60, 0, 0));
+        assertEquals(0d, result.getSampleDouble(661, 3, 0));
+        assertEquals(1d, result.getSampleDouble(661, 597, 0), "Last tile row must be computed");
+        assertEquals(-9999d, result.getSampleDouble(3, 3, 0), "Source no-data must become no-data");
+
+        step.execute(inputs, "max(a, b) / (b - 1) + 2 * -3", output);
+        result = readCoverage(output).getRenderedImage().getData();
+        assertEquals(10d / 1 - 6, result.getSampleDouble(10, 2, 0), 1e-6);
+        assertEquals(-9999d, result.getSampleDouble(10, 1, 0), "Division by zero must become no-data");
+
+        GretlException unknown = assertThrows(GretlException.class,
+                () -> step.execute(inputs, "a > c", output));
+        assertTrue(unknown.getMessage().contains("Unknown input 'c'"), unknown.getMessage());
+        assertThrows(GretlException.class, () -> step.execute(inputs, "(a + 1", output));
+    }
+
+    private GridCoverage2D readCoverage(Path rasterPath) throws IOException {
+        AbstractGridFormat format = GridFormatFinder.findFormat(rasterPath.toFile());
+        GridCoverage2DReader reader = null;
+        try {
+            reader = format.getReader(rasterPath.toFile());
+            return reader.read(null);
+        } finally {
+            if (reader != null) {
+                reader.dispose();
+            }
+        }
+    }
+}
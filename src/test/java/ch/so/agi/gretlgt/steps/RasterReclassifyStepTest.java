@@ -1,26 +1,54 @@
 package ch.so.agi.gretlgt.steps;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.awt.Color;
+import java.awt.Rectangle;
+import java.awt.geom.Point2D;
+import java.awt.image.DataBuffer;
+import java.awt.image.IndexColorModel;
 import java.awt.image.Raster;
 import java.awt.image.RenderedImage;
+import java.awt.image.WritableRaster;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.media.jai.RasterFactory;
+import javax.media.jai.TiledImage;
 
 import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridCoverageFactory;
 import org.geotools.coverage.grid.io.AbstractGridFormat;
 import org.geotools.coverage.grid.io.GridCoverage2DReader;
 import org.geotools.coverage.grid.io.GridFormatFinder;
 import org.geotools.coverage.util.CoverageUtilities;
+import org.geotools.geometry.Envelope2D;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.CRS;
+import org.junit.jupiter.api.Tag;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.Polygon;
+import org.opengis.metadata.spatial.PixelOrientation;
 import org.opengis.referencing.FactoryException;
 import org.opengis.referencing.NoSuchAuthorityCodeException;
+import org.opengis.referencing.operation.MathTransform2D;
+import org.opengis.referencing.operation.TransformException;
 
+import ch.so.agi.gretlgt.logging.LogEnvironment;
 import it.geosolutions.jaiext.range.NoDataContainer;
 
 class RasterReclassifyStepTest {
@@ -77,6 +105,454 @@ class RasterReclassifyStepTest {
                 "Custom configuration should expose the provided noData value");
     }
 
+    @Test
+    void resultCacheRestoresIdenticalOutput() throws IOException, NoSuchAuthorityCodeException, FactoryException {
+        Path input = Path.of("src/test/data/RasterReclassifyStep/Beispiel_Rasterfile.asc");
+        Path firstOutput = tempDir.resolve("first.tif");
+        Path secondOutput = tempDir.resolve("second.tif");
+        StepResultCache cache = new StepResultCache(tempDir.resolve("cache"));
+
+        RasterReclassifyStep step = new RasterReclassifyStep("test");
+        step.setResultCache(cache);
+        step.execute(input, firstOutput);
+        assertEquals(0, cache.getHits(), "First run must compute the result");
+        assertEquals(1, cache.getMisses(), "First run must register a cache miss");
+
+        step.execute(input, secondOutput);
+        assertEquals(1, cache.getHits(), "Second run must be served from the cache");
+        assertTrue(Files.exists(secondOutput), "Cache hit must materialize the output file");
+        assertArrayEquals(Files.readAllBytes(firstOutput), Files.readAllBytes(secondOutput),
+                "Cached output must be byte-identical to the computed output");
+
+        step.execute(input, tempDir.resolve("third.tif"), new double[] {0, 40, 42, 45});
+        assertEquals(2, cache.getMisses(), "Different breaks must not hit the cache");
+    }
+
+    @Test
+    void streamingProducesSameClassesAsInMemoryReclassification() throws IOException, NoSuchAuthorityCodeException, FactoryException {
+        Path input = Path.of("src/test/data/RasterReclassifyStep/Beispiel_Rasterfile.asc");
+        Path inMemoryOutput = tempDir.resolve("in-memory.tif");
+        Path streamedOutput = tempDir.resolve("streamed.tif");
+        double[] breaks = {0, 40, 42, 45};
+
+        new RasterReclassifyStep("test").execute(input, inMemoryOutput, breaks, -5d);
+
+        RasterReclassifyStep step = new RasterReclassifyStep("test");
+        step.setStreaming(true);
+        step.setTilesInFlight(2);
+        step.execute(input, streamedOutput, breaks, -5d);
+
+        Raster expected = readCoverage(inMemoryOutput).getRenderedImage().getData();
+        Raster actual = readCoverage(streamedOutput).getRenderedImage().getData();
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                assertEquals(expected.getSampleDouble(x, y, 0), actual.getSampleDouble(x, y, 0),
+                        "Pixel " + x + "/" + y + " differs between streamed and in-memory result");
+            }
+        }
+        assertEquals(-5d, CoverageUtilities.getNoDataProperty(readCoverage(streamedOutput)).getAsSingleValue());
+    }
+
+    @Test
+    void memoryBudgetChoosesBetweenInMemoryAndStreamingExecution() throws IOException, FactoryException {
+        Path input = Path.of("src/test/data/RasterReclassifyStep/Beispiel_Rasterfile.asc");
+        Path inMemoryOutput = tempDir.resolve("in-memory.tif");
+        Path streamedOutput = tempDir.resolve("streamed.tif");
+        double[] breaks = {0, 40, 42, 45};
+
+        RasterHeader header = CoverageSource.of(input).readHeader();
+        assertTrue(header.getPixels() > 0);
+        assertTrue(header.getBytes() >= header.getPixels());
+
+        RasterReclassifyStep inMemory = new RasterReclassifyStep("test");
+        inMemory.setMemoryBudget(Long.MAX_VALUE);
+        inMemory.execute(input, inMemoryOutput, breaks, -5d);
+        assertEquals(ExecutionPlan.Mode.IN_MEMORY, inMemory.getExecutionPlan().getMode());
+        assertTrue(inMemory.getExecutionPlan().isAutomatic());
+
+        RasterReclassifyStep streamed = new RasterReclassifyStep("test");
+        streamed.setMemoryBudget(1);
+        streamed.execute(input, streamedOutput, breaks, -5d);
+        ExecutionPlan plan = streamed.getExecutionPlan();
+        assertEquals(ExecutionPlan.Mode.TILED, plan.getMode());
+        assertTrue(plan.getInMemoryBytes() > plan.getBudgetBytes());
+
+        Raster expected = readCoverage(inMemoryOutput).getRenderedImage().getData();
+        Raster actual = readCoverage(streamedOutput).getRenderedImage().getData();
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                assertEquals(expected.getSampleDouble(x, y, 0), actual.getSampleDouble(x, y, 0),
+                        "Pixel " + x + "/" + y + " differs between the execution modes");
+            }
+        }
+
+        RasterReclassifyStep configured = new RasterReclassifyStep("test");
+        configured.setStreaming(false);
+        configured.setMemoryBudget(1);
+        configured.execute(input, tempDir.resolve("configured.tif"), breaks, -5d);
+        assertEquals(ExecutionPlan.Mode.IN_MEMORY, configured.getExecutionPlan().getMode());
+        assertFalse(configured.getExecutionPlan().isAutomatic());
+    }
+
+    @Test
+    void narrowestDataTypeHoldsClassValuesAndNoData() {
+        assertEquals(DataBuffer.TYPE_BYTE, RasterReclassify.narrowestDataType(new int[][] {{1, 2, 5}}, 255));
+        assertEquals(DataBuffer.TYPE_SHORT, RasterReclassify.narrowestDataType(new int[][] {{1, 2, 5}}, -100));
+        assertEquals(DataBuffer.TYPE_USHORT, RasterReclassify.narrowestDataType(new int[][] {{1, 40000}}, 0));
+        assertEquals(DataBuffer.TYPE_USHORT, RasterReclassify.narrowestDataType(new int[][] {{1, 300}}, 0));
+        assertEquals(DataBuffer.TYPE_INT, RasterReclassify.narrowestDataType(new int[][] {{1}, {-1, 70000}}, 0));
+        assertEquals(DataBuffer.TYPE_FLOAT, RasterReclassify.narrowestDataType(new int[][] {{1, 2}}, -0.5));
+    }
+
+    @Test
+    void reclassifiedRasterIsWrittenAsBytesWithPalette() throws IOException, FactoryException {
+        Path input = Path.of("src/test/data/RasterReclassifyStep/Beispiel_Rasterfile.asc");
+        Path output = tempDir.resolve("palette.tif");
+        double[] breaks = {0, 40, 42, 45};
+
+        RasterReclassifyStep step = new RasterReclassifyStep("test");
+        step.setPalette(Map.of(0, Color.RED, 40, Color.GREEN, 42, new Color(0, 0, 255, 128)));
+        step.execute(input, output, breaks, 255d);
+
+        RenderedImage image = readCoverage(output).getRenderedImage();
+        assertEquals(DataBuffer.TYPE_BYTE, image.getSampleModel().getDataType());
+        assertTrue(image.getColorModel() instanceof IndexColorModel);
+        IndexColorModel palette = (IndexColorModel) image.getColorModel();
+        assertEquals(Color.RED.getRGB(), palette.getRGB(0));
+        assertEquals(Color.GREEN.getRGB(), palette.getRGB(40));
+        assertEquals(128, palette.getAlpha(42));
+        assertEquals(0, palette.getAlpha(255));
+
+        Path expectedOutput = tempDir.resolve("int.tif");
+        new RasterReclassifyStep("test").execute(input, expectedOutput, breaks, 70000d);
+        Raster expected = readCoverage(expectedOutput).getRenderedImage().getData();
+        Raster actual = image.getData();
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                double value = expected.getSampleDouble(x, y, 0);
+                assertEquals(value == 70000d ? 255d : value, actual.getSampleDouble(x, y, 0),
+                        "Pixel " + x + "/" + y + " differs between byte and int output");
+            }
+        }
+        assertTrue(Files.size(output) < Files.size(expectedOutput));
+
+        RasterReclassifyStep negative = new RasterReclassifyStep("test");
+        negative.setPalette(Map.of(0, Color.RED));
+        assertThrows(IllegalArgumentException.class,
+                () -> negative.execute(input, tempDir.resolve("negative.tif"), breaks, -5d));
+    }
+
+    @Test
+    void paletteWithClassValuesAbove255IsWrittenAsUnsignedShorts() throws IOException, FactoryException {
+        Path input = Path.of("src/test/data/RasterReclassifyStep/Beispiel_Rasterfile.asc");
+        Path output = tempDir.resolve("palette16.tif");
+
+        RasterReclassifyStep step = new RasterReclassifyStep("test");
+        step.setPalette(Map.of(0, Color.RED, 40, Color.GREEN));
+        step.execute(input, output, new double[] {0, 40, 42, 45}, 300d);
+
+        RenderedImage image = readCoverage(output).getRenderedImage();
+        assertEquals(DataBuffer.TYPE_USHORT, image.getSampleModel().getDataType());
+        IndexColorModel palette = (IndexColorModel) image.getColorModel();
+        assertEquals(Color.RED.getRGB(), palette.getRGB(0));
+        assertEquals(Color.GREEN.getRGB(), palette.getRGB(40));
+        assertEquals(0, palette.getAlpha(300));
+    }
+
+    @Test
+    void categoryMappingUsesDenseTableOrHashForSparseCodes() {
+        CategoryMapping dense = new CategoryMapping(Map.of(11, 1, 12, 1, 17, 1, 21, 2, 23, 2), null);
+        CategoryMapping sparse = new CategoryMapping(Map.of(-2_000_000_000, 1, 11, 1, 2_000_000_000, 2), 9);
+        assertTrue(dense.isDense());
+        assertFalse(sparse.isDense());
+
+        assertEquals(1d, dense.classify(17, -1));
+        assertEquals(2d, dense.classify(23, -1));
+        assertEquals(-1d, dense.classify(22, -1));
+        assertEquals(-1d, dense.classify(10, -1));
+        assertEquals(-1d, dense.classify(11.5, -1));
+
+        assertEquals(1d, sparse.classify(-2_000_000_000, -1));
+        assertEquals(2d, sparse.classify(2_000_000_000, -1));
+        assertEquals(9d, sparse.classify(12, -1));
+        assertEquals(9d, sparse.classify(1e12, -1));
+        assertArrayEquals(new int[] {1, 2, 9}, sparse.getClassValues());
+    }
+
+    @Test
+    void categoricalReclassificationMapsCodesAndDefaultClass() throws IOException, FactoryException {
+        Path input = Path.of("src/test/data/RasterReclassifyStep/Beispiel_Rasterfile.asc");
+        Path codes = tempDir.resolve("codes.tif");
+        new RasterReclassifyStep("test").execute(input, codes, new double[] {0, 40, 42, 45}, DEFAULT_NO_DATA);
+
+        Path output = tempDir.resolve("categories.tif");
+        BandClassification classification = BandClassification.categorical(Map.of(0, 1, 40, 2), 9);
+        new RasterReclassifyStep("test").execute(CoverageSource.of(codes), output, new int[] {0},
+                List.of(classification), 255d);
+
+        Raster expected = readCoverage(codes).getRenderedImage().getData();
+        RenderedImage image = readCoverage(output).getRenderedImage();
+        assertEquals(DataBuffer.TYPE_BYTE, image.getSampleModel().getDataType());
+        Raster actual = image.getData();
+        Map<Double, Double> classes = Map.of(DEFAULT_NO_DATA, 255d, 0d, 1d, 40d, 2d, 42d, 9d);
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                double code = expected.getSampleDouble(x, y, 0);
+                assertEquals(classes.get(code), actual.getSampleDouble(x, y, 0), "Pixel " + x + "/" + y);
+            }
+        }
+        assertEquals(Set.of(255d, 1d, 2d, 9d), readClassValues(readCoverage(output)));
+
+        assertThrows(IllegalArgumentException.class, () -> RasterReclassify.reclassifyBands(readCoverage(codes),
+                new int[] {0, 0}, List.of(classification, BandClassification.lowerBounds(new double[] {0, 1})),
+                255d, 1));
+    }
+
+    @Test
+    void cancellationStopsStreamingBetweenTilesAndRemovesOutput() throws IOException, FactoryException {
+        int width = 700;
+        int height = 600;
+        WritableRaster pixels = RasterFactory.createBandedRaster(DataBuffer.TYPE_FLOAT, width, height, 1, null);
+        ReferencedEnvelope envelope = new ReferencedEnvelope(2_600_000, 2_600_000 + width, 1_200_000,
+                1_200_000 + height, CRS.decode("EPSG:2056", true));
+        Path input = tempDir.resolve("four-tiles.tif");
+        GeoTiffOutput.write(new GridCoverageFactory().create("four-tiles", pixels, envelope), input, false);
+
+        CancellationToken token = new CancellationToken();
+        AtomicInteger tiles = new AtomicInteger();
+        StepProgress progress = new StepProgress(ProgressSink.logging(LogEnvironment.getLogger(getClass()))) {
+            @Override
+            public void advance(long pixels) {
+                super.advance(pixels);
+                tiles.incrementAndGet();
+                token.cancel("cancelled by test");
+            }
+        };
+        Path output = tempDir.resolve("cancelled.tif");
+        RasterReclassifyStep step = new RasterReclassifyStep("test");
+        step.setStreaming(true);
+        step.setTilesInFlight(0);
+        step.setProgress(progress);
+        step.setCancellationToken(token);
+
+        StepCancelledException e = assertThrows(StepCancelledException.class,
+                () -> step.execute(input, output, new double[] {-1, 1}, -5d));
+        assertTrue(e.getMessage().contains("cancelled by test"), e.getMessage());
+        assertEquals(1, tiles.get(), "No tile must be computed after the cancellation");
+        assertFalse(Files.exists(output), "Partial output must be removed");
+    }
+
+    @Test
+    void inMemoryMultiBandOutputComputesEveryTileOnce() throws IOException, FactoryException {
+        Path input = fourTileInput(2);
+        AtomicInteger tiles = new AtomicInteger();
+        RasterReclassifyStep step = new RasterReclassifyStep("test");
+        step.setStreaming(false);
+        step.setProgress(countingProgress(tiles));
+        BandClassification classification = BandClassification.lowerBounds(new double[] {0, 1});
+        step.execute(CoverageSource.of(input), tempDir.resolve("two-bands.tif"), new int[] {0, 1},
+                List.of(classification, classification), -5d);
+
+        assertEquals(4, tiles.get(), "The untiled writer must not recompute tiles per strip");
+    }
+
+    @Test
+    void inMemoryPaletteOutputComputesEveryTileOnce() throws IOException, FactoryException {
+        Path input = fourTileInput(1);
+        AtomicInteger tiles = new AtomicInteger();
+        RasterReclassifyStep step = new RasterReclassifyStep("test");
+        step.setStreaming(false);
+        step.setPalette(Map.of(0, Color.RED));
+        step.setProgress(countingProgress(tiles));
+        Path output = tempDir.resolve("palette.tif");
+        step.execute(input, output, new double[] {0, 1}, 255d);
+
+        assertEquals(4, tiles.get(), "The untiled writer must not recompute tiles per strip");
+        assertTrue(readCoverage(output).getRenderedImage().getColorModel() instanceof IndexColorModel);
+    }
+
+    @Test
+    void singleBandCategoricalLookupIsMaterialised() throws IOException, FactoryException {
+        Path input = fourTileInput(1);
+        GridCoverage2D classified = RasterReclassify.reclassifyByCategories(readCoverage(input), 0, Map.of(0, 3),
+                null, 255d);
+        RenderedImage image = classified.getRenderedImage();
+        assertTrue(image instanceof TiledImage, "The lookup must be computed before the writer pulls strips");
+        assertEquals(DataBuffer.TYPE_BYTE, image.getSampleModel().getDataType());
+        assertEquals(3d, image.getData().getSampleDouble(699, 599, 0));
+
+        Path output = tempDir.resolve("categories.tif");
+        RasterReclassifyStep step = new RasterReclassifyStep("test");
+        step.setStreaming(false);
+        step.execute(CoverageSource.of(input), output, new int[] {0},
+                List.of(BandClassification.categorical(Map.of(0, 3), null)), 255d);
+        assertEquals(Set.of(3d), readClassValues(readCoverage(output)));
+    }
+
+    /**
+     * Writes a zero-filled 700 x 600 float raster, which is computed as four tiles.
+     */
+    private Path fourTileInput(int bands) throws IOException, FactoryException {
+        int width = 700;
+        int height = 600;
+        WritableRaster pixels = RasterFactory.createBandedRaster(DataBuffer.TYPE_FLOAT, width, height, bands, null);
+        ReferencedEnvelope envelope = new ReferencedEnvelope(2_600_000, 2_600_000 + width, 1_200_000,
+                1_200_000 + height, CRS.decode("EPSG:2056", true));
+        Path input = tempDir.resolve("four-tiles-" + bands + ".tif");
+        GeoTiffOutput.write(new GridCoverageFactory().create("four-tiles", pixels, envelope), input, false);
+        return input;
+    }
+
+    private StepProgress countingProgress(AtomicInteger tiles) {
+        return new StepProgress(ProgressSink.logging(LogEnvironment.getLogger(getClass()))) {
+            @Override
+            public void advance(long pixels) {
+                super.advance(pixels);
+                tiles.incrementAndGet();
+            }
+        };
+    }
+
+    @Test
+    void reclassifiesSeveralBandsInOnePass() throws IOException, NoSuchAuthorityCodeException, FactoryException {
+        int width = 700;
+        int height = 600;
+        WritableRaster pixels = RasterFactory.createBandedRaster(DataBuffer.TYPE_FLOAT, width, height, 3, null);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                pixels.setSample(x, y, 0, x % 100);
+                pixels.setSample(x, y, 1, -1);
+                pixels.setSample(x, y, 2, y % 10);
+            }
+        }
+        ReferencedEnvelope envelope = new ReferencedEnvelope(2_600_000, 2_600_000 + width, 1_200_000,
+                1_200_000 + height, CRS.decode("EPSG:2056", true));
+        Path input = tempDir.resolve("three-bands.tif");
+        GeoTiffOutput.write(new GridCoverageFactory().create("three-bands", pixels, envelope), input, false);
+
+        List<BandClassification> classifications = List.of(
+                new BandClassification(new double[] {0, 50, 100}, new int[] {1, 2}),
+                new BandClassification(new double[] {0, 5, 10}, new int[] {7, 8}));
+        Path output = tempDir.resolve("multi.tif");
+        RasterReclassifyStep step = new RasterReclassifyStep("test");
+        step.execute(CoverageSource.of(input), output, new int[] {0, 2}, classifications, -5d);
+
+        Raster result = readCoverage(output).getRenderedImage().getData();
+        assertEquals(2, result.getNumBands(), "One output band per requested band");
+        assertEquals(1d, result.getSampleDouble(10, 0, 0));
+        assertEquals(2d, result.getSampleDouble(650, 0, 0));
+        assertEquals(7d, result.getSampleDouble(0, 4, 1));
+        assertEquals(8d, result.getSampleDouble(0, 599, 1));
+
+        Path splitOutput = tempDir.resolve("split.tif");
+        step.setSplitBands(true);
+        step.setScratchDirectory(tempDir.resolve("scratch"));
+        step.execute(CoverageSource.of(input), splitOutput, new int[] {0, 2}, classifications, -5d);
+
+        Raster band0 = readCoverage(RasterReclassifyStep.bandOutputPath(splitOutput, 0)).getRenderedImage().getData();
+        Raster band2 = readCoverage(RasterReclassifyStep.bandOutputPath(splitOutput, 2)).getRenderedImage().getData();
+        assertEquals(1, band0.getNumBands());
+        assertEquals(2d, band0.getSampleDouble(650, 0, 0));
+        assertEquals(8d, band2.getSampleDouble(0, 599, 0));
+        assertEquals(-5d, CoverageUtilities.getNoDataProperty(
+                readCoverage(RasterReclassifyStep.bandOutputPath(splitOutput, 2))).getAsSingleValue());
+    }
+
+    @Test
+    void cellsOutsidePolygonMaskBecomeNoData()
+            throws IOException, NoSuchAuthorityCodeException, FactoryException, TransformException {
+        Path input = Path.of("src/test/data/RasterReclassifyStep/Beispiel_Rasterfile.asc");
+        Path output = tempDir.resolve("masked.tif");
+
+        GridCoverage2D source = readCoverage(input);
+        Envelope2D extent = source.getEnvelope2D();
+        GeometryFactory factory = new GeometryFactory();
+        Polygon triangle = factory.createPolygon(new Coordinate[] {
+                new Coordinate(extent.getMinX() + extent.getWidth() * 0.1031, extent.getMinY() + extent.getHeight() * 0.0973),
+                new Coordinate(extent.getMinX() + extent.getWidth() * 0.8917, extent.getMinY() + extent.getHeight() * 0.2113),
+                new Coordinate(extent.getMinX() + extent.getWidth() * 0.4471, extent.getMinY() + extent.getHeight() * 0.9029),
+                new Coordinate(extent.getMinX() + extent.getWidth() * 0.1031, extent.getMinY() + extent.getHeight() * 0.0973)});
+
+        RasterReclassifyStep step = new RasterReclassifyStep("test");
+        step.setRegionOfInterest(RegionOfInterest.ofGeometry(triangle, null));
+        step.execute(input, output);
+
+        GridCoverage2D coverage = readCoverage(output);
+        Raster result = coverage.getRenderedImage().getData();
+        MathTransform2D gridToCrs = coverage.getGridGeometry().getGridToCRS2D(PixelOrientation.CENTER);
+        int inside = 0;
+        for (int y = result.getMinY(); y < result.getMinY() + result.getHeight(); y++) {
+            for (int x = result.getMinX(); x < result.getMinX() + result.getWidth(); x++) {
+                Point2D centre = gridToCrs.transform(new Point2D.Double(x, y), null);
+                boolean contained = triangle.contains(factory.createPoint(new Coordinate(centre.getX(), centre.getY())));
+                double value = result.getSampleDouble(x, y, 0);
+                if (contained) {
+                    inside++;
+                } else {
+                    assertEquals(DEFAULT_NO_DATA, value, "Cell " + x + "/" + y + " outside the mask must be noData");
+                }
+            }
+        }
+        assertTrue(inside > 0, "The mask must cover some cells of the window");
+    }
+
+    /**
+     * Reclassifies a synthetic 40000 x 40000 raster (1.6 billion cells). Run with
+     * {@code ./gradlew memoryTest}, which caps the heap at 512 MB.
+     */
+    @Test
+    @Tag("memory")
+    void streamingReclassifiesHugeRasterWithBoundedHeap() throws IOException, NoSuchAuthorityCodeException, FactoryException {
+        assertTrue(Runtime.getRuntime().maxMemory() <= 600L * 1024 * 1024,
+                "memory test must run with a heap of at most 512 MB");
+        int size = 40_000;
+        Path input = tempDir.resolve("huge.tif");
+        Path output = tempDir.resolve("huge-reclass.tif");
+
+        // values 0..99 in diagonal bands of 100 cells
+        TileKernel generator = (sources, target, region) -> {
+            int[] row = new int[region.width];
+            for (int y = region.y; y < region.y + region.height; y++) {
+                for (int i = 0; i < row.length; i++) {
+                    row[i] = ((region.x + i) / 100 + y / 100) % 100;
+                }
+                target.setSamples(region.x, y, region.width, 1, 0, row);
+            }
+        };
+        KernelImage image = new KernelImage(new RenderedImage[0], new Rectangle(0, 0, size, size),
+                GeoTiffOutput.TILE_SIZE,
+                RasterFactory.createPixelInterleavedSampleModel(DataBuffer.TYPE_BYTE, 16, 16, 1),
+                generator, 4);
+        try {
+            ReferencedEnvelope envelope = new ReferencedEnvelope(2_600_000, 2_600_000 + size, 1_200_000,
+                    1_200_000 + size, CRS.decode("EPSG:2056", true));
+            GridCoverage2D synthetic = new GridCoverageFactory().create("huge", image, envelope);
+            GeoTiffOutput.write(synthetic, input, true);
+        } finally {
+            image.dispose();
+        }
+
+        RasterReclassifyStep step = new RasterReclassifyStep("test");
+        step.setStreaming(true);
+        step.execute(input, output, new double[] {0, 55, 60, 65, 70, 500});
+
+        GridCoverage2D coverage = readCoverage(output);
+        RenderedImage result = coverage.getRenderedImage();
+        assertEquals(size, result.getWidth());
+        assertEquals(size, result.getHeight());
+        int[][] probes = {{0, 0}, {5_550, 0}, {39_999, 39_999}, {20_000, 12_345}, {6_950, 50}};
+        for (int[] probe : probes) {
+            int x = probe[0];
+            int y = probe[1];
+            int value = (x / 100 + y / 100) % 100;
+            double expected = value >= 70 ? 70 : value >= 65 ? 65 : value >= 60 ? 60 : value >= 55 ? 55 : 0;
+            double actual = result.getData(new Rectangle(x, y, 1, 1)).getSampleDouble(x, y, 0);
+            assertEquals(expected, actual, "Unexpected class at " + x + "/" + y);
+        }
+    }
+
     private GridCoverage2D readCoverage(Path rasterPath) throws IOException {
         AbstractGridFormat format = GridFormatFinder.findFormat(rasterPath.toFile());
         GridCoverage2DReader reader = null;
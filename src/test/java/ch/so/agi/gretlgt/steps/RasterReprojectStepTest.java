@@ -0,0 +1,81 @@
+package ch.so.agi.gretlgt.steps;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.nio.file.Path;
+
+import javax.media.jai.RasterFactory;
+
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridCoverageFactory;
+import org.geotools.coverage.grid.io.AbstractGridFormat;
+import org.geotools.coverage.grid.io.GridCoverage2DReader;
+import org.geotools.coverage.grid.io.GridFormatFinder;
+import org.geotools.geometry.DirectPosition2D;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.CRS;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.opengis.referencing.FactoryException;
+
+class RasterReprojectStepTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void reprojectWarpsToTargetGridWithResampling() throws IOException, FactoryException {
+        int width = 700;
+        int height = 600;
+        WritableRaster pixels = RasterFactory.createBandedRaster(DataBuffer.TYPE_INT, width, height, 1, null);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                pixels.setSample(x, y, 0, x / 100);
+            }
+        }
+        ReferencedEnvelope envelope = new ReferencedEnvelope(2_600_000, 2_600_000 + width, 1_200_000,
+                1_200_000 + height, CRS.decode("EPSG:2056", true));
+        Path input = tempDir.resolve("lv95.tif");
+        GeoTiffOutput.write(new GridCoverageFactory().create("lv95", pixels, envelope), input, false);
+
+        Path lv03 = tempDir.resolve("lv03.tif");
+        RasterReprojectStep step = new RasterReprojectStep("test");
+        step.setResolution(1d);
+        step.execute(input, "EPSG:21781", lv03);
+        GridCoverage2D warped = readCoverage(lv03);
+        assertEquals(600_000, warped.getEnvelope2D().getMinX(), 2);
+        assertEquals(200_000, warped.getEnvelope2D().getMinY(), 2);
+        assertEquals(Integer.valueOf(21781), EmbeddedCrs.lookupEpsgCode(warped.getCoordinateReferenceSystem2D()));
+        int[] value = warped.evaluate(new DirectPosition2D(warped.getCoordinateReferenceSystem2D(),
+                600_350.5, 200_300.5), (int[]) null);
+        assertEquals(3, value[0]);
+
+        Path coarse = tempDir.resolve("coarse.tif");
+        step.setResolution(10d);
+        step.setResampling(Resampling.MODE);
+        step.execute(input, "EPSG:2056", coarse);
+        Raster result = readCoverage(coarse).getRenderedImage().getData();
+        assertEquals(70, result.getWidth());
+        assertEquals(60, result.getHeight());
+        assertEquals(0d, result.getSampleDouble(9, 0, 0));
+        assertEquals(1d, result.getSampleDouble(10, 59, 0));
+        assertEquals(6d, result.getSampleDouble(69, 30, 0));
+    }
+
+    private GridCoverage2D readCoverage(Path rasterPath) throws IOException {
+        AbstractGridFormat format = GridFormatFinder.findFormat(rasterPath.toFile());
+        GridCoverage2DReader reader = null;
+        try {
+            reader = format.getReader(rasterPath.toFile());
+            return reader.read(null);
+        } finally {
+            if (reader != null) {
+                reader.dispose();
+            }
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package ch.so.agi.gretlgt.steps;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.opengis.referencing.FactoryException;
+import org.opengis.referencing.NoSuchAuthorityCodeException;
+
+class StepProgressTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void streamingReportsProgressOfEveryTile() throws IOException, NoSuchAuthorityCodeException, FactoryException {
+        Path input = Path.of("src/test/data/RasterReclassifyStep/Beispiel_Rasterfile.asc");
+        List<String> events = new ArrayList<>();
+        ProgressSink sink = new ProgressSink() {
+            @Override
+            public void started(String description) {
+                events.add("started " + description);
+            }
+
+            @Override
+            public synchronized void progress(String status) {
+                events.add(status);
+            }
+
+            @Override
+            public void completed() {
+                events.add("completed");
+            }
+        };
+
+        RasterReclassifyStep step = new RasterReclassifyStep("test");
+        step.setStreaming(true);
+        step.setProgress(new StepProgress(sink));
+        step.execute(input, tempDir.resolve("progress.tif"), new double[] {0, 40, 42, 45}, -5d);
+
+        assertEquals("started test", events.get(0));
+        assertEquals("completed", events.get(events.size() - 1));
+        assertTrue(events.stream().anyMatch(e -> e.startsWith("reclassify 1 band(s): 100.0%")),
+                "Progress must reach 100% once all tiles are computed: " + events);
+    }
+
+    @Test
+    void progressStatusShowsThroughputAndEta() {
+        long[] now = {0};
+        List<String> statuses = new ArrayList<>();
+        StepProgress progress = new StepProgress(new ProgressSink() {
+            @Override
+            public void started(String description) {
+            }
+
+            @Override
+            public void progress(String status) {
+                statuses.add(status);
+            }
+
+            @Override
+            public void completed() {
+            }
+        }, () -> now[0]);
+
+        progress.phase("reclassify", 1000);
+        now[0] = TimeUnit.SECONDS.toNanos(2);
+        progress.advance(250);
+        assertEquals(1, statuses.size(), "Status lines must be throttled");
+        assertEquals("reclassify: 25.0% (125 px/s, ETA 0:00:06)", progress.status());
+
+        progress.progress(100f);
+        assertEquals(2, statuses.size(), "Completing a phase must always be reported");
+        assertEquals("reclassify: 100.0% (500 px/s)", statuses.get(1));
+    }
+}
@@ -3,30 +3,59 @@ package ch.so.agi.gretlgt.steps;
 import static org.junit.jupiter.api.Assertions.*;
 
 import java.awt.geom.AffineTransform;
+import java.awt.image.DataBuffer;
 import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import javax.media.jai.RasterFactory;
 
 import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridEnvelope2D;
+import org.geotools.coverage.grid.GridCoverageFactory;
+import org.geotools.coverage.grid.GridGeometry2D;
 import org.geotools.coverage.grid.io.AbstractGridFormat;
 import org.geotools.coverage.grid.io.GridCoverage2DReader;
 import org.geotools.coverage.grid.io.GridFormatFinder;
+import org.geotools.coverage.processing.CoverageProcessor;
 import org.geotools.data.simple.SimpleFeatureReader;
+import org.geotools.gce.geotiff.GeoTiffWriter;
+import org.geotools.geometry.Envelope2D;
+import org.geotools.geometry.GeneralEnvelope;
+import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.geopkg.FeatureEntry;
 import org.geotools.geopkg.GeoPackage;
+import org.geotools.referencing.CRS;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.GeometryFactory;
 import org.locationtech.jts.geom.MultiPolygon;
+import org.locationtech.jts.geom.Polygon;
 import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.geometry.Envelope;
 import org.opengis.metadata.spatial.PixelOrientation;
+import org.opengis.parameter.ParameterValueGroup;
 import org.opengis.filter.Filter;
 
+import ch.so.agi.gretlgt.logging.LogEnvironment;
+import ch.so.agi.gretlgt.utils.GretlException;
+
 /**
  * Tests for {@link VectorizeStep}.
  */
@@ -127,7 +156,722 @@ class VectorizeStepTest {
         }
     }
 
+    @Test
+    void vectorizesTileDirectoryAsVirtualMosaic() throws Exception {
+        Path raster = Paths.get("src/test/data/VectorizeStep/reclass.tif");
+        Path tiles = Files.createDirectories(tempDir.resolve("tiles"));
+        writeTiles(raster, tiles, 2);
+        Path geopackage = tempDir.resolve("mosaic.gpkg");
+        double cellValue = 55d;
+
+        VectorizeStep step = new VectorizeStep("test");
+        step.execute(tiles, geopackage, 0, List.of(cellValue));
+
+        try (Stream<Path> files = Files.list(tiles)) {
+            assertTrue(files.allMatch(file -> file.getFileName().toString().endsWith(".tif")),
+                    "Nothing but the tiles may be written to the tile directory");
+        }
+        Path indexDirectory = tempDir.resolve("index");
+        CoverageSource source = CoverageSource.of(tiles);
+        source.setIndexDirectory(indexDirectory);
+        source.read();
+        try (Stream<Path> files = Files.list(indexDirectory)) {
+            assertEquals(1, files.filter(file -> file.getFileName().toString().endsWith(".idx")).count(),
+                    "Mosaic index of a tile directory must be written to the index directory");
+        }
+
+        double expectedArea = calculateExpectedArea(raster, 0, cellValue);
+        try (GeoPackage gpkg = new GeoPackage(geopackage.toFile())) {
+            gpkg.init();
+            FeatureEntry entry = gpkg.feature("tiles");
+            assertNotNull(entry, "Expected GeoPackage layer named after the tile directory");
+            try (SimpleFeatureReader reader = gpkg.reader(entry, Filter.INCLUDE, null)) {
+                assertTrue(reader.hasNext(), "Result layer must contain a feature");
+                MultiPolygon geometry = (MultiPolygon) reader.next().getDefaultGeometry();
+                double tolerance = Math.max(1e-6, expectedArea * 1e-6);
+                assertEquals(expectedArea, geometry.getArea(), tolerance,
+                        "Mosaic result must cover the same cells as the single raster");
+            }
+        }
+    }
+
+    @Test
+    void rasterHeaderIsClippedToTheWindowAndTakenFromTheMosaicIndex() throws Exception {
+        Path raster = Paths.get("src/test/data/VectorizeStep/reclass.tif");
+        Path tiles = Files.createDirectories(tempDir.resolve("tiles"));
+        writeTiles(raster, tiles, 2);
+        Envelope2D envelope = readCoverage(raster).getEnvelope2D();
+        ReferencedEnvelope west = new ReferencedEnvelope(envelope.getMinX(), envelope.getCenterX(),
+                envelope.getMinY(), envelope.getMaxY(), envelope.getCoordinateReferenceSystem());
+
+        CoverageSource single = CoverageSource.of(raster);
+        long pixels = single.readHeader().getPixels();
+        long westPixels = single.readHeader(west).getPixels();
+        assertTrue(westPixels > pixels * 0.4 && westPixels < pixels * 0.6, "Header must count the window only");
+
+        Path indexDirectory = tempDir.resolve("index");
+        CoverageSource mosaic = CoverageSource.of(tiles);
+        mosaic.setIndexDirectory(indexDirectory);
+        long mosaicPixels = mosaic.readHeader().getPixels();
+        assertTrue(mosaicPixels >= pixels);
+        long mosaicWestPixels = mosaic.readHeader(west).getPixels();
+        assertTrue(mosaicWestPixels > mosaicPixels * 0.4 && mosaicWestPixels < mosaicPixels * 0.6,
+                "Mosaic header must count the window only");
+
+        // mark the band count in the persisted index: a new source must take it from there
+        Path indexFile;
+        try (Stream<Path> files = Files.list(indexDirectory)) {
+            indexFile = files.filter(file -> file.getFileName().toString().endsWith(".idx")).findFirst().get();
+        }
+        List<String> lines = new ArrayList<>(Files.readAllLines(indexFile));
+        for (int i = 1; i < lines.size(); i++) {
+            String[] parts = lines.get(i).split("\t");
+            parts[9] = "7";
+            lines.set(i, String.join("\t", parts));
+        }
+        Files.write(indexFile, lines);
+        CoverageSource indexed = CoverageSource.of(tiles);
+        indexed.setIndexDirectory(indexDirectory);
+        assertEquals(7, indexed.readHeader().getBands(), "Tile headers must be read from the mosaic index");
+    }
+
+    @Test
+    void vectorizesFromMemoryMappedScratchCopy() throws Exception {
+        Path raster = Paths.get("src/test/data/VectorizeStep/reclass.tif");
+        Path geopackage = tempDir.resolve("mapped.gpkg");
+        Path scratch = tempDir.resolve("scratch");
+        List<Double> cellValues = List.of(55d, 60d);
+
+        VectorizeStep step = new VectorizeStep("test");
+        step.setScratchDirectory(scratch);
+        step.execute(raster, geopackage, 0, cellValues);
+
+        try (Stream<Path> leftovers = Files.list(scratch)) {
+            assertEquals(0, leftovers.count(), "Scratch files must be deleted after the run");
+        }
+        assertFalse(Files.exists(tempDir.resolve("mapped.gpkg.lock")), "No lock file may be left next to the output");
+        assertTrue(Files.exists(LockingWriteSerializer.lockFile(geopackage.toAbsolutePath().normalize())));
+
+        try (GeoPackage gpkg = new GeoPackage(geopackage.toFile())) {
+            gpkg.init();
+            FeatureEntry entry = gpkg.feature("reclass");
+            try (SimpleFeatureReader reader = gpkg.reader(entry, Filter.INCLUDE, null)) {
+                while (reader.hasNext()) {
+                    SimpleFeature feature = reader.next();
+                    double value = ((Number) feature.getAttribute("value")).doubleValue();
+                    double expectedArea = calculateExpectedArea(raster, 0, value);
+                    double tolerance = Math.max(1e-6, expectedArea * 1e-6);
+                    assertEquals(expectedArea, ((MultiPolygon) feature.getDefaultGeometry()).getArea(), tolerance,
+                            "Mapped copy must yield the same area for value " + value);
+                }
+            }
+        }
+    }
+
+    @Test
+    void restrictsVectorizationToPolygonMask() throws Exception {
+        Path raster = Paths.get("src/test/data/VectorizeStep/reclass.tif");
+        Path geopackage = tempDir.resolve("roi.gpkg");
+        double cellValue = 55d;
+
+        GridCoverage2D coverage = readCoverage(raster);
+        Envelope2D envelope = coverage.getEnvelope2D();
+        double cellWidth = envelope.getWidth() / coverage.getRenderedImage().getWidth();
+        double cellHeight = envelope.getHeight() / coverage.getRenderedImage().getHeight();
+        int lastColumn = coverage.getRenderedImage().getWidth() / 2;
+        // right edge between cell corners and centres, so corner and centre rules agree
+        double maxX = envelope.getMinX() + (lastColumn + 0.75) * cellWidth;
+        Polygon mask = new GeometryFactory().createPolygon(new Coordinate[] {
+                new Coordinate(envelope.getMinX() - cellWidth, envelope.getMinY() - cellHeight),
+                new Coordinate(maxX, envelope.getMinY() - cellHeight),
+                new Coordinate(maxX, envelope.getMaxY() + cellHeight),
+                new Coordinate(envelope.getMinX() - cellWidth, envelope.getMaxY() + cellHeight),
+                new Coordinate(envelope.getMinX() - cellWidth, envelope.getMinY() - cellHeight)});
+
+        VectorizeStep step = new VectorizeStep("test");
+        step.setRegionOfInterest(RegionOfInterest.ofGeometry(mask, null));
+        step.execute(raster, geopackage, 0, List.of(cellValue));
+
+        double expectedArea = calculateExpectedArea(raster, 0, cellValue, lastColumn);
+        try (GeoPackage gpkg = new GeoPackage(geopackage.toFile())) {
+            gpkg.init();
+            FeatureEntry entry = gpkg.feature("reclass");
+            try (SimpleFeatureReader reader = gpkg.reader(entry, Filter.INCLUDE, null)) {
+                assertTrue(reader.hasNext(), "Result layer must contain a feature");
+                MultiPolygon geometry = (MultiPolygon) reader.next().getDefaultGeometry();
+                double tolerance = Math.max(1e-6, expectedArea * 1e-6);
+                assertEquals(expectedArea, geometry.getArea(), tolerance,
+                        "Only cells inside the mask must be vectorised");
+                assertTrue(geometry.getEnvelopeInternal().getMaxX()
+                                <= envelope.getMinX() + (lastColumn + 1) * cellWidth + 1e-6,
+                        "No polygon may extend beyond the cells inside the mask");
+            }
+        }
+    }
+
+    @Test
+    void writesFlatGeobufWithPackedHilbertIndex() throws Exception {
+        Path raster = Paths.get("src/test/data/VectorizeStep/reclass.tif");
+        Path output = tempDir.resolve("vectorized.fgb");
+
+        VectorizeStep step = new VectorizeStep("test");
+        step.execute(raster, output, 0, List.of(55d, 60d, 99d));
+
+        ByteBuffer file = ByteBuffer.wrap(Files.readAllBytes(output)).order(ByteOrder.LITTLE_ENDIAN);
+        byte[] magic = new byte[8];
+        file.get(magic);
+        assertArrayEquals(new byte[] {0x66, 0x67, 0x62, 0x03, 0x66, 0x67, 0x62, 0x00}, magic);
+
+        int headerSize = file.getInt(8);
+        int header = 12;
+        int headerTable = header + file.getInt(header);
+        int vtable = headerTable - file.getInt(headerTable);
+        int featuresCountField = file.getShort(vtable + 4 + 2 * 8);
+        assertTrue(featuresCountField > 0, "Header must contain features_count");
+        long featureCount = file.getLong(headerTable + featuresCountField);
+        assertEquals(2, featureCount, "One feature per cell value present in the raster");
+
+        int indexStart = 12 + headerSize;
+        long numNodes = FlatGeobufWriter.levelBounds((int) featureCount, 16)[0][1];
+        int featuresStart = (int) (indexStart + numNodes * 40);
+        int leafStart = (int) (numNodes - featureCount);
+        for (int i = 0; i < featureCount; i++) {
+            int node = indexStart + (leafStart + i) * 40;
+            long offset = file.getLong(node + 32);
+            int featureSize = file.getInt((int) (featuresStart + offset));
+            assertTrue(featureSize > 0, "Leaf " + i + " must point to a size-prefixed feature");
+        }
+
+        int position = featuresStart;
+        int features = 0;
+        while (position < file.limit()) {
+            position += 4 + file.getInt(position);
+            features++;
+        }
+        assertEquals(file.limit(), position, "Features must fill the rest of the file exactly");
+        assertEquals(featureCount, features);
+    }
+
+    @Test
+    void appendsAndReplacesLayersInSharedGeoPackage() throws Exception {
+        Path raster = Paths.get("src/test/data/VectorizeStep/reclass.tif");
+        Path geopackage = tempDir.resolve("shared.gpkg");
+
+        VectorizeStep first = new VectorizeStep("first");
+        first.setAppend(true);
+        first.setLayerName("class_55");
+        first.execute(raster, geopackage, 0, List.of(55d));
+
+        VectorizeStep second = new VectorizeStep("second");
+        second.setAppend(true);
+        second.setLayerName("class_60");
+        second.execute(raster, geopackage, 0, List.of(60d));
+
+        // re-run of the first task replaces only its own layer
+        VectorizeStep rerun = new VectorizeStep("first");
+        rerun.setAppend(true);
+        rerun.setLayerName("class_55");
+        rerun.execute(raster, geopackage, 0, List.of(55d, 60d));
+
+        try (GeoPackage gpkg = new GeoPackage(geopackage.toFile())) {
+            gpkg.init();
+            assertEquals(2, gpkg.features().size(), "Both layers must be present exactly once");
+            assertEquals(presentValues(raster, 55d, 60d), countFeatures(gpkg, "class_55"),
+                    "Re-run must replace the layer contents");
+            assertEquals(presentValues(raster, 60d), countFeatures(gpkg, "class_60"),
+                    "Other layers must be left untouched");
+        }
+    }
+
+    @Test
+    void serializesConcurrentAppendsToSameGeoPackage() throws Exception {
+        Path raster = Paths.get("src/test/data/VectorizeStep/reclass.tif");
+        Path geopackage = tempDir.resolve("concurrent.gpkg");
+        List<Double> cellValues = List.of(55d, 60d, 99d);
+
+        ExecutorService executor = Executors.newFixedThreadPool(cellValues.size());
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (double cellValue : cellValues) {
+                futures.add(executor.submit(() -> {
+                    VectorizeStep step = new VectorizeStep("concurrent");
+                    step.setAppend(true);
+                    step.setLayerName("value_" + (int) cellValue);
+                    step.execute(raster, geopackage, 0, List.of(cellValue));
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        try (GeoPackage gpkg = new GeoPackage(geopackage.toFile())) {
+            gpkg.init();
+            assertEquals(3, gpkg.features().size(), "Every concurrent task must contribute its layer");
+        }
+    }
+
+    @Test
+    void dropsSpeckleAndFillsSmallHoles() throws Exception {
+        // 20x20 cells of value 1 with a single-cell hole, a 3x3 hole and a single-cell island of value 1
+        int size = 20;
+        WritableRaster pixels = RasterFactory.createBandedRaster(DataBuffer.TYPE_BYTE, size, size, 1, null);
+        for (int y = 0; y < 10; y++) {
+            for (int x = 0; x < 10; x++) {
+                pixels.setSample(x, y, 0, 1);
+            }
+        }
+        pixels.setSample(2, 2, 0, 0);
+        for (int y = 5; y < 8; y++) {
+            for (int x = 5; x < 8; x++) {
+                pixels.setSample(x, y, 0, 0);
+            }
+        }
+        pixels.setSample(15, 15, 0, 1);
+        ReferencedEnvelope envelope = new ReferencedEnvelope(2_600_000, 2_600_000 + size, 1_200_000,
+                1_200_000 + size, CRS.decode("EPSG:2056", true));
+        Path raster = tempDir.resolve("speckle.tif");
+        GeoTiffOutput.write(new GridCoverageFactory().create("speckle", pixels, envelope), raster, false);
+
+        Path geopackage = tempDir.resolve("speckle.gpkg");
+        VectorizeStep step = new VectorizeStep("test");
+        step.setMinArea(2);
+        step.setMinHoleArea(2);
+        step.execute(raster, geopackage, 0, List.of(1d));
+
+        VectorizeReport report = step.getReport();
+        assertEquals(2, report.getExtractedPolygons(1d));
+        assertEquals(1, report.getDroppedPolygons(1d), "Single-cell island must be dropped");
+        assertEquals(1, report.getDroppedHoles(1d), "Single-cell hole must be filled");
+
+        try (GeoPackage gpkg = new GeoPackage(geopackage.toFile())) {
+            gpkg.init();
+            try (SimpleFeatureReader reader = gpkg.reader(gpkg.feature("speckle"), Filter.INCLUDE, null)) {
+                MultiPolygon geometry = (MultiPolygon) reader.next().getDefaultGeometry();
+                assertEquals(1, geometry.getNumGeometries());
+                assertEquals(1, ((Polygon) geometry.getGeometryN(0)).getNumInteriorRing(),
+                        "Holes at or above the threshold are kept");
+                assertEquals(100 - 9, geometry.getArea(), 1e-9);
+            }
+        }
+    }
+
+    @Test
+    void runLengthVectorizerMatchesJaiPath() throws Exception {
+        Path raster = Paths.get("src/test/data/VectorizeStep/reclass.tif");
+        assertVectorizersAgree(raster, "reclass", List.of(55d, 60d, 99d));
+    }
+
+    @Test
+    void runLengthVectorizerHandlesSaddlesHolesAndIslands() throws Exception {
+        String[] rows = {
+                "##.#........",
+                ".#.##..###..",
+                "#.#.#..#.#..",
+                "....#..###..",
+                "..######....",
+                "..#....#.##.",
+                "..#.##.#.#..",
+                "..#.##.#..#.",
+                "..#....#....",
+                "..######.oo.",
+                ".........o#.",
+                "..........#.",
+        };
+        WritableRaster pixels = RasterFactory.createBandedRaster(DataBuffer.TYPE_BYTE, rows[0].length(), rows.length,
+                1, null);
+        for (int y = 0; y < rows.length; y++) {
+            for (int x = 0; x < rows[y].length(); x++) {
+                char c = rows[y].charAt(x);
+                pixels.setSample(x, y, 0, c == '#' ? 1 : c == 'o' ? 2 : 0);
+            }
+        }
+        ReferencedEnvelope envelope = new ReferencedEnvelope(2_600_000, 2_600_000 + 12 * 2.5, 1_200_000,
+                1_200_000 + 12 * 2.5, CRS.decode("EPSG:2056", true));
+        Path raster = tempDir.resolve("pattern.tif");
+        GeoTiffOutput.write(new GridCoverageFactory().create("pattern", pixels, envelope), raster, false);
+
+        assertVectorizersAgree(raster, "pattern", List.of(0d, 1d, 2d));
+    }
+
+    @Test
+    void dissolvedCoordinatesLieOnRasterGrid() throws Exception {
+        Path raster = Paths.get("src/test/data/VectorizeStep/reclass.tif");
+        GridCoverage2D coverage = readCoverage(raster);
+        AffineTransform gridToWorld = (AffineTransform) coverage.getGridGeometry()
+                .getGridToCRS2D(PixelOrientation.UPPER_LEFT);
+        assertNotNull(GridPrecision.of(coverage.getGridGeometry()), "Test raster must have a grid-aligned origin");
+
+        for (Vectorizer vectorizer : Vectorizer.values()) {
+            Path geopackage = tempDir.resolve("grid_" + vectorizer + ".gpkg");
+            VectorizeStep step = new VectorizeStep("test");
+            step.setVectorizer(vectorizer);
+            step.execute(raster, geopackage, 0, List.of(55d, 60d, 99d));
+
+            for (MultiPolygon geometry : readGeometriesByValue(geopackage, "reclass").values()) {
+                assertTrue(geometry.isValid(), "Dissolved geometry must be valid");
+                for (Coordinate c : geometry.getCoordinates()) {
+                    double column = (c.x - gridToWorld.getTranslateX()) / gridToWorld.getScaleX();
+                    double row = (c.y - gridToWorld.getTranslateY()) / gridToWorld.getScaleY();
+                    assertEquals(Math.rint(column), column, 1e-9, vectorizer + ": x must lie on a cell corner");
+                    assertEquals(Math.rint(row), row, 1e-9, vectorizer + ": y must lie on a cell corner");
+                }
+            }
+        }
+    }
+
+    @Test
+    void subdividesClassesIntoGridAndVertexLimitedPieces() throws Exception {
+        Path raster = Paths.get("src/test/data/VectorizeStep/reclass.tif");
+        GridCoverage2D coverage = readCoverage(raster);
+        double cellSize = ((AffineTransform) coverage.getGridGeometry()
+                .getGridToCRS2D(PixelOrientation.UPPER_LEFT)).getScaleX();
+        Path dissolved = tempDir.resolve("dissolved.gpkg");
+        new VectorizeStep("test").execute(raster, dissolved, 0, List.of(55d, 60d));
+        Map<Double, MultiPolygon> expected = readGeometriesByValue(dissolved, "reclass");
+
+        Path gridded = tempDir.resolve("gridded.gpkg");
+        VectorizeStep step = new VectorizeStep("test");
+        double gridSize = 37 * cellSize;
+        step.setSubdivideGridSize(gridSize);
+        step.setSubdivideMaxVertices(64);
+        step.execute(raster, gridded, 0, List.of(55d, 60d));
+
+        Map<Double, Double> areas = new HashMap<>();
+        List<String> tileIds = new ArrayList<>();
+        try (GeoPackage gpkg = new GeoPackage(gridded.toFile())) {
+            gpkg.init();
+            try (SimpleFeatureReader reader = gpkg.reader(gpkg.feature("reclass"), Filter.INCLUDE, null)) {
+                while (reader.hasNext()) {
+                    SimpleFeature feature = reader.next();
+                    MultiPolygon piece = (MultiPolygon) feature.getDefaultGeometry();
+                    String tileId = (String) feature.getAttribute(VectorizeStep.TILE_ID);
+                    assertNotNull(tileId);
+                    assertTrue(piece.isValid(), "Piece " + tileId + " must be valid");
+                    assertTrue(piece.getNumPoints() <= 64, "Piece " + tileId + " exceeds the vertex limit");
+                    String[] cell = tileId.substring(0, tileId.indexOf('/')).split("_");
+                    long column = Long.parseLong(cell[0]);
+                    assertTrue(piece.getEnvelopeInternal().getMinX() >= column * gridSize - 1e-6
+                            && piece.getEnvelopeInternal().getMaxX() <= (column + 1) * gridSize + 1e-6,
+                            "Piece " + tileId + " must lie in its grid column");
+                    tileIds.add(feature.getAttribute("value") + ":" + tileId);
+                    areas.merge(((Number) feature.getAttribute("value")).doubleValue(), piece.getArea(), Double::sum);
+                }
+            }
+        }
+        assertTrue(tileIds.size() > expected.size(), "Classes must be split into several features");
+        assertEquals(tileIds.size(), tileIds.stream().distinct().count(), "Tile IDs must be unique per class");
+        for (Map.Entry<Double, MultiPolygon> entry : expected.entrySet()) {
+            assertEquals(entry.getValue().getArea(), areas.get(entry.getKey()), 1e-6,
+                    "Pieces must cover the dissolved area of value " + entry.getKey());
+        }
+    }
+
+    @Test
+    void vectorizesAllDiscoveredValuesExceptNoData() throws Exception {
+        Path raster = Paths.get("src/test/data/VectorizeStep/reclass.tif");
+        Path discovered = tempDir.resolve("all_values.gpkg");
+        VectorizeStep step = new VectorizeStep("test");
+        step.setVectorizer(Vectorizer.RUN_LENGTH);
+        step.execute(raster, discovered, 0);
+
+        List<Double> values = step.getReport().getDiscoveredValues();
+        assertNotNull(values);
+        assertFalse(values.isEmpty(), "The raster must contain classes");
+        double noData = RasterReclassify.sourceNoData(readCoverage(raster), 0);
+        for (int i = 0; i < values.size(); i++) {
+            assertNotEquals(noData, values.get(i), "No-data must not be vectorised");
+            assertTrue(calculateExpectedArea(raster, 0, values.get(i)) > 0, "Value " + values.get(i) + " must occur");
+            if (i > 0) {
+                assertTrue(values.get(i - 1) < values.get(i), "Values must be distinct and sorted");
+            }
+        }
+
+        Path listed = tempDir.resolve("listed_values.gpkg");
+        VectorizeStep listedStep = new VectorizeStep("test");
+        listedStep.setVectorizer(Vectorizer.RUN_LENGTH);
+        listedStep.execute(raster, listed, 0, values);
+        Map<Double, MultiPolygon> expected = readGeometriesByValue(listed, "reclass");
+        Map<Double, MultiPolygon> actual = readGeometriesByValue(discovered, "reclass");
+        assertEquals(expected.keySet(), actual.keySet());
+        for (Map.Entry<Double, MultiPolygon> entry : expected.entrySet()) {
+            assertEquals(entry.getValue().getArea(), actual.get(entry.getKey()).getArea(), 1e-6);
+        }
+    }
+
+    @Test
+    void discoveryRejectsContinuousRasters() throws Exception {
+        WritableRaster pixels = RasterFactory.createBandedRaster(DataBuffer.TYPE_FLOAT, 600, 600, 1, null);
+        for (int y = 0; y < 600; y++) {
+            for (int x = 0; x < 600; x++) {
+                pixels.setSample(x, y, 0, x * 0.5f + y);
+            }
+        }
+        GridCoverage2D coverage = new GridCoverageFactory().create("continuous", pixels,
+                new ReferencedEnvelope(2_600_000, 2_600_600, 1_200_000, 1_200_600, CRS.decode("EPSG:2056", true)));
+        StepProgress progress = new StepProgress(ProgressSink.logging(LogEnvironment.getLogger(getClass())));
+
+        GretlException e = assertThrows(GretlException.class,
+                () -> new CellValueDiscovery(100, progress, new CancellationToken()).discover(coverage, 0));
+        assertTrue(e.getMessage().contains("more than 100 distinct values"));
+
+        double[] classes = new CellValueDiscovery(2000, progress, new CancellationToken()).discover(coverage, 0);
+        assertEquals(1798, classes.length, "x / 2 + y takes every multiple of 0.5 from 0 to 898.5");
+    }
+
+    @Test
+    void incrementalUpdateReplacesOnlyChangedGridCells() throws Exception {
+        Path raster = tempDir.resolve("landuse.tif");
+        WritableRaster pixels = RasterFactory.createBandedRaster(DataBuffer.TYPE_INT, 300, 300, 1, null);
+        for (int y = 0; y < 300; y++) {
+            for (int x = 0; x < 300; x++) {
+                pixels.setSample(x, y, 0, (x / 40 + y / 30) % 3 + 1);
+            }
+        }
+        writeGeoTiff(raster, pixels);
+        List<Double> cellValues = List.of(1d, 2d, 3d, 7d);
+        Path geopackage = tempDir.resolve("incremental.gpkg");
+
+        VectorizeStep first = incrementalStep();
+        first.execute(raster, geopackage, 0, cellValues);
+        assertEquals(-1, first.getReport().getChangedGridCells(), "A new layer must be written completely");
+
+        VectorizeStep unchanged = incrementalStep();
+        unchanged.execute(raster, geopackage, 0, cellValues);
+        assertEquals(0, unchanged.getReport().getChangedGridCells());
+        assertEquals(36, unchanged.getReport().getGridCells(), "300 m of raster are 6 x 6 grid cells of 50 m");
+
+        // a block inside the grid cell 2600100..2600150 / 1200150..1200200
+        for (int y = 120; y < 130; y++) {
+            for (int x = 120; x < 130; x++) {
+                pixels.setSample(x, y, 0, 7);
+            }
+        }
+        writeGeoTiff(raster, pixels);
+        VectorizeStep changed = incrementalStep();
+        changed.execute(raster, geopackage, 0, cellValues);
+        assertEquals(1, changed.getReport().getChangedGridCells());
+
+        Path rebuilt = tempDir.resolve("rebuilt.gpkg");
+        VectorizeStep full = new VectorizeStep("test");
+        full.setVectorizer(Vectorizer.RUN_LENGTH);
+        full.setSubdivideGridSize(50);
+        full.execute(raster, rebuilt, 0, cellValues);
+
+        Map<String, MultiPolygon> expected = readPieces(rebuilt, "landuse");
+        Map<String, MultiPolygon> actual = readPieces(geopackage, "landuse");
+        assertTrue(expected.containsKey("7.0:52002_24003"), "The changed block must be vectorised");
+        assertEquals(expected.keySet(), actual.keySet());
+        for (Map.Entry<String, MultiPolygon> entry : expected.entrySet()) {
+            assertEquals(0d, entry.getValue().symDifference(actual.get(entry.getKey())).getArea(), 1e-6,
+                    "Piece " + entry.getKey() + " must match a full rebuild");
+        }
+
+        VectorizeStep withoutGrid = new VectorizeStep("test");
+        withoutGrid.setIncremental(true);
+        assertThrows(IllegalArgumentException.class, () -> withoutGrid.execute(raster, geopackage, 0, cellValues));
+    }
+
+    @Test
+    void expiredTimeoutAbortsAndRemovesOutput() throws Exception {
+        Path raster = Paths.get("src/test/data/VectorizeStep/reclass.tif");
+        Path geopackage = tempDir.resolve("cancelled.gpkg");
+        new VectorizeStep("test").execute(raster, geopackage, 0, List.of(55d, 60d));
+        assertTrue(Files.exists(geopackage));
+
+        VectorizeStep step = new VectorizeStep("test");
+        step.setCancellationToken(CancellationToken.withTimeout(Duration.ofNanos(1)));
+        StepCancelledException e = assertThrows(StepCancelledException.class,
+                () -> step.execute(raster, geopackage, 0, List.of(55d, 60d)));
+        assertTrue(e.getMessage().contains("timed out"), e.getMessage());
+        assertFalse(Files.exists(geopackage), "Output of a cancelled step must be removed");
+    }
+
+    private void assertVectorizersAgree(Path raster, String layer, List<Double> cellValues) throws Exception {
+        Path jaiOutput = tempDir.resolve(layer + "_jai.gpkg");
+        new VectorizeStep("jai").execute(raster, jaiOutput, 0, cellValues);
+
+        Path runLengthOutput = tempDir.resolve(layer + "_rle.gpkg");
+        VectorizeStep step = new VectorizeStep("run-length");
+        step.setVectorizer(Vectorizer.RUN_LENGTH);
+        step.execute(raster, runLengthOutput, 0, cellValues);
+
+        Map<Double, MultiPolygon> expected = readGeometriesByValue(jaiOutput, layer);
+        Map<Double, MultiPolygon> actual = readGeometriesByValue(runLengthOutput, layer);
+        assertEquals(expected.keySet(), actual.keySet(), "Both vectorizers must produce the same classes");
+        for (Map.Entry<Double, MultiPolygon> entry : expected.entrySet()) {
+            MultiPolygon traced = actual.get(entry.getKey());
+            assertTrue(traced.isValid(), "Traced geometry must be valid for value " + entry.getKey());
+            assertEquals(entry.getValue().getArea(), traced.getArea(), 1e-6,
+                    "Area must match for value " + entry.getKey());
+            assertEquals(0d, entry.getValue().symDifference(traced).getArea(), 1e-6,
+                    "Geometries must cover the same cells for value " + entry.getKey());
+        }
+    }
+
+    @Test
+    void incrementalUpdateOfAllValuesDiscoversValuesOnceFromTheWholeRaster() throws Exception {
+        Path raster = tempDir.resolve("landuse.tif");
+        WritableRaster pixels = RasterFactory.createBandedRaster(DataBuffer.TYPE_INT, 300, 300, 1, null);
+        for (int y = 0; y < 300; y++) {
+            for (int x = 0; x < 300; x++) {
+                pixels.setSample(x, y, 0, (x / 40 + y / 30) % 3 + 1);
+            }
+        }
+        writeGeoTiff(raster, pixels);
+        Path geopackage = tempDir.resolve("incremental_all.gpkg");
+        incrementalStep().execute(raster, geopackage, 0);
+
+        // two new values in grid cells of different grid rows, so they are updated in separate windows
+        for (int y = 120; y < 130; y++) {
+            for (int x = 120; x < 130; x++) {
+                pixels.setSample(x, y, 0, 7);
+                pixels.setSample(x - 100, y + 100, 0, 8);
+            }
+        }
+        writeGeoTiff(raster, pixels);
+        VectorizeStep changed = incrementalStep();
+        changed.execute(raster, geopackage, 0);
+        assertEquals(2, changed.getReport().getChangedGridCells());
+        assertEquals(List.of(1d, 2d, 3d, 7d, 8d), changed.getReport().getDiscoveredValues(),
+                "The report must list the values of the whole raster");
+
+        Path rebuilt = tempDir.resolve("rebuilt_all.gpkg");
+        VectorizeStep full = new VectorizeStep("test");
+        full.setVectorizer(Vectorizer.RUN_LENGTH);
+        full.setSubdivideGridSize(50);
+        full.execute(raster, rebuilt, 0);
+        Map<String, MultiPolygon> expected = readPieces(rebuilt, "landuse");
+        Map<String, MultiPolygon> actual = readPieces(geopackage, "landuse");
+        assertEquals(expected.keySet(), actual.keySet());
+        for (Map.Entry<String, MultiPolygon> entry : expected.entrySet()) {
+            assertEquals(0d, entry.getValue().symDifference(actual.get(entry.getKey())).getArea(), 1e-6,
+                    "Piece " + entry.getKey() + " must match a full rebuild");
+        }
+    }
+
+    private VectorizeStep incrementalStep() {
+        VectorizeStep step = new VectorizeStep("test");
+        step.setVectorizer(Vectorizer.RUN_LENGTH);
+        step.setSubdivideGridSize(50);
+        step.setIncremental(true);
+        return step;
+    }
+
+    private void writeGeoTiff(Path path, WritableRaster pixels) throws Exception {
+        GridCoverage2D coverage = new GridCoverageFactory().create("landuse", pixels,
+                new ReferencedEnvelope(2_600_000, 2_600_300, 1_200_000, 1_200_300, CRS.decode("EPSG:2056", true)));
+        Files.deleteIfExists(path);
+        GeoTiffWriter writer = new GeoTiffWriter(path.toFile());
+        try {
+            writer.write(coverage, null);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    private Map<String, MultiPolygon> readPieces(Path geopackage, String layer) throws IOException {
+        Map<String, MultiPolygon> pieces = new HashMap<>();
+        try (GeoPackage gpkg = new GeoPackage(geopackage.toFile())) {
+            gpkg.init();
+            try (SimpleFeatureReader reader = gpkg.reader(gpkg.feature(layer), Filter.INCLUDE, null)) {
+                while (reader.hasNext()) {
+                    SimpleFeature feature = reader.next();
+                    String key = ((Number) feature.getAttribute("value")).doubleValue() + ":"
+                            + feature.getAttribute(VectorizeStep.TILE_ID);
+                    assertNull(pieces.put(key, (MultiPolygon) feature.getDefaultGeometry()), "Duplicate piece " + key);
+                }
+            }
+        }
+        return pieces;
+    }
+
+    private Map<Double, MultiPolygon> readGeometriesByValue(Path geopackage, String layer) throws IOException {
+        Map<Double, MultiPolygon> geometries = new HashMap<>();
+        try (GeoPackage gpkg = new GeoPackage(geopackage.toFile())) {
+            gpkg.init();
+            try (SimpleFeatureReader reader = gpkg.reader(gpkg.feature(layer), Filter.INCLUDE, null)) {
+                while (reader.hasNext()) {
+                    SimpleFeature feature = reader.next();
+                    geometries.put(((Number) feature.getAttribute("value")).doubleValue(),
+                            (MultiPolygon) feature.getDefaultGeometry());
+                }
+            }
+        }
+        return geometries;
+    }
+
+    private int presentValues(Path raster, double... values) throws IOException {
+        int present = 0;
+        for (double value : values) {
+            if (calculateExpectedArea(raster, 0, value) > 0) {
+                present++;
+            }
+        }
+        return present;
+    }
+
+    private int countFeatures(GeoPackage gpkg, String layer) throws IOException {
+        FeatureEntry entry = gpkg.feature(layer);
+        assertNotNull(entry, "Expected layer " + layer);
+        int count = 0;
+        try (SimpleFeatureReader reader = gpkg.reader(entry, Filter.INCLUDE, null)) {
+            while (reader.hasNext()) {
+                reader.next();
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void writeTiles(Path rasterPath, Path targetDir, int tilesPerAxis) throws IOException {
+        File rasterFile = rasterPath.toFile();
+        AbstractGridFormat format = GridFormatFinder.findFormat(rasterFile);
+        GridCoverage2DReader reader = format.getReader(rasterFile);
+        try {
+            GridCoverage2D coverage = reader.read(null);
+            GridGeometry2D gridGeometry = coverage.getGridGeometry();
+            GridEnvelope2D range = gridGeometry.getGridRange2D();
+            int tileWidth = (range.width + tilesPerAxis - 1) / tilesPerAxis;
+            int tileHeight = (range.height + tilesPerAxis - 1) / tilesPerAxis;
+            CoverageProcessor processor = CoverageProcessor.getInstance();
+            for (int ty = 0; ty < tilesPerAxis; ty++) {
+                for (int tx = 0; tx < tilesPerAxis; tx++) {
+                    int x = range.x + tx * tileWidth;
+                    int y = range.y + ty * tileHeight;
+                    int w = Math.min(tileWidth, range.x + range.width - x);
+                    int h = Math.min(tileHeight, range.y + range.height - y);
+                    Envelope tileEnvelope = gridGeometry.gridToWorld(new GridEnvelope2D(x, y, w, h));
+                    GeneralEnvelope envelope = new GeneralEnvelope(tileEnvelope);
+                    envelope.setCoordinateReferenceSystem(coverage.getCoordinateReferenceSystem());
+
+                    ParameterValueGroup params = processor.getOperation("CoverageCrop").getParameters();
+                    params.parameter("Source").setValue(coverage);
+                    params.parameter("Envelope").setValue(envelope);
+                    GridCoverage2D tile = (GridCoverage2D) processor.doOperation(params);
+
+                    GeoTiffWriter writer = new GeoTiffWriter(targetDir.resolve("tile_" + tx + "_" + ty + ".tif").toFile());
+                    try {
+                        writer.write(tile, null);
+                    } finally {
+                        writer.dispose();
+                    }
+                }
+            }
+        } finally {
+            reader.dispose();
+        }
+    }
+
     private double calculateExpectedArea(Path rasterPath, int band, double targetValue) throws IOException {
+        return calculateExpectedArea(rasterPath, band, targetValue, Integer.MAX_VALUE);
+    }
+
+    private double calculateExpectedArea(Path rasterPath, int band, double targetValue, int lastColumn)
+            throws IOException {
         File rasterFile = rasterPath.toFile();
         AbstractGridFormat format = GridFormatFinder.findFormat(rasterFile);
         GridCoverage2DReader reader = null;
@@ -143,7 +887,7 @@ class VectorizeStepTest {
             Raster raster = coverage.getRenderedImage().getData();
             int minX = raster.getMinX();
             int minY = raster.getMinY();
-            int maxX = minX + raster.getWidth();
+            int maxX = (int) Math.min(minX + raster.getWidth(), minX + (long) lastColumn + 1);
             int maxY = minY + raster.getHeight();
             int matches = 0;
             for (int y = minY; y < maxY; y++) {
@@ -161,4 +905,14 @@ class VectorizeStepTest {
             }
         }
     }
+
+    private GridCoverage2D readCoverage(Path rasterPath) throws IOException {
+        File rasterFile = rasterPath.toFile();
+        GridCoverage2DReader reader = GridFormatFinder.findFormat(rasterFile).getReader(rasterFile);
+        try {
+            return reader.read(null);
+        } finally {
+            reader.dispose();
+        }
+    }
 }
@@ -0,0 +1,95 @@
+package ch.so.agi.gretlgt.steps;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.media.jai.PlanarImage;
+import javax.media.jai.RasterFactory;
+import javax.media.jai.TiledImage;
+
+import org.geotools.referencing.operation.transform.AffineTransform2D;
+import org.junit.jupiter.api.Test;
+
+class WarpKernelTest {
+
+    @Test
+    void approximationGridIsComputedOncePerImage() {
+        TiledImage source = image(1100, 800, (x, y) -> x + 10_000 * y);
+        AtomicLong transformed = new AtomicLong();
+        AffineTransform2D shift = new AffineTransform2D(AffineTransform.getTranslateInstance(50, 30)) {
+            @Override
+            public void transform(double[] srcPts, int srcOff, double[] dstPts, int dstOff, int numPts) {
+                transformed.addAndGet(numPts);
+                super.transform(srcPts, srcOff, dstPts, dstOff, numPts);
+            }
+        };
+        Rectangle bounds = new Rectangle(0, 0, 1000, 700);
+        WarpKernel kernel = new WarpKernel(source, bounds, shift, Resampling.NEAREST, new double[] {Double.NaN}, -1);
+        long grid = transformed.get();
+
+        int tileSize = GeoTiffOutput.TILE_SIZE;
+        for (int ty = 0; ty < bounds.height; ty += tileSize) {
+            for (int tx = 0; tx < bounds.width; tx += tileSize) {
+                Rectangle region = new Rectangle(tx, ty, tileSize, tileSize).intersection(bounds);
+                WritableRaster target = RasterFactory.createBandedRaster(DataBuffer.TYPE_DOUBLE, region.width,
+                        region.height, 1, region.getLocation());
+                kernel.compute(new Raster[0], target, region);
+                for (int y = region.y; y < region.y + region.height; y++) {
+                    for (int x = region.x; x < region.x + region.width; x++) {
+                        assertEquals(x + 50 + 10_000 * (y + 30), target.getSampleDouble(x, y, 0));
+                    }
+                }
+            }
+        }
+        assertEquals(grid, transformed.get());
+    }
+
+    @Test
+    void modeCoversTheWholeFootprint() {
+        // in every 8x8 block, the upper 5 rows are 1 and the lower 3 rows are 2
+        TiledImage source = image(256, 256, (x, y) -> y % 8 < 5 ? 1 : 2);
+        AffineTransform2D scale = new AffineTransform2D(AffineTransform.getScaleInstance(8, 8));
+        Rectangle bounds = new Rectangle(0, 0, 32, 32);
+        WarpKernel kernel = new WarpKernel(source, bounds, scale, Resampling.MODE, new double[] {Double.NaN}, -1);
+
+        WritableRaster target = RasterFactory.createBandedRaster(DataBuffer.TYPE_DOUBLE, 32, 32, 1, null);
+        kernel.compute(new Raster[0], target, bounds);
+        for (int y = 0; y < 32; y++) {
+            for (int x = 0; x < 32; x++) {
+                assertEquals(1, target.getSampleDouble(x, y, 0));
+            }
+        }
+
+        source = image(256, 256, (x, y) -> y % 8 < 3 ? 1 : 2);
+        kernel = new WarpKernel(source, bounds, scale, Resampling.MODE, new double[] {Double.NaN}, -1);
+        kernel.compute(new Raster[0], target, bounds);
+        for (int y = 0; y < 32; y++) {
+            for (int x = 0; x < 32; x++) {
+                assertEquals(2, target.getSampleDouble(x, y, 0));
+            }
+        }
+    }
+
+    private interface Cells {
+        double value(int x, int y);
+    }
+
+    private static TiledImage image(int width, int height, Cells cells) {
+        WritableRaster pixels = RasterFactory.createBandedRaster(DataBuffer.TYPE_DOUBLE, width, height, 1, null);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                pixels.setSample(x, y, 0, cells.value(x, y));
+            }
+        }
+        TiledImage image = new TiledImage(0, 0, width, height, 0, 0, pixels.getSampleModel(),
+                PlanarImage.createColorModel(pixels.getSampleModel()));
+        image.setData(pixels);
+        return image;
+    }
+}